@@ -0,0 +1,144 @@
+/*
+ * Copyright 2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.api;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * The asynchronous companion of EntityPersistenceProvider - each operation
+ * returns immediately with a future of its result, so that independent
+ * operations can overlap.
+ *
+ * A failed operation completes its future exceptionally (normally with a
+ * LogicException).
+ *
+ * Providers which can execute operations more efficiently than by running
+ * their blocking operations on another thread implement this interface
+ * themselves; other providers are adapted using of().
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ * @param <K> the Primary Key class
+ */
+public interface AsyncEntityPersistenceProvider<K> {
+
+    /**
+     * Get the asynchronous form of an EntityPersistenceProvider. If the
+     * provider does not implement the asynchronous operations, its blocking
+     * operations are run using the default executor (see AsyncExecutor).
+     *
+     * @param <K> the Primary Key class
+     * @param epp the entity persistence provider
+     * @return the asynchronous entity persistence provider
+     */
+    public static <K> AsyncEntityPersistenceProvider<K> of(EntityPersistenceProvider<K> epp) {
+        if (epp instanceof AsyncEntityPersistenceProvider) {
+            // a provider implements both interfaces with the same key class
+            @SuppressWarnings("unchecked")
+            AsyncEntityPersistenceProvider<K> async = (AsyncEntityPersistenceProvider<K>) epp;
+            return async;
+        }
+        return new AsyncEntityPersistenceProviderAdapter<>(epp, AsyncExecutor.getDefault());
+    }
+
+    /**
+     * Get the asynchronous form of an EntityPersistenceProvider, running its
+     * blocking operations using a given executor.
+     *
+     * @param <K> the Primary Key class
+     * @param epp the entity persistence provider
+     * @param executor the executor
+     * @return the asynchronous entity persistence provider
+     */
+    public static <K> AsyncEntityPersistenceProvider<K> of(EntityPersistenceProvider<K> epp, Executor executor) {
+        return new AsyncEntityPersistenceProviderAdapter<>(epp, executor);
+    }
+
+    /**
+     * Get entity data - using primary key
+     *
+     * @param pk the entity primary key
+     * @return the future entity fields
+     */
+    public CompletableFuture<EntityFields> getAsync(K pk);
+
+    /**
+     * Get entity data for a set of primary keys.
+     *
+     * @param pks the entity primary keys
+     * @return the future entity fields (in the same order as the primary
+     * keys)
+     */
+    public CompletableFuture<List<EntityFields>> getAsync(Collection<K> pks);
+
+    /**
+     * Get the set of entity for all stored entities.
+     *
+     * @return the future set of entities
+     */
+    public CompletableFuture<List<EntityFields>> getAsync();
+
+    /**
+     * Get the set of entities selected by a set of criteria.
+     *
+     * @param criteria the selection criteria
+     * @return the future set of entities
+     */
+    public CompletableFuture<List<EntityFields>> getAsync(Criteria criteria);
+
+    /**
+     * Get the primary keys of the entities selected by a set of criteria.
+     *
+     * @param criteria the selection criteria
+     * @return the future set of primary keys
+     */
+    public CompletableFuture<List<K>> findAsync(Criteria criteria);
+
+    /**
+     * Count the entities selected by a set of criteria.
+     *
+     * @param criteria the selection criteria
+     * @return the future count
+     */
+    public CompletableFuture<Integer> countAsync(Criteria criteria);
+
+    /**
+     * Insert a new entity into entity storage.
+     *
+     * @param values the set of values
+     * @return the future full set of entity fields
+     */
+    public CompletableFuture<EntityFields> insertAsync(EntityFields values);
+
+    /**
+     * Update an existing entity in entity storage with a new set of values.
+     *
+     * @param pk the entity primary key
+     * @param diff the set of values to be updated
+     * @return the future full set of entity fields
+     */
+    public CompletableFuture<EntityFields> updateAsync(K pk, EntityFields diff);
+
+    /**
+     * Delete an entity from entity storage.
+     *
+     * @param pk the entity primary key
+     * @return the future completion
+     */
+    public CompletableFuture<Void> deleteAsync(K pk);
+}
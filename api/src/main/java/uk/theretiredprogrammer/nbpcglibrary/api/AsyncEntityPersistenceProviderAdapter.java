@@ -0,0 +1,92 @@
+/*
+ * Copyright 2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.api;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Adapts an EntityPersistenceProvider to the asynchronous operations, by
+ * running its blocking operations using an executor. The operations run on
+ * executor threads while the provider is used by other threads, so the
+ * provider must be thread safe.
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ * @param <K> the Primary Key class
+ */
+final class AsyncEntityPersistenceProviderAdapter<K> implements AsyncEntityPersistenceProvider<K> {
+
+    private final EntityPersistenceProvider<K> epp;
+    private final Executor executor;
+
+    /**
+     * Constructor.
+     *
+     * @param epp the entity persistence provider
+     * @param executor the executor used to run its operations
+     */
+    AsyncEntityPersistenceProviderAdapter(EntityPersistenceProvider<K> epp, Executor executor) {
+        this.epp = epp;
+        this.executor = executor;
+    }
+
+    @Override
+    public CompletableFuture<EntityFields> getAsync(K pk) {
+        return CompletableFuture.supplyAsync(() -> epp.get(pk), executor);
+    }
+
+    @Override
+    public CompletableFuture<List<EntityFields>> getAsync(Collection<K> pks) {
+        return CompletableFuture.supplyAsync(() -> epp.get(pks), executor);
+    }
+
+    @Override
+    public CompletableFuture<List<EntityFields>> getAsync() {
+        return CompletableFuture.supplyAsync(() -> epp.get(), executor);
+    }
+
+    @Override
+    public CompletableFuture<List<EntityFields>> getAsync(Criteria criteria) {
+        return CompletableFuture.supplyAsync(() -> epp.get(criteria), executor);
+    }
+
+    @Override
+    public CompletableFuture<List<K>> findAsync(Criteria criteria) {
+        return CompletableFuture.supplyAsync(() -> epp.find(criteria), executor);
+    }
+
+    @Override
+    public CompletableFuture<Integer> countAsync(Criteria criteria) {
+        return CompletableFuture.supplyAsync(() -> epp.count(criteria), executor);
+    }
+
+    @Override
+    public CompletableFuture<EntityFields> insertAsync(EntityFields values) {
+        return CompletableFuture.supplyAsync(() -> epp.insert(values), executor);
+    }
+
+    @Override
+    public CompletableFuture<EntityFields> updateAsync(K pk, EntityFields diff) {
+        return CompletableFuture.supplyAsync(() -> epp.update(pk, diff), executor);
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAsync(K pk) {
+        return CompletableFuture.runAsync(() -> epp.delete(pk), executor);
+    }
+}
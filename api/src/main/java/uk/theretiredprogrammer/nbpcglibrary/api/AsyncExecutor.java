@@ -0,0 +1,77 @@
+/*
+ * Copyright 2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.api;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The executor used to run asynchronous entity persistence operations.
+ *
+ * The default executor uses a virtual thread per operation when the Java
+ * runtime supports virtual threads, otherwise a cached pool of daemon
+ * threads. An application can configure its own executor using
+ * setDefault().
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ */
+public final class AsyncExecutor {
+
+    private static Executor executor;
+
+    private AsyncExecutor() {
+    }
+
+    /**
+     * Get the executor for asynchronous operations.
+     *
+     * @return the executor
+     */
+    public static synchronized Executor getDefault() {
+        if (executor == null) {
+            executor = createDefault();
+        }
+        return executor;
+    }
+
+    /**
+     * Set the executor for asynchronous operations. Providers created after
+     * this call use the new executor.
+     *
+     * @param newexecutor the executor (or null to restore the default)
+     */
+    public static synchronized void setDefault(Executor newexecutor) {
+        executor = newexecutor;
+    }
+
+    private static Executor createDefault() {
+        try {
+            Method virtual = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) virtual.invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            // no virtual threads in this runtime
+        }
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newCachedThreadPool((r) -> {
+            Thread t = new Thread(r, "nbpcglibrary-async-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+}
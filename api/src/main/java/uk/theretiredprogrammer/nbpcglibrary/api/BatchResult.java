@@ -0,0 +1,125 @@
+/*
+ * Copyright 2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.api;
+
+/**
+ * The per row results of a batch insert, update or delete. Each row is either
+ * successful (with the full set of entity fields for inserts and updates) or
+ * failed (with an error message).
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ */
+public class BatchResult {
+
+    private final EntityFields[] rows;
+    private final String[] errors;
+    private int errorcount = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param size the number of rows in the batch
+     */
+    public BatchResult(int size) {
+        rows = new EntityFields[size];
+        errors = new String[size];
+    }
+
+    /**
+     * Record a successful row.
+     *
+     * @param index the row index (in batch order)
+     * @param row the full set of entity fields (null for deletes)
+     */
+    public void setSuccess(int index, EntityFields row) {
+        if (errors[index] != null) {
+            errors[index] = null;
+            errorcount--;
+        }
+        rows[index] = row;
+    }
+
+    /**
+     * Record a failed row.
+     *
+     * @param index the row index (in batch order)
+     * @param error the error message
+     */
+    public void setFailure(int index, String error) {
+        if (errors[index] == null) {
+            errorcount++;
+        }
+        rows[index] = null;
+        errors[index] = error == null ? "" : error;
+    }
+
+    /**
+     * Get the number of rows in the batch.
+     *
+     * @return the number of rows
+     */
+    public int size() {
+        return rows.length;
+    }
+
+    /**
+     * Test if a row was successful.
+     *
+     * @param index the row index
+     * @return true if successful
+     */
+    public boolean isSuccess(int index) {
+        return errors[index] == null;
+    }
+
+    /**
+     * Get the entity fields of a successful row.
+     *
+     * @param index the row index
+     * @return the full set of entity fields (null if failed, or a delete)
+     */
+    public EntityFields getRow(int index) {
+        return rows[index];
+    }
+
+    /**
+     * Get the error message of a failed row.
+     *
+     * @param index the row index
+     * @return the error message (null if successful)
+     */
+    public String getError(int index) {
+        return errors[index];
+    }
+
+    /**
+     * Test if any rows failed.
+     *
+     * @return true if any failures
+     */
+    public boolean hasErrors() {
+        return errorcount > 0;
+    }
+
+    /**
+     * Get the number of failed rows.
+     *
+     * @return the number of failures
+     */
+    public int getErrorCount() {
+        return errorcount;
+    }
+}
@@ -0,0 +1,496 @@
+/*
+ * Copyright 2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.api;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * The selection criteria (and optional ordering) of a query - a tree of
+ * field comparisons combined with AND and OR.
+ *
+ * Criteria are immutable; they are built with the static factory methods,
+ * for example:
+ *
+ * <pre>
+ * Criteria.and(Criteria.eq("application", appid), Criteria.in("role", roleids))
+ *         .orderBy("role")
+ * </pre>
+ *
+ * Only the ordering of the outermost criteria is used. Providers translate
+ * the criteria into their native query form; test() and getComparator()
+ * evaluate them in memory.
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ */
+public final class Criteria {
+
+    /**
+     * The criteria operators.
+     */
+    public enum Operator {
+
+        /**
+         * field equals value
+         */
+        EQ,
+        /**
+         * field does not equal value
+         */
+        NE,
+        /**
+         * field less than value
+         */
+        LT,
+        /**
+         * field less than or equal to value
+         */
+        LE,
+        /**
+         * field greater than value
+         */
+        GT,
+        /**
+         * field greater than or equal to value
+         */
+        GE,
+        /**
+         * field equals one of a set of values
+         */
+        IN,
+        /**
+         * field is null
+         */
+        ISNULL,
+        /**
+         * field is not null
+         */
+        ISNOTNULL,
+        /**
+         * all terms are true
+         */
+        AND,
+        /**
+         * any term is true
+         */
+        OR
+    }
+
+    /**
+     * An ordering field.
+     */
+    public static final class Order {
+
+        private final String field;
+        private final boolean descending;
+
+        private Order(String field, boolean descending) {
+            this.field = field;
+            this.descending = descending;
+        }
+
+        /**
+         * Get the field name.
+         *
+         * @return the field name
+         */
+        public String getField() {
+            return field;
+        }
+
+        /**
+         * Test if the order is descending.
+         *
+         * @return true if descending
+         */
+        public boolean isDescending() {
+            return descending;
+        }
+    }
+
+    private final Operator operator;
+    private final String field;
+    private final Object value;
+    private final List<Object> values;
+    private final List<Criteria> terms;
+    private final List<Order> order;
+
+    private Criteria(Operator operator, String field, Object value, List<Object> values, List<Criteria> terms, List<Order> order) {
+        this.operator = operator;
+        this.field = field;
+        this.value = value;
+        this.values = values;
+        this.terms = terms;
+        this.order = order;
+    }
+
+    private static Criteria comparison(Operator operator, String field, Object value) {
+        return new Criteria(operator, field, value, Collections.emptyList(), Collections.emptyList(), Collections.emptyList());
+    }
+
+    private static Criteria combination(Operator operator, Criteria[] terms) {
+        return new Criteria(operator, null, null, Collections.emptyList(),
+                Collections.unmodifiableList(new ArrayList<>(Arrays.asList(terms))), Collections.emptyList());
+    }
+
+    /**
+     * Criteria selecting all entities (an empty AND).
+     *
+     * @return the criteria
+     */
+    public static Criteria all() {
+        return combination(Operator.AND, new Criteria[0]);
+    }
+
+    /**
+     * Field equals value (a null value is equivalent to isNull).
+     *
+     * @param field the field name
+     * @param value the value
+     * @return the criteria
+     */
+    public static Criteria eq(String field, Object value) {
+        return value == null ? isNull(field) : comparison(Operator.EQ, field, value);
+    }
+
+    /**
+     * Field does not equal value (a null value is equivalent to isNotNull).
+     *
+     * @param field the field name
+     * @param value the value
+     * @return the criteria
+     */
+    public static Criteria ne(String field, Object value) {
+        return value == null ? isNotNull(field) : comparison(Operator.NE, field, value);
+    }
+
+    /**
+     * Field less than value.
+     *
+     * @param field the field name
+     * @param value the value
+     * @return the criteria
+     */
+    public static Criteria lt(String field, Object value) {
+        return comparison(Operator.LT, field, Objects.requireNonNull(value));
+    }
+
+    /**
+     * Field less than or equal to value.
+     *
+     * @param field the field name
+     * @param value the value
+     * @return the criteria
+     */
+    public static Criteria le(String field, Object value) {
+        return comparison(Operator.LE, field, Objects.requireNonNull(value));
+    }
+
+    /**
+     * Field greater than value.
+     *
+     * @param field the field name
+     * @param value the value
+     * @return the criteria
+     */
+    public static Criteria gt(String field, Object value) {
+        return comparison(Operator.GT, field, Objects.requireNonNull(value));
+    }
+
+    /**
+     * Field greater than or equal to value.
+     *
+     * @param field the field name
+     * @param value the value
+     * @return the criteria
+     */
+    public static Criteria ge(String field, Object value) {
+        return comparison(Operator.GE, field, Objects.requireNonNull(value));
+    }
+
+    /**
+     * Field equals one of a set of values.
+     *
+     * @param field the field name
+     * @param values the values
+     * @return the criteria
+     */
+    public static Criteria in(String field, Collection<?> values) {
+        return new Criteria(Operator.IN, field, null, Collections.unmodifiableList(new ArrayList<>(values)),
+                Collections.emptyList(), Collections.emptyList());
+    }
+
+    /**
+     * Field is null.
+     *
+     * @param field the field name
+     * @return the criteria
+     */
+    public static Criteria isNull(String field) {
+        return comparison(Operator.ISNULL, field, null);
+    }
+
+    /**
+     * Field is not null.
+     *
+     * @param field the field name
+     * @return the criteria
+     */
+    public static Criteria isNotNull(String field) {
+        return comparison(Operator.ISNOTNULL, field, null);
+    }
+
+    /**
+     * All terms are true.
+     *
+     * @param terms the terms
+     * @return the criteria
+     */
+    public static Criteria and(Criteria... terms) {
+        return combination(Operator.AND, terms);
+    }
+
+    /**
+     * Any term is true.
+     *
+     * @param terms the terms
+     * @return the criteria
+     */
+    public static Criteria or(Criteria... terms) {
+        return combination(Operator.OR, terms);
+    }
+
+    /**
+     * Add an ascending ordering field.
+     *
+     * @param field the field name
+     * @return new criteria, with the added ordering
+     */
+    public Criteria orderBy(String field) {
+        return orderBy(field, false);
+    }
+
+    /**
+     * Add an ordering field.
+     *
+     * @param field the field name
+     * @param descending true if descending order
+     * @return new criteria, with the added ordering
+     */
+    public Criteria orderBy(String field, boolean descending) {
+        List<Order> neworder = new ArrayList<>(order);
+        neworder.add(new Order(field, descending));
+        return new Criteria(operator, this.field, value, values, terms, Collections.unmodifiableList(neworder));
+    }
+
+    /**
+     * Get the operator.
+     *
+     * @return the operator
+     */
+    public Operator getOperator() {
+        return operator;
+    }
+
+    /**
+     * Get the field name of a comparison.
+     *
+     * @return the field name (null for AND / OR)
+     */
+    public String getField() {
+        return field;
+    }
+
+    /**
+     * Get the value of a comparison.
+     *
+     * @return the value (null for IN, ISNULL, ISNOTNULL, AND and OR)
+     */
+    public Object getValue() {
+        return value;
+    }
+
+    /**
+     * Get the values of an IN comparison.
+     *
+     * @return the values
+     */
+    public List<Object> getValues() {
+        return values;
+    }
+
+    /**
+     * Get the terms of an AND or OR.
+     *
+     * @return the terms
+     */
+    public List<Criteria> getTerms() {
+        return terms;
+    }
+
+    /**
+     * Get the ordering fields.
+     *
+     * @return the ordering fields (empty if no ordering defined)
+     */
+    public List<Order> getOrder() {
+        return order;
+    }
+
+    /**
+     * Test if these criteria select all entities.
+     *
+     * @return true if no selection
+     */
+    public boolean isAll() {
+        return operator == Operator.AND && terms.isEmpty();
+    }
+
+    /**
+     * Evaluate these criteria against an entity's fields.
+     *
+     * @param row the entity's fields
+     * @return true if the entity is selected
+     */
+    public boolean test(Map<String, Object> row) {
+        switch (operator) {
+            case AND:
+                return terms.stream().allMatch((term) -> term.test(row));
+            case OR:
+                return terms.stream().anyMatch((term) -> term.test(row));
+            case ISNULL:
+                return row.get(field) == null;
+            case ISNOTNULL:
+                return row.get(field) != null;
+            case IN:
+                Object fieldvalue = row.get(field);
+                return fieldvalue != null && values.stream().anyMatch((v) -> v != null && compare(fieldvalue, v) == 0);
+            default:
+                Object rowvalue = row.get(field);
+                if (rowvalue == null) {
+                    return false;
+                }
+                int c = compare(rowvalue, value);
+                switch (operator) {
+                    case EQ:
+                        return c == 0;
+                    case NE:
+                        return c != 0;
+                    case LT:
+                        return c < 0;
+                    case LE:
+                        return c <= 0;
+                    case GT:
+                        return c > 0;
+                    default:
+                        return c >= 0;
+                }
+        }
+    }
+
+    /**
+     * Get a comparator implementing the ordering of these criteria (nulls are
+     * ordered first).
+     *
+     * @return the comparator (or null if no ordering defined)
+     */
+    public Comparator<Map<String, Object>> getComparator() {
+        if (order.isEmpty()) {
+            return null;
+        }
+        return (r1, r2) -> {
+            for (Order o : order) {
+                Object v1 = r1.get(o.field);
+                Object v2 = r2.get(o.field);
+                int c = v1 == null ? (v2 == null ? 0 : -1) : (v2 == null ? 1 : compare(v1, v2));
+                if (c != 0) {
+                    return o.descending ? -c : c;
+                }
+            }
+            return 0;
+        };
+    }
+
+    /**
+     * Compare two (non null) field values. Numbers are compared by value,
+     * whatever their class.
+     *
+     * @param v1 the first value
+     * @param v2 the second value
+     * @return negative, zero or positive as v1 is less than, equal to or
+     * greater than v2
+     */
+    public static int compare(Object v1, Object v2) {
+        if (v1 instanceof Number && v2 instanceof Number && v1.getClass() != v2.getClass()) {
+            Number n1 = (Number) v1;
+            Number n2 = (Number) v2;
+            if (isIntegral(n1) && isIntegral(n2)) {
+                return Long.compare(n1.longValue(), n2.longValue());
+            }
+            return Double.compare(n1.doubleValue(), n2.doubleValue());
+        }
+        if (v1 instanceof Comparable && v1.getClass() == v2.getClass()) {
+            @SuppressWarnings("unchecked")
+            Comparable<Object> c1 = (Comparable<Object>) v1;
+            return c1.compareTo(v2);
+        }
+        if (v1.equals(v2)) {
+            return 0;
+        }
+        throw new LogicException("Criteria - values " + v1 + " and " + v2 + " cannot be compared");
+    }
+
+    private static boolean isIntegral(Number n) {
+        return n instanceof Integer || n instanceof Long || n instanceof Short || n instanceof Byte;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        switch (operator) {
+            case AND:
+            case OR:
+                sb.append(operator).append('(');
+                for (int i = 0; i < terms.size(); i++) {
+                    if (i > 0) {
+                        sb.append(',');
+                    }
+                    sb.append(terms.get(i));
+                }
+                sb.append(')');
+                break;
+            case IN:
+                sb.append(field).append(" IN ").append(values);
+                break;
+            case ISNULL:
+            case ISNOTNULL:
+                sb.append(field).append(' ').append(operator);
+                break;
+            default:
+                sb.append(field).append(' ').append(operator).append(' ').append(value);
+        }
+        order.stream().forEach((o) -> {
+            sb.append(" ORDER ").append(o.field).append(o.descending ? " DESC" : "");
+        });
+        return sb.toString();
+    }
+}
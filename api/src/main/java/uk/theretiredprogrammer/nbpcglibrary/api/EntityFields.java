@@ -15,11 +15,511 @@
  */
 package uk.theretiredprogrammer.nbpcglibrary.api;
 
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import uk.theretiredprogrammer.nbpcglibrary.api.RowSchema.ColumnType;
 
 /**
+ * The set of field values of an entity (a row), presented as a Map of field
+ * name to value.
+ *
+ * Rows created with a RowSchema store the schema's columns in arrays (with
+ * int, long and boolean values held as primitives), sharing the schema with
+ * all other rows of the same shape. Any other fields, and values which do not
+ * match their column's type, are held in an overflow map. Rows created
+ * without a schema hold all fields in the overflow map.
+ *
+ * Rows are Serializable (provided their values are).
  *
  * @author Richard Linsdale (richard at theretiredprogrammer.uk)
  */
-public class EntityFields extends HashMap<String, Object>{
+public class EntityFields extends AbstractMap<String, Object> implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final RowSchema schema;
+    private final Object[] objects;
+    private final long[] primitives;
+    private final long[] present;
+    private final long[] nulls;
+    private HashMap<String, Object> overflow;
+    private transient Set<Map.Entry<String, Object>> entryset;
+
+    /**
+     * Constructor - a row without a schema.
+     */
+    public EntityFields() {
+        this(null);
+    }
+
+    /**
+     * Constructor - a row with a schema.
+     *
+     * @param schema the row schema (or null if none)
+     */
+    public EntityFields(RowSchema schema) {
+        this.schema = schema;
+        if (schema == null) {
+            objects = null;
+            primitives = null;
+            present = null;
+            nulls = null;
+        } else {
+            objects = new Object[schema.getObjectSlots()];
+            primitives = new long[schema.getPrimitiveSlots()];
+            int words = (schema.size() + 63) >>> 6;
+            present = new long[words];
+            nulls = new long[words];
+        }
+    }
+
+    /**
+     * Get the schema of this row.
+     *
+     * @return the schema (or null if none)
+     */
+    public RowSchema getSchema() {
+        return schema;
+    }
+
+    /**
+     * Set the value of a schema column.
+     *
+     * @param column the column index
+     * @param value the value
+     */
+    public void set(int column, Object value) {
+        if (accepts(column, value)) {
+            store(column, value);
+        } else {
+            clearColumn(column);
+            overflow().put(schema.getName(column), value);
+        }
+    }
+
+    /**
+     * Set the value of an INT schema column.
+     *
+     * @param column the column index
+     * @param value the value
+     */
+    public void setInt(int column, int value) {
+        if (schema.getType(column) == ColumnType.INT) {
+            primitives[schema.getSlot(column)] = value;
+            setFlags(column, false);
+        } else {
+            set(column, value);
+        }
+    }
+
+    /**
+     * Set the value of a LONG schema column.
+     *
+     * @param column the column index
+     * @param value the value
+     */
+    public void setLong(int column, long value) {
+        if (schema.getType(column) == ColumnType.LONG) {
+            primitives[schema.getSlot(column)] = value;
+            setFlags(column, false);
+        } else {
+            set(column, value);
+        }
+    }
+
+    /**
+     * Set the value of a BOOLEAN schema column.
+     *
+     * @param column the column index
+     * @param value the value
+     */
+    public void setBoolean(int column, boolean value) {
+        if (schema.getType(column) == ColumnType.BOOLEAN) {
+            primitives[schema.getSlot(column)] = value ? 1 : 0;
+            setFlags(column, false);
+        } else {
+            set(column, value);
+        }
+    }
+
+    /**
+     * Set a schema column to null.
+     *
+     * @param column the column index
+     */
+    public void setNull(int column) {
+        store(column, null);
+    }
+
+    /**
+     * Get the value of an integer field.
+     *
+     * @param name the field name
+     * @return the value
+     */
+    public int getInt(String name) {
+        int column = indexOf(name);
+        if (column >= 0 && schema.getType(column) == ColumnType.INT && isPresent(column) && !isNull(column)) {
+            return (int) primitives[schema.getSlot(column)];
+        }
+        return ((Number) getNonNull(name)).intValue();
+    }
+
+    /**
+     * Get the value of a long field.
+     *
+     * @param name the field name
+     * @return the value
+     */
+    public long getLong(String name) {
+        int column = indexOf(name);
+        if (column >= 0 && schema.getType(column) == ColumnType.LONG && isPresent(column) && !isNull(column)) {
+            return primitives[schema.getSlot(column)];
+        }
+        return ((Number) getNonNull(name)).longValue();
+    }
+
+    /**
+     * Get the value of a boolean field.
+     *
+     * @param name the field name
+     * @return the value
+     */
+    public boolean getBoolean(String name) {
+        int column = indexOf(name);
+        if (column >= 0 && schema.getType(column) == ColumnType.BOOLEAN && isPresent(column) && !isNull(column)) {
+            return primitives[schema.getSlot(column)] != 0;
+        }
+        return (Boolean) getNonNull(name);
+    }
+
+    /**
+     * Get the value of a string field.
+     *
+     * @param name the field name
+     * @return the value (or null)
+     */
+    public String getString(String name) {
+        return (String) get(name);
+    }
+
+    /**
+     * Get a new row containing only selected fields of this row.
+     *
+     * @param names the field names
+     * @return the new row (fields missing from this row are not included)
+     */
+    public EntityFields project(List<String> names) {
+        EntityFields ef = new EntityFields();
+        names.stream().filter((name) -> containsKey(name)).forEach((name) -> {
+            ef.put(name, get(name));
+        });
+        return ef;
+    }
+
+    private Object getNonNull(String name) {
+        Object value = get(name);
+        if (value == null) {
+            throw new LogicException("Field " + name + " is null or missing");
+        }
+        return value;
+    }
+
+    @Override
+    public Object get(Object key) {
+        int column = indexOf(key);
+        if (column >= 0 && isPresent(column)) {
+            return value(column);
+        }
+        return overflow == null ? null : overflow.get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        int column = indexOf(key);
+        if (column >= 0 && isPresent(column)) {
+            return true;
+        }
+        return overflow != null && overflow.containsKey(key);
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        int column = indexOf(key);
+        Object old = null;
+        if (column >= 0 && isPresent(column)) {
+            old = value(column);
+        } else if (overflow != null) {
+            old = overflow.remove(key);
+        }
+        if (column >= 0 && accepts(column, value)) {
+            store(column, value);
+        } else {
+            if (column >= 0) {
+                clearColumn(column);
+            }
+            overflow().put(key, value);
+        }
+        return old;
+    }
+
+    @Override
+    public Object remove(Object key) {
+        int column = indexOf(key);
+        if (column >= 0 && isPresent(column)) {
+            Object old = value(column);
+            clearColumn(column);
+            return old;
+        }
+        return overflow == null ? null : overflow.remove(key);
+    }
+
+    @Override
+    public int size() {
+        int size = overflow == null ? 0 : overflow.size();
+        if (present != null) {
+            for (long word : present) {
+                size += Long.bitCount(word);
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public void clear() {
+        if (schema != null) {
+            Arrays.fill(objects, null);
+            Arrays.fill(present, 0);
+            Arrays.fill(nulls, 0);
+        }
+        overflow = null;
+    }
+
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet() {
+        if (entryset == null) {
+            entryset = new AbstractSet<Map.Entry<String, Object>>() {
+                @Override
+                public Iterator<Map.Entry<String, Object>> iterator() {
+                    return new EntryIterator();
+                }
+
+                @Override
+                public int size() {
+                    return EntityFields.this.size();
+                }
+
+                @Override
+                public void clear() {
+                    EntityFields.this.clear();
+                }
+            };
+        }
+        return entryset;
+    }
+
+    private int indexOf(Object key) {
+        return schema == null ? -1 : schema.indexOf(key);
+    }
+
+    private HashMap<String, Object> overflow() {
+        if (overflow == null) {
+            overflow = new HashMap<>();
+        }
+        return overflow;
+    }
+
+    private boolean accepts(int column, Object value) {
+        if (value == null) {
+            return true;
+        }
+        switch (schema.getType(column)) {
+            case INT:
+                return value instanceof Integer;
+            case LONG:
+                return value instanceof Long;
+            case BOOLEAN:
+                return value instanceof Boolean;
+            default:
+                return true;
+        }
+    }
+
+    private void store(int column, Object value) {
+        int slot = schema.getSlot(column);
+        switch (schema.getType(column)) {
+            case INT:
+                primitives[slot] = value == null ? 0 : (Integer) value;
+                break;
+            case LONG:
+                primitives[slot] = value == null ? 0 : (Long) value;
+                break;
+            case BOOLEAN:
+                primitives[slot] = value != null && (Boolean) value ? 1 : 0;
+                break;
+            default:
+                objects[slot] = value;
+        }
+        setFlags(column, value == null);
+        if (overflow != null) {
+            overflow.remove(schema.getName(column));
+        }
+    }
+
+    private Object value(int column) {
+        if (isNull(column)) {
+            return null;
+        }
+        int slot = schema.getSlot(column);
+        switch (schema.getType(column)) {
+            case INT:
+                return (int) primitives[slot];
+            case LONG:
+                return primitives[slot];
+            case BOOLEAN:
+                return primitives[slot] != 0;
+            default:
+                return objects[slot];
+        }
+    }
+
+    private void clearColumn(int column) {
+        if (schema.getType(column) == ColumnType.OBJECT) {
+            objects[schema.getSlot(column)] = null;
+        }
+        present[column >>> 6] &= ~(1L << column);
+        nulls[column >>> 6] &= ~(1L << column);
+    }
+
+    private void setFlags(int column, boolean isnull) {
+        present[column >>> 6] |= 1L << column;
+        if (isnull) {
+            nulls[column >>> 6] |= 1L << column;
+        } else {
+            nulls[column >>> 6] &= ~(1L << column);
+        }
+    }
+
+    private boolean isPresent(int column) {
+        return (present[column >>> 6] & (1L << column)) != 0;
+    }
+
+    private boolean isNull(int column) {
+        return (nulls[column >>> 6] & (1L << column)) != 0;
+    }
+
+    private class EntryIterator implements Iterator<Map.Entry<String, Object>> {
+
+        private int nextcolumn = -1;
+        private int lastcolumn = -1;
+        private Iterator<Map.Entry<String, Object>> overflowiterator;
+        private boolean lastfromoverflow = false;
+
+        EntryIterator() {
+            advance();
+        }
+
+        private void advance() {
+            int columns = schema == null ? 0 : schema.size();
+            do {
+                nextcolumn++;
+            } while (nextcolumn < columns && !isPresent(nextcolumn));
+            if (nextcolumn >= columns && overflowiterator == null && overflow != null) {
+                overflowiterator = overflow.entrySet().iterator();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return (schema != null && nextcolumn < schema.size())
+                    || (overflowiterator != null && overflowiterator.hasNext());
+        }
+
+        @Override
+        public Map.Entry<String, Object> next() {
+            if (schema != null && nextcolumn < schema.size()) {
+                lastcolumn = nextcolumn;
+                lastfromoverflow = false;
+                advance();
+                return new ColumnEntry(lastcolumn);
+            }
+            if (overflowiterator != null) {
+                lastfromoverflow = true;
+                lastcolumn = -1;
+                return overflowiterator.next();
+            }
+            throw new NoSuchElementException();
+        }
+
+        @Override
+        public void remove() {
+            if (lastfromoverflow) {
+                overflowiterator.remove();
+                lastfromoverflow = false;
+            } else if (lastcolumn >= 0) {
+                clearColumn(lastcolumn);
+                lastcolumn = -1;
+            } else {
+                throw new IllegalStateException();
+            }
+        }
+    }
+
+    private class ColumnEntry implements Map.Entry<String, Object> {
+
+        private final int column;
+
+        ColumnEntry(int column) {
+            this.column = column;
+        }
+
+        @Override
+        public String getKey() {
+            return schema.getName(column);
+        }
+
+        @Override
+        public Object getValue() {
+            return EntityFields.this.get(schema.getName(column));
+        }
+
+        @Override
+        public Object setValue(Object value) {
+            return EntityFields.this.put(schema.getName(column), value);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry<?, ?> e = (Map.Entry<?, ?>) obj;
+            Object value = getValue();
+            return getKey().equals(e.getKey()) && (value == null ? e.getValue() == null : value.equals(e.getValue()));
+        }
+
+        @Override
+        public int hashCode() {
+            Object value = getValue();
+            return getKey().hashCode() ^ (value == null ? 0 : value.hashCode());
+        }
+
+        @Override
+        public String toString() {
+            return getKey() + "=" + getValue();
+        }
+    }
 }
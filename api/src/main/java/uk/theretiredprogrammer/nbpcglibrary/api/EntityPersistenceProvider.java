@@ -16,6 +16,8 @@
 package uk.theretiredprogrammer.nbpcglibrary.api;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Properties;
 
@@ -135,14 +137,241 @@ public interface EntityPersistenceProvider<K> extends HasInstanceDescription {
      */
     public EntityFields getOne(String parametername, Object parametervalue);
 
+    /**
+     * Get the entity primary keys for many (0 to many) entities - selected by
+     * criteria.
+     *
+     * Entities are returned in the criteria's order, or the provider's
+     * default order if the criteria have no ordering. The default
+     * implementation evaluates the criteria against all entities; providers
+     * should override this so that the selection is made by entity storage.
+     *
+     * @param criteria the selection criteria
+     * @return the set of entity primary keys
+     */
+    public default List<K> find(Criteria criteria) {
+        List<K> pks = new ArrayList<>();
+        get(criteria).stream().forEach((ef) -> {
+            pks.add(getPK(ef));
+        });
+        return pks;
+    }
+
+    /**
+     * Get entity data for many (0 to many) entities - selected by criteria.
+     *
+     * Entities are returned in the criteria's order, or the provider's
+     * default order if the criteria have no ordering. The default
+     * implementation evaluates the criteria against all entities; providers
+     * should override this so that the selection is made by entity storage.
+     *
+     * @param criteria the selection criteria
+     * @return the array of entity data objects
+     */
+    public default List<EntityFields> get(Criteria criteria) {
+        List<EntityFields> efs = new ArrayList<>();
+        get().stream().filter((ef) -> criteria.test(ef)).forEach((ef) -> {
+            efs.add(ef);
+        });
+        if (criteria.getComparator() != null) {
+            efs.sort(criteria.getComparator());
+        }
+        return efs;
+    }
+
+    /**
+     * Count the entities selected by criteria (any ordering is ignored).
+     *
+     * The default implementation counts the primary keys found; providers
+     * should override this so that entity storage does the counting.
+     *
+     * @param criteria the selection criteria
+     * @return the number of entities
+     */
+    public default int count(Criteria criteria) {
+        return find(criteria).size();
+    }
+
+    /**
+     * Test if any entities are selected by criteria.
+     *
+     * The default implementation tests the primary keys found; providers
+     * should override this so that entity storage stops at the first match.
+     *
+     * @param criteria the selection criteria
+     * @return true if at least one entity is selected
+     */
+    public default boolean exists(Criteria criteria) {
+        return !find(criteria).isEmpty();
+    }
+
+    /**
+     * Get the entities selected by a set of criteria which have been inserted
+     * or updated since a watermark - a value of the updatedon column, as
+     * written by addTimestampInfo / updateTimestampInfo.
+     *
+     * Entities changed at the watermark itself are included, so that changes
+     * made within the resolution of the timestamp are not missed; the
+     * watermark for the next request is the greatest updatedon value
+     * returned (see getWatermark()).
+     *
+     * @param criteria the selection criteria
+     * @param watermark the watermark (or null to get all selected entities)
+     * @return the set of changed entities
+     */
+    public default List<EntityFields> getChangedSince(Criteria criteria, Object watermark) {
+        return get(watermark == null ? criteria : Criteria.and(criteria, Criteria.ge("updatedon", watermark)));
+    }
+
+    /**
+     * Get the watermark following a set of changed entities - the greatest
+     * updatedon value of the entities.
+     *
+     * @param changed the changed entities (see getChangedSince())
+     * @param watermark the previous watermark (or null if none)
+     * @return the new watermark (the previous watermark if no entities are
+     * later)
+     */
+    public static Object getWatermark(List<EntityFields> changed, Object watermark) {
+        Object newwatermark = watermark;
+        for (EntityFields ef : changed) {
+            Object updatedon = ef.get("updatedon");
+            if (updatedon != null && (newwatermark == null || Criteria.compare(updatedon, newwatermark) > 0)) {
+                newwatermark = updatedon;
+            }
+        }
+        return newwatermark;
+    }
+
+    /**
+     * Get selected columns of all stored entities.
+     *
+     * Only the requested columns are returned in each entity's data (the
+     * primary key column is not added, so include it if the entities are to
+     * be identified). The default implementation reads the full entities;
+     * providers should override this so that only the requested columns are
+     * read from entity storage.
+     *
+     * @param columns the column names
+     * @return the set of entities (selected columns only)
+     */
+    public default List<EntityFields> getProjection(List<String> columns) {
+        List<EntityFields> efs = new ArrayList<>();
+        get().stream().forEach((ef) -> {
+            efs.add(ef.project(columns));
+        });
+        return efs;
+    }
+
+    /**
+     * Get selected columns of many (0 to many) entities - using selected by
+     * an column filter.
+     *
+     * @param columns the column names
+     * @param parametername the filter column name
+     * @param parametervalue the filter value
+     * @return the array of entity data objects (selected columns only)
+     */
+    public default List<EntityFields> getProjection(List<String> columns, String parametername, Object parametervalue) {
+        List<EntityFields> efs = new ArrayList<>();
+        get(parametername, parametervalue).stream().forEach((ef) -> {
+            efs.add(ef.project(columns));
+        });
+        return efs;
+    }
+
+    /**
+     * Get selected columns of a single entity - using selected by an column
+     * filter.
+     *
+     * @param columns the column names
+     * @param parametername the filter column name
+     * @param parametervalue the filter value
+     * @return the entity object representation (selected columns only)
+     */
+    public default EntityFields getOneProjection(List<String> columns, String parametername, Object parametervalue) {
+        return getOne(parametername, parametervalue).project(columns);
+    }
+
+    /**
+     * Get a page of entities.
+     *
+     * Entities are paged in primary key order, or in index field then
+     * primary key order if the entity has an index field. Pages are keyset
+     * based: each page starts after the position given by the continuation
+     * key of the previous page, so entities inserted or deleted between
+     * requests do not cause entities to be skipped or repeated.
+     *
+     * The default implementation selects the page from the list of all
+     * entities; providers should override this with a native paged query.
+     *
+     * @param after the continuation key from the previous page (or null for
+     * the first page)
+     * @param limit the maximum number of entities in the page
+     * @return the page
+     */
+    public default Page<K> getPage(PageKey<K> after, int limit) {
+        return Page.select(get(), after, limit, this::getPK);
+    }
+
+    /**
+     * Get a page of the entities selected by an column filter.
+     *
+     * @param parametername the filter column name
+     * @param parametervalue the filter value
+     * @param after the continuation key from the previous page (or null for
+     * the first page)
+     * @param limit the maximum number of entities in the page
+     * @return the page
+     */
+    public default Page<K> getPage(String parametername, Object parametervalue, PageKey<K> after, int limit) {
+        return Page.select(get(parametername, parametervalue), after, limit, this::getPK);
+    }
+
+    /**
+     * Get a range of entities, by position, in the same order as getPage().
+     *
+     * Prefer getPage() for stepping through a large number of entities, as
+     * each range request must skip all entities before the offset.
+     *
+     * @param offset the position of the first entity (from 0)
+     * @param limit the maximum number of entities returned
+     * @return the entities
+     */
+    public default List<EntityFields> getRange(int offset, int limit) {
+        Page.checkLimit(limit);
+        List<EntityFields> all = get();
+        return new ArrayList<>(all.subList(Math.min(offset, all.size()), Math.min(offset + limit, all.size())));
+    }
+
     /**
      * Get the next index value for entities which have an explicit ordering
      * column defined.
      *
+     * Providers should allocate index values from an IdxSequence, so that
+     * entity storage is only accessed once per block of values.
+     *
      * @return the next index value
      */
     public int findNextIdx();
 
+    /**
+     * Reserve a block of consecutive index values for entities which have an
+     * explicit ordering column defined. No value in the block will be
+     * returned by a later reservation.
+     *
+     * The default implementation can only reserve a single value.
+     *
+     * @param blocksize the number of index values to reserve
+     * @return the first index value of the block
+     */
+    public default int reserveIdx(int blocksize) {
+        if (blocksize != 1) {
+            throw new LogicException("reserveIdx() - this provider can only reserve a single index value");
+        }
+        return findNextIdx();
+    }
+
     /**
      * Get entity data - using primary key
      *
@@ -151,6 +380,25 @@ public interface EntityPersistenceProvider<K> extends HasInstanceDescription {
      */
     public EntityFields get(K pk);
 
+    /**
+     * Get entity data for a set of entities - using primary keys.
+     *
+     * Providers should fetch the entities using as few requests to entity
+     * storage as possible. The returned list is in the same order as the
+     * supplied primary keys; where no entity exists for a primary key the
+     * corresponding element is null.
+     *
+     * @param pks the entity primary keys
+     * @return the list of entity data objects
+     */
+    public default List<EntityFields> get(Collection<K> pks) {
+        List<EntityFields> efs = new ArrayList<>(pks.size());
+        pks.stream().forEach((pk) -> {
+            efs.add(get(pk));
+        });
+        return efs;
+    }
+
     /**
      * Insert a new entity (set of values) into entity storage.
      *
@@ -174,4 +422,74 @@ public interface EntityPersistenceProvider<K> extends HasInstanceDescription {
      * @param pk the entity primary key
      */
     public void delete(K pk) ;
+
+    /**
+     * Insert a batch of new entities into entity storage.
+     *
+     * The default implementation inserts each entity in turn; providers
+     * should override this with a native batch operation.
+     *
+     * @param values the sets of values (one per entity)
+     * @return the per entity results (the full set of entity fields, or the
+     * failure message), in the order of the values
+     */
+    public default BatchResult insert(List<EntityFields> values) {
+        BatchResult result = new BatchResult(values.size());
+        for (int i = 0; i < values.size(); i++) {
+            try {
+                result.setSuccess(i, insert(values.get(i)));
+            } catch (LogicException ex) {
+                result.setFailure(i, ex.getMessage());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Update a batch of existing entities in entity storage.
+     *
+     * The default implementation updates each entity in turn; providers
+     * should override this with a native batch operation.
+     *
+     * @param pks the entity primary keys
+     * @param diffs the sets of values to be updated (in primary key order)
+     * @return the per entity results (the full set of entity fields, or the
+     * failure message), in primary key order
+     */
+    public default BatchResult update(List<K> pks, List<EntityFields> diffs) {
+        if (pks.size() != diffs.size()) {
+            throw new LogicException("update(pks, diffs) - lists must be the same size");
+        }
+        BatchResult result = new BatchResult(pks.size());
+        for (int i = 0; i < pks.size(); i++) {
+            try {
+                result.setSuccess(i, update(pks.get(i), diffs.get(i)));
+            } catch (LogicException ex) {
+                result.setFailure(i, ex.getMessage());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Delete a batch of entities from entity storage.
+     *
+     * The default implementation deletes each entity in turn; providers
+     * should override this with a native batch operation.
+     *
+     * @param pks the entity primary keys
+     * @return the per entity results, in primary key order
+     */
+    public default BatchResult delete(List<K> pks) {
+        BatchResult result = new BatchResult(pks.size());
+        for (int i = 0; i < pks.size(); i++) {
+            try {
+                delete(pks.get(i));
+                result.setSuccess(i, null);
+            } catch (LogicException ex) {
+                result.setFailure(i, ex.getMessage());
+            }
+        }
+        return result;
+    }
 }
@@ -17,10 +17,16 @@ package uk.theretiredprogrammer.nbpcglibrary.api;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.function.Function;
+import java.util.function.Predicate;
 import org.openide.util.Lookup;
 
 /**
@@ -29,15 +35,33 @@ import org.openide.util.Lookup;
  * Store of all required EntityPersistenceProviders and their associated
  * PersistenceUnitProviders
  *
+ * Factories are looked up once for each provider type. Each
+ * EntityPersistenceProvider is created (and initialised) once for each
+ * database key, entity and index column, and is then shared by all callers
+ * until it is closed.
+ *
+ * Reads may be split from writes by listing read replica database keys (comma
+ * separated) in the replicas property. Each replica key must be set up with
+ * its own properties. Providers for the key are then
+ * RoutingEntityPersistenceProviders, which send reads to the replica with the
+ * fewest outstanding requests, and send writes, reads within a transaction
+ * and all reads within readyourwritesmillis (default 2000) of the last write
+ * for the key (from any thread) to the primary.
+ *
  * @author Richard Linsdale (richard at theretiredprogrammer.uk)
  */
 public class EntityPersistenceProviderManager {
 
     private final static Map<String, PersistenceUnitProvider> persistenceUnitProviders = new HashMap<>();
     private final static Map<String, Properties> dbproperties = new HashMap<>();
+    private final static Map<String, PersistenceUnitProviderFactory> pupfactories = new HashMap<>();
+    private final static Map<String, EntityPersistenceProviderFactory> eppfactories = new HashMap<>();
+    private final static Map<List<String>, EntityPersistenceProvider<?>> entityPersistenceProviders = new HashMap<>();
+    private final static Map<String, ReadRouter> readRouters = new HashMap<>();
 
     private static final String DEFAULTUSER = "nbplatform";
     private static final String DEFAULTPASSWORD = "netbeans";
+    private static final String DEFAULTREADYOURWRITESMILLIS = "2000";
 
     /**
      * Setup EntityPersistenceProviders and associated PersistenceUnitProviders.
@@ -54,10 +78,13 @@ public class EntityPersistenceProviderManager {
     /**
      * Setup EntityPersistenceProviders and associated PersistenceUnitProviders.
      *
+     * If the key has already been set up, its existing
+     * EntityPersistenceProviders are closed first.
+     *
      * @param props the configuration properties
      * @throws IOException if dbkey missing from properties or requested Persistence Unit Provider does not exist
      */
-    public static void init(Properties props) throws IOException {
+    public static synchronized void init(Properties props) throws IOException {
         String dbkey = props.getProperty("key", "");
         if ("".equals(dbkey)) {
             throw new IOException("Persistence Properties - key not defined");
@@ -68,17 +95,29 @@ public class EntityPersistenceProviderManager {
         if (!props.containsKey("password")) {
             props.setProperty("password", DEFAULTPASSWORD);
         }
+        close(dbkey);
         dbproperties.put(dbkey, props);
-        String puptype = props.getProperty("persistenceunitprovidertype");
-        Collection<? extends PersistenceUnitProviderFactory> pupfactories = Lookup.getDefault().lookupResult(PersistenceUnitProviderFactory.class).allInstances();
-        for (PersistenceUnitProviderFactory pupfactory : pupfactories) {
-            if (pupfactory.getType().equals(puptype)) {
-                PersistenceUnitProvider pup = pupfactory.createPersistenceUnitProvider(props);
-                persistenceUnitProviders.put(dbkey, pup);
-                return;
+        PersistenceUnitProviderFactory pupfactory = getFactory(pupfactories, PersistenceUnitProviderFactory.class,
+                props.getProperty("persistenceunitprovidertype"), (f) -> f.getType());
+        if (pupfactory == null) {
+            throw new LogicException("Unknown PersistenceUnitProvider requested in Persistence Properties");
+        }
+        persistenceUnitProviders.put(dbkey, pupfactory.createPersistenceUnitProvider(props));
+    }
+
+    // find the factory for a type - the lookup is only searched the first time a type is requested
+    private static <F> F getFactory(Map<String, F> factories, Class<F> factoryclass, String type, Function<F, String> typefunction) {
+        F factory = factories.get(type);
+        if (factory == null) {
+            for (F f : Lookup.getDefault().lookupResult(factoryclass).allInstances()) {
+                if (typefunction.apply(f).equals(type)) {
+                    factory = f;
+                    factories.put(type, f);
+                    break;
+                }
             }
         }
-        throw new LogicException("Unknown PersistenceUnitProvider requested in Persistence Properties");
+        return factory;
     }
 
     /**
@@ -106,22 +145,7 @@ public class EntityPersistenceProviderManager {
      * cannot be found.
      */
     public static EntityPersistenceProvider getEntityPersistenceProvider(String dbkey, String entityname) {
-        Properties props = dbproperties.get(dbkey);
-        if (props == null) {
-            throw new LogicException("Properties for " + dbkey + " are not available");
-        }
-        String puptype = props.getProperty("entitypersistenceprovidertype");
-        Collection<? extends EntityPersistenceProviderFactory> eppfactories = Lookup.getDefault().lookupResult(EntityPersistenceProviderFactory.class).allInstances();
-        for (EntityPersistenceProviderFactory eppfactory : eppfactories) {
-            if (eppfactory.getType().equals(puptype)) {
-                try {
-                    return eppfactory.createEntityPersistenceProvider(entityname, props, getPersistenceUnitProvider(dbkey));
-                } catch (IOException ex) {
-                    throw new LogicException("getEntityPersistenceProvide() failed: " + ex.getMessage());
-                }
-            }
-        }
-        throw new LogicException("Unknown EntityPersistenceProvider type used in Persistence Properties");
+        return getEntityPersistenceProvider(dbkey, entityname, null);
     }
     
     /**
@@ -129,27 +153,109 @@ public class EntityPersistenceProviderManager {
      *
      * @param dbkey the EntityPersistenceUnitProvider key.
      * @param entityname the entity name
-     * @param idx the index column name
+     * @param idx the index column name (or null if the entity is not ordered)
      * @return the EntityPersistenceProvider
      * cannot be found.
      */
-    public static EntityPersistenceProvider getEntityPersistenceProvider(String dbkey, String entityname, String idx) {
+    public static synchronized EntityPersistenceProvider getEntityPersistenceProvider(String dbkey, String entityname, String idx) {
+        List<String> key = Arrays.asList(dbkey, entityname, idx);
+        EntityPersistenceProvider<?> epp = entityPersistenceProviders.get(key);
+        if (epp != null) {
+            return epp;
+        }
         Properties props = dbproperties.get(dbkey);
         if (props == null) {
             throw new LogicException("Properties for " + dbkey + " are not available");
         }
-        String puptype = props.getProperty("entitypersistenceprovidertype");
-        Collection<? extends EntityPersistenceProviderFactory> eppfactories = Lookup.getDefault().lookupResult(EntityPersistenceProviderFactory.class).allInstances();
-        for (EntityPersistenceProviderFactory eppfactory : eppfactories) {
-            if (eppfactory.getType().equals(puptype)) {
+        EntityPersistenceProviderFactory eppfactory = getFactory(eppfactories, EntityPersistenceProviderFactory.class,
+                props.getProperty("entitypersistenceprovidertype"), (f) -> f.getType());
+        if (eppfactory == null) {
+            throw new LogicException("Unknown EntityPersistenceProvider type used in Persistence Properties");
+        }
+        try {
+            epp = idx == null
+                    ? eppfactory.createEntityPersistenceProvider(entityname, props, getPersistenceUnitProvider(dbkey))
+                    : eppfactory.createEntityPersistenceProvider(entityname, props, getPersistenceUnitProvider(dbkey), idx);
+        } catch (IOException ex) {
+            throw new LogicException("getEntityPersistenceProvide() failed: " + ex.getMessage());
+        }
+        List<String> replicakeys = getReplicaKeys(props);
+        if (!replicakeys.isEmpty()) {
+            List<EntityPersistenceProvider<?>> replicas = new ArrayList<>(replicakeys.size());
+            replicakeys.stream().forEach((replicakey) -> {
+                replicas.add(getEntityPersistenceProvider(replicakey, entityname, idx));
+            });
+            epp = createRoutingEntityPersistenceProvider(epp, replicas, getReadRouter(dbkey, props, replicakeys.size()));
+        }
+        entityPersistenceProviders.put(key, epp);
+        return epp;
+    }
+
+    // the primary and its replicas are all created for the same entity, so share its primary key type
+    @SuppressWarnings("unchecked")
+    private static <K> EntityPersistenceProvider<K> createRoutingEntityPersistenceProvider(EntityPersistenceProvider<?> primary,
+            List<EntityPersistenceProvider<?>> replicas, ReadRouter router) {
+        return new RoutingEntityPersistenceProvider<>((EntityPersistenceProvider<K>) primary,
+                (List<EntityPersistenceProvider<K>>) (List<?>) replicas, router);
+    }
+
+    private static List<String> getReplicaKeys(Properties props) {
+        List<String> replicakeys = new ArrayList<>();
+        for (String replicakey : props.getProperty("replicas", "").split(",")) {
+            if (!replicakey.trim().isEmpty()) {
+                replicakeys.add(replicakey.trim());
+            }
+        }
+        return replicakeys;
+    }
+
+    private static ReadRouter getReadRouter(String dbkey, Properties props, int replicas) {
+        ReadRouter router = readRouters.get(dbkey);
+        if (router == null) {
+            router = new ReadRouter(getPersistenceUnitProvider(dbkey), replicas,
+                    Long.parseLong(props.getProperty("readyourwritesmillis", DEFAULTREADYOURWRITESMILLIS)));
+            readRouters.put(dbkey, router);
+        }
+        return router;
+    }
+
+    /**
+     * Close all EntityPersistenceProviders created for a database key. A later
+     * request for one of these providers will create a new provider.
+     *
+     * @param dbkey the database key
+     */
+    public static synchronized void close(String dbkey) {
+        readRouters.remove(dbkey);
+        closeProviders((key) -> key.get(0).equals(dbkey));
+    }
+
+    /**
+     * Close all EntityPersistenceProviders (eg on application shutdown), so
+     * that any data held in memory is persisted once.
+     */
+    public static synchronized void close() {
+        readRouters.clear();
+        closeProviders((key) -> true);
+    }
+
+    private static void closeProviders(Predicate<List<String>> filter) {
+        List<RuntimeException> failures = new ArrayList<>();
+        Iterator<Map.Entry<List<String>, EntityPersistenceProvider<?>>> entries = entityPersistenceProviders.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<List<String>, EntityPersistenceProvider<?>> entry = entries.next();
+            if (filter.test(entry.getKey())) {
+                entries.remove();
                 try {
-                    return eppfactory.createEntityPersistenceProvider(entityname, props, getPersistenceUnitProvider(dbkey), idx);
-                } catch (IOException ex) {
-                    throw new LogicException("getEntityPersistenceProvide() failed: " + ex.getMessage());
+                    entry.getValue().close();
+                } catch (RuntimeException ex) {
+                    failures.add(ex);
                 }
             }
         }
-        throw new LogicException("Unknown EntityPersistenceProvider type used in Persistence Properties");
+        if (!failures.isEmpty()) {
+            throw new LogicException("close() failed for " + failures.size() + " EntityPersistenceProvider(s): " + failures.get(0).getMessage());
+        }
     }
 
     /**
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.api;
+
+/**
+ * A hi-lo allocator of index values for entities which have an explicit
+ * ordering column.
+ *
+ * Index values are reserved from the entity storage in blocks, and then
+ * handed out one at a time from memory, so storage is only asked for a new
+ * block once the previous block has been used. Unused values of a block are
+ * simply skipped, so index values are increasing but may have gaps.
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ */
+public final class IdxSequence {
+
+    /**
+     * The default number of index values reserved in each block
+     */
+    public static final int DEFAULTBLOCKSIZE = 20;
+
+    private final EntityPersistenceProvider<?> epp;
+    private final int blocksize;
+    private int next = 0;
+    private int hi = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param epp the entity persistence provider which reserves the blocks
+     * @param blocksize the number of index values reserved in each block
+     */
+    public IdxSequence(EntityPersistenceProvider<?> epp, int blocksize) {
+        if (blocksize < 1) {
+            throw new LogicException("IdxSequence - blocksize must be at least 1");
+        }
+        this.epp = epp;
+        this.blocksize = blocksize;
+    }
+
+    /**
+     * Get the next index value, reserving a new block if required.
+     *
+     * @return the index value
+     */
+    public synchronized int next() {
+        if (next >= hi) {
+            next = epp.reserveIdx(blocksize);
+            hi = next + blocksize;
+        }
+        return next++;
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.api;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * A page of entities returned by a paged query, together with the
+ * continuation key used to request the following page.
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ * @param <K> the Primary Key type
+ */
+public class Page<K> {
+
+    private final List<EntityFields> rows;
+    private final PageKey<K> next;
+
+    /**
+     * Constructor.
+     *
+     * @param rows the entities of this page
+     * @param next the continuation key for the following page (or null if
+     * this is the last page)
+     */
+    public Page(List<EntityFields> rows, PageKey<K> next) {
+        this.rows = rows;
+        this.next = next;
+    }
+
+    /**
+     * Get the entities of this page.
+     *
+     * @return the entities (in query order)
+     */
+    public List<EntityFields> getRows() {
+        return rows;
+    }
+
+    /**
+     * Get the continuation key for the following page.
+     *
+     * @return the continuation key (or null if this is the last page)
+     */
+    public PageKey<K> getNext() {
+        return next;
+    }
+
+    /**
+     * Test if this is the last page.
+     *
+     * @return true if the last page
+     */
+    public boolean isLast() {
+        return next == null;
+    }
+
+    /**
+     * Select a page from the full (ordered) list of entities.
+     *
+     * @param <K> the Primary Key type
+     * @param all the full list of entities
+     * @param after the continuation key (or null for the first page)
+     * @param limit the maximum number of entities in the page
+     * @param pkfunction the function extracting the primary key of an entity
+     * @return the page
+     */
+    static <K> Page<K> select(List<EntityFields> all, PageKey<K> after, int limit, Function<EntityFields, K> pkfunction) {
+        checkLimit(limit);
+        int from = 0;
+        if (after != null) {
+            from = -1;
+            for (int i = 0; i < all.size() && from < 0; i++) {
+                if (after.getPK().equals(pkfunction.apply(all.get(i)))) {
+                    from = i + 1;
+                }
+            }
+            if (from < 0) {
+                throw new LogicException("Page continuation entity no longer exists");
+            }
+        }
+        int to = Math.min(from + limit, all.size());
+        List<EntityFields> rows = new ArrayList<>(all.subList(from, to));
+        return new Page<>(rows, to < all.size() ? new PageKey<>(null, pkfunction.apply(rows.get(rows.size() - 1))) : null);
+    }
+
+    /**
+     * Check that a page size limit is valid.
+     *
+     * @param limit the limit
+     */
+    public static void checkLimit(int limit) {
+        if (limit < 1) {
+            throw new LogicException("Page limit must be at least 1");
+        }
+    }
+}
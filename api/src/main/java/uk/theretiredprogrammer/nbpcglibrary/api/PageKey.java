@@ -0,0 +1,70 @@
+/*
+ * Copyright 2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.api;
+
+/**
+ * The continuation key of a paged query - the position (in query order) of
+ * the last entity of a page. The next page starts with the entity following
+ * this position.
+ *
+ * For entities with an index field the position is the index value and the
+ * primary key (so that entities with equal index values are paged
+ * correctly), otherwise it is the primary key alone.
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ * @param <K> the Primary Key type
+ */
+public final class PageKey<K> {
+
+    private final Object idxvalue;
+    private final K pkey;
+
+    /**
+     * Constructor.
+     *
+     * @param idxvalue the index field value (or null if the entity is not
+     * ordered by an index field)
+     * @param pkey the primary key
+     */
+    public PageKey(Object idxvalue, K pkey) {
+        this.idxvalue = idxvalue;
+        this.pkey = pkey;
+    }
+
+    /**
+     * Get the index field value.
+     *
+     * @return the index field value (or null if the entity is not ordered by
+     * an index field)
+     */
+    public Object getIdxValue() {
+        return idxvalue;
+    }
+
+    /**
+     * Get the primary key.
+     *
+     * @return the primary key
+     */
+    public K getPK() {
+        return pkey;
+    }
+
+    @Override
+    public String toString() {
+        return idxvalue == null ? "PageKey[" + pkey + "]" : "PageKey[" + idxvalue + "," + pkey + "]";
+    }
+}
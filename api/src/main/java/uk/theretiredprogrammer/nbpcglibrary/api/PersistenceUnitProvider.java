@@ -39,4 +39,16 @@ public interface PersistenceUnitProvider extends HasInstanceDescription {
      * @return the name
      */
     public String getName();
+
+    /**
+     * Test if the calling thread is currently within an active transaction
+     * unit on this PersistenceUnitProvider.
+     *
+     * The default implementation is for providers without transactions.
+     *
+     * @return true if in transaction
+     */
+    public default boolean isInTransaction() {
+        return false;
+    }
 }
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.api;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Chooses where the reads for a database key are sent - to one of its read
+ * replicas or to the primary.
+ *
+ * Reads go to the replica with the fewest outstanding requests, unless the
+ * primary is within a transaction or the session has written to the primary
+ * within the read-your-writes period (as replicas may not yet have received
+ * the change). The session is everything using the database key, so writes
+ * made on other threads (for example by asynchronous operations) are seen
+ * by the next read from any thread.
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ */
+final class ReadRouter {
+
+    /**
+     * The value returned by choose() when the read must use the primary
+     */
+    static final int PRIMARY = -1;
+
+    private final PersistenceUnitProvider primary;
+    private final AtomicInteger[] outstanding;
+    private final long readyourwritesmillis;
+    private volatile long lastwrite = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param primary the primary persistence unit provider
+     * @param replicas the number of read replicas
+     * @param readyourwritesmillis the period after a write during which reads
+     * use the primary (milliseconds)
+     */
+    ReadRouter(PersistenceUnitProvider primary, int replicas, long readyourwritesmillis) {
+        this.primary = primary;
+        this.readyourwritesmillis = readyourwritesmillis;
+        outstanding = new AtomicInteger[replicas];
+        for (int i = 0; i < replicas; i++) {
+            outstanding[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * Choose where a read is sent. A chosen replica must be released once the
+     * read is complete.
+     *
+     * @return the replica index, or PRIMARY
+     */
+    int choose() {
+        if (outstanding.length == 0 || primary.isInTransaction()) {
+            return PRIMARY;
+        }
+        if (System.currentTimeMillis() - lastwrite < readyourwritesmillis) {
+            return PRIMARY;
+        }
+        int chosen = 0;
+        int least = Integer.MAX_VALUE;
+        for (int i = 0; i < outstanding.length; i++) {
+            int count = outstanding[i].get();
+            if (count < least) {
+                least = count;
+                chosen = i;
+            }
+        }
+        outstanding[chosen].incrementAndGet();
+        return chosen;
+    }
+
+    /**
+     * Release a replica once a read is complete.
+     *
+     * @param chosen the value returned by choose()
+     */
+    void release(int chosen) {
+        if (chosen != PRIMARY) {
+            outstanding[chosen].decrementAndGet();
+        }
+    }
+
+    /**
+     * Record that the session has written to the primary.
+     */
+    void written() {
+        lastwrite = System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright 2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.api;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * EntityPersistenceProvider which splits reads and writes between a primary
+ * provider and one or more read replica providers.
+ *
+ * Writes (and index allocation) always use the primary. Reads use a replica
+ * chosen by the database key's ReadRouter, or the primary if the calling
+ * thread is within a transaction or the database key has recently been
+ * written. Asynchronous operations are routed in the same way, and use the
+ * chosen provider's own asynchronous operations.
+ *
+ * Routing providers are created by the EntityPersistenceProviderManager,
+ * when the persistence properties for a database key include a list of
+ * replica database keys.
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ * @param <K> the Primary Key type
+ */
+public final class RoutingEntityPersistenceProvider<K> implements EntityPersistenceProvider<K>, AsyncEntityPersistenceProvider<K> {
+
+    private final EntityPersistenceProvider<K> primary;
+    private final List<EntityPersistenceProvider<K>> replicas;
+    private final AsyncEntityPersistenceProvider<K> asyncprimary;
+    private final List<AsyncEntityPersistenceProvider<K>> asyncreplicas;
+    private final ReadRouter router;
+
+    /**
+     * Constructor.
+     *
+     * @param primary the primary provider
+     * @param replicas the read replica providers (in router replica order)
+     * @param router the read router for the database key
+     */
+    RoutingEntityPersistenceProvider(EntityPersistenceProvider<K> primary, List<EntityPersistenceProvider<K>> replicas, ReadRouter router) {
+        this.primary = primary;
+        this.replicas = replicas;
+        this.router = router;
+        asyncprimary = AsyncEntityPersistenceProvider.of(primary);
+        asyncreplicas = new ArrayList<>(replicas.size());
+        replicas.stream().forEach((replica) -> {
+            asyncreplicas.add(AsyncEntityPersistenceProvider.of(replica));
+        });
+    }
+
+    /**
+     * Get the primary provider.
+     *
+     * @return the primary provider
+     */
+    public EntityPersistenceProvider<K> getPrimary() {
+        return primary;
+    }
+
+    private <R> R read(Function<EntityPersistenceProvider<K>, R> request) {
+        int chosen = router.choose();
+        try {
+            return request.apply(chosen == ReadRouter.PRIMARY ? primary : replicas.get(chosen));
+        } finally {
+            router.release(chosen);
+        }
+    }
+
+    private <R> R write(Function<EntityPersistenceProvider<K>, R> request) {
+        try {
+            return request.apply(primary);
+        } finally {
+            router.written();
+        }
+    }
+
+    private <R> CompletableFuture<R> readAsync(Function<AsyncEntityPersistenceProvider<K>, CompletableFuture<R>> request) {
+        int chosen = router.choose();
+        CompletableFuture<R> result;
+        try {
+            result = request.apply(chosen == ReadRouter.PRIMARY ? asyncprimary : asyncreplicas.get(chosen));
+        } catch (RuntimeException ex) {
+            router.release(chosen);
+            throw ex;
+        }
+        return result.whenComplete((r, ex) -> router.release(chosen));
+    }
+
+    // the write is recorded when requested (so reads while it is in progress use the primary) and when complete
+    private <R> CompletableFuture<R> writeAsync(Function<AsyncEntityPersistenceProvider<K>, CompletableFuture<R>> request) {
+        router.written();
+        return request.apply(asyncprimary).whenComplete((r, ex) -> router.written());
+    }
+
+    @Override
+    public void init(String tablename, Properties properties, PersistenceUnitProvider pup) {
+        throw new LogicException("RoutingEntityPersistenceProvider is initialised by the EntityPersistenceProviderManager");
+    }
+
+    @Override
+    public void init(String tablename, String idx, Properties properties, PersistenceUnitProvider pup) {
+        throw new LogicException("RoutingEntityPersistenceProvider is initialised by the EntityPersistenceProviderManager");
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Only the primary is closed; the replica providers are shared, and are
+     * closed with their own database key.
+     */
+    @Override
+    public void close() {
+        primary.close();
+    }
+
+    @Override
+    public String instanceDescription() {
+        return "RoutingEntityPersistenceProvider[" + primary.instanceDescription() + "," + replicas.size() + " replicas]";
+    }
+
+    @Override
+    public K getPK(EntityFields ef) {
+        return primary.getPK(ef);
+    }
+
+    @Override
+    public void autoGenPrimaryKeyHook(EntityFields ef) {
+        primary.autoGenPrimaryKeyHook(ef);
+    }
+
+    @Override
+    public void addTimestampInfo(EntityFields ef) {
+        primary.addTimestampInfo(ef);
+    }
+
+    @Override
+    public void updateTimestampInfo(EntityFields ef) {
+        primary.updateTimestampInfo(ef);
+    }
+
+    @Override
+    public List<K> find() {
+        return read((epp) -> epp.find());
+    }
+
+    @Override
+    public List<K> find(String parametername, Object parametervalue) {
+        return read((epp) -> epp.find(parametername, parametervalue));
+    }
+
+    @Override
+    public K findOne(String parametername, Object parametervalue) {
+        return read((epp) -> epp.findOne(parametername, parametervalue));
+    }
+
+    @Override
+    public List<EntityFields> get() {
+        return read((epp) -> epp.get());
+    }
+
+    @Override
+    public List<EntityFields> get(String parametername, Object parametervalue) {
+        return read((epp) -> epp.get(parametername, parametervalue));
+    }
+
+    @Override
+    public EntityFields getOne(String parametername, Object parametervalue) {
+        return read((epp) -> epp.getOne(parametername, parametervalue));
+    }
+
+    @Override
+    public List<K> find(Criteria criteria) {
+        return read((epp) -> epp.find(criteria));
+    }
+
+    @Override
+    public List<EntityFields> get(Criteria criteria) {
+        return read((epp) -> epp.get(criteria));
+    }
+
+    @Override
+    public int count(Criteria criteria) {
+        return read((epp) -> epp.count(criteria));
+    }
+
+    @Override
+    public boolean exists(Criteria criteria) {
+        return read((epp) -> epp.exists(criteria));
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Always read from the primary - a watermark taken from a lagging replica
+     * could pass over changes the replica has not yet received.
+     */
+    @Override
+    public List<EntityFields> getChangedSince(Criteria criteria, Object watermark) {
+        return primary.getChangedSince(criteria, watermark);
+    }
+
+    @Override
+    public List<EntityFields> getProjection(List<String> columns) {
+        return read((epp) -> epp.getProjection(columns));
+    }
+
+    @Override
+    public List<EntityFields> getProjection(List<String> columns, String parametername, Object parametervalue) {
+        return read((epp) -> epp.getProjection(columns, parametername, parametervalue));
+    }
+
+    @Override
+    public EntityFields getOneProjection(List<String> columns, String parametername, Object parametervalue) {
+        return read((epp) -> epp.getOneProjection(columns, parametername, parametervalue));
+    }
+
+    @Override
+    public Page<K> getPage(PageKey<K> after, int limit) {
+        return read((epp) -> epp.getPage(after, limit));
+    }
+
+    @Override
+    public Page<K> getPage(String parametername, Object parametervalue, PageKey<K> after, int limit) {
+        return read((epp) -> epp.getPage(parametername, parametervalue, after, limit));
+    }
+
+    @Override
+    public List<EntityFields> getRange(int offset, int limit) {
+        return read((epp) -> epp.getRange(offset, limit));
+    }
+
+    @Override
+    public EntityFields get(K pk) {
+        return read((epp) -> epp.get(pk));
+    }
+
+    @Override
+    public List<EntityFields> get(Collection<K> pks) {
+        return read((epp) -> epp.get(pks));
+    }
+
+    @Override
+    public int findNextIdx() {
+        return primary.findNextIdx();
+    }
+
+    @Override
+    public int reserveIdx(int blocksize) {
+        return primary.reserveIdx(blocksize);
+    }
+
+    @Override
+    public EntityFields insert(EntityFields values) {
+        return write((epp) -> epp.insert(values));
+    }
+
+    @Override
+    public EntityFields update(K pk, EntityFields diff) {
+        return write((epp) -> epp.update(pk, diff));
+    }
+
+    @Override
+    public void delete(K pk) {
+        write((epp) -> {
+            epp.delete(pk);
+            return null;
+        });
+    }
+
+    @Override
+    public BatchResult insert(List<EntityFields> values) {
+        return write((epp) -> epp.insert(values));
+    }
+
+    @Override
+    public BatchResult update(List<K> pks, List<EntityFields> diffs) {
+        return write((epp) -> epp.update(pks, diffs));
+    }
+
+    @Override
+    public BatchResult delete(List<K> pks) {
+        return write((epp) -> epp.delete(pks));
+    }
+
+    @Override
+    public CompletableFuture<EntityFields> getAsync(K pk) {
+        return readAsync((epp) -> epp.getAsync(pk));
+    }
+
+    @Override
+    public CompletableFuture<List<EntityFields>> getAsync(Collection<K> pks) {
+        return readAsync((epp) -> epp.getAsync(pks));
+    }
+
+    @Override
+    public CompletableFuture<List<EntityFields>> getAsync() {
+        return readAsync((epp) -> epp.getAsync());
+    }
+
+    @Override
+    public CompletableFuture<List<EntityFields>> getAsync(Criteria criteria) {
+        return readAsync((epp) -> epp.getAsync(criteria));
+    }
+
+    @Override
+    public CompletableFuture<List<K>> findAsync(Criteria criteria) {
+        return readAsync((epp) -> epp.findAsync(criteria));
+    }
+
+    @Override
+    public CompletableFuture<Integer> countAsync(Criteria criteria) {
+        return readAsync((epp) -> epp.countAsync(criteria));
+    }
+
+    @Override
+    public CompletableFuture<EntityFields> insertAsync(EntityFields values) {
+        return writeAsync((epp) -> epp.insertAsync(values));
+    }
+
+    @Override
+    public CompletableFuture<EntityFields> updateAsync(K pk, EntityFields diff) {
+        return writeAsync((epp) -> epp.updateAsync(pk, diff));
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAsync(K pk) {
+        return writeAsync((epp) -> epp.deleteAsync(pk));
+    }
+}
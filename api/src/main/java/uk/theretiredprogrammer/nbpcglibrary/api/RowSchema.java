@@ -0,0 +1,241 @@
+/*
+ * Copyright 2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.api;
+
+import java.io.Serializable;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * The shared, immutable description of the columns of a set of rows: the
+ * column names, their types and where each column is stored within an
+ * EntityFields.
+ *
+ * Schemas are interned, so all rows with the same columns share one
+ * instance. The intern table holds schemas weakly, so a schema is discarded
+ * once no rows use it.
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ */
+public final class RowSchema implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The storage type of a column.
+     */
+    public enum ColumnType {
+
+        /**
+         * Any Object value (stored as a reference)
+         */
+        OBJECT,
+        /**
+         * Integer value (stored as a primitive)
+         */
+        INT,
+        /**
+         * Long value (stored as a primitive)
+         */
+        LONG,
+        /**
+         * Boolean value (stored as a primitive)
+         */
+        BOOLEAN
+    }
+
+    private static final Map<RowSchema, WeakReference<RowSchema>> SCHEMAS = new WeakHashMap<>();
+
+    private final String[] names;
+    private final ColumnType[] types;
+    private final int[] slots;
+    private final int objectslots;
+    private final int primitiveslots;
+    private final String[] table;
+    private final int[] tablecolumns;
+    private final int mask;
+    private final int hash;
+
+    private RowSchema(String[] names, ColumnType[] types) {
+        if (names.length != types.length) {
+            throw new IllegalArgumentException("RowSchema - names and types must be the same length");
+        }
+        this.names = names;
+        this.types = types;
+        slots = new int[names.length];
+        // open addressing name lookup table (at most half full)
+        int tablesize = Integer.highestOneBit(Math.max(names.length, 1) * 4 - 1);
+        table = new String[tablesize];
+        tablecolumns = new int[tablesize];
+        mask = tablesize - 1;
+        int objects = 0;
+        int primitives = 0;
+        for (int i = 0; i < names.length; i++) {
+            int t = names[i].hashCode() & mask;
+            while (table[t] != null) {
+                if (table[t].equals(names[i])) {
+                    throw new IllegalArgumentException("RowSchema - duplicate column " + names[i]);
+                }
+                t = (t + 1) & mask;
+            }
+            table[t] = names[i];
+            tablecolumns[t] = i;
+            slots[i] = types[i] == ColumnType.OBJECT ? objects++ : primitives++;
+        }
+        objectslots = objects;
+        primitiveslots = primitives;
+        hash = 31 * Arrays.hashCode(names) + Arrays.hashCode(types);
+    }
+
+    /**
+     * Get the schema for a set of columns.
+     *
+     * @param names the column names
+     * @param types the column types (in name order)
+     * @return the (shared) schema
+     */
+    public static RowSchema of(String[] names, ColumnType[] types) {
+        return intern(new RowSchema(names.clone(), types.clone()));
+    }
+
+    private static RowSchema intern(RowSchema schema) {
+        synchronized (SCHEMAS) {
+            WeakReference<RowSchema> ref = SCHEMAS.get(schema);
+            RowSchema shared = ref == null ? null : ref.get();
+            if (shared != null) {
+                return shared;
+            }
+            SCHEMAS.put(schema, new WeakReference<>(schema));
+            return schema;
+        }
+    }
+
+    private Object readResolve() {
+        return intern(this);
+    }
+
+    /**
+     * Get the number of columns.
+     *
+     * @return the number of columns
+     */
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * Get the index of a column.
+     *
+     * @param name the column name
+     * @return the column index, or -1 if not a column of this schema
+     */
+    public int indexOf(Object name) {
+        if (name == null) {
+            return -1;
+        }
+        int t = name.hashCode() & mask;
+        String entry;
+        while ((entry = table[t]) != null) {
+            if (entry == name || entry.equals(name)) {
+                return tablecolumns[t];
+            }
+            t = (t + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Get the name of a column.
+     *
+     * @param column the column index
+     * @return the column name
+     */
+    public String getName(int column) {
+        return names[column];
+    }
+
+    /**
+     * Get the storage type of a column.
+     *
+     * @param column the column index
+     * @return the column type
+     */
+    public ColumnType getType(int column) {
+        return types[column];
+    }
+
+    /**
+     * Test if this schema has exactly the given set of columns.
+     *
+     * @param columnnames the column names
+     * @return true if the columns match
+     */
+    public boolean matches(Collection<String> columnnames) {
+        if (columnnames.size() != names.length) {
+            return false;
+        }
+        for (String name : columnnames) {
+            if (indexOf(name) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    int getSlot(int column) {
+        return slots[column];
+    }
+
+    int getObjectSlots() {
+        return objectslots;
+    }
+
+    int getPrimitiveSlots() {
+        return primitiveslots;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof RowSchema)) {
+            return false;
+        }
+        RowSchema other = (RowSchema) obj;
+        return hash == other.hash && Arrays.equals(names, other.names) && Arrays.equals(types, other.types);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("RowSchema[");
+        for (int i = 0; i < names.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(names[i]).append(':').append(types[i]);
+        }
+        return sb.append(']').toString();
+    }
+}
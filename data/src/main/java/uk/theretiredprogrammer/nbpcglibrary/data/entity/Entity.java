@@ -348,6 +348,20 @@ public abstract class Entity<K, E extends Entity<K, E, P, F>, P extends CoreEnti
         }
     }
 
+    /**
+     * Load Data (already obtained from entity storage) into this entity and
+     * fire the field change at load listeners. If no data is provided then it
+     * is obtained from entity storage.
+     *
+     * @param pk the entity primary key
+     * @param data the entity data (or null)
+     */
+    final void load(K pk, EntityFields data) {
+        if (isPersistent()) {
+            loader(data == null ? epp.get(pk) : data);
+        }
+    }
+
     private void loader(EntityFields data) {
         LogBuilder.writeLog("nbpcglibrary.data", this, "loader", data.toString());
         EntityState oldState = getState();
@@ -18,10 +18,20 @@ package uk.theretiredprogrammer.nbpcglibrary.data.entity;
 import java.lang.ref.Reference;
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.SoftReference;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.logging.Level;
 import uk.theretiredprogrammer.nbpcglibrary.common.LogBuilder;
+import uk.theretiredprogrammer.nbpcglibrary.api.AsyncEntityPersistenceProvider;
+import uk.theretiredprogrammer.nbpcglibrary.api.Criteria;
+import uk.theretiredprogrammer.nbpcglibrary.api.EntityFields;
 import uk.theretiredprogrammer.nbpcglibrary.api.HasInstanceDescription;
 import uk.theretiredprogrammer.nbpcglibrary.api.EntityPersistenceProvider;
 import uk.theretiredprogrammer.nbpcglibrary.api.LogicException;
@@ -64,7 +74,9 @@ abstract public class EntityManager<K, E extends Entity<K, E, P, ?>, P extends C
      */
     protected final LRUCache<K, E> lrucache;
     private EntityPersistenceProvider<K> entityPersistenceProvider;
+    private AsyncEntityPersistenceProvider<K> asyncEntityPersistenceProvider;
     private final Map<K, E> transientCache;
+    private final Map<K, CompletableFuture<E>> loading;
 
     /**
      * Constructor.
@@ -88,6 +100,7 @@ abstract public class EntityManager<K, E extends Entity<K, E, P, ?>, P extends C
         cache = new HashMap<>();
         refqueue = new ReferenceQueue<>();
         transientCache = new HashMap<>();
+        loading = new HashMap<>();
     }
 
     @Override
@@ -105,29 +118,10 @@ abstract public class EntityManager<K, E extends Entity<K, E, P, ?>, P extends C
     public final synchronized E get(K pk) {
         if (isPersistent(pk)) {
             freeReleasedEntries();
-            E e = lrucache.get(pk);
+            E e = getFromCache(pk);
             if (e != null) {
-                LogBuilder.create("nbpcglibrary.data", Level.FINEST).addMethodName(this, "get", pk)
-                        .addMsg("hit on LRUCache for {0}", e.instanceDescription()).write();
                 return e;
             }
-            // not in lru cache - now look up the entity in the cache
-            SoftReference<E> ref = cache.get(pk);
-            if (ref != null) {
-                e = ref.get();
-                if (e != null) {
-                    lrucache.put(pk, e); // insert object into LRU cache
-                    LogBuilder.create("nbpcglibrary.data", Level.FINEST).addMethodName(this, "get", pk)
-                            .addMsg("hit on Cache (& reinserted into LRU cache) for {0}", e.instanceDescription()).write();
-                    return e;
-                } else {
-                    LogBuilder.create("nbpcglibrary.data", Level.FINEST).addMethodName(this, "get", pk)
-                            .addMsg("miss on Cache (SoftReference clear)").write();
-                }
-            } else {
-                LogBuilder.create("nbpcglibrary.data", Level.FINEST).addMethodName(this, "get", pk)
-                        .addMsg("miss on Cache").write();
-            }
             e = createNewEntity(pk);
             e.load(pk);
             insertIntoCache(pk, e);
@@ -145,6 +139,160 @@ abstract public class EntityManager<K, E extends Entity<K, E, P, ?>, P extends C
         }
     }
 
+    /**
+     * Get a set of Entities. Lookup caches and for those entities not present
+     * create new entities and load them using data obtained from entity storage
+     * in a single batched request.
+     *
+     * @param pks the primary key values
+     * @return the entities (in the same order as the primary keys; null for a
+     * primary key with no entity in entity storage)
+     */
+    public final synchronized List<E> get(List<K> pks) {
+        freeReleasedEntries();
+        List<E> el = new ArrayList<>(pks.size());
+        Set<K> missing = new LinkedHashSet<>();
+        pks.stream().forEach((pk) -> {
+            E e = isPersistent(pk) ? getFromCache(pk) : get(pk);
+            if (e == null) {
+                missing.add(pk);
+            }
+            el.add(e);
+        });
+        if (!missing.isEmpty()) {
+            Map<K, E> loaded = new HashMap<>();
+            Iterator<EntityFields> data = getEntityPersistenceProvider().get(missing).iterator();
+            missing.stream().forEach((pk) -> {
+                EntityFields ef = data.next();
+                if (ef != null) {
+                    E e = createNewEntity(pk);
+                    e.load(pk, ef);
+                    insertIntoCache(pk, e);
+                    loaded.put(pk, e);
+                }
+            });
+            LogBuilder.create("nbpcglibrary.data", Level.FINEST).addMethodName(this, "get", pks)
+                    .addMsg("create {0} new Entities (and insert into Cache), {1} not found", loaded.size(),
+                            missing.size() - loaded.size()).write();
+            for (int i = 0; i < el.size(); i++) {
+                if (el.get(i) == null) {
+                    el.set(i, loaded.get(pks.get(i)));
+                }
+            }
+        }
+        return el;
+    }
+
+    /**
+     * Get an Entity asynchronously. Lookup caches and if not present then
+     * request the entity data from entity storage without waiting for it, so
+     * that independent loads can overlap. Concurrent requests for the same
+     * entity share a single load.
+     *
+     * @param pk the primary key value
+     * @return the future entity
+     */
+    public final synchronized CompletableFuture<E> getAsync(K pk) {
+        if (!isPersistent(pk)) {
+            return CompletableFuture.completedFuture(get(pk));
+        }
+        freeReleasedEntries();
+        E e = getFromCache(pk);
+        if (e != null) {
+            return CompletableFuture.completedFuture(e);
+        }
+        CompletableFuture<E> pending = loading.get(pk);
+        if (pending == null) {
+            pending = getAsyncEntityPersistenceProvider().getAsync(pk).handle((ef, ex) -> loaded(pk, ef, ex));
+            if (!pending.isDone()) {
+                loading.put(pk, pending);
+            }
+        }
+        return pending;
+    }
+
+    private synchronized E loaded(K pk, EntityFields ef, Throwable ex) {
+        loading.remove(pk);
+        if (ex != null) {
+            throw ex instanceof CompletionException ? (CompletionException) ex : new CompletionException(ex);
+        }
+        E e = getFromCache(pk); // it may have been loaded by get() while waiting
+        if (e == null) {
+            e = createNewEntity(pk);
+            e.load(pk, ef);
+            insertIntoCache(pk, e);
+            LogBuilder.create("nbpcglibrary.data", Level.FINEST).addMethodName(this, "getAsync", pk)
+                    .addMsg("create new Entity {0} (and insert into Cache)", e.instanceDescription()).write();
+        }
+        return e;
+    }
+
+    /**
+     * Refresh the cached entities which have changed in entity storage since a
+     * watermark (see EntityPersistenceProvider.getChangedSince()). Entities
+     * being edited are not refreshed.
+     *
+     * @param watermark the watermark (or null to refresh all cached entities)
+     * @return the new watermark
+     */
+    public final Object refresh(Object watermark) {
+        EntityPersistenceProvider<K> epp = getEntityPersistenceProvider();
+        return refresh(epp.getChangedSince(Criteria.all(), watermark), watermark);
+    }
+
+    /**
+     * Refresh the cached entities from a set of changed entity data. Changed
+     * entities which are not cached are ignored (they are read when next
+     * required), as are entities being edited.
+     *
+     * @param changed the changed entity data
+     * @param watermark the watermark used to obtain the changes (or null)
+     * @return the new watermark
+     */
+    public final synchronized Object refresh(List<EntityFields> changed, Object watermark) {
+        EntityPersistenceProvider<K> epp = getEntityPersistenceProvider();
+        int refreshed = 0;
+        for (EntityFields ef : changed) {
+            K pk = epp.getPK(ef);
+            SoftReference<E> ref = cache.get(pk);
+            E e = ref == null ? null : ref.get();
+            if (e != null && !e.isEditing()) {
+                e.load(pk, ef);
+                refreshed++;
+            }
+        }
+        LogBuilder.create("nbpcglibrary.data", Level.FINEST).addMethodName(this, "refresh", watermark)
+                .addMsg("{0} changed, {1} cached entities refreshed", changed.size(), refreshed).write();
+        return EntityPersistenceProvider.getWatermark(changed, watermark);
+    }
+
+    private E getFromCache(K pk) {
+        E e = lrucache.get(pk);
+        if (e != null) {
+            LogBuilder.create("nbpcglibrary.data", Level.FINEST).addMethodName(this, "get", pk)
+                    .addMsg("hit on LRUCache for {0}", e.instanceDescription()).write();
+            return e;
+        }
+        // not in lru cache - now look up the entity in the cache
+        SoftReference<E> ref = cache.get(pk);
+        if (ref != null) {
+            e = ref.get();
+            if (e != null) {
+                lrucache.put(pk, e); // insert object into LRU cache
+                LogBuilder.create("nbpcglibrary.data", Level.FINEST).addMethodName(this, "get", pk)
+                        .addMsg("hit on Cache (& reinserted into LRU cache) for {0}", e.instanceDescription()).write();
+                return e;
+            } else {
+                LogBuilder.create("nbpcglibrary.data", Level.FINEST).addMethodName(this, "get", pk)
+                        .addMsg("miss on Cache (SoftReference clear)").write();
+            }
+        } else {
+            LogBuilder.create("nbpcglibrary.data", Level.FINEST).addMethodName(this, "get", pk)
+                    .addMsg("miss on Cache").write();
+        }
+        return null;
+    }
+
     /**
      * Create a new Entity. Does not load entity data into the entity. this will
      * be a transient entity initially until it is persisted.
@@ -262,6 +410,19 @@ abstract public class EntityManager<K, E extends Entity<K, E, P, ?>, P extends C
         return entityPersistenceProvider;
     }
 
+    /**
+     * Get the asynchronous form of the EntityPersistenceProvider for this
+     * Entity Class.
+     *
+     * @return the AsyncEntityPersistenceProvider
+     */
+    public AsyncEntityPersistenceProvider<K> getAsyncEntityPersistenceProvider() {
+        if (asyncEntityPersistenceProvider == null) {
+            asyncEntityPersistenceProvider = AsyncEntityPersistenceProvider.of(getEntityPersistenceProvider());
+        }
+        return asyncEntityPersistenceProvider;
+    }
+
     /**
      * Create the EntityPersistenceProvider for this Entity Class.
      *
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.data.entity;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import uk.theretiredprogrammer.nbpcglibrary.api.EntityFields;
+import uk.theretiredprogrammer.nbpcglibrary.api.EntityPersistenceProvider;
+import uk.theretiredprogrammer.nbpcglibrary.api.HasInstanceDescription;
+import uk.theretiredprogrammer.nbpcglibrary.api.Page;
+import uk.theretiredprogrammer.nbpcglibrary.api.PageKey;
+import uk.theretiredprogrammer.nbpcglibrary.common.LogBuilder;
+
+/**
+ * Iterates through all entities (or all entities selected by a column
+ * filter), reading them from entity storage a page at a time.
+ *
+ * Each page is read on the caller's thread when the entities of the previous
+ * page have been processed, as entity persistence providers are not thread
+ * safe. Closing the iterator ends the iteration.
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ * @param <K> the Primary Key type
+ */
+public class PagingIterator<K> implements Iterator<EntityFields>, AutoCloseable, HasInstanceDescription {
+
+    private final String name;
+    private final EntityPersistenceProvider<K> epp;
+    private final String parametername;
+    private final Object parametervalue;
+    private final int pagesize;
+    private Iterator<EntityFields> current;
+    private PageKey<K> after;
+    private boolean more = true;
+
+    /**
+     * Constructor - iterate through all entities.
+     *
+     * @param name the iterator name (for reporting)
+     * @param epp the entity persistence provider
+     * @param pagesize the number of entities read in each page
+     */
+    public PagingIterator(String name, EntityPersistenceProvider<K> epp, int pagesize) {
+        this(name, epp, null, null, pagesize);
+    }
+
+    /**
+     * Constructor - iterate through the entities selected by a column filter.
+     *
+     * @param name the iterator name (for reporting)
+     * @param epp the entity persistence provider
+     * @param parametername the filter column name (or null if all entities)
+     * @param parametervalue the filter value
+     * @param pagesize the number of entities read in each page
+     */
+    public PagingIterator(String name, EntityPersistenceProvider<K> epp, String parametername, Object parametervalue, int pagesize) {
+        Page.checkLimit(pagesize);
+        this.name = name;
+        this.epp = epp;
+        this.parametername = parametername;
+        this.parametervalue = parametervalue;
+        this.pagesize = pagesize;
+    }
+
+    @Override
+    public String instanceDescription() {
+        return LogBuilder.instanceDescription(this, name);
+    }
+
+    private Page<K> fetch() {
+        return parametername == null
+                ? epp.getPage(after, pagesize)
+                : epp.getPage(parametername, parametervalue, after, pagesize);
+    }
+
+    @Override
+    public synchronized boolean hasNext() {
+        while (current == null || !current.hasNext()) {
+            if (!more) {
+                return false;
+            }
+            Page<K> page = fetch();
+            more = !page.isLast();
+            after = page.getNext();
+            current = page.getRows().iterator();
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized EntityFields next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return current.next();
+    }
+
+    /**
+     * Stop iterating.
+     */
+    @Override
+    public synchronized void close() {
+        more = false;
+        current = null;
+    }
+}
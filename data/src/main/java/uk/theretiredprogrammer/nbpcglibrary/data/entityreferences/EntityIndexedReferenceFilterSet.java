@@ -16,6 +16,8 @@
 package uk.theretiredprogrammer.nbpcglibrary.data.entityreferences;
 
 import java.util.List;
+import uk.theretiredprogrammer.nbpcglibrary.api.Criteria;
+import uk.theretiredprogrammer.nbpcglibrary.api.EntityFields;
 import uk.theretiredprogrammer.nbpcglibrary.data.entity.CoreEntity;
 import uk.theretiredprogrammer.nbpcglibrary.data.entity.Entity;
 import uk.theretiredprogrammer.nbpcglibrary.data.entity.EntityManager;
@@ -51,4 +53,14 @@ public class EntityIndexedReferenceFilterSet<K, E extends Entity<K, E, P, ?>, P
     protected List<K> getPrimaryKeySet() {
         return epp.find(columnname, columnvalue);
     }
+
+    @Override
+    protected List<EntityFields> getProjection(List<String> columns) {
+        return epp.getProjection(columns, columnname, columnvalue);
+    }
+
+    @Override
+    protected Criteria getCriteria() {
+        return Criteria.eq(columnname, columnvalue);
+    }
 }
@@ -42,6 +42,21 @@ public class EntityIndexedReferenceSet<K, E extends Entity<K, E, P, ?>, P extend
         super(name, emclass);
     }
 
+    /**
+     * Add a new entity to the end of the entity set. An entity which has not
+     * yet been persisted is given the next index value, allocated from the
+     * provider's index sequence.
+     *
+     * @param e the new entity
+     */
+    @Override
+    public void add(E e) {
+        if (!e.isPersistent()) {
+            e.setIdx(epp.findNextIdx());
+        }
+        super.add(e);
+    }
+
     /**
      * Reorder the list of child entities
      *
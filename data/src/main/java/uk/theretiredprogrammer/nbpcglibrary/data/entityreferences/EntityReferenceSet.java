@@ -16,7 +16,13 @@
 package uk.theretiredprogrammer.nbpcglibrary.data.entityreferences;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import uk.theretiredprogrammer.nbpcglibrary.api.Criteria;
+import uk.theretiredprogrammer.nbpcglibrary.api.EntityFields;
 import uk.theretiredprogrammer.nbpcglibrary.api.EntityPersistenceProvider;
 import uk.theretiredprogrammer.nbpcglibrary.data.entity.EntityManager;
 import uk.theretiredprogrammer.nbpcglibrary.data.entity.Entity;
@@ -57,6 +63,8 @@ public class EntityReferenceSet<K, E extends Entity<K,E,P,?>, P extends CoreEnti
      */
     protected final String name;
     private final Event<SetChangeEventParams> setChangeEvent;
+    private boolean loaded = false;
+    private Object watermark = null;
 
     /**
      * Constructor.
@@ -79,6 +87,7 @@ public class EntityReferenceSet<K, E extends Entity<K,E,P,?>, P extends CoreEnti
         getPrimaryKeySet().stream().forEach((ref) -> {
             childList.add(new EntityReference<>(name, ref, em));
         });
+        loaded = true;
     }
     
     /**
@@ -89,6 +98,39 @@ public class EntityReferenceSet<K, E extends Entity<K,E,P,?>, P extends CoreEnti
         return epp.find();
     }
 
+    /**
+     * Get the criteria selecting the stored entities of this entity set.
+     *
+     * @return the criteria
+     */
+    protected Criteria getCriteria() {
+        return Criteria.all();
+    }
+
+    /**
+     * Get a lightweight listing of the set - selected columns of each entity,
+     * read from entity storage without loading the entities. Use to build
+     * displays (such as tree nodes or choice lists) which only need a few
+     * columns of each entity.
+     *
+     * @param columns the column names (include the primary key column if the
+     * rows are to be related to entities)
+     * @return the selected columns of each stored entity in the set
+     */
+    public List<EntityFields> getListing(List<String> columns) {
+        return getProjection(columns);
+    }
+
+    /**
+     * Get selected columns of the stored entities of this entity set.
+     *
+     * @param columns the column names
+     * @return the selected columns of each entity
+     */
+    protected List<EntityFields> getProjection(List<String> columns) {
+        return epp.getProjection(columns);
+    }
+
     /**
      * Add a listener to observe changes to set membership. The listener will
      * fire on the event queue.
@@ -132,19 +174,109 @@ public class EntityReferenceSet<K, E extends Entity<K,E,P,?>, P extends CoreEnti
      */
     public void restoreState() {
         childList.clear();
+        watermark = null;
         load();
         fireSetChange();
     }
 
+    /**
+     * Refresh the set from entity storage, reading only what has changed.
+     *
+     * The set's primary keys are read to detect entities inserted or deleted
+     * in entity storage; the loaded entities of the set which have changed
+     * since the last refresh (see
+     * EntityPersistenceProvider.getChangedSince()) are reloaded. New entities
+     * which have not yet been saved remain in the set. The first refresh
+     * after the set is loaded reads all entities of the set, to establish
+     * the watermark.
+     *
+     * @return true if the set membership (or order) changed
+     */
+    public boolean refresh() {
+        if (!loaded) {
+            return false; // loaded (from entity storage) when first used
+        }
+        List<K> pks = getPrimaryKeySet();
+        watermark = em.refresh(epp.getChangedSince(getCriteria(), watermark), watermark);
+        Map<K, EntityReference<K, E, P>> existing = new HashMap<>();
+        List<EntityReference<K, E, P>> unsaved = new ArrayList<>();
+        childList.stream().forEach((ref) -> {
+            E e = ref.getNoLoad();
+            if (e != null && !e.isPersistent()) {
+                unsaved.add(ref);
+            } else {
+                existing.put(ref.getPK(), ref);
+            }
+        });
+        List<EntityReference<K, E, P>> refreshed = new ArrayList<>(pks.size() + unsaved.size());
+        if (isStorageOrdered()) {
+            pks.stream().forEach((pk) -> {
+                EntityReference<K, E, P> ref = existing.get(pk);
+                refreshed.add(ref == null ? new EntityReference<>(name, pk, em) : ref);
+            });
+            refreshed.addAll(unsaved);
+        } else {
+            Set<K> stored = new HashSet<>(pks);
+            childList.stream().filter((ref) -> unsaved.contains(ref) || stored.contains(ref.getPK())).forEach((ref) -> {
+                refreshed.add(ref);
+            });
+            pks.stream().filter((pk) -> !existing.containsKey(pk)).forEach((pk) -> {
+                refreshed.add(new EntityReference<>(name, pk, em));
+            });
+        }
+        if (refreshed.equals(childList)) {
+            return false;
+        }
+        childList.clear();
+        childList.addAll(refreshed);
+        fireSetChange();
+        return true;
+    }
+
+    /**
+     * Test if the set is held in the order of its primary keys in entity
+     * storage. If not, a refresh keeps the current order, adding entities
+     * inserted in entity storage to the end of the set.
+     *
+     * @return true if the set is held in entity storage order
+     */
+    protected boolean isStorageOrdered() {
+        return true;
+    }
+
     /**
      * Get the count of entities in the set.
      *
-     * return the count of entities
+     * If the set has not been loaded (and no entities have been added) the
+     * count of stored entities is obtained from entity storage, without
+     * loading the set.
      *
      * @return the count
      */
     public final int count() {
-        return childList.size();
+        return loaded || !childList.isEmpty() ? childList.size() : epp.count(getCriteria());
+    }
+
+    /**
+     * Count the stored entities of this set which are also selected by
+     * additional criteria. The set is not loaded.
+     *
+     * @param criteria the additional criteria
+     * @return the count
+     */
+    public final int count(Criteria criteria) {
+        return epp.count(Criteria.and(getCriteria(), criteria));
+    }
+
+    /**
+     * Test if any stored entities of this set are also selected by additional
+     * criteria (for example, in uniqueness checks). The set is not loaded.
+     *
+     * @param criteria the additional criteria
+     * @return true if any entities are selected
+     */
+    public final boolean exists(Criteria criteria) {
+        return epp.exists(Criteria.and(getCriteria(), criteria));
     }
 
     /**
@@ -153,6 +285,14 @@ public class EntityReferenceSet<K, E extends Entity<K,E,P,?>, P extends CoreEnti
      * @return the list of entities
      */
     public List<E> get() {
+        List<K> unloaded = new ArrayList<>();
+        childList.stream().filter((ref) -> ref.getPK() != null && ref.getNoLoad() == null).forEach((ref) -> {
+            unloaded.add(ref.getPK());
+        });
+        // load all unreferenced entities in a single batch; holding the
+        // returned list ensures they remain in the entity manager cache while
+        // the references are resolved
+        List<E> loaded = unloaded.isEmpty() ? null : em.get(unloaded);
         List<E> el = new ArrayList<>();
         childList.stream().forEach((ref) -> {
             el.add(ref.get());
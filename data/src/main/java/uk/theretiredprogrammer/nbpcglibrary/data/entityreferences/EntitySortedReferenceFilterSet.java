@@ -17,6 +17,8 @@ package uk.theretiredprogrammer.nbpcglibrary.data.entityreferences;
 
 import java.util.Comparator;
 import java.util.List;
+import uk.theretiredprogrammer.nbpcglibrary.api.Criteria;
+import uk.theretiredprogrammer.nbpcglibrary.api.EntityFields;
 import uk.theretiredprogrammer.nbpcglibrary.data.entity.EntityManager;
 import uk.theretiredprogrammer.nbpcglibrary.data.entity.Entity;
 import uk.theretiredprogrammer.nbpcglibrary.data.entity.CoreEntity;
@@ -49,11 +51,35 @@ public class EntitySortedReferenceFilterSet<K, E extends Entity<K, E, P, F>, P e
         this.columnvalue = columnvalue;
         this.columnname = columnname;
     }
+
+    /**
+     * Constructor.
+     *
+     * @param name the set name (for reporting)
+     * @param comparator the comparator to be used to sort the list
+     * @param listingcomparator the comparator to be used to sort listings
+     * @param columnname the column name to be used in filter
+     * @param columnvalue the value to be used in the filter
+     * @param emclass the associated entity manager class
+     */
+    public EntitySortedReferenceFilterSet(String name, Comparator<E> comparator, Comparator<EntityFields> listingcomparator, String columnname, Object columnvalue, Class<? extends EntityManager> emclass) {
+        super(name, comparator, listingcomparator, emclass);
+        this.columnvalue = columnvalue;
+        this.columnname = columnname;
+    }
     
     @Override
     protected List<K> getPrimaryKeySet() {
         return epp.find(columnname, columnvalue);
     }
 
+    @Override
+    protected List<EntityFields> getProjection(List<String> columns) {
+        return epp.getProjection(columns, columnname, columnvalue);
+    }
 
+    @Override
+    protected Criteria getCriteria() {
+        return Criteria.eq(columnname, columnvalue);
+    }
 }
@@ -15,8 +15,10 @@
  */
 package uk.theretiredprogrammer.nbpcglibrary.data.entityreferences;
 
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
+import uk.theretiredprogrammer.nbpcglibrary.api.EntityFields;
 import uk.theretiredprogrammer.nbpcglibrary.data.entity.EntityManager;
 import uk.theretiredprogrammer.nbpcglibrary.data.entity.Entity;
 import uk.theretiredprogrammer.nbpcglibrary.data.entity.EntityFieldChangeEventParams;
@@ -35,6 +37,7 @@ import uk.theretiredprogrammer.nbpcglibrary.data.entity.CoreEntity;
 public class EntitySortedReferenceSet<K, E extends Entity<K, E, P, F>, P extends CoreEntity, F> extends EntityReferenceSet<K, E, P> {
 
     private final Comparator<E> comparator;
+    private final Comparator<EntityFields> listingcomparator;
     private boolean unsorted = true;
     private final ChildListener childListener;
 
@@ -46,9 +49,23 @@ public class EntitySortedReferenceSet<K, E extends Entity<K, E, P, F>, P extends
      * @param emclass the associated entity manager class
      */
     public EntitySortedReferenceSet(String name, Comparator<E> comparator, Class<? extends EntityManager> emclass) {
+        this(name, comparator, null, emclass);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param name the set name (for reporting)
+     * @param comparator the comparator to be used to sort the list
+     * @param listingcomparator the comparator to be used to sort listings (the
+     * listing columns must include the columns it compares)
+     * @param emclass the associated entity manager class
+     */
+    public EntitySortedReferenceSet(String name, Comparator<E> comparator, Comparator<EntityFields> listingcomparator, Class<? extends EntityManager> emclass) {
         super(name, emclass);
         childListener = new ChildListener(name);
         this.comparator = comparator;
+        this.listingcomparator = listingcomparator;
     }
 
     /**
@@ -78,6 +95,20 @@ public class EntitySortedReferenceSet<K, E extends Entity<K, E, P, F>, P extends
         return super.get();
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * The listing is sorted using the listing comparator (if defined).
+     */
+    @Override
+    public List<EntityFields> getListing(List<String> columns) {
+        List<EntityFields> listing = super.getListing(columns);
+        if (listingcomparator != null) {
+            java.util.Collections.sort(listing, listingcomparator);
+        }
+        return listing;
+    }
+
     @Override
     public final void add(E e) {
         int index = 0;
@@ -101,6 +132,33 @@ public class EntitySortedReferenceSet<K, E extends Entity<K, E, P, F>, P extends
         return false;
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * Entities added by the refresh are sorted into the set when it is next
+     * used.
+     */
+    @Override
+    public boolean refresh() {
+        List<E> el = new ArrayList<>();
+        childList.stream().filter((ref) -> ref.getNoLoad() != null).forEach((ref) -> {
+            el.add(ref.getNoLoad());
+        });
+        if (super.refresh()) {
+            el.stream().forEach((e) -> {
+                e.removeFieldListener(childListener);
+            });
+            unsorted = true;
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    protected boolean isStorageOrdered() {
+        return false;
+    }
+
     @Override
     public void restoreState() {
         super.get().stream().forEach((e) -> {
@@ -16,8 +16,11 @@
 package uk.theretiredprogrammer.nbpcglibrary.form;
 
 import java.io.IOException;
+import java.util.List;
+import uk.theretiredprogrammer.nbpcglibrary.api.EntityFields;
 import uk.theretiredprogrammer.nbpcglibrary.common.Listener;
 import uk.theretiredprogrammer.nbpcglibrary.data.entity.SetChangeEventParams;
+import uk.theretiredprogrammer.nbpcglibrary.data.entityreferences.EntityReferenceSet;
 
 /**
  * The Choice Field Model - basic implementation
@@ -45,4 +48,17 @@ public abstract class EntityChoiceFieldModel<T> extends EntityFieldModel<T> {
      */
     public void removeCollectionListeners(Listener<SetChangeEventParams> listener) throws IOException {
     }
+
+    /**
+     * Get the rows from which the choice list can be built. Only the columns
+     * needed to display (and identify) each choice are read, and the entities
+     * are not loaded.
+     *
+     * @param choices the entity set from which the choice is made
+     * @param columns the column names
+     * @return the choice rows
+     */
+    protected List<EntityFields> getChoiceRows(EntityReferenceSet<?, ?, ?> choices, List<String> columns) {
+        return choices.getListing(columns);
+    }
 }
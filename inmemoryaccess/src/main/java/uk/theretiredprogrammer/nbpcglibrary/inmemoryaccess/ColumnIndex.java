@@ -0,0 +1,221 @@
+/*
+ * Copyright 2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.inmemoryaccess;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Stream;
+import uk.theretiredprogrammer.nbpcglibrary.api.Criteria;
+
+/**
+ * A secondary index on a column of an in-memory table: the primary keys of
+ * the rows holding each (non null) column value.
+ *
+ * A hash index supports equality lookups; a sorted index also supports range
+ * lookups and iteration in column value order (so it also holds the primary
+ * keys of the rows with a null column value).
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ */
+class ColumnIndex {
+
+    private final String column;
+    private final ConcurrentMap<Object, Set<Object>> entries;
+    private final boolean sorted;
+    private final Set<Object> nulls = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Constructor.
+     *
+     * @param column the indexed column
+     * @param sorted true if a sorted index is required
+     */
+    ColumnIndex(String column, boolean sorted) {
+        this.column = column;
+        this.sorted = sorted;
+        entries = sorted ? new ConcurrentSkipListMap<>(Criteria::compare) : new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Get the indexed column.
+     *
+     * @return the column name
+     */
+    String getColumn() {
+        return column;
+    }
+
+    /**
+     * Test if this is a sorted index.
+     *
+     * @return true if sorted
+     */
+    boolean isSorted() {
+        return sorted;
+    }
+
+    /**
+     * Add a row to the index.
+     *
+     * @param value the row's column value
+     * @param pkey the row's primary key
+     */
+    void add(Object value, Object pkey) {
+        if (value != null) {
+            entries.computeIfAbsent(key(value), (k) -> ConcurrentHashMap.newKeySet()).add(pkey);
+        } else if (sorted) {
+            nulls.add(pkey);
+        }
+    }
+
+    /**
+     * Remove a row from the index.
+     *
+     * @param value the row's column value
+     * @param pkey the row's primary key
+     */
+    void remove(Object value, Object pkey) {
+        if (value != null) {
+            entries.computeIfPresent(key(value), (k, pkeys) -> {
+                pkeys.remove(pkey);
+                return pkeys.isEmpty() ? null : pkeys;
+            });
+        } else if (sorted) {
+            nulls.remove(pkey);
+        }
+    }
+
+    /**
+     * Get the primary keys of the rows with a column value.
+     *
+     * @param value the column value
+     * @return the primary keys
+     */
+    Set<Object> get(Object value) {
+        if (value == null) {
+            return Collections.emptySet();
+        }
+        Set<Object> pkeys = entries.get(key(value));
+        return pkeys == null ? Collections.emptySet() : pkeys;
+    }
+
+    /**
+     * Get the primary keys of the rows with any of a set of column values.
+     *
+     * @param values the column values
+     * @return the primary keys
+     */
+    Set<Object> get(Collection<?> values) {
+        Set<Object> pkeys = new HashSet<>();
+        values.stream().forEach((value) -> {
+            pkeys.addAll(get(value));
+        });
+        return pkeys;
+    }
+
+    /**
+     * Get the primary keys of the rows with a column value within a range
+     * (sorted indexes only).
+     *
+     * @param from the lower limit (or null if no lower limit)
+     * @param frominclusive true if the lower limit is included
+     * @param to the upper limit (or null if no upper limit)
+     * @param toinclusive true if the upper limit is included
+     * @return the primary keys
+     */
+    Set<Object> range(Object from, boolean frominclusive, Object to, boolean toinclusive) {
+        NavigableMap<Object, Set<Object>> map = (NavigableMap<Object, Set<Object>>) entries;
+        if (from != null) {
+            map = map.tailMap(from, frominclusive);
+        }
+        if (to != null) {
+            map = map.headMap(to, toinclusive);
+        }
+        Set<Object> pkeys = new HashSet<>();
+        map.values().stream().forEach((s) -> {
+            pkeys.addAll(s);
+        });
+        return pkeys;
+    }
+
+    /**
+     * Get the primary keys of the rows which follow a row, in column value
+     * order (sorted indexes only). Rows with a null column value are first,
+     * and rows with equal column values are in primary key order.
+     *
+     * @param value the column value of the row to follow (ignored if pkey is
+     * null)
+     * @param pkey the primary key of the row to follow, or null to start at the
+     * first row
+     * @return the primary keys
+     */
+    Stream<Object> keys(Object value, Object pkey) {
+        NavigableMap<Object, Set<Object>> map = (NavigableMap<Object, Set<Object>>) entries;
+        if (pkey == null) {
+            return Stream.concat(sortedKeys(nulls, null), map.values().stream().flatMap((s) -> sortedKeys(s, null)));
+        }
+        if (value == null) {
+            return Stream.concat(sortedKeys(nulls, pkey), map.values().stream().flatMap((s) -> sortedKeys(s, null)));
+        }
+        return map.tailMap(value, true).entrySet().stream().flatMap((e)
+                -> sortedKeys(e.getValue(), Criteria.compare(e.getKey(), value) == 0 ? pkey : null));
+    }
+
+    // the primary keys (following a primary key, if not null) in primary key order
+    private Stream<Object> sortedKeys(Set<Object> pkeys, Object after) {
+        return pkeys.stream().filter((pkey) -> after == null || Criteria.compare(pkey, after) > 0).sorted(Criteria::compare);
+    }
+
+    // hash keys are normalised so that numbers of different classes but equal value match
+    private Object key(Object value) {
+        if (!sorted && (value instanceof Integer || value instanceof Short || value instanceof Byte)) {
+            return ((Number) value).longValue();
+        }
+        return value;
+    }
+
+    /**
+     * Get the number of distinct column values in the index.
+     *
+     * @return the number of values
+     */
+    int size() {
+        return entries.size();
+    }
+
+    @Override
+    public String toString() {
+        return (sorted ? "SortedIndex[" : "HashIndex[") + column + "," + entries.size() + " values]";
+    }
+
+    /**
+     * Build the index entries for a set of rows.
+     *
+     * @param rows the rows, by primary key
+     */
+    void build(Map<Object, ? extends Map<String, Object>> rows) {
+        rows.entrySet().stream().forEach((e) -> {
+            add(e.getValue().get(column), e.getKey());
+        });
+    }
+}
@@ -0,0 +1,442 @@
+/*
+ * Copyright 2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.inmemoryaccess;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.stream.Stream;
+import uk.theretiredprogrammer.nbpcglibrary.api.BatchResult;
+import uk.theretiredprogrammer.nbpcglibrary.api.Criteria;
+import uk.theretiredprogrammer.nbpcglibrary.api.EntityFields;
+import uk.theretiredprogrammer.nbpcglibrary.api.EntityPersistenceProvider;
+import uk.theretiredprogrammer.nbpcglibrary.api.LogicException;
+import uk.theretiredprogrammer.nbpcglibrary.api.Page;
+import uk.theretiredprogrammer.nbpcglibrary.api.PageKey;
+import uk.theretiredprogrammer.nbpcglibrary.api.PersistenceUnitProvider;
+import uk.theretiredprogrammer.nbpcglibrary.common.LogBuilder;
+
+/**
+ * EntityPersistenceProvider Class for in-memory storage.
+ *
+ * Equality, IN and range criteria on indexed columns (and AND / OR
+ * combinations of them) are resolved using the table's secondary indexes;
+ * other criteria scan the table. The index column of an ordered table always
+ * has a sorted index, and entities are returned (and paged) by iterating
+ * that index, so ordered reads and pages are not sorted. The updatedon column is also sorted indexed, so change queries (see
+ * getChangedSince()) only visit the changed entities.
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ * @param <K> the Primary Key class
+ */
+public abstract class InMemoryEntityPersistenceProvider<K> implements EntityPersistenceProvider<K> {
+
+    private InMemoryPersistenceUnitProvider pup;
+    private InMemoryTable table;
+    private String idx;
+    private Comparator<EntityFields> idxorder;
+
+    @Override
+    public void init(String tablename, Properties properties, PersistenceUnitProvider pup) throws IOException {
+        this.idx = null;
+        this.pup = (InMemoryPersistenceUnitProvider) pup;
+        table = this.pup.getTable(tablename, (ef) -> getPK(ef));
+        table.addIndex("updatedon", true); // for getChangedSince()
+        idxorder = null;
+    }
+
+    @Override
+    public void init(String tablename, String idx, Properties properties, PersistenceUnitProvider pup) throws IOException {
+        init(tablename, properties, pup);
+        this.idx = idx;
+        if (idx != null) {
+            table.addIdxColumn(idx);
+            idxorder = (r1, r2) -> {
+                int c = compareValues(r1.get(idx), r2.get(idx));
+                return c != 0 ? c : compareValues(getPK(r1), getPK(r2));
+            };
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            pup.snapshot(table);
+        } catch (IOException ex) {
+            throw new LogicException("IO failure when snapshotting table");
+        }
+    }
+
+    @Override
+    public String instanceDescription() {
+        return LogBuilder.instanceDescription(this, pup.instanceDescription() + "," + table.getName());
+    }
+
+    @Override
+    public final EntityFields get(K pkey) {
+        LogBuilder.writeLog("nbpcglib.inMemoryPersistenceUnitProvider", this, "get", pkey);
+        EntityFields ef = table.get(pkey);
+        return ef == null ? null : copy(ef);
+    }
+
+    @Override
+    public final List<EntityFields> get(Collection<K> pkeys) {
+        LogBuilder.writeLog("nbpcglib.inMemoryPersistenceUnitProvider", this, "get", pkeys);
+        List<EntityFields> efs = new ArrayList<>(pkeys.size());
+        pkeys.stream().forEach((pkey) -> {
+            EntityFields ef = table.get(pkey);
+            efs.add(ef == null ? null : copy(ef));
+        });
+        return efs;
+    }
+
+    @Override
+    public final List<EntityFields> get() {
+        return get(Criteria.all());
+    }
+
+    @Override
+    public final List<K> find() {
+        return find(Criteria.all());
+    }
+
+    @Override
+    public final List<EntityFields> get(String parametername, Object parametervalue) {
+        return get(eq(parametername, parametervalue));
+    }
+
+    @Override
+    public final List<K> find(String parametername, Object parametervalue) {
+        return find(eq(parametername, parametervalue));
+    }
+
+    @Override
+    public final EntityFields getOne(String parametername, Object parametervalue) {
+        List<EntityFields> get = get(parametername, parametervalue);
+        if (get.size() != 1) {
+            throw new LogicException("Single row expected");
+        }
+        return get.get(0);
+    }
+
+    @Override
+    public final K findOne(String parametername, Object parametervalue) {
+        List<K> find = find(parametername, parametervalue);
+        if (find.size() != 1) {
+            throw new LogicException("Single row expected");
+        }
+        return find.get(0);
+    }
+
+    @Override
+    public final List<EntityFields> get(Criteria criteria) {
+        List<EntityFields> efs = new ArrayList<>();
+        select(criteria).stream().forEach((ef) -> {
+            efs.add(copy(ef));
+        });
+        return efs;
+    }
+
+    @Override
+    public final List<K> find(Criteria criteria) {
+        List<K> pks = new ArrayList<>();
+        select(criteria).stream().forEach((ef) -> {
+            pks.add(getPK(ef));
+        });
+        return pks;
+    }
+
+    @Override
+    public final int count(Criteria criteria) {
+        if (criteria.isAll()) {
+            return table.size();
+        }
+        return (int) filter(criteria).count();
+    }
+
+    @Override
+    public final boolean exists(Criteria criteria) {
+        if (criteria.isAll()) {
+            return table.size() > 0;
+        }
+        return filter(criteria).findAny().isPresent();
+    }
+
+    @Override
+    public final List<EntityFields> getProjection(List<String> columns) {
+        List<EntityFields> efs = new ArrayList<>();
+        select(Criteria.all()).stream().forEach((ef) -> {
+            efs.add(ef.project(columns));
+        });
+        return efs;
+    }
+
+    @Override
+    public final List<EntityFields> getProjection(List<String> columns, String parametername, Object parametervalue) {
+        List<EntityFields> efs = new ArrayList<>();
+        select(eq(parametername, parametervalue)).stream().forEach((ef) -> {
+            efs.add(ef.project(columns));
+        });
+        return efs;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The primary key (and index field values) must be Comparable.
+     */
+    @Override
+    public final Page<K> getPage(PageKey<K> after, int limit) {
+        return page(Criteria.all(), after, limit);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The primary key (and index field values) must be Comparable.
+     */
+    @Override
+    public final Page<K> getPage(String parametername, Object parametervalue, PageKey<K> after, int limit) {
+        return page(eq(parametername, parametervalue), after, limit);
+    }
+
+    private Page<K> page(Criteria criteria, PageKey<K> after, int limit) {
+        Page.checkLimit(limit);
+        if (idx != null) {
+            // the rows of an ordered table are already in page order
+            Stream<EntityFields> ordered = ordered(criteria, after);
+            List<EntityFields> selected = new ArrayList<>(limit + 1);
+            ordered.limit(limit + 1).forEach((ef) -> {
+                selected.add(ef);
+            });
+            boolean more = selected.size() > limit;
+            List<EntityFields> rows = new ArrayList<>(Math.min(limit, selected.size()));
+            selected.stream().limit(limit).forEach((ef) -> {
+                rows.add(copy(ef));
+            });
+            return new Page<>(rows, more ? new PageKey<>(rows.get(limit - 1).get(idx), getPK(rows.get(limit - 1))) : null);
+        }
+        Comparator<PageKey<K>> order = (k1, k2) -> {
+            int c = compareValues(k1.getIdxValue(), k2.getIdxValue());
+            return c != 0 ? c : compareValues(k1.getPK(), k2.getPK());
+        };
+        List<PageKey<K>> keys = new ArrayList<>();
+        filter(criteria).forEach((ef) -> {
+            PageKey<K> key = new PageKey<>(idx == null ? null : ef.get(idx), getPK(ef));
+            if (after == null || order.compare(key, after) > 0) {
+                keys.add(key);
+            }
+        });
+        keys.sort(order);
+        boolean more = keys.size() > limit;
+        List<EntityFields> rows = new ArrayList<>(Math.min(limit, keys.size()));
+        keys.stream().limit(limit).forEach((key) -> {
+            rows.add(copy(table.get(key.getPK())));
+        });
+        return new Page<>(rows, more ? keys.get(limit - 1) : null);
+    }
+
+    // as in SQL, an equality test against null selects nothing
+    private Criteria eq(String parametername, Object parametervalue) {
+        return parametervalue == null ? Criteria.in(parametername, Collections.emptyList()) : Criteria.eq(parametername, parametervalue);
+    }
+
+    // the (uncopied) rows selected by the criteria, in criteria order (or index order)
+    private List<EntityFields> select(Criteria criteria) {
+        List<EntityFields> selected = new ArrayList<>();
+        if (criteria.getComparator() == null && idx != null) {
+            ordered(criteria, null).forEach((ef) -> {
+                selected.add(ef);
+            });
+            return selected;
+        }
+        filter(criteria).forEach((ef) -> {
+            selected.add(ef);
+        });
+        if (criteria.getComparator() != null) {
+            selected.sort(criteria.getComparator()::compare);
+        }
+        return selected;
+    }
+
+    // the (uncopied) rows of an ordered table selected by the criteria which
+    // follow a page key (if not null), in index order - the idx index is
+    // iterated unless a (smaller) set of candidates can be found from the
+    // other indexes, in which case only the candidates are sorted
+    private Stream<EntityFields> ordered(Criteria criteria, PageKey<K> after) {
+        Set<Object> candidates = criteria.isAll() ? null : candidates(criteria);
+        if (candidates == null) {
+            Stream<EntityFields> rows = table.getIndex(idx)
+                    .keys(after == null ? null : after.getIdxValue(), after == null ? null : after.getPK())
+                    .map((pkey) -> table.get(pkey)).filter((ef) -> ef != null);
+            if (criteria.isAll()) {
+                return rows;
+            }
+            LogBuilder.writeLog("nbpcglib.inMemoryPersistenceUnitProvider", this, "scan", criteria);
+            return rows.filter((ef) -> criteria.test(ef));
+        }
+        return candidates.stream().map((pkey) -> table.get(pkey))
+                .filter((ef) -> ef != null && criteria.test(ef) && (after == null || follows(ef, after)))
+                .sorted(idxorder);
+    }
+
+    private boolean follows(EntityFields ef, PageKey<K> after) {
+        int c = compareValues(ef.get(idx), after.getIdxValue());
+        return c != 0 ? c > 0 : compareValues(getPK(ef), after.getPK()) > 0;
+    }
+
+    // the (uncopied) rows selected by the criteria, using indexes where possible
+    private Stream<EntityFields> filter(Criteria criteria) {
+        if (criteria.isAll()) {
+            return table.getRows().stream();
+        }
+        Set<Object> candidates = candidates(criteria);
+        if (candidates == null) {
+            LogBuilder.writeLog("nbpcglib.inMemoryPersistenceUnitProvider", this, "scan", criteria);
+            return table.getRows().stream().filter((ef) -> criteria.test(ef));
+        }
+        return candidates.stream().map((pkey) -> table.get(pkey)).filter((ef) -> ef != null && criteria.test(ef));
+    }
+
+    // the primary keys of a superset of the rows selected by the criteria (or null if a scan is required)
+    private Set<Object> candidates(Criteria criteria) {
+        ColumnIndex index = table.getIndex(criteria.getField());
+        switch (criteria.getOperator()) {
+            case EQ:
+                return index == null ? null : index.get(criteria.getValue());
+            case IN:
+                return index == null ? null : index.get(criteria.getValues());
+            case LT:
+            case LE:
+                return index == null || !index.isSorted() ? null
+                        : index.range(null, false, criteria.getValue(), criteria.getOperator() == Criteria.Operator.LE);
+            case GT:
+            case GE:
+                return index == null || !index.isSorted() ? null
+                        : index.range(criteria.getValue(), criteria.getOperator() == Criteria.Operator.GE, null, false);
+            case AND:
+                Set<Object> smallest = null;
+                for (Criteria term : criteria.getTerms()) {
+                    Set<Object> termcandidates = candidates(term);
+                    if (termcandidates != null && (smallest == null || termcandidates.size() < smallest.size())) {
+                        smallest = termcandidates;
+                    }
+                }
+                return smallest;
+            case OR:
+                Set<Object> union = new HashSet<>();
+                for (Criteria term : criteria.getTerms()) {
+                    Set<Object> termcandidates = candidates(term);
+                    if (termcandidates == null) {
+                        return null;
+                    }
+                    union.addAll(termcandidates);
+                }
+                return union;
+            default:
+                return null;
+        }
+    }
+
+    private int compareValues(Object v1, Object v2) {
+        if (v1 == null) {
+            return v2 == null ? 0 : -1;
+        }
+        return v2 == null ? 1 : Criteria.compare(v1, v2);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Index values are allocated directly from the table's index sequence.
+     */
+    @Override
+    public final int findNextIdx() {
+        return table.reserveIdx(1);
+    }
+
+    @Override
+    public final int reserveIdx(int blocksize) {
+        if (blocksize < 1) {
+            throw new LogicException("reserveIdx() - blocksize must be at least 1");
+        }
+        return table.reserveIdx(blocksize);
+    }
+
+    @Override
+    public final EntityFields insert(EntityFields values) {
+        LogBuilder.writeLog("nbpcglib.inMemoryPersistenceUnitProvider", this, "insert", values);
+        EntityFields entity = new EntityFields();
+        entity.putAll(values);
+        autoGenPrimaryKeyHook(entity);
+        addTimestampInfo(entity);
+        table.insert(getPK(entity), entity);
+        return copy(entity);
+    }
+
+    /**
+     * Action to create an auto generated primary key
+     *
+     * @param ef the entity fields into which the new primary key is added
+     */
+    protected void autoGenPrimaryKeyAction(EntityFields ef) {
+        ef.put("id", table.nextId());
+    }
+
+    @Override
+    public final EntityFields update(K pkey, EntityFields diffs) {
+        LogBuilder.writeLog("nbpcglib.inMemoryPersistenceUnitProvider", this, "update", pkey, diffs);
+        return copy(table.update(pkey, diffs, this::updateTimestampInfo));
+    }
+
+    @Override
+    public final void delete(K pkey) {
+        LogBuilder.writeLog("nbpcglib.inMemoryPersistenceUnitProvider", this, "delete", pkey);
+        table.delete(pkey);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * A missing entity is reported as a failure of that entity only.
+     */
+    @Override
+    public final BatchResult delete(List<K> pkeys) {
+        LogBuilder.writeLog("nbpcglib.inMemoryPersistenceUnitProvider", this, "delete(batch)", pkeys.size());
+        BatchResult result = new BatchResult(pkeys.size());
+        for (int i = 0; i < pkeys.size(); i++) {
+            if (table.get(pkeys.get(i)) == null) {
+                result.setFailure(i, "Single row expected");
+            } else {
+                table.delete(pkeys.get(i));
+                result.setSuccess(i, null);
+            }
+        }
+        return result;
+    }
+
+    private EntityFields copy(EntityFields ef) {
+        EntityFields efc = new EntityFields(ef.getSchema());
+        efc.putAll(ef);
+        return efc;
+    }
+}
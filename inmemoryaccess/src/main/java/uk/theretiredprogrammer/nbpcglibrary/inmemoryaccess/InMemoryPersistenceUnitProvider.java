@@ -0,0 +1,223 @@
+/*
+ * Copyright 2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.inmemoryaccess;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonReader;
+import javax.json.JsonValue;
+import javax.json.JsonWriter;
+import javax.json.stream.JsonParsingException;
+import uk.theretiredprogrammer.nbpcglibrary.api.EntityFields;
+import uk.theretiredprogrammer.nbpcglibrary.api.LogicException;
+import uk.theretiredprogrammer.nbpcglibrary.api.PersistenceUnitProvider;
+import uk.theretiredprogrammer.nbpcglibrary.common.LogBuilder;
+import uk.theretiredprogrammer.nbpcglibrary.json.JsonConversionException;
+import uk.theretiredprogrammer.nbpcglibrary.json.JsonUtil;
+
+/**
+ * Class implementing in-memory storage of tables.
+ *
+ * Properties used:
+ *
+ * connection - the folder holding table snapshots (optional; if not defined
+ * the tables are not persisted). Snapshots use the local-json table format,
+ * so a local-json database folder can be loaded.
+ *
+ * indexes - a comma separated list of hash indexed columns, each as
+ * table.column
+ *
+ * sortedindexes - a comma separated list of sorted indexed columns, each as
+ * table.column
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ */
+public class InMemoryPersistenceUnitProvider implements PersistenceUnitProvider {
+
+    private final String snapshotpath;
+    private final File snapshotfolder;
+    private final boolean operational;
+    private final Map<String, InMemoryTable> tables = new ConcurrentHashMap<>();
+    private final Map<String, List<String>> hashindexes;
+    private final Map<String, List<String>> sortedindexes;
+
+    /**
+     * Constructor.
+     *
+     * @param p the properties for this database
+     */
+    public InMemoryPersistenceUnitProvider(Properties p) {
+        snapshotpath = p.getProperty("connection");
+        snapshotfolder = snapshotpath == null ? null : new File(snapshotpath);
+        operational = snapshotfolder == null || snapshotfolder.isDirectory();
+        hashindexes = parseIndexes(p.getProperty("indexes", ""));
+        sortedindexes = parseIndexes(p.getProperty("sortedindexes", ""));
+    }
+
+    private Map<String, List<String>> parseIndexes(String declarations) {
+        Map<String, List<String>> declared = new HashMap<>();
+        for (String declaration : declarations.split(",")) {
+            String d = declaration.trim();
+            if (!d.isEmpty()) {
+                int dot = d.indexOf('.');
+                if (dot < 1 || dot == d.length() - 1) {
+                    throw new LogicException("InMemoryPersistenceUnitProvider - illegal index declaration (" + d + ")");
+                }
+                declared.computeIfAbsent(d.substring(0, dot), (t) -> new ArrayList<>()).add(d.substring(dot + 1));
+            }
+        }
+        return declared;
+    }
+
+    /**
+     * Get a table, creating it (from its snapshot if one exists) on first use.
+     *
+     * @param tablename the table name
+     * @param pkfunction the function to extract the primary key from a row
+     * @return the table
+     * @throws IOException if problems reading the snapshot
+     */
+    synchronized InMemoryTable getTable(String tablename, Function<EntityFields, Object> pkfunction) throws IOException {
+        InMemoryTable table = tables.get(tablename);
+        if (table == null) {
+            table = load(tablename, pkfunction);
+            for (String column : hashindexes.getOrDefault(tablename, Collections.emptyList())) {
+                table.addIndex(column, false);
+            }
+            for (String column : sortedindexes.getOrDefault(tablename, Collections.emptyList())) {
+                table.addIndex(column, true);
+            }
+            tables.put(tablename, table);
+        }
+        return table;
+    }
+
+    private InMemoryTable load(String tablename, Function<EntityFields, Object> pkfunction) throws IOException {
+        File snapshot = snapshotfolder == null ? null : new File(snapshotfolder, tablename);
+        if (snapshot == null || !snapshot.isFile()) {
+            return new InMemoryTable(tablename, 1, 0);
+        }
+        LogBuilder.writeLog("nbpcglib.inMemoryPersistenceUnitProvider", this, "load", tablename);
+        JsonObject jo;
+        try {
+            try (JsonReader jsonReader = Json.createReader(new FileReader(snapshot))) {
+                jo = jsonReader.readObject();
+            }
+        } catch (JsonParsingException ex) {
+            throw new IOException("Json Parsing Exception - " + ex.getMessage());
+        }
+        try {
+            InMemoryTable table = new InMemoryTable(tablename,
+                    JsonUtil.getObjectKeyIntegerValue(jo, "nextid"),
+                    JsonUtil.getObjectKeyIntegerValue(jo, "nextidx"));
+            for (JsonValue record : JsonUtil.getObjectKeyArrayValue(jo, "entities")) {
+                EntityFields row = new EntityFields();
+                for (Map.Entry<String, JsonValue> field : ((JsonObject) record).entrySet()) {
+                    row.put(field.getKey(), JsonUtil.getValue(field.getValue()));
+                }
+                table.insert(pkfunction.apply(row), row);
+            }
+            table.takeDirty();
+            return table;
+        } catch (JsonConversionException ex) {
+            throw new IOException("Illegal Json Format data in snapshot - " + tablename);
+        }
+    }
+
+    /**
+     * Snapshot a table to the snapshot folder, if the table has changed. The
+     * snapshot is written to a temporary file which then replaces the
+     * previous snapshot, so a failure never leaves a partial snapshot.
+     *
+     * @param table the table
+     * @throws IOException if problems writing the snapshot
+     */
+    void snapshot(InMemoryTable table) throws IOException {
+        if (snapshotfolder == null || !table.takeDirty()) {
+            return;
+        }
+        LogBuilder.writeLog("nbpcglib.inMemoryPersistenceUnitProvider", this, "snapshot", table.getName());
+        try {
+            JsonObjectBuilder job = Json.createObjectBuilder();
+            job.add("name", table.getName());
+            job.add("nextid", table.peekNextId());
+            job.add("nextidx", table.peekNextIdx());
+            JsonArrayBuilder rab = Json.createArrayBuilder();
+            for (EntityFields row : table.getRows()) {
+                JsonObjectBuilder rob = Json.createObjectBuilder();
+                for (Map.Entry<String, Object> field : row.entrySet()) {
+                    JsonUtil.insertValue(rob, field.getKey(), field.getValue());
+                }
+                rab.add(rob.build());
+            }
+            job.add("entities", rab.build());
+            File tmp = new File(snapshotfolder, table.getName() + ".tmp");
+            try (JsonWriter jsonWriter = Json.createWriter(new FileWriter(tmp))) {
+                jsonWriter.writeObject(job.build());
+            }
+            Files.move(tmp.toPath(), new File(snapshotfolder, table.getName()).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (JsonConversionException ex) {
+            table.setDirty();
+            throw new LogicException("Illegal Java Object presented as field value");
+        } catch (IOException ex) {
+            table.setDirty();
+            throw ex;
+        }
+    }
+
+    /**
+     * Snapshot all changed tables to the snapshot folder.
+     *
+     * @throws IOException if problems writing a snapshot
+     */
+    public void snapshot() throws IOException {
+        for (InMemoryTable table : tables.values()) {
+            snapshot(table);
+        }
+    }
+
+    @Override
+    public boolean isOperational() {
+        return operational;
+    }
+
+    @Override
+    public String getName() {
+        return "in-memory";
+    }
+
+    @Override
+    public String instanceDescription() {
+        return LogBuilder.instanceDescription(this, snapshotpath == null ? "no snapshots" : snapshotpath);
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.inmemoryaccess;
+
+import java.util.Properties;
+import org.openide.util.lookup.ServiceProvider;
+import uk.theretiredprogrammer.nbpcglibrary.api.PersistenceUnitProviderFactory;
+
+/**
+ * A Factory to create PersistenceUnitProviders for in-memory databases.
+ * 
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ */
+@ServiceProvider(service = PersistenceUnitProviderFactory.class)
+public class InMemoryPersistenceUnitProviderFactory implements PersistenceUnitProviderFactory<InMemoryPersistenceUnitProvider> {
+
+    @Override
+    public String getType() {
+        return "in-memory";
+    }
+
+    @Override
+    public InMemoryPersistenceUnitProvider createPersistenceUnitProvider(Properties p) {
+        return new InMemoryPersistenceUnitProvider(p);
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright 2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.inmemoryaccess;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import uk.theretiredprogrammer.nbpcglibrary.api.EntityFields;
+import uk.theretiredprogrammer.nbpcglibrary.api.LogicException;
+
+/**
+ * An in-memory table: the rows (by primary key), the table's secondary
+ * indexes and its id and index sequences.
+ *
+ * Rows are never changed once stored - an update replaces the row with an
+ * updated copy - so readers can use the rows without locking. Changes are
+ * serialised, and maintain the secondary indexes.
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ */
+class InMemoryTable {
+
+    private final String name;
+    private final Map<Object, EntityFields> rows = new ConcurrentHashMap<>();
+    private final Map<String, ColumnIndex> indexes = new ConcurrentHashMap<>();
+    private final Set<String> idxcolumns = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger nextid;
+    private final AtomicInteger nextidx;
+    private volatile boolean dirty = false;
+
+    /**
+     * Constructor.
+     *
+     * @param name the table name
+     * @param nextid the next auto generated primary key
+     * @param nextidx the next index value
+     */
+    InMemoryTable(String name, int nextid, int nextidx) {
+        this.name = name;
+        this.nextid = new AtomicInteger(nextid);
+        this.nextidx = new AtomicInteger(nextidx);
+    }
+
+    /**
+     * Get the table name.
+     *
+     * @return the table name
+     */
+    String getName() {
+        return name;
+    }
+
+    /**
+     * Get the rows of the table.
+     *
+     * @return the rows (a live view)
+     */
+    Collection<EntityFields> getRows() {
+        return rows.values();
+    }
+
+    /**
+     * Get the primary keys of the table.
+     *
+     * @return the primary keys
+     */
+    Set<Object> getKeys() {
+        return rows.keySet();
+    }
+
+    /**
+     * Get a row.
+     *
+     * @param pkey the primary key
+     * @return the row (or null if no such row)
+     */
+    EntityFields get(Object pkey) {
+        return rows.get(pkey);
+    }
+
+    /**
+     * Get the number of rows in the table.
+     *
+     * @return the number of rows
+     */
+    int size() {
+        return rows.size();
+    }
+
+    /**
+     * Get the index of a column.
+     *
+     * @param column the column name
+     * @return the index (or null if column is not indexed)
+     */
+    ColumnIndex getIndex(String column) {
+        return column == null ? null : indexes.get(column);
+    }
+
+    /**
+     * Declare an index on a column. A sorted index replaces an existing hash
+     * index, and is also used for equality lookups.
+     *
+     * @param column the column name
+     * @param sorted true if a sorted index is required
+     */
+    synchronized void addIndex(String column, boolean sorted) {
+        ColumnIndex existing = indexes.get(column);
+        if (existing == null || (sorted && !existing.isSorted())) {
+            ColumnIndex index = new ColumnIndex(column, sorted);
+            index.build(rows);
+            indexes.put(column, index);
+        }
+    }
+
+    /**
+     * Declare an index column (the idx column of an ordered table). The
+     * column is sorted indexed, and the index sequence is kept above any
+     * value set in the column. The sequence is shared by all the index
+     * columns of the table.
+     *
+     * @param column the column name
+     */
+    synchronized void addIdxColumn(String column) {
+        addIndex(column, true);
+        if (idxcolumns.add(column)) {
+            rows.values().stream().forEach((row) -> {
+                advanceNextIdx(row, column);
+            });
+        }
+    }
+
+    /**
+     * Insert a row.
+     *
+     * @param pkey the primary key
+     * @param row the row
+     */
+    synchronized void insert(Object pkey, EntityFields row) {
+        if (rows.putIfAbsent(pkey, row) != null) {
+            throw new LogicException("InMemoryTable " + name + " - duplicate primary key (" + pkey + ")");
+        }
+        indexes.values().stream().forEach((index) -> {
+            index.add(row.get(index.getColumn()), pkey);
+        });
+        advanceNextIdx(row);
+        dirty = true;
+    }
+
+    /**
+     * Update a row - the row is replaced by an updated copy.
+     *
+     * @param pkey the primary key
+     * @param diffs the changed column values
+     * @param updater an action applied to the copy after the changes are
+     * made (eg to add timestamp information)
+     * @return the updated row
+     */
+    synchronized EntityFields update(Object pkey, EntityFields diffs, Consumer<EntityFields> updater) {
+        EntityFields old = rows.get(pkey);
+        if (old == null) {
+            throw new LogicException("Single row expected");
+        }
+        EntityFields row = new EntityFields(old.getSchema());
+        row.putAll(old);
+        row.putAll(diffs);
+        updater.accept(row);
+        rows.put(pkey, row);
+        indexes.values().stream().forEach((index) -> {
+            Object oldvalue = old.get(index.getColumn());
+            Object newvalue = row.get(index.getColumn());
+            if (oldvalue == null ? newvalue != null : !oldvalue.equals(newvalue)) {
+                index.remove(oldvalue, pkey);
+                index.add(newvalue, pkey);
+            }
+        });
+        advanceNextIdx(row);
+        dirty = true;
+        return row;
+    }
+
+    /**
+     * Delete a row.
+     *
+     * @param pkey the primary key
+     */
+    synchronized void delete(Object pkey) {
+        EntityFields old = rows.remove(pkey);
+        if (old != null) {
+            indexes.values().stream().forEach((index) -> {
+                index.remove(old.get(index.getColumn()), pkey);
+            });
+            dirty = true;
+        }
+    }
+
+    // keep the index sequence above any explicitly set index value
+    private void advanceNextIdx(EntityFields row) {
+        idxcolumns.stream().forEach((column) -> {
+            advanceNextIdx(row, column);
+        });
+    }
+
+    private void advanceNextIdx(EntityFields row, String column) {
+        Object idx = row.get(column);
+        if (idx instanceof Number) {
+            int next = ((Number) idx).intValue() + 1;
+            nextidx.accumulateAndGet(next, Math::max);
+        }
+    }
+
+    /**
+     * Allocate the next auto generated primary key.
+     *
+     * @return the primary key
+     */
+    int nextId() {
+        dirty = true;
+        return nextid.getAndIncrement();
+    }
+
+    /**
+     * Reserve a block of index values.
+     *
+     * @param blocksize the number of values to reserve
+     * @return the first reserved value
+     */
+    int reserveIdx(int blocksize) {
+        dirty = true;
+        return nextidx.getAndAdd(blocksize);
+    }
+
+    /**
+     * Get the next auto generated primary key (without allocating it).
+     *
+     * @return the next primary key
+     */
+    int peekNextId() {
+        return nextid.get();
+    }
+
+    /**
+     * Get the next index value (without allocating it).
+     *
+     * @return the next index value
+     */
+    int peekNextIdx() {
+        return nextidx.get();
+    }
+
+    /**
+     * Test if the table has been changed since it was last snapshotted, and
+     * mark it as unchanged.
+     *
+     * @return true if changed
+     */
+    synchronized boolean takeDirty() {
+        boolean wasdirty = dirty;
+        dirty = false;
+        return wasdirty;
+    }
+
+    /**
+     * Mark the table as changed (eg if a snapshot fails).
+     */
+    void setDirty() {
+        dirty = true;
+    }
+}
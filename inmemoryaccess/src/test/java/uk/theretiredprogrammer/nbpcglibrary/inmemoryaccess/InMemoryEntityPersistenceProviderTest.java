@@ -0,0 +1,283 @@
+/*
+ * Copyright 2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.inmemoryaccess;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Collectors;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import uk.theretiredprogrammer.nbpcglibrary.api.AsyncEntityPersistenceProvider;
+import uk.theretiredprogrammer.nbpcglibrary.api.Criteria;
+import uk.theretiredprogrammer.nbpcglibrary.api.EntityFields;
+import uk.theretiredprogrammer.nbpcglibrary.api.EntityPersistenceProvider;
+import uk.theretiredprogrammer.nbpcglibrary.api.EntityPersistenceProviderManager;
+import uk.theretiredprogrammer.nbpcglibrary.api.LogicException;
+import uk.theretiredprogrammer.nbpcglibrary.api.Page;
+
+/**
+ * The test package for the InMemoryEntityPersistenceProvider
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ */
+public class InMemoryEntityPersistenceProviderTest {
+
+    private static final int ROWS = 100;
+    private static File snapshotfolder;
+    private static EntityPersistenceProvider<Integer> instance;
+
+    /**
+     * Constructor
+     */
+    public InMemoryEntityPersistenceProviderTest() {
+    }
+
+    /**
+     * Setup class - create an indexed table
+     *
+     * @throws IOException if problems
+     */
+    @BeforeClass
+    public static void setUpClass() throws IOException {
+        snapshotfolder = Files.createTempDirectory("inmemorytest").toFile();
+        EntityPersistenceProviderManager.init(properties("inmemorytest"));
+        instance = EntityPersistenceProviderManager.getEntityPersistenceProvider("inmemorytest", "TestTable", "idx");
+        for (int i = 0; i < ROWS; i++) {
+            EntityFields ef = new EntityFields();
+            ef.put("application", "app" + (i % 10));
+            ef.put("priority", i);
+            ef.put("category", i % 3 == 0 ? null : "cat" + (i % 3));
+            ef.put("idx", ROWS - i);
+            instance.insert(ef);
+        }
+    }
+
+    private static Properties properties(String key) {
+        Properties p = new Properties();
+        p.setProperty("key", key);
+        p.setProperty("connection", snapshotfolder.getPath());
+        p.setProperty("entitypersistenceprovidertype", "in-memory");
+        p.setProperty("persistenceunitprovidertype", "in-memory");
+        p.setProperty("indexes", "TestTable.application,TestTable.category");
+        p.setProperty("sortedindexes", "TestTable.priority");
+        return p;
+    }
+
+    /**
+     * Test of insert and get methods.
+     */
+    @Test
+    public void testInsertGet() {
+        System.out.println("insert/get");
+        EntityFields ef = new EntityFields();
+        ef.put("application", "inserted");
+        EntityFields inserted = instance.insert(ef);
+        int id = (Integer) inserted.get("id");
+        EntityFields result = instance.get(id);
+        assertEquals("inserted", result.get("application"));
+        assertNotNull(result.get("createdon"));
+        result.put("application", "changed by caller");
+        assertEquals("inserted", instance.get(id).get("application"));
+        assertEquals(id, (int) instance.findOne("application", "inserted"));
+        instance.delete(id);
+        assertNull(instance.get(id));
+        assertEquals(0, instance.find("application", "inserted").size());
+    }
+
+    /**
+     * Test that indexed queries select the same entities as a scan.
+     */
+    @Test
+    public void testIndexedQueries() {
+        System.out.println("indexed queries");
+        List<Criteria> queries = Arrays.asList(
+                Criteria.eq("application", "app3"),
+                Criteria.eq("priority", 42L),
+                Criteria.in("application", Arrays.asList("app1", "app2", "nothing")),
+                Criteria.gt("priority", 90),
+                Criteria.le("priority", 5),
+                Criteria.and(Criteria.eq("category", "cat1"), Criteria.ge("priority", 50)),
+                Criteria.or(Criteria.eq("application", "app0"), Criteria.lt("priority", 3)),
+                Criteria.and(Criteria.isNull("category"), Criteria.ne("application", "app0")));
+        for (Criteria criteria : queries) {
+            List<Integer> scanned = instance.get().stream().filter((ef) -> criteria.test(ef))
+                    .map((ef) -> (Integer) ef.get("id")).collect(Collectors.toList());
+            assertEquals(criteria.toString(), scanned, instance.find(criteria));
+            assertEquals(criteria.toString(), scanned.size(), instance.count(criteria));
+        }
+        assertEquals(10, instance.find("application", "app5").size());
+        assertEquals(0, instance.find("application", null).size());
+    }
+
+    /**
+     * Test that updates maintain the indexes.
+     */
+    @Test
+    public void testUpdate() {
+        System.out.println("update");
+        int id = instance.findOne("priority", 7);
+        EntityFields diff = new EntityFields();
+        diff.put("priority", 1007);
+        diff.put("application", "updated");
+        EntityFields result = instance.update(id, diff);
+        assertEquals(1007, result.get("priority"));
+        assertFalse(instance.exists(Criteria.eq("priority", 7)));
+        assertEquals(id, (int) instance.findOne("priority", 1007));
+        assertEquals(Arrays.asList(id), instance.find(Criteria.gt("priority", 1000)));
+        assertEquals(id, (int) instance.findOne("application", "updated"));
+        diff.put("priority", 7);
+        diff.put("application", "app7");
+        instance.update(id, diff);
+        assertEquals(id, (int) instance.findOne("priority", 7));
+        try {
+            instance.update(-1, diff);
+            fail("update of a missing entity should fail");
+        } catch (LogicException ex) {
+        }
+    }
+
+    /**
+     * Test of the changed since watermark query.
+     */
+    @Test
+    public void testChangedSince() {
+        System.out.println("changed since");
+        Object watermark = EntityPersistenceProvider.getWatermark(instance.get(), null);
+        assertNotNull(watermark);
+        int id = instance.findOne("priority", 11);
+        EntityFields diff = new EntityFields();
+        diff.put("category", "changed");
+        instance.update(id, diff);
+        List<EntityFields> changed = instance.getChangedSince(Criteria.all(), watermark);
+        assertTrue(changed.stream().anyMatch((ef) -> ef.get("id").equals(id)));
+        changed.stream().forEach((ef) -> {
+            assertTrue(Criteria.compare(ef.get("updatedon"), watermark) >= 0);
+        });
+        assertTrue(Criteria.compare(EntityPersistenceProvider.getWatermark(changed, watermark), watermark) >= 0);
+        assertEquals(instance.count(Criteria.eq("application", "app1")),
+                instance.getChangedSince(Criteria.eq("application", "app1"), null).size());
+        diff.put("category", "cat2");
+        instance.update(id, diff);
+    }
+
+    /**
+     * Test of the asynchronous operations (using the generic adapter).
+     */
+    @Test
+    public void testAsync() {
+        System.out.println("async");
+        AsyncEntityPersistenceProvider<Integer> async = AsyncEntityPersistenceProvider.of(instance);
+        CompletableFuture<List<Integer>> find = async.findAsync(Criteria.eq("application", "app1"));
+        CompletableFuture<Integer> count = async.countAsync(Criteria.ge("priority", 50));
+        CompletableFuture<List<EntityFields>> get = async.getAsync(instance.find(Criteria.lt("priority", 5)));
+        CompletableFuture.allOf(find, count, get).join();
+        assertEquals(10, find.join().size());
+        assertEquals(50, (int) count.join());
+        assertEquals(5, get.join().size());
+        try {
+            async.updateAsync(-1, new EntityFields()).join();
+            fail("update of a missing entity should fail");
+        } catch (CompletionException ex) {
+            assertTrue(ex.getCause() instanceof LogicException);
+        }
+    }
+
+    /**
+     * Test the index ordering and index allocation.
+     */
+    @Test
+    public void testIdxOrdering() {
+        System.out.println("idx ordering");
+        List<EntityFields> all = instance.get();
+        for (int i = 1; i < all.size(); i++) {
+            assertTrue(((Integer) all.get(i - 1).get("idx")) <= ((Integer) all.get(i).get("idx")));
+        }
+        int next = instance.findNextIdx();
+        assertTrue(next > ROWS);
+        assertEquals(next + 1, instance.reserveIdx(10));
+        assertEquals(next + 11, instance.findNextIdx());
+        Page<Integer> page = instance.getPage(null, 30);
+        assertEquals(30, page.getRows().size());
+        assertEquals(all.get(0).get("id"), page.getRows().get(0).get("id"));
+        page = instance.getPage(page.getNext(), 30);
+        assertEquals(all.get(30).get("id"), page.getRows().get(0).get("id"));
+    }
+
+    /**
+     * Test the index ordering and paging of a table whose index column is not
+     * named idx.
+     */
+    @Test
+    public void testIdxColumnOrdering() {
+        System.out.println("idx column ordering");
+        EntityPersistenceProvider<Integer> ordered = EntityPersistenceProviderManager.getEntityPersistenceProvider("inmemorytest", "OrderedTable", "position");
+        Integer[] positions = new Integer[]{5, null, 3, 5, 1000, 2, null};
+        List<Integer> ids = new ArrayList<>();
+        for (Integer position : positions) {
+            EntityFields ef = new EntityFields();
+            ef.put("position", position);
+            ef.put("group", ids.size() % 2 == 0 ? "even" : "odd");
+            ids.add((Integer) ordered.insert(ef).get("id"));
+        }
+        assertTrue(ordered.findNextIdx() > 1000);
+        List<Integer> expected = Arrays.asList(ids.get(1), ids.get(6), ids.get(5), ids.get(2), ids.get(0), ids.get(3), ids.get(4));
+        assertEquals(expected, ordered.find());
+        assertEquals(expected.stream().filter((id) -> ids.indexOf(id) % 2 == 0).collect(Collectors.toList()),
+                ordered.find("group", "even"));
+        assertEquals(expected.subList(3, 7), ordered.find(Criteria.gt("position", 2)));
+        List<Integer> paged = new ArrayList<>();
+        Page<Integer> page = ordered.getPage(null, 2);
+        while (true) {
+            page.getRows().stream().forEach((ef) -> {
+                paged.add((Integer) ef.get("id"));
+            });
+            if (page.getNext() == null) {
+                break;
+            }
+            page = ordered.getPage(page.getNext(), 2);
+        }
+        assertEquals(expected, paged);
+        page = ordered.getPage("group", "odd", null, 2);
+        assertEquals(Arrays.asList(ids.get(1), ids.get(5)), page.getRows().stream().map((ef) -> ef.get("id")).collect(Collectors.toList()));
+        page = ordered.getPage("group", "odd", page.getNext(), 2);
+        assertEquals(Arrays.asList(ids.get(3)), page.getRows().stream().map((ef) -> ef.get("id")).collect(Collectors.toList()));
+    }
+
+    /**
+     * Test that a snapshot is reloaded by a new persistence unit.
+     *
+     * @throws IOException if problems
+     */
+    @Test
+    public void testSnapshot() throws IOException {
+        System.out.println("snapshot");
+        instance.close();
+        assertTrue(new File(snapshotfolder, "TestTable").isFile());
+        EntityPersistenceProviderManager.init(properties("inmemoryreload"));
+        EntityPersistenceProvider<Integer> reloaded = EntityPersistenceProviderManager.getEntityPersistenceProvider("inmemoryreload", "TestTable", "idx");
+        assertEquals(instance.find(), reloaded.find());
+        assertEquals(instance.count(Criteria.eq("application", "app4")), reloaded.count(Criteria.eq("application", "app4")));
+        assertTrue(reloaded.findNextIdx() >= instance.findNextIdx());
+    }
+}
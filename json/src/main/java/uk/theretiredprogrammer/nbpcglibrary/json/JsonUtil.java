@@ -126,7 +126,8 @@ public class JsonUtil {
     }
 
     /**
-     * Convert a JsonValue into a equivalent Java Object or datatype.
+     * Convert a JsonValue into a equivalent Java Object or datatype. Numbers
+     * are converted to Integer, or to Long if outside the Integer range.
      *
      * @param value the JsonValue
      * @return the resulting java Object
@@ -137,7 +138,11 @@ public class JsonUtil {
             case STRING:
                 return ((JsonString) value).getString();
             case NUMBER:
-                return ((JsonNumber) value).intValue();
+                long number = ((JsonNumber) value).longValue();
+                if ((int) number == number) {
+                    return (int) number;
+                }
+                return number;
             case TRUE:
                 return true;
             case FALSE:
@@ -181,6 +186,38 @@ public class JsonUtil {
         throw new JsonConversionException();
     }
 
+    /**
+     * Write a Java Object into a JsonObject as a key/value pair.
+     *
+     * @param generator the Json Generator being used to create the Json object
+     * @param key the key
+     * @param value the value to be written
+     * @throws JsonConversionException if any conversion error or type failure
+     */
+    public static void writeValue(JsonGenerator generator, String key, Object value) throws JsonConversionException {
+        if (value == null) {
+            generator.writeNull(key);
+            return;
+        }
+        if (value instanceof String) {
+            generator.write(key, (String) value);
+            return;
+        }
+        if (value instanceof Integer) {
+            generator.write(key, (Integer) value);
+            return;
+        }
+        if (value instanceof Long) {
+            generator.write(key, (Long) value);
+            return;
+        }
+        if (value instanceof Boolean) {
+            generator.write(key, (Boolean) value);
+            return;
+        }
+        throw new JsonConversionException();
+    }
+
     /**
      * Convert a JsonValue into a equivalent Java String.
      *
@@ -22,9 +22,12 @@ import uk.theretiredprogrammer.nbpcglibrary.authentication.dataobjects.Applicati
 import uk.theretiredprogrammer.nbpcglibrary.authentication.dataobjects.Userrole;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.List;
 import uk.theretiredprogrammer.nbpcglibrary.authentication.dataobjects.ApplicationRoot;
 import uk.theretiredprogrammer.nbpcglibrary.authentication.dataobjects.UserRoot;
 import uk.theretiredprogrammer.nbpcglibrary.data.entityreferences.EntityReference;
+import uk.theretiredprogrammer.nbpcglibrary.api.Criteria;
+import uk.theretiredprogrammer.nbpcglibrary.api.EntityFields;
 import uk.theretiredprogrammer.nbpcglibrary.api.LogicException;
 
 /**
@@ -74,14 +77,17 @@ public class Authentication {
     }
 
     private static boolean findRole(User user) {
-        for (Userrole ur : user.getUserroles()) {
-            Role r = ur.getRole();
-            if (r.getParent().getPK().equals(application.get().getPK())) {
-                roleName = r.getRole();
-                return true;
-            }
+        List<Integer> roles = Role.getEM().getEntityPersistenceProvider().find(Criteria.eq("application", application.getPK()));
+        if (roles.isEmpty()) {
+            return false; // no roles for this app
+        }
+        List<EntityFields> userroles = Userrole.getEM().getEntityPersistenceProvider().get(
+                Criteria.and(Criteria.eq("user", user.getPK()), Criteria.in("role", roles)));
+        if (userroles.isEmpty()) {
+            return false; // no role for this user for this app
         }
-        return false; // no role for this user for this app
+        roleName = Role.getEM().get((Integer) userroles.get(0).get("role")).getRole();
+        return true;
     }
 
     /**
@@ -0,0 +1,320 @@
+/*
+ * Copyright 2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.localdatabaseaccess;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import uk.theretiredprogrammer.nbpcglibrary.common.LogBuilder;
+
+/**
+ * A bounded pool of database connections. Connections are created on demand
+ * up to the pool size; callers then wait (up to the timeout) for a connection
+ * to be released. Each pooled connection keeps its own cache of prepared
+ * statements.
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ */
+public class ConnectionPool {
+
+    /**
+     * The source of new connections for the pool.
+     */
+    @FunctionalInterface
+    public interface ConnectionFactory {
+
+        /**
+         * Create a new connection to the database.
+         *
+         * @return the new connection
+         * @throws SQLException if problems
+         */
+        public Connection create() throws SQLException;
+    }
+
+    private final String name;
+    private final ConnectionFactory factory;
+    private final int poolsize;
+    private final long timeout;
+    private final int statementcachesize;
+    private final LinkedBlockingQueue<PooledConnection> idle = new LinkedBlockingQueue<>();
+    private final AtomicInteger created = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong acquires = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong totalwait = new AtomicLong();
+    private final AtomicLong maxwait = new AtomicLong();
+    private volatile boolean closed = false;
+
+    /**
+     * Constructor.
+     *
+     * @param name the pool name (used in logging)
+     * @param factory the source of new connections
+     * @param poolsize the maximum number of connections
+     * @param timeout the maximum time to wait for a connection (milliseconds)
+     * @param statementcachesize the maximum number of prepared statements
+     * cached on each connection
+     */
+    public ConnectionPool(String name, ConnectionFactory factory, int poolsize, long timeout, int statementcachesize) {
+        if (poolsize < 1) {
+            throw new IllegalArgumentException("pool size must be at least 1");
+        }
+        this.name = name;
+        this.factory = factory;
+        this.poolsize = poolsize;
+        this.timeout = timeout;
+        this.statementcachesize = statementcachesize;
+    }
+
+    /**
+     * Constructor for a pool holding a single existing connection.
+     *
+     * @param name the pool name (used in logging)
+     * @param conn the connection
+     * @param timeout the maximum time to wait for the connection
+     * (milliseconds)
+     * @param statementcachesize the maximum number of prepared statements
+     * cached on the connection
+     */
+    public ConnectionPool(String name, Connection conn, long timeout, int statementcachesize) {
+        this(name, () -> {
+            throw new SQLException("connection pool " + name + " - connection has been closed");
+        }, 1, timeout, statementcachesize);
+        idle.add(new PooledConnection(conn, statementcachesize));
+        created.set(1);
+    }
+
+    /**
+     * Take a connection from the pool, waiting if all connections are in use.
+     *
+     * @return the connection
+     * @throws SQLException if no connection became available within the
+     * timeout, or a new connection could not be made
+     */
+    PooledConnection acquire() throws SQLException {
+        if (closed) {
+            throw new SQLException("connection pool " + name + " is closed");
+        }
+        long start = System.nanoTime();
+        PooledConnection pc = idle.poll();
+        while (pc == null) {
+            int count = created.get();
+            if (count < poolsize) {
+                if (created.compareAndSet(count, count + 1)) {
+                    try {
+                        pc = new PooledConnection(factory.create(), statementcachesize);
+                    } catch (SQLException ex) {
+                        created.decrementAndGet();
+                        throw ex;
+                    }
+                }
+            } else {
+                try {
+                    pc = idle.poll(timeout - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), TimeUnit.MILLISECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException("connection pool " + name + " - interrupted while waiting for a connection");
+                }
+                if (pc == null) {
+                    timeouts.incrementAndGet();
+                    throw new SQLTimeoutException("connection pool " + name + " - timeout waiting for a connection");
+                }
+            }
+        }
+        long waited = System.nanoTime() - start;
+        totalwait.addAndGet(waited);
+        maxwait.accumulateAndGet(waited, Math::max);
+        acquires.incrementAndGet();
+        active.incrementAndGet();
+        return pc;
+    }
+
+    /**
+     * Return a connection to the pool. Connections which have been closed are
+     * discarded, so that a replacement can be created.
+     *
+     * @param pc the connection
+     */
+    void release(PooledConnection pc) {
+        active.decrementAndGet();
+        boolean usable;
+        try {
+            usable = !closed && !pc.getConnection().isClosed();
+        } catch (SQLException ex) {
+            usable = false;
+        }
+        if (usable) {
+            idle.add(pc);
+        } else {
+            created.decrementAndGet();
+            pc.close();
+        }
+    }
+
+    /**
+     * Close the pool and all idle connections. Connections in use are closed
+     * when they are released.
+     */
+    public void close() {
+        closed = true;
+        PooledConnection pc;
+        while ((pc = idle.poll()) != null) {
+            created.decrementAndGet();
+            pc.close();
+        }
+    }
+
+    /**
+     * Get the current pool statistics.
+     *
+     * @return the statistics
+     */
+    public Statistics getStatistics() {
+        return new Statistics(poolsize, created.get(), active.get(), acquires.get(), timeouts.get(),
+                TimeUnit.NANOSECONDS.toMillis(totalwait.get()), TimeUnit.NANOSECONDS.toMillis(maxwait.get()));
+    }
+
+    /**
+     * A snapshot of the connection pool statistics.
+     */
+    public static class Statistics {
+
+        private final int poolsize;
+        private final int connections;
+        private final int active;
+        private final long acquires;
+        private final long timeouts;
+        private final long totalwait;
+        private final long maxwait;
+
+        private Statistics(int poolsize, int connections, int active, long acquires, long timeouts, long totalwait, long maxwait) {
+            this.poolsize = poolsize;
+            this.connections = connections;
+            this.active = active;
+            this.acquires = acquires;
+            this.timeouts = timeouts;
+            this.totalwait = totalwait;
+            this.maxwait = maxwait;
+        }
+
+        /**
+         * Get the maximum number of connections in the pool.
+         *
+         * @return the pool size
+         */
+        public int getPoolSize() {
+            return poolsize;
+        }
+
+        /**
+         * Get the number of open connections.
+         *
+         * @return the number of connections
+         */
+        public int getConnections() {
+            return connections;
+        }
+
+        /**
+         * Get the number of connections currently in use.
+         *
+         * @return the active count
+         */
+        public int getActive() {
+            return active;
+        }
+
+        /**
+         * Get the number of successful connection requests.
+         *
+         * @return the number of requests
+         */
+        public long getAcquires() {
+            return acquires;
+        }
+
+        /**
+         * Get the number of connection requests which timed out.
+         *
+         * @return the number of timeouts
+         */
+        public long getTimeouts() {
+            return timeouts;
+        }
+
+        /**
+         * Get the total time spent waiting for connections.
+         *
+         * @return the wait time (milliseconds)
+         */
+        public long getTotalWaitTime() {
+            return totalwait;
+        }
+
+        /**
+         * Get the longest time spent waiting for a connection.
+         *
+         * @return the wait time (milliseconds)
+         */
+        public long getMaxWaitTime() {
+            return maxwait;
+        }
+
+        @Override
+        public String toString() {
+            return "size=" + poolsize + " connections=" + connections + " active=" + active + " acquires=" + acquires
+                    + " timeouts=" + timeouts + " totalwait=" + totalwait + "ms maxwait=" + maxwait + "ms";
+        }
+    }
+
+    /**
+     * A connection held in the pool, together with its statement cache.
+     */
+    static class PooledConnection {
+
+        private final Connection conn;
+        private final PreparedStatementCache statements;
+
+        PooledConnection(Connection conn, int statementcachesize) {
+            this.conn = conn;
+            statements = new PreparedStatementCache(conn, statementcachesize);
+        }
+
+        Connection getConnection() {
+            return conn;
+        }
+
+        PreparedStatementCache getStatements() {
+            return statements;
+        }
+
+        void close() {
+            statements.closeAll();
+            try {
+                conn.close();
+            } catch (SQLException ex) {
+                LogBuilder.create("nbpcglib.localdatabaseaccess", Level.SEVERE).addMethodName(this, "close")
+                        .addExceptionMessage(ex).write();
+            }
+        }
+    }
+}
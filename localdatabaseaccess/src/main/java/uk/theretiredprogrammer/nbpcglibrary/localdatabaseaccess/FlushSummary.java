@@ -0,0 +1,112 @@
+/*
+ * Copyright 2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.localdatabaseaccess;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The summary of a flush of the deferred changes of a unit of work.
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ */
+public final class FlushSummary {
+
+    private final int updates;
+    private final int deletes;
+    private final int coalesced;
+    private final int batches;
+    private final List<String> errors;
+
+    /**
+     * Constructor.
+     *
+     * @param updates the number of rows updated
+     * @param deletes the number of rows deleted
+     * @param coalesced the number of changes merged into an earlier change to
+     * the same row
+     * @param batches the number of batched requests made to flush the changes
+     * @param errors the errors reported by failing rows
+     */
+    FlushSummary(int updates, int deletes, int coalesced, int batches, List<String> errors) {
+        this.updates = updates;
+        this.deletes = deletes;
+        this.coalesced = coalesced;
+        this.batches = batches;
+        this.errors = Collections.unmodifiableList(errors);
+    }
+
+    /**
+     * Get the number of rows updated.
+     *
+     * @return the number of rows updated
+     */
+    public int getUpdates() {
+        return updates;
+    }
+
+    /**
+     * Get the number of rows deleted.
+     *
+     * @return the number of rows deleted
+     */
+    public int getDeletes() {
+        return deletes;
+    }
+
+    /**
+     * Get the number of changes which were merged into an earlier change to
+     * the same row, and so needed no statement of their own.
+     *
+     * @return the number of coalesced changes
+     */
+    public int getCoalesced() {
+        return coalesced;
+    }
+
+    /**
+     * Get the number of batched requests made to flush the changes.
+     *
+     * @return the number of batches
+     */
+    public int getBatches() {
+        return batches;
+    }
+
+    /**
+     * Get the errors reported by rows which failed to flush.
+     *
+     * @return the errors (empty if all rows were flushed)
+     */
+    public List<String> getErrors() {
+        return errors;
+    }
+
+    /**
+     * Test if any rows failed to flush.
+     *
+     * @return true if there were errors
+     */
+    public boolean hasErrors() {
+        return !errors.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "FlushSummary[updates=" + updates + ",deletes=" + deletes + ",coalesced=" + coalesced
+                + ",batches=" + batches + ",errors=" + errors.size() + "]";
+    }
+}
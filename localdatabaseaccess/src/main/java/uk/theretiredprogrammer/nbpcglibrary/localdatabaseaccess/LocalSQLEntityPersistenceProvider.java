@@ -17,34 +17,75 @@ package uk.theretiredprogrammer.nbpcglibrary.localdatabaseaccess;
 
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import uk.theretiredprogrammer.nbpcglibrary.annotations.RegisterLog;
+import uk.theretiredprogrammer.nbpcglibrary.api.AsyncEntityPersistenceProvider;
+import uk.theretiredprogrammer.nbpcglibrary.api.AsyncExecutor;
+import uk.theretiredprogrammer.nbpcglibrary.api.BatchResult;
+import uk.theretiredprogrammer.nbpcglibrary.api.Criteria;
 import uk.theretiredprogrammer.nbpcglibrary.api.EntityFields;
 import uk.theretiredprogrammer.nbpcglibrary.common.LogBuilder;
 import uk.theretiredprogrammer.nbpcglibrary.api.EntityPersistenceProvider;
+import uk.theretiredprogrammer.nbpcglibrary.api.IdxSequence;
 import uk.theretiredprogrammer.nbpcglibrary.api.PersistenceUnitProvider;
 import uk.theretiredprogrammer.nbpcglibrary.api.LogicException;
+import uk.theretiredprogrammer.nbpcglibrary.api.Page;
+import uk.theretiredprogrammer.nbpcglibrary.api.PageKey;
+import static uk.theretiredprogrammer.nbpcglibrary.localdatabaseaccess.LocalSQLPersistenceUnitProvider.IDXSEQUENCETABLE;
 
 /**
  * EntityPersistenceProvider Class for access localSQL databases
  *
+ * Inserted and updated rows are rebuilt from the values written (and the
+ * generated key) rather than being read back. Tables whose rows are changed
+ * by column defaults or triggers should be listed in the rereadtables
+ * property (comma separated), so that they are read back after each write.
+ *
+ * Index values of ordered tables are reserved in blocks (of idxblocksize
+ * values, default 20) from a sequence held in the database, so the database
+ * is only accessed once per block.
+ *
+ * Asynchronous operations each use their own pooled connection, so
+ * independent operations run concurrently. Operations requested within a
+ * transaction are run immediately on the transaction's thread, so that they
+ * remain part of the transaction.
+ *
  * @author Richard Linsdale (richard at theretiredprogrammer.uk)
  * @param <K> the Primary Key Class
  */
 @RegisterLog("nbpcglib.localdatabaseaccess")
-public abstract class LocalSQLEntityPersistenceProvider<K> implements EntityPersistenceProvider<K> {
+public abstract class LocalSQLEntityPersistenceProvider<K> implements EntityPersistenceProvider<K>, AsyncEntityPersistenceProvider<K> {
 
+    private static final int MAXKEYSPERQUERY = 512;
+    private static final int DEFAULTROWIMAGECACHESIZE = 1000;
+    private static final int MAXROWSPERBATCH = 1000;
     private String tablename;
     private LocalSQLPersistenceUnitProvider persistenceUnitProvider;
     private String idx;
+    private String selectallsql;
+    private String selectidssql;
+    private String selectpkeysql;
+    private String deletesql;
+    private boolean reread;
+    private RowImageCache<K> rowimages;
+    private IdxSequence idxsequence;
+    private Executor executor;
 
     @Override
     public void init(String tablename, Properties properties, PersistenceUnitProvider pup) {
-        this.tablename = tablename;
-        this.persistenceUnitProvider = (LocalSQLPersistenceUnitProvider) pup;
-        this.idx = null;
+        init(tablename, null, properties, pup);
     }
 
     @Override
@@ -52,6 +93,16 @@ public abstract class LocalSQLEntityPersistenceProvider<K> implements EntityPers
         this.tablename = tablename;
         this.persistenceUnitProvider = (LocalSQLPersistenceUnitProvider) pup;
         this.idx = idx;
+        selectallsql = "SELECT * from " + tablename + orderby();
+        selectidssql = "SELECT id from " + tablename + orderby();
+        selectpkeysql = "SELECT * from " + tablename + " WHERE id=?";
+        deletesql = "DELETE from " + tablename + " WHERE id=?";
+        reread = Arrays.asList(properties.getProperty("rereadtables", "").split(",")).contains(tablename);
+        rowimages = new RowImageCache<>(Integer.parseInt(properties.getProperty("rowimagecachesize",
+                Integer.toString(DEFAULTROWIMAGECACHESIZE))));
+        idxsequence = new IdxSequence(this, Integer.parseInt(properties.getProperty("idxblocksize",
+                Integer.toString(IdxSequence.DEFAULTBLOCKSIZE))));
+        executor = AsyncExecutor.getDefault();
     }
     
     @Override
@@ -67,10 +118,11 @@ public abstract class LocalSQLEntityPersistenceProvider<K> implements EntityPers
     public EntityFields get(K pkey) {
         LogBuilder.writeLog("nbpcglib.localdatabaseaccess", this, "get", pkey);
         try {
-            List<EntityFields> response = persistenceUnitProvider.query(buildsql("SELECT * from " + tablename + " WHERE id={P}", pkey));
+            List<EntityFields> response = query(selectpkeysql, Collections.singletonList(pkey));
             if (response.size() != 1) {
                 throw new LogicException("Single row expected");
             }
+            cacheImage(pkey, response.get(0));
             return response.get(0);
         } catch (SQLException ex) {
             LogBuilder.writeExceptionLog("nbpcglib.localdatabaseaccess", ex, this, "get", pkey);
@@ -78,30 +130,93 @@ public abstract class LocalSQLEntityPersistenceProvider<K> implements EntityPers
         }
     }
 
+    @Override
+    public List<EntityFields> get(Collection<K> pkeys) {
+        LogBuilder.writeLog("nbpcglib.localdatabaseaccess", this, "get", pkeys);
+        Map<Object, EntityFields> found = new HashMap<>();
+        Iterator<K> pkeyiterator = pkeys.iterator();
+        try {
+            while (pkeyiterator.hasNext()) {
+                List<Object> parameters = new ArrayList<>();
+                while (parameters.size() < MAXKEYSPERQUERY && pkeyiterator.hasNext()) {
+                    parameters.add(pkeyiterator.next());
+                }
+                int size = padInList(parameters);
+                query("SELECT * from " + tablename + " WHERE id IN (" + markers(size) + ")", parameters).stream().forEach((ef) -> {
+                    found.put(ef.get("id"), ef);
+                });
+            }
+        } catch (SQLException ex) {
+            LogBuilder.writeExceptionLog("nbpcglib.localdatabaseaccess", ex, this, "get", pkeys);
+            throw new LogicException(ex.getMessage());
+        }
+        List<EntityFields> result = new ArrayList<>(pkeys.size());
+        pkeys.stream().forEach((pkey) -> {
+            EntityFields ef = found.get(pkey);
+            if (ef != null) {
+                cacheImage(pkey, ef);
+            }
+            result.add(ef);
+        });
+        return result;
+    }
+
     @Override
     public final List<EntityFields> get() {
         LogBuilder.writeLog("nbpcglib.localdatabaseaccess", this, "get");
-        String sql = idx == null
-                ? "SELECT * from " + tablename
-                : "SELECT * from " + tablename + " ORDER BY " + idx;
         try {
-            return persistenceUnitProvider.query(sql);
+            return query(selectallsql, Collections.emptyList());
         } catch (SQLException ex) {
             LogBuilder.writeExceptionLog("nbpcglib.localdatabaseaccess", ex, this, "get");
             throw new LogicException(ex.getMessage());
         }
     }
 
+    /**
+     * Process all entities, one at a time as they are read from the database,
+     * rather than building a list of all entities in memory. Use for exports
+     * and scans of large tables.
+     *
+     * @param rowprocessor the processor called for each entity's data
+     * @return the number of entities processed
+     */
+    public final int scan(Consumer<EntityFields> rowprocessor) {
+        LogBuilder.writeLog("nbpcglib.localdatabaseaccess", this, "scan");
+        try {
+            return persistenceUnitProvider.query(selectallsql, Collections.emptyList(), rowprocessor);
+        } catch (SQLException ex) {
+            LogBuilder.writeExceptionLog("nbpcglib.localdatabaseaccess", ex, this, "scan");
+            throw new LogicException(ex.getMessage());
+        }
+    }
+
+    /**
+     * Process all entities with a given value for a field, one at a time as
+     * they are read from the database.
+     *
+     * @param parametername the field name
+     * @param parametervalue the field value
+     * @param rowprocessor the processor called for each entity's data
+     * @return the number of entities processed
+     */
+    public final int scan(String parametername, Object parametervalue, Consumer<EntityFields> rowprocessor) {
+        LogBuilder.writeLog("nbpcglib.localdatabaseaccess", this, "scan", parametername, parametervalue);
+        try {
+            return persistenceUnitProvider.query("SELECT * from " + tablename + " where " + parametername + "=?" + orderby(),
+                    Collections.singletonList(parametervalue), rowprocessor);
+        } catch (SQLException ex) {
+            LogBuilder.writeExceptionLog("nbpcglib.localdatabaseaccess", ex, this, "scan", parametername, parametervalue);
+            throw new LogicException(ex.getMessage());
+        }
+    }
+
     @Override
     public final List<K> find() {
         LogBuilder.writeLog("nbpcglib.localdatabaseaccess", this, "find");
-        String sql = idx == null
-                ? "SELECT id from " + tablename
-                : "SELECT id from " + tablename + " ORDER BY " + idx;
         List<K> result = new ArrayList<>();
         try {
-            persistenceUnitProvider.query(sql).stream().forEach((ef) -> {
-                result.add((K) ef.get("id"));
+            query(selectidssql, Collections.emptyList()).stream().forEach((ef) -> {
+                result.add(getPK(ef));
             });
         } catch (SQLException ex) {
             LogBuilder.writeExceptionLog("nbpcglib.localdatabaseaccess", ex, this, "find");
@@ -113,11 +228,9 @@ public abstract class LocalSQLEntityPersistenceProvider<K> implements EntityPers
     @Override
     public final List<EntityFields> get(String parametername, Object parametervalue) {
         LogBuilder.writeLog("nbpcglib.localdatabaseaccess", this, "get", parametername, parametervalue);
-        String sql = idx == null
-                ? buildsql("SELECT * from " + tablename + " where " + parametername + "={P}", parametervalue)
-                : buildsql("SELECT * from " + tablename + " where " + parametername + "={P} ORDER BY " + idx, parametervalue);
         try {
-            return persistenceUnitProvider.query(sql);
+            return query("SELECT * from " + tablename + " where " + parametername + "=?" + orderby(),
+                    Collections.singletonList(parametervalue));
         } catch (SQLException ex) {
             LogBuilder.writeExceptionLog("nbpcglib.localdatabaseaccess", ex, this, "get", parametername, parametervalue);
             throw new LogicException(ex.getMessage());
@@ -127,13 +240,11 @@ public abstract class LocalSQLEntityPersistenceProvider<K> implements EntityPers
     @Override
     public final List<K> find(String parametername, Object parametervalue) {
         LogBuilder.writeLog("nbpcglib.localdatabaseaccess", this, "find", parametername, parametervalue);
-        String sql = idx == null
-                ? buildsql("SELECT id from " + tablename + " where " + parametername + "={P}", parametervalue)
-                : buildsql("SELECT id from " + tablename + " where " + parametername + "={P} ORDER BY " + idx, parametervalue);
         List<K> result = new ArrayList<>();
         try {
-            persistenceUnitProvider.query(sql).stream().forEach((ef) -> {
-                result.add((K) ef.get("id"));
+            query("SELECT id from " + tablename + " where " + parametername + "=?" + orderby(),
+                    Collections.singletonList(parametervalue)).stream().forEach((ef) -> {
+                result.add(getPK(ef));
             });
         } catch (SQLException ex) {
             LogBuilder.writeExceptionLog("nbpcglib.localdatabaseaccess", ex, this, "find", parametername, parametervalue);
@@ -145,10 +256,12 @@ public abstract class LocalSQLEntityPersistenceProvider<K> implements EntityPers
     @Override
     public final EntityFields getOne(String parametername, Object parametervalue) {
         try {
-            List<EntityFields> get = persistenceUnitProvider.query(buildsql("SELECT * from " + tablename + " where " + parametername + "={P}", parametervalue));
+            List<EntityFields> get = query("SELECT * from " + tablename + " where " + parametername + "=?",
+                    Collections.singletonList(parametervalue));
             if (get.size() != 1) {
                 throw new LogicException("Single row expected");
             }
+            cacheImage(getPK(get.get(0)), get.get(0));
             return get.get(0);
         } catch (SQLException ex) {
             LogBuilder.writeExceptionLog("nbpcglib.localdatabaseaccess", ex, this, "getOne", parametername, parametervalue);
@@ -156,14 +269,113 @@ public abstract class LocalSQLEntityPersistenceProvider<K> implements EntityPers
         }
     }
 
+    @Override
+    public final List<EntityFields> get(Criteria criteria) {
+        LogBuilder.writeLog("nbpcglib.localdatabaseaccess", this, "get", criteria);
+        List<Object> parameters = new ArrayList<>();
+        String sql = "SELECT * from " + tablename + where(criteria, parameters) + orderby(criteria);
+        try {
+            return query(sql, parameters);
+        } catch (SQLException ex) {
+            LogBuilder.writeExceptionLog("nbpcglib.localdatabaseaccess", ex, this, "get", criteria);
+            throw new LogicException(ex.getMessage());
+        }
+    }
+
+    @Override
+    public final List<K> find(Criteria criteria) {
+        LogBuilder.writeLog("nbpcglib.localdatabaseaccess", this, "find", criteria);
+        List<Object> parameters = new ArrayList<>();
+        String sql = "SELECT id from " + tablename + where(criteria, parameters) + orderby(criteria);
+        List<K> result = new ArrayList<>();
+        try {
+            query(sql, parameters).stream().forEach((ef) -> {
+                result.add(getPK(ef));
+            });
+        } catch (SQLException ex) {
+            LogBuilder.writeExceptionLog("nbpcglib.localdatabaseaccess", ex, this, "find", criteria);
+            throw new LogicException(ex.getMessage());
+        }
+        return result;
+    }
+
+    @Override
+    public final int count(Criteria criteria) {
+        LogBuilder.writeLog("nbpcglib.localdatabaseaccess", this, "count", criteria);
+        List<Object> parameters = new ArrayList<>();
+        String sql = "SELECT COUNT(*) AS rowcount from " + tablename + where(criteria, parameters);
+        try {
+            List<EntityFields> result = query(sql, parameters);
+            if (result.size() != 1) {
+                throw new LogicException("Single row expected");
+            }
+            return ((Number) result.get(0).get("rowcount")).intValue();
+        } catch (SQLException ex) {
+            LogBuilder.writeExceptionLog("nbpcglib.localdatabaseaccess", ex, this, "count", criteria);
+            throw new LogicException(ex.getMessage());
+        }
+    }
+
+    @Override
+    public final boolean exists(Criteria criteria) {
+        LogBuilder.writeLog("nbpcglib.localdatabaseaccess", this, "exists", criteria);
+        List<Object> parameters = new ArrayList<>();
+        String sql = "SELECT 1 AS found from " + tablename + where(criteria, parameters) + " LIMIT 1";
+        try {
+            return !query(sql, parameters).isEmpty();
+        } catch (SQLException ex) {
+            LogBuilder.writeExceptionLog("nbpcglib.localdatabaseaccess", ex, this, "exists", criteria);
+            throw new LogicException(ex.getMessage());
+        }
+    }
+
+    @Override
+    public final List<EntityFields> getProjection(List<String> columns) {
+        LogBuilder.writeLog("nbpcglib.localdatabaseaccess", this, "getProjection", columns);
+        try {
+            return query("SELECT " + selectlist(columns) + " from " + tablename + orderby(), Collections.emptyList());
+        } catch (SQLException ex) {
+            LogBuilder.writeExceptionLog("nbpcglib.localdatabaseaccess", ex, this, "getProjection", columns);
+            throw new LogicException(ex.getMessage());
+        }
+    }
+
+    @Override
+    public final List<EntityFields> getProjection(List<String> columns, String parametername, Object parametervalue) {
+        LogBuilder.writeLog("nbpcglib.localdatabaseaccess", this, "getProjection", columns, parametername, parametervalue);
+        try {
+            return query("SELECT " + selectlist(columns) + " from " + tablename + " where " + parametername + "=?" + orderby(),
+                    Collections.singletonList(parametervalue));
+        } catch (SQLException ex) {
+            LogBuilder.writeExceptionLog("nbpcglib.localdatabaseaccess", ex, this, "getProjection", columns, parametername, parametervalue);
+            throw new LogicException(ex.getMessage());
+        }
+    }
+
+    @Override
+    public final EntityFields getOneProjection(List<String> columns, String parametername, Object parametervalue) {
+        try {
+            List<EntityFields> get = query("SELECT " + selectlist(columns) + " from " + tablename + " where " + parametername + "=?",
+                    Collections.singletonList(parametervalue));
+            if (get.size() != 1) {
+                throw new LogicException("Single row expected");
+            }
+            return get.get(0);
+        } catch (SQLException ex) {
+            LogBuilder.writeExceptionLog("nbpcglib.localdatabaseaccess", ex, this, "getOneProjection", columns, parametername, parametervalue);
+            throw new LogicException(ex.getMessage());
+        }
+    }
+
     @Override
     public final K findOne(String parametername, Object parametervalue) {
         try {
-            List<EntityFields> find = persistenceUnitProvider.query(buildsql("SELECT id from " + tablename + " where " + parametername + "={P}", parametervalue));
+            List<EntityFields> find = query("SELECT id from " + tablename + " where " + parametername + "=?",
+                    Collections.singletonList(parametervalue));
             if (find.size() != 1) {
                 throw new LogicException("Single row expected");
             }
-            return (K) find.get(0).get("id");
+            return getPK(find.get(0));
         } catch (SQLException ex) {
             LogBuilder.writeExceptionLog("nbpcglib.localdatabaseaccess", ex, this, "findOne", parametername, parametervalue);
             throw new LogicException(ex.getMessage());
@@ -171,115 +383,754 @@ public abstract class LocalSQLEntityPersistenceProvider<K> implements EntityPers
     }
 
     @Override
-    public final int findNextIdx() {
-        try {
+    public final Page<K> getPage(PageKey<K> after, int limit) {
+        LogBuilder.writeLog("nbpcglib.localdatabaseaccess", this, "getPage", after, limit);
+        return page("", Collections.emptyList(), after, limit);
+    }
+
+    @Override
+    public final Page<K> getPage(String parametername, Object parametervalue, PageKey<K> after, int limit) {
+        LogBuilder.writeLog("nbpcglib.localdatabaseaccess", this, "getPage", parametername, parametervalue, after, limit);
+        return page(parametername + "=?", Collections.singletonList(parametervalue), after, limit);
+    }
+
+    private Page<K> page(String filter, List<Object> filterparameters, PageKey<K> after, int limit) {
+        Page.checkLimit(limit);
+        StringBuilder where = new StringBuilder(filter);
+        List<Object> parameters = new ArrayList<>(filterparameters);
+        if (after != null) {
+            if (where.length() > 0) {
+                where.append(" AND ");
+            }
             if (idx == null) {
-                throw new LogicException("findNextIdx() should not be called if the entity is not ordered");
+                where.append("id>?");
+            } else if (after.getIdxValue() == null) {
+                // null idx values sort first, so all non null idx values follow
+                where.append("((").append(idx).append(" IS NULL AND id>?) OR ").append(idx).append(" IS NOT NULL)");
+            } else {
+                where.append('(').append(idx).append(">? OR (").append(idx).append("=? AND id>?))");
+                parameters.add(after.getIdxValue());
+                parameters.add(after.getIdxValue());
             }
-            List<EntityFields> findidx = persistenceUnitProvider.query("SELECT max(" + idx + ")+1 as nextidx from " + tablename);
-            if (findidx.size() != 1) {
-                throw new LogicException("Single row expected");
+            parameters.add(after.getPK());
+        }
+        // read one extra row to find if there is a following page
+        parameters.add(limit + 1);
+        try {
+            List<EntityFields> rows = query("SELECT * from " + tablename + (where.length() > 0 ? " WHERE " + where : "")
+                    + pageorderby() + " LIMIT ?", parameters);
+            if (rows.size() <= limit) {
+                return new Page<>(rows, null);
             }
-            EntityFields idxrec = findidx.get(0);
-            return ((Long) idxrec.get("nextidx")).intValue();
+            rows.remove(limit);
+            EntityFields last = rows.get(limit - 1);
+            return new Page<>(rows, new PageKey<>(idx == null ? null : last.get(idx), getPK(last)));
         } catch (SQLException ex) {
-            LogBuilder.writeExceptionLog("nbpcglib.localdatabaseaccess", ex, this, "findNextIdx");
+            LogBuilder.writeExceptionLog("nbpcglib.localdatabaseaccess", ex, this, "getPage", filter, after, limit);
             throw new LogicException(ex.getMessage());
         }
     }
 
+    @Override
+    public final List<EntityFields> getRange(int offset, int limit) {
+        LogBuilder.writeLog("nbpcglib.localdatabaseaccess", this, "getRange", offset, limit);
+        Page.checkLimit(limit);
+        try {
+            return query("SELECT * from " + tablename + pageorderby() + " LIMIT ? OFFSET ?", Arrays.asList(limit, offset));
+        } catch (SQLException ex) {
+            LogBuilder.writeExceptionLog("nbpcglib.localdatabaseaccess", ex, this, "getRange", offset, limit);
+            throw new LogicException(ex.getMessage());
+        }
+    }
+
+    @Override
+    public final int findNextIdx() {
+        if (idx == null) {
+            throw new LogicException("findNextIdx() should not be called if the entity is not ordered");
+        }
+        return idxsequence.next();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The next index value of each ordered table is held in the idx sequence
+     * table, and a block is reserved by advancing it with a conditional
+     * update, so blocks are never shared by clients of the same database.
+     * The block starts after the largest stored index value, in case rows have
+     * been given index values without using the sequence. A reservation made
+     * within a transaction is part of that transaction.
+     */
+    @Override
+    public final synchronized int reserveIdx(int blocksize) {
+        LogBuilder.writeLog("nbpcglib.localdatabaseaccess", this, "reserveIdx", blocksize);
+        if (idx == null) {
+            throw new LogicException("reserveIdx() should not be called if the entity is not ordered");
+        }
+        try {
+            persistenceUnitProvider.createIdxSequenceTable();
+            while (true) {
+                Number next = readIdxSequence();
+                List<EntityFields> findidx = query("SELECT max(" + idx + ") as maxidx from " + tablename, Collections.emptyList());
+                if (findidx.size() != 1) {
+                    throw new LogicException("Single row expected");
+                }
+                Number maxidx = (Number) findidx.get(0).get("maxidx");
+                int first = Math.max(next.intValue(), maxidx == null ? 0 : maxidx.intValue() + 1);
+                if (execute("UPDATE " + IDXSEQUENCETABLE + " SET nextidx=? WHERE tablename=? AND nextidx=?",
+                        Arrays.asList(first + blocksize, tablename, next.intValue())) == 1) {
+                    return first;
+                }
+                // another client has reserved a block since the sequence was read
+            }
+        } catch (SQLException ex) {
+            LogBuilder.writeExceptionLog("nbpcglib.localdatabaseaccess", ex, this, "reserveIdx", blocksize);
+            throw new LogicException(ex.getMessage());
+        }
+    }
+
+    // the table's sequence row is created if it is not present
+    private Number readIdxSequence() throws SQLException {
+        String sql = "SELECT nextidx from " + IDXSEQUENCETABLE + " WHERE tablename=?";
+        List<EntityFields> sequence = query(sql, Collections.singletonList(tablename));
+        if (sequence.isEmpty()) {
+            try {
+                persistenceUnitProvider.execute("INSERT INTO " + IDXSEQUENCETABLE + " (tablename, nextidx) VALUES (?, 0)",
+                        Collections.singletonList(tablename));
+            } catch (SQLException ex) {
+                // unless another client has just created the row
+                sequence = query(sql, Collections.singletonList(tablename));
+                if (sequence.isEmpty()) {
+                    throw ex;
+                }
+                return (Number) sequence.get(0).get("nextidx");
+            }
+            return 0;
+        }
+        return (Number) sequence.get(0).get("nextidx");
+    }
+
     @Override
     public final EntityFields insert(EntityFields values) {
         LogBuilder.writeLog("nbpcglib.localdatabaseaccess", this, "insert", values);
         addTimestampInfo(values);
         try {
-            persistenceUnitProvider.execute(buildsql("INSERT INTO " + tablename + " ({$KEYLIST}) VALUES ({$VALUELIST})", values));
-            List<EntityFields> findpkey = persistenceUnitProvider.query("SELECT LAST_INSERT_ID() as id");
-            if (findpkey.size() != 1) {
-                throw new LogicException("Single row expected");
-            }
-            EntityFields pkeyrec = findpkey.get(0);
-            K pkey = (K) pkeyrec.get("id");
-            List<EntityFields> updated = persistenceUnitProvider.query(buildsql("SELECT * FROM " + tablename + " WHERE id = {P}", pkey));
-            if (updated.size() != 1) {
-                throw new LogicException("Single row expected");
-            }
-            LogBuilder.writeExitingLog("nbpcglib.localdatabaseaccess", this, "insert", updated);
-            return updated.get(0);
+            EntityFields inserted = insertRow(values);
+            LogBuilder.writeExitingLog("nbpcglib.localdatabaseaccess", this, "insert", inserted);
+            return inserted;
         } catch (SQLException ex) {
             LogBuilder.writeExceptionLog("nbpcglib.localdatabaseaccess", ex, this, "insert", values);
             throw new LogicException(ex.getMessage());
         }
     }
 
+    private EntityFields insertRow(EntityFields values) throws SQLException {
+        StringBuilder keylist = new StringBuilder();
+        List<Object> parameters = new ArrayList<>(values.size());
+        values.entrySet().stream().forEach((e) -> {
+            if (!parameters.isEmpty()) {
+                keylist.append(',');
+            }
+            keylist.append(e.getKey());
+            parameters.add(e.getValue());
+        });
+        Object generatedkey = executeInsert("INSERT INTO " + tablename + " (" + keylist + ") VALUES (" + markers(parameters.size()) + ")", parameters);
+        if (generatedkey == null) {
+            throw new LogicException("Generated key expected");
+        }
+        return inserted(convertGeneratedKey(generatedkey), values);
+    }
+
+    private EntityFields inserted(K pkey, EntityFields values) throws SQLException {
+        EntityFields inserted;
+        if (reread) {
+            inserted = readRow(pkey);
+        } else {
+            inserted = new EntityFields();
+            inserted.putAll(values);
+            inserted.put("id", pkey);
+        }
+        cacheImage(pkey, inserted);
+        return inserted;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Rows with the same set of fields are inserted using JDBC batches. If a
+     * batch fails it is rolled back and its rows are inserted one at a time,
+     * so that each failing row is identified.
+     */
+    @Override
+    public final BatchResult insert(List<EntityFields> values) {
+        LogBuilder.writeLog("nbpcglib.localdatabaseaccess", this, "insert(batch)", values.size());
+        BatchResult result = new BatchResult(values.size());
+        values.stream().forEach((ef) -> {
+            addTimestampInfo(ef);
+        });
+        groupByFields(values).entrySet().stream().forEach((group) -> {
+            List<String> fields = group.getKey();
+            String sql = "INSERT INTO " + tablename + " (" + String.join(",", fields) + ") VALUES (" + markers(fields.size()) + ")";
+            forEachChunk(group.getValue(), (chunk) -> {
+                List<List<Object>> rows = new ArrayList<>(chunk.size());
+                chunk.stream().forEach((i) -> {
+                    rows.add(fieldValues(values.get(i), fields));
+                });
+                try {
+                    List<Object> generatedkeys = executeBatch(sql, rows, true);
+                    for (int j = 0; j < chunk.size(); j++) {
+                        int i = chunk.get(j);
+                        result.setSuccess(i, inserted(convertGeneratedKey(generatedkeys.get(j)), values.get(i)));
+                    }
+                } catch (SQLException ex) {
+                    chunk.stream().forEach((i) -> {
+                        try {
+                            result.setSuccess(i, insertRow(values.get(i)));
+                        } catch (SQLException | LogicException rowex) {
+                            result.setFailure(i, rowex.getMessage());
+                        }
+                    });
+                }
+            });
+        });
+        return result;
+    }
+
     @Override
     public final EntityFields update(K pkey, EntityFields diff) {
         LogBuilder.writeLog("nbpcglib.localdatabaseaccess", this, "update", pkey, diff);
         updateTimestampInfo(diff);
+        UnitOfWork uow = persistenceUnitProvider.getUnitOfWork();
         try {
-            persistenceUnitProvider.execute(buildsql(buildsql("UPDATE " + tablename + " SET {$KEYVALUELIST} WHERE id= {P}", pkey), diff));
-            List<EntityFields> updated = persistenceUnitProvider.query(buildsql("SELECT * FROM " + tablename + " WHERE id = {P}", pkey));
-            if (updated.size() != 1) {
-                throw new LogicException("Single row expected");
-            }
+            EntityFields updated = uow == null || reread ? updateRow(pkey, diff) : deferUpdate(uow, pkey, diff);
             LogBuilder.writeExitingLog("nbpcglib.localdatabaseaccess", this, "update", updated);
-            return updated.get(0);
+            return updated;
         } catch (SQLException ex) {
             LogBuilder.writeExceptionLog("nbpcglib.localdatabaseaccess", ex, this, "update", pkey, diff);
             throw new LogicException(ex.getMessage());
         }
     }
 
+    private EntityFields updateRow(K pkey, EntityFields diff) throws SQLException {
+        StringBuilder keyvaluelist = new StringBuilder();
+        List<Object> parameters = new ArrayList<>(diff.size() + 1);
+        diff.entrySet().stream().forEach((e) -> {
+            if (!parameters.isEmpty()) {
+                keyvaluelist.append(',');
+            }
+            keyvaluelist.append(e.getKey()).append("=?");
+            parameters.add(e.getValue());
+        });
+        parameters.add(pkey);
+        if (execute("UPDATE " + tablename + " SET " + keyvaluelist + " WHERE id=?", parameters) != 1) {
+            rowimages.remove(pkey);
+            throw new LogicException("Single row expected");
+        }
+        EntityFields updated = reread ? null : updateImage(pkey, diff);
+        if (updated == null) {
+            updated = readRow(pkey);
+            cacheImage(pkey, updated);
+        }
+        return updated;
+    }
+
+    // record the update in the unit of work, building the updated row from its cached image
+    private EntityFields deferUpdate(UnitOfWork uow, K pkey, EntityFields diff) throws SQLException {
+        EntityFields updated = updateImage(pkey, diff);
+        if (updated == null) {
+            updated = readRow(pkey);
+            updated.putAll(diff);
+            cacheImage(pkey, updated);
+        }
+        uow.update(this, pkey, diff);
+        return updated;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Rows with the same set of changed fields are updated using JDBC batches.
+     * If a batch fails it is rolled back and its rows are updated one at a
+     * time, so that each failing row is identified.
+     */
+    @Override
+    public final BatchResult update(List<K> pkeys, List<EntityFields> diffs) {
+        LogBuilder.writeLog("nbpcglib.localdatabaseaccess", this, "update(batch)", pkeys.size());
+        if (pkeys.size() != diffs.size()) {
+            throw new LogicException("update(pks, diffs) - lists must be the same size");
+        }
+        BatchResult result = new BatchResult(pkeys.size());
+        diffs.stream().forEach((ef) -> {
+            updateTimestampInfo(ef);
+        });
+        UnitOfWork uow = persistenceUnitProvider.getUnitOfWork();
+        if (uow == null || reread) {
+            return updateRows(pkeys, diffs, true);
+        }
+        for (int i = 0; i < pkeys.size(); i++) {
+            try {
+                result.setSuccess(i, deferUpdate(uow, pkeys.get(i), diffs.get(i)));
+            } catch (SQLException | LogicException ex) {
+                result.setFailure(i, ex.getMessage());
+            }
+        }
+        return result;
+    }
+
+    private BatchResult updateRows(List<K> pkeys, List<EntityFields> diffs, boolean reloadrows) {
+        BatchResult result = new BatchResult(pkeys.size());
+        List<Integer> reload = new ArrayList<>();
+        groupByFields(diffs).entrySet().stream().forEach((group) -> {
+            List<String> fields = group.getKey();
+            StringBuilder keyvaluelist = new StringBuilder();
+            fields.stream().forEach((field) -> {
+                if (keyvaluelist.length() > 0) {
+                    keyvaluelist.append(',');
+                }
+                keyvaluelist.append(field).append("=?");
+            });
+            String sql = "UPDATE " + tablename + " SET " + keyvaluelist + " WHERE id=?";
+            forEachChunk(group.getValue(), (chunk) -> {
+                List<List<Object>> rows = new ArrayList<>(chunk.size());
+                chunk.stream().forEach((i) -> {
+                    List<Object> row = fieldValues(diffs.get(i), fields);
+                    row.add(pkeys.get(i));
+                    rows.add(row);
+                });
+                try {
+                    List<Object> counts = executeBatch(sql, rows, false);
+                    for (int j = 0; j < chunk.size(); j++) {
+                        int i = chunk.get(j);
+                        K pkey = pkeys.get(i);
+                        if ((Integer) counts.get(j) != 1) {
+                            rowimages.remove(pkey);
+                            result.setFailure(i, "Single row expected");
+                        } else {
+                            EntityFields updated = reread ? null : updateImage(pkey, diffs.get(i));
+                            if (updated == null && reloadrows) {
+                                reload.add(i);
+                            } else {
+                                result.setSuccess(i, updated);
+                            }
+                        }
+                    }
+                } catch (SQLException ex) {
+                    chunk.stream().forEach((i) -> {
+                        try {
+                            result.setSuccess(i, updateRow(pkeys.get(i), diffs.get(i)));
+                        } catch (SQLException | LogicException rowex) {
+                            result.setFailure(i, rowex.getMessage());
+                        }
+                    });
+                }
+            });
+        });
+        if (!reload.isEmpty()) {
+            List<K> reloadkeys = new ArrayList<>(reload.size());
+            reload.stream().forEach((i) -> {
+                reloadkeys.add(pkeys.get(i));
+            });
+            List<EntityFields> reloaded = get(reloadkeys);
+            for (int j = 0; j < reload.size(); j++) {
+                if (reloaded.get(j) == null) {
+                    result.setFailure(reload.get(j), "Single row expected");
+                } else {
+                    result.setSuccess(reload.get(j), reloaded.get(j));
+                }
+            }
+        }
+        return result;
+    }
+
     @Override
     public final void delete(K pkey) {
         LogBuilder.writeLog("nbpcglib.localdatabaseaccess", this, "delete", pkey);
+        rowimages.remove(pkey);
+        UnitOfWork uow = persistenceUnitProvider.getUnitOfWork();
+        if (uow != null) {
+            uow.delete(this, pkey);
+            return;
+        }
         try {
-            persistenceUnitProvider.execute(buildsql("DELETE from " + tablename + " WHERE id = {P}", pkey));
+            execute(deletesql, Collections.singletonList(pkey));
         } catch (SQLException ex) {
             LogBuilder.writeExceptionLog("nbpcglib.localdatabaseaccess", ex, this, "delete", pkey);
             throw new LogicException(ex.getMessage());
         }
     }
 
-    private String buildsql(String sql, EntityFields parameters) {
-        if (sql.contains("{$KEYLIST}") || sql.contains("{$VALUELIST}") || sql.contains("{$KEYVALUELIST}")) {
-            // special code to generate and substitute keylists and valuelists
-            String keylist = "";
-            String valuelist = "";
-            String keyvaluelist = "";
-            String prefix = "";
-            for (Map.Entry<String, Object> parameter : parameters.entrySet()) {
-                String fp = format(parameter.getValue());
-                keylist += (prefix + parameter.getKey());
-                valuelist += (prefix + fp);
-                keyvaluelist += (prefix + parameter.getKey() + "=" + fp);
-                prefix = ",";
+    /**
+     * {@inheritDoc}
+     *
+     * Rows are deleted using JDBC batches. If a batch fails it is rolled back
+     * and its rows are deleted one at a time, so that each failing row is
+     * identified.
+     */
+    @Override
+    public final BatchResult delete(List<K> pkeys) {
+        LogBuilder.writeLog("nbpcglib.localdatabaseaccess", this, "delete(batch)", pkeys.size());
+        UnitOfWork uow = persistenceUnitProvider.getUnitOfWork();
+        if (uow == null) {
+            return deleteRows(pkeys);
+        }
+        BatchResult result = new BatchResult(pkeys.size());
+        for (int i = 0; i < pkeys.size(); i++) {
+            rowimages.remove(pkeys.get(i));
+            uow.delete(this, pkeys.get(i));
+            result.setSuccess(i, null);
+        }
+        return result;
+    }
+
+    private BatchResult deleteRows(List<K> pkeys) {
+        BatchResult result = new BatchResult(pkeys.size());
+        List<Integer> all = new ArrayList<>(pkeys.size());
+        for (int i = 0; i < pkeys.size(); i++) {
+            rowimages.remove(pkeys.get(i));
+            all.add(i);
+        }
+        forEachChunk(all, (chunk) -> {
+            List<List<Object>> rows = new ArrayList<>(chunk.size());
+            chunk.stream().forEach((i) -> {
+                rows.add(Collections.singletonList(pkeys.get(i)));
+            });
+            try {
+                executeBatch(deletesql, rows, false);
+                chunk.stream().forEach((i) -> {
+                    result.setSuccess(i, null);
+                });
+            } catch (SQLException ex) {
+                chunk.stream().forEach((i) -> {
+                    try {
+                        execute(deletesql, Collections.singletonList(pkeys.get(i)));
+                        result.setSuccess(i, null);
+                    } catch (SQLException rowex) {
+                        result.setFailure(i, rowex.getMessage());
+                    }
+                });
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Write changes deferred by a unit of work.
+     *
+     * @param pkeys the primary keys of the changed rows
+     * @param diffs the changed column values of each row, or null if the rows
+     * are to be deleted
+     * @return the result for each row
+     */
+    @SuppressWarnings("unchecked")
+    BatchResult flush(List<?> pkeys, List<EntityFields> diffs) {
+        LogBuilder.writeLog("nbpcglib.localdatabaseaccess", this, "flush", pkeys.size());
+        return diffs == null ? deleteRows((List<K>) pkeys) : updateRows((List<K>) pkeys, diffs, false);
+    }
+
+    // cache the image of a row, noting it in the calling thread's transaction so that it is forgotten on rollback
+    private void cacheImage(K pkey, EntityFields row) {
+        persistenceUnitProvider.imageChanged(this, pkey);
+        rowimages.put(pkey, row);
+    }
+
+    // apply changes to the cached image of a row, noting it in the calling thread's transaction
+    private EntityFields updateImage(K pkey, EntityFields diff) {
+        persistenceUnitProvider.imageChanged(this, pkey);
+        return rowimages.update(pkey, diff);
+    }
+
+    /**
+     * Forget the cached image of a row.
+     *
+     * @param pkey the row's primary key
+     */
+    @SuppressWarnings("unchecked")
+    void forget(Object pkey) {
+        rowimages.remove((K) pkey);
+    }
+
+    // group row indexes by the (sorted) set of fields in each row
+    private Map<List<String>, List<Integer>> groupByFields(List<EntityFields> efs) {
+        Map<List<String>, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < efs.size(); i++) {
+            List<String> fields = new ArrayList<>(efs.get(i).keySet());
+            Collections.sort(fields);
+            groups.computeIfAbsent(fields, (k) -> new ArrayList<>()).add(i);
+        }
+        return groups;
+    }
+
+    private List<Object> fieldValues(EntityFields ef, List<String> fields) {
+        List<Object> values = new ArrayList<>(fields.size() + 1);
+        fields.stream().forEach((field) -> {
+            values.add(ef.get(field));
+        });
+        return values;
+    }
+
+    private void forEachChunk(List<Integer> indexes, Consumer<List<Integer>> action) {
+        for (int from = 0; from < indexes.size(); from += MAXROWSPERBATCH) {
+            action.accept(indexes.subList(from, Math.min(from + MAXROWSPERBATCH, indexes.size())));
+        }
+    }
+
+    /**
+     * Convert an auto generated key, as returned by the database driver, to
+     * the Primary Key Class. Override if the driver's key type differs from
+     * the Primary Key Class.
+     *
+     * @param key the generated key
+     * @return the primary key
+     */
+    @SuppressWarnings("unchecked")
+    protected K convertGeneratedKey(Object key) {
+        return (K) key;
+    }
+
+    private EntityFields readRow(K pkey) throws SQLException {
+        List<EntityFields> rows = query(selectpkeysql, Collections.singletonList(pkey));
+        if (rows.size() != 1) {
+            throw new LogicException("Single row expected");
+        }
+        return rows.get(0);
+    }
+
+    private String orderby(Criteria criteria) {
+        if (criteria.getOrder().isEmpty()) {
+            return orderby();
+        }
+        List<String> orderfields = new ArrayList<>();
+        criteria.getOrder().stream().forEach((order) -> {
+            orderfields.add(order.isDescending() ? order.getField() + " DESC" : order.getField());
+        });
+        return " ORDER BY " + String.join(",", orderfields);
+    }
+
+    private String where(Criteria criteria, List<Object> parameters) {
+        if (criteria.isAll()) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder(" WHERE ");
+        condition(sb, criteria, parameters);
+        return sb.toString();
+    }
+
+    private void condition(StringBuilder sb, Criteria criteria, List<Object> parameters) {
+        switch (criteria.getOperator()) {
+            case AND:
+            case OR:
+                List<Criteria> terms = criteria.getTerms();
+                if (terms.isEmpty()) {
+                    sb.append(criteria.getOperator() == Criteria.Operator.AND ? "1=1" : "1=0");
+                    return;
+                }
+                sb.append('(');
+                for (int i = 0; i < terms.size(); i++) {
+                    if (i > 0) {
+                        sb.append(criteria.getOperator() == Criteria.Operator.AND ? " AND " : " OR ");
+                    }
+                    condition(sb, terms.get(i), parameters);
+                }
+                sb.append(')');
+                return;
+            case IN:
+                if (criteria.getValues().isEmpty()) {
+                    sb.append("1=0");
+                    return;
+                }
+                List<Object> values = new ArrayList<>(criteria.getValues());
+                sb.append(criteria.getField()).append(" IN (").append(markers(padInList(values))).append(')');
+                parameters.addAll(values);
+                return;
+            case ISNULL:
+                sb.append(criteria.getField()).append(" IS NULL");
+                return;
+            case ISNOTNULL:
+                sb.append(criteria.getField()).append(" IS NOT NULL");
+                return;
+            default:
+                sb.append(criteria.getField()).append(comparisonOperator(criteria.getOperator())).append('?');
+                parameters.add(criteria.getValue());
+        }
+    }
+
+    private String comparisonOperator(Criteria.Operator operator) {
+        switch (operator) {
+            case EQ:
+                return "=";
+            case NE:
+                return "<>";
+            case LT:
+                return "<";
+            case LE:
+                return "<=";
+            case GT:
+                return ">";
+            default:
+                return ">=";
+        }
+    }
+
+    // pad an IN list to a power of two (repeating the last value) so that
+    // only a few statement shapes are ever prepared
+    private int padInList(List<Object> values) {
+        int size = Integer.highestOneBit(values.size());
+        if (size < values.size()) {
+            size <<= 1;
+        }
+        Object last = values.get(values.size() - 1);
+        while (values.size() < size) {
+            values.add(last);
+        }
+        return size;
+    }
+
+    private String pageorderby() {
+        return idx == null ? " ORDER BY id" : " ORDER BY " + idx + ",id";
+    }
+
+    private String selectlist(List<String> columns) {
+        if (columns.isEmpty()) {
+            throw new LogicException("At least one column must be selected");
+        }
+        return String.join(",", columns);
+    }
+
+    private String orderby() {
+        return idx == null ? "" : " ORDER BY " + idx;
+    }
+
+    private String markers(int count) {
+        StringBuilder sb = new StringBuilder(count * 2);
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(',');
             }
-            sql = sql.replace("{$KEYLIST}", keylist);
-            sql = sql.replace("{$VALUELIST}", valuelist);
-            sql = sql.replace("{$KEYVALUELIST}", keyvaluelist);
+            sb.append('?');
         }
-        for (Map.Entry<String, Object> parameter : parameters.entrySet()) {
-            sql = sql.replace("{" + parameter.getKey() + "}", format(parameter.getValue()));
+        return sb.toString();
+    }
+
+    private List<EntityFields> query(String sql, List<Object> parameters) throws SQLException {
+        try {
+            return persistenceUnitProvider.query(sql, parameters);
+        } catch (SQLException ex) {
+            LogBuilder.writeExceptionLog("nbpcglib.localdatabaseaccess", ex, this, "query", describe(sql, parameters));
+            throw ex;
         }
-        LogBuilder.writeExitingLog("nbpcglib.localdatabaseaccess", this, "buildsql", sql);
-        return sql;
     }
 
-    private String buildsql(String sql, Object parameter) {
-        sql = sql.replace("{P}", format(parameter));
-        LogBuilder.writeExitingLog("nbpcglib.localdatabaseaccess", this, "buildsql", sql);
-        return sql;
+    private int execute(String sql, List<Object> parameters) throws SQLException {
+        try {
+            return persistenceUnitProvider.execute(sql, parameters);
+        } catch (SQLException ex) {
+            LogBuilder.writeExceptionLog("nbpcglib.localdatabaseaccess", ex, this, "execute", describe(sql, parameters));
+            throw ex;
+        }
+    }
+
+    private Object executeInsert(String sql, List<Object> parameters) throws SQLException {
+        try {
+            return persistenceUnitProvider.executeInsert(sql, parameters);
+        } catch (SQLException ex) {
+            LogBuilder.writeExceptionLog("nbpcglib.localdatabaseaccess", ex, this, "executeInsert", describe(sql, parameters));
+            throw ex;
+        }
+    }
+
+    private List<Object> executeBatch(String sql, List<List<Object>> rows, boolean returnkeys) throws SQLException {
+        try {
+            return persistenceUnitProvider.executeBatch(sql, rows, returnkeys);
+        } catch (SQLException ex) {
+            LogBuilder.writeExceptionLog("nbpcglib.localdatabaseaccess", ex, this, "executeBatch", sql, rows.size());
+            throw ex;
+        }
+    }
+
+    private String describe(String sql, List<Object> parameters) {
+        StringBuilder sb = new StringBuilder();
+        Iterator<Object> values = parameters.iterator();
+        for (char c : sql.toCharArray()) {
+            if (c == '?' && values.hasNext()) {
+                sb.append(format(values.next()));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
     }
 
     /**
      * Format a data value for insertion into an SQL string.
      *
      * Handles quoting, escaping and specific formated keyword (eg true false
-     * etc)
+     * etc). Statements are executed with bound parameters, so this is only
+     * used to describe a failing statement in the log.
      *
      * @param value the data value
      * @return the string formated data value
      */
     protected abstract String format(Object value);
+
+    @Override
+    public final CompletableFuture<EntityFields> getAsync(K pkey) {
+        return submit(() -> get(pkey));
+    }
+
+    @Override
+    public final CompletableFuture<List<EntityFields>> getAsync(Collection<K> pkeys) {
+        return submit(() -> get(pkeys));
+    }
+
+    @Override
+    public final CompletableFuture<List<EntityFields>> getAsync() {
+        return submit(() -> get());
+    }
+
+    @Override
+    public final CompletableFuture<List<EntityFields>> getAsync(Criteria criteria) {
+        return submit(() -> get(criteria));
+    }
+
+    @Override
+    public final CompletableFuture<List<K>> findAsync(Criteria criteria) {
+        return submit(() -> find(criteria));
+    }
+
+    @Override
+    public final CompletableFuture<Integer> countAsync(Criteria criteria) {
+        return submit(() -> count(criteria));
+    }
+
+    @Override
+    public final CompletableFuture<EntityFields> insertAsync(EntityFields values) {
+        return submit(() -> insert(values));
+    }
+
+    @Override
+    public final CompletableFuture<EntityFields> updateAsync(K pkey, EntityFields diff) {
+        return submit(() -> update(pkey, diff));
+    }
+
+    @Override
+    public final CompletableFuture<Void> deleteAsync(K pkey) {
+        return submit(() -> {
+            delete(pkey);
+            return null;
+        });
+    }
+
+    // the transaction connection (and unit of work) belong to the requesting thread
+    private <T> CompletableFuture<T> submit(Supplier<T> operation) {
+        if (!persistenceUnitProvider.isInTransaction()) {
+            return CompletableFuture.supplyAsync(operation, executor);
+        }
+        CompletableFuture<T> result = new CompletableFuture<>();
+        try {
+            result.complete(operation.get());
+        } catch (RuntimeException ex) {
+            result.completeExceptionally(ex);
+        }
+        return result;
+    }
 }
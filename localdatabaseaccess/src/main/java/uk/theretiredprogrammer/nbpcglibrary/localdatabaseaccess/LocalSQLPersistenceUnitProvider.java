@@ -15,14 +15,21 @@
  */
 package uk.theretiredprogrammer.nbpcglibrary.localdatabaseaccess;
 
+import java.math.BigDecimal;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Savepoint;
 import java.sql.Statement;
-import static java.sql.Types.*;
+import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import uk.theretiredprogrammer.nbpcglibrary.api.EntityFields;
 import uk.theretiredprogrammer.nbpcglibrary.api.PersistenceUnitProvider;
@@ -30,6 +37,7 @@ import uk.theretiredprogrammer.nbpcglibrary.common.Event;
 import uk.theretiredprogrammer.nbpcglibrary.common.Listener;
 import uk.theretiredprogrammer.nbpcglibrary.common.LogBuilder;
 import uk.theretiredprogrammer.nbpcglibrary.api.LogicException;
+import uk.theretiredprogrammer.nbpcglibrary.localdatabaseaccess.ConnectionPool.PooledConnection;
 import static uk.theretiredprogrammer.nbpcglibrary.localdatabaseaccess.TransactionEventParams.TransactionRequest.BEGIN;
 import static uk.theretiredprogrammer.nbpcglibrary.localdatabaseaccess.TransactionEventParams.TransactionRequest.COMMIT;
 import static uk.theretiredprogrammer.nbpcglibrary.localdatabaseaccess.TransactionEventParams.TransactionRequest.ROLLBACK;
@@ -41,11 +49,32 @@ import static uk.theretiredprogrammer.nbpcglibrary.localdatabaseaccess.Transacti
  */
 public abstract class LocalSQLPersistenceUnitProvider implements PersistenceUnitProvider {
 
-    private Connection conn;
+    /**
+     * the default number of prepared statements held open on a connection
+     */
+    protected static final int DEFAULTSTATEMENTCACHESIZE = 100;
+    /**
+     * the default time to wait for a free connection (milliseconds)
+     */
+    protected static final long DEFAULTPOOLTIMEOUT = 30000;
+    /**
+     * the default number of rows fetched per round trip when streaming a query
+     */
+    protected static final int DEFAULTFETCHSIZE = 1000;
+    /**
+     * the table holding the next index value of each ordered table
+     */
+    static final String IDXSEQUENCETABLE = "idxsequences";
+    private ConnectionPool pool;
+    private int statementcachesize = DEFAULTSTATEMENTCACHESIZE;
+    private int fetchsize = DEFAULTFETCHSIZE;
     private final Event<TransactionEventParams> transactionEvent;
-    private boolean inTransaction = false;
+    private final ThreadLocal<PooledConnection> transactionconnection = new ThreadLocal<>();
+    private final ThreadLocal<UnitOfWork> unitofwork = new ThreadLocal<>();
+    private final ThreadLocal<Set<List<Object>>> transactionimages = new ThreadLocal<>();
     private final String name;
     private boolean operational = false;
+    private volatile boolean idxsequencetable = false;
 
     /**
      * Constructor.
@@ -75,13 +104,113 @@ public abstract class LocalSQLPersistenceUnitProvider implements PersistenceUnit
     }
 
     /**
-     * Set the database connection being used for this PersistenceUnitProvider.
+     * Get an integer configuration property.
+     *
+     * @param p the db connection parameters
+     * @param key the property name
+     * @param defaultvalue the value used if the property is not set
+     * @param min the minimum legal value
+     * @return the property value
+     * @throws IllegalArgumentException if the property is not a legal value
+     */
+    protected static int getIntProperty(Properties p, String key, int defaultvalue, int min) {
+        return (int) getLongProperty(p, key, defaultvalue, min, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Get a long integer configuration property.
+     *
+     * @param p the db connection parameters
+     * @param key the property name
+     * @param defaultvalue the value used if the property is not set
+     * @param min the minimum legal value
+     * @return the property value
+     * @throws IllegalArgumentException if the property is not a legal value
+     */
+    protected static long getLongProperty(Properties p, String key, long defaultvalue, long min) {
+        return getLongProperty(p, key, defaultvalue, min, Long.MAX_VALUE);
+    }
+
+    private static long getLongProperty(Properties p, String key, long defaultvalue, long min, long max) {
+        String value = p.getProperty(key);
+        if (value == null) {
+            return defaultvalue;
+        }
+        try {
+            long v = Long.parseLong(value.trim());
+            if (v >= min && v <= max) {
+                return v;
+            }
+        } catch (NumberFormatException ex) {
+            // reported below
+        }
+        throw new IllegalArgumentException("Illegal value for property " + key + " (" + value + ")");
+    }
+
+    /**
+     * Set the single database connection being used for this
+     * PersistenceUnitProvider. The connection is held in a pool of one
+     * connection, so all database access is serialised on it: a request waits
+     * for the connection (for up to 30 seconds) while it is in use by another
+     * thread, including while it is bound to another thread's transaction.
      *
      * @param conn the JDBC connection
      * @throws SQLException if problems in accessing database
      */
     protected final void setConnection(Connection conn) throws SQLException {
-        this.conn = conn;
+        pool = new ConnectionPool(name, conn, DEFAULTPOOLTIMEOUT, statementcachesize);
+    }
+
+    /**
+     * Set a pool of database connections to be used for this
+     * PersistenceUnitProvider. Connections are created as required, up to the
+     * pool size.
+     *
+     * @param factory the source of new connections
+     * @param poolsize the maximum number of connections
+     * @param timeout the maximum time to wait for a free connection
+     * (milliseconds)
+     */
+    protected final void setConnectionPool(ConnectionPool.ConnectionFactory factory, int poolsize, long timeout) {
+        pool = new ConnectionPool(name, factory, poolsize, timeout, statementcachesize);
+    }
+
+    /**
+     * Get the current statistics for the connection pool.
+     *
+     * @return the pool statistics
+     */
+    public ConnectionPool.Statistics getPoolStatistics() {
+        return pool.getStatistics();
+    }
+
+    /**
+     * Set the maximum number of prepared statements held open on each database
+     * connection. Must be called before the connection (or pool) is set.
+     *
+     * @param size the maximum number of cached statements
+     */
+    protected final void setStatementCacheSize(int size) {
+        statementcachesize = size;
+    }
+
+    /**
+     * Set the number of rows fetched per round trip when streaming a query.
+     *
+     * @param size the fetch size
+     */
+    protected final void setFetchSize(int size) {
+        fetchsize = size;
+    }
+
+    /**
+     * Get the JDBC fetch size to be used when streaming a query. Databases
+     * whose drivers need a special value to stream rows can override this.
+     *
+     * @return the fetch size
+     */
+    protected int getStreamingFetchSize() {
+        return fetchsize;
     }
 
     /**
@@ -115,83 +244,211 @@ public abstract class LocalSQLPersistenceUnitProvider implements PersistenceUnit
     }
 
     /**
-     * Mark the start of a Transaction unit.
+     * Mark the start of a Transaction unit. The transaction is bound to the
+     * calling thread; all database access from this thread uses the same
+     * connection until the transaction is committed or rolled back.
      */
     public void begin() {
         LogBuilder.writeLog("nbpcglib.localdatabaseaccess", this, "begin");
-        if (inTransaction) {
+        if (transactionconnection.get() != null) {
             throw new LogicException("begin() failed - already in transaction");
-        } else {
-            try {
-                conn.setAutoCommit(false);
-            } catch (SQLException ex) {
-                LogBuilder.create("nbpcglib.localdatabaseaccess", Level.SEVERE).addMethodName(this, "begin")
-                        .addExceptionMessage(ex).write();
-            }
-            inTransaction = true;
-            transactionEvent.fire(new TransactionEventParams(BEGIN));
+        }
+        PooledConnection pc;
+        try {
+            pc = pool.acquire();
+        } catch (SQLException ex) {
+            LogBuilder.create("nbpcglib.localdatabaseaccess", Level.SEVERE).addMethodName(this, "begin")
+                    .addExceptionMessage(ex).write();
+            throw new LogicException("begin() failed - " + ex.getMessage());
+        }
+        try {
+            pc.getConnection().setAutoCommit(false);
+        } catch (SQLException ex) {
+            LogBuilder.create("nbpcglib.localdatabaseaccess", Level.SEVERE).addMethodName(this, "begin")
+                    .addExceptionMessage(ex).write();
+        }
+        transactionconnection.set(pc);
+        transactionimages.set(new HashSet<>());
+        transactionEvent.fire(new TransactionEventParams(BEGIN));
+    }
+
+    /**
+     * Mark the start of a write behind Transaction unit.
+     *
+     * Updates and deletes made by this thread are not written when requested,
+     * but are recorded, with repeated changes to the same row merged. They
+     * are written, as batches, when the transaction is committed, when
+     * flush() is called or before any other database access by this thread
+     * (so that queries see the changes). Inserts are written immediately, as
+     * the generated key is required.
+     */
+    public void beginWriteBehind() {
+        begin();
+        unitofwork.set(new UnitOfWork());
+    }
+
+    /**
+     * Test if the calling thread is currently within a write behind
+     * transaction unit.
+     *
+     * @return true if in a write behind transaction
+     */
+    public boolean isWriteBehind() {
+        return unitofwork.get() != null;
+    }
+
+    /**
+     * Write the deferred changes of the calling thread's write behind
+     * transaction.
+     *
+     * @return the flush summary
+     */
+    public FlushSummary flush() {
+        LogBuilder.writeLog("nbpcglib.localdatabaseaccess", this, "flush");
+        UnitOfWork uow = unitofwork.get();
+        if (uow == null) {
+            throw new LogicException("flush() failed - not in write behind transaction");
+        }
+        return uow.flush();
+    }
+
+    /**
+     * Get the calling thread's unit of work.
+     *
+     * @return the unit of work, or null if not in a write behind transaction
+     */
+    UnitOfWork getUnitOfWork() {
+        return unitofwork.get();
+    }
+
+    /**
+     * Note that the cached image of a row has been changed. Within a
+     * transaction the row is recorded, so that its image can be forgotten if
+     * the transaction is rolled back.
+     *
+     * @param epp the row's table provider
+     * @param pkey the row's primary key
+     */
+    void imageChanged(LocalSQLEntityPersistenceProvider<?> epp, Object pkey) {
+        Set<List<Object>> images = transactionimages.get();
+        if (images != null) {
+            images.add(Arrays.asList(epp, pkey));
         }
     }
 
+    // forget the cached row images changed during the calling thread's transaction
+    private void forgetImages() {
+        transactionimages.get().stream().forEach((key) -> {
+            ((LocalSQLEntityPersistenceProvider<?>) key.get(0)).forget(key.get(1));
+        });
+    }
+
     /**
      * Mark the end of a transaction unit, commit all changes.
+     *
+     * For a write behind transaction the deferred changes are written first;
+     * if any deferred change has failed, or the commit itself fails, the
+     * transaction is rolled back instead (and the cached images of the rows
+     * changed are forgotten). The commit (or rollback) event reports the summary of all
+     * deferred changes written during the transaction.
      */
     public void commit() {
         LogBuilder.writeLog("nbpcglib.localdatabaseaccess", this, "commit");
-        if (inTransaction) {
-            try {
-                conn.commit();
-            } catch (SQLException ex) {
-                LogBuilder.create("nbpcglib.localdatabaseaccess", Level.SEVERE).addMethodName(this, "commit")
-                        .addExceptionMessage(ex).write();
-            }
-            transactionEvent.fire(new TransactionEventParams(COMMIT));
-            inTransaction = false;
-        } else {
+        PooledConnection pc = transactionconnection.get();
+        if (pc == null) {
             throw new LogicException("commit() failed - not in transaction");
         }
+        UnitOfWork uow = unitofwork.get();
+        if (uow != null) {
+            uow.flush();
+        }
+        FlushSummary summary = uow == null ? null : uow.getTotals();
+        if (summary != null && summary.hasErrors()) {
+            LogBuilder.create("nbpcglib.localdatabaseaccess", Level.SEVERE).addMethodName(this, "commit")
+                    .addMsg(summary.toString()).write();
+            abortCommit(pc, uow, summary);
+            throw new LogicException("commit() failed - deferred changes could not be written: " + summary.getErrors());
+        }
+        try {
+            pc.getConnection().commit();
+        } catch (SQLException ex) {
+            LogBuilder.create("nbpcglib.localdatabaseaccess", Level.SEVERE).addMethodName(this, "commit")
+                    .addExceptionMessage(ex).write();
+            abortCommit(pc, uow, summary);
+            throw new LogicException("commit() failed - " + ex.getMessage());
+        }
+        endTransaction(pc);
+        transactionEvent.fire(new TransactionEventParams(COMMIT, summary));
+    }
+
+    // a failed commit - the transaction's changes are rolled back and its unit of work and row images discarded
+    private void abortCommit(PooledConnection pc, UnitOfWork uow, FlushSummary summary) {
+        try {
+            pc.getConnection().rollback();
+        } catch (SQLException ex) {
+            LogBuilder.create("nbpcglib.localdatabaseaccess", Level.SEVERE).addMethodName(this, "commit")
+                    .addExceptionMessage(ex).write();
+        }
+        if (uow != null) {
+            uow.discard();
+        }
+        forgetImages();
+        endTransaction(pc);
+        transactionEvent.fire(new TransactionEventParams(ROLLBACK, summary));
     }
 
     /**
-     * Mark the end of a transaction unit, rollback all changes.
+     * Mark the end of a transaction unit, rollback all changes. The cached
+     * images of all rows changed (or read) during the transaction are
+     * forgotten, as they may hold values which have been rolled back.
      */
     public void rollback() {
         LogBuilder.writeLog("nbpcglib.localdatabaseaccess", this, "rollback");
-        if (inTransaction) {
-            try {
-                conn.rollback();
-            } catch (SQLException ex) {
-                LogBuilder.create("nbpcglib.localdatabaseaccess", Level.SEVERE).addMethodName(this, "rollback")
-                        .addExceptionMessage(ex).write();
-            }
-            transactionEvent.fire(new TransactionEventParams(ROLLBACK));
-            inTransaction = false;
-        } else {
+        PooledConnection pc = transactionconnection.get();
+        if (pc == null) {
             throw new LogicException("rollback() failed - not in transaction");
         }
+        UnitOfWork uow = unitofwork.get();
+        if (uow != null) {
+            uow.discard();
+        }
+        FlushSummary summary = uow == null ? null : uow.getTotals();
+        try {
+            pc.getConnection().rollback();
+        } catch (SQLException ex) {
+            LogBuilder.create("nbpcglib.localdatabaseaccess", Level.SEVERE).addMethodName(this, "rollback")
+                    .addExceptionMessage(ex).write();
+        }
+        forgetImages();
+        endTransaction(pc);
+        transactionEvent.fire(new TransactionEventParams(ROLLBACK, summary));
     }
 
-    /**
-     * Test if we are currently within an active transaction unit.
-     *
-     * @return true if in transaction
-     */
+    private void endTransaction(PooledConnection pc) {
+        transactionconnection.remove();
+        unitofwork.remove();
+        transactionimages.remove();
+        try {
+            pc.getConnection().setAutoCommit(true);
+        } catch (SQLException ex) {
+            LogBuilder.create("nbpcglib.localdatabaseaccess", Level.SEVERE).addMethodName(this, "endTransaction")
+                    .addExceptionMessage(ex).write();
+        }
+        pool.release(pc);
+    }
+
+    @Override
     public boolean isInTransaction() {
-        return inTransaction;
+        return transactionconnection.get() != null;
     }
 
     /**
-     * Disconnect from the current database connection.
+     * Disconnect from the database, closing all pooled connections.
      */
     public void disconnect() {
-        try {
-            conn.close();
-        } catch (SQLException ex) {
-            LogBuilder.create("nbpcglib.localdatabaseaccess", Level.SEVERE).addMethodName(this, "disconnect")
-                    .addExceptionMessage(ex).write();
-        }
+        pool.close();
     }
-    
+
     /**
      * Execute an Insert, Update or Delete query on the database.
      *
@@ -199,61 +456,338 @@ public abstract class LocalSQLPersistenceUnitProvider implements PersistenceUnit
      * @return the number of records changed due to the query
      * @throws SQLException if problems
      */
-    public synchronized int execute(String sql) throws SQLException {
-        int res;
-        try (Statement stat = conn.createStatement()) {
-            res = stat.executeUpdate(sql);
+    public int execute(String sql) throws SQLException {
+        PooledConnection pc = acquire();
+        try (Statement stat = pc.getConnection().createStatement()) {
+            return stat.executeUpdate(sql);
+        } finally {
+            release(pc);
         }
-        return res;
     }
-    
+
+    /**
+     * Create the idx sequence table, if it does not already exist. The table
+     * is created when first required, so it should be created in advance if
+     * the database (for example MySQL) commits a transaction when a table is
+     * created and index values may first be reserved within a transaction:
+     * <pre>CREATE TABLE idxsequences(tablename VARCHAR(100) PRIMARY KEY, nextidx INTEGER NOT NULL)</pre>
+     *
+     * @throws SQLException if problems
+     */
+    void createIdxSequenceTable() throws SQLException {
+        if (!idxsequencetable) {
+            execute("CREATE TABLE IF NOT EXISTS " + IDXSEQUENCETABLE
+                    + "(tablename VARCHAR(100) PRIMARY KEY, nextidx INTEGER NOT NULL)");
+            idxsequencetable = true;
+        }
+    }
+
     /**
      * Execute a query and return the columns returned as a set of EntityFields
      * @param sql the SQL statement to be executed
      * @return a list of EntityFields
      * @throws SQLException if problems
      */
-    public synchronized List<EntityFields> query(String sql) throws SQLException {
+    public List<EntityFields> query(String sql) throws SQLException {
+        PooledConnection pc = acquire();
         List<EntityFields> efs = new ArrayList<>();
-        try (Statement stat = conn.createStatement()) {
-            ResultSet rs = stat.executeQuery(sql);
-            ResultSetMetaData rsmd = rs.getMetaData();
+        try (Statement stat = pc.getConnection().createStatement(); ResultSet rs = stat.executeQuery(sql)) {
+            RowDecoder decoder = RowDecoder.compile(rs.getMetaData());
             while (rs.next()) {
-                efs.add(createEntityFields(rs,rsmd));
+                efs.add(decoder.decode(rs));
             }
+        } finally {
+            release(pc);
         }
         return efs;
     }
-    
-    private EntityFields createEntityFields(ResultSet rs, ResultSetMetaData meta) throws SQLException {
-        EntityFields ef = new EntityFields();
-        int colcount = meta.getColumnCount();
-        for (int i = 1; i<= colcount; i++){
-            switch (meta.getColumnType(i)) {
-                case CHAR:
-                case VARCHAR:
-                    ef.put(meta.getColumnName(i), rs.getString(i));
-                    break;
-                case BOOLEAN:
-                case TINYINT:
-                case BIT:
-                    ef.put(meta.getColumnName(i), rs.getBoolean(i));
-                    break;
-                case BIGINT:
-                    ef.put(meta.getColumnName(i), rs.getLong(i));
-                    break;
-                case DECIMAL:
-                    ef.put(meta.getColumnName(i), rs.getBigDecimal(i));
-                    break;
-                default:
-                    int val = rs.getInt(i);
-                    if (rs.wasNull()) {
-                        ef.put(meta.getColumnName(i), null);
-                    } else {
-                        ef.put(meta.getColumnName(i), val);
+
+    /**
+     * Execute a parameterised Insert, Update or Delete query on the database.
+     *
+     * The statement is prepared once per connection and reused for all later
+     * executions with the same SQL text.
+     *
+     * @param sql the SQL statement, with ? markers for each parameter
+     * @param parameters the parameter values (in marker order)
+     * @return the number of records changed due to the query
+     * @throws SQLException if problems
+     */
+    public int execute(String sql, List<Object> parameters) throws SQLException {
+        PooledConnection pc = acquire();
+        PreparedStatement stat = null;
+        try {
+            stat = pc.getStatements().prepare(sql);
+            setParameters(stat, parameters);
+            return stat.executeUpdate();
+        } catch (SQLException ex) {
+            discard(pc, stat);
+            throw ex;
+        } finally {
+            release(pc);
+        }
+    }
+
+    /**
+     * Execute a parameterised Insert on the database, returning the auto
+     * generated key of the inserted row.
+     *
+     * @param sql the SQL statement, with ? markers for each parameter
+     * @param parameters the parameter values (in marker order)
+     * @return the generated key (or null if no key was generated)
+     * @throws SQLException if problems
+     */
+    public Object executeInsert(String sql, List<Object> parameters) throws SQLException {
+        PooledConnection pc = acquire();
+        PreparedStatement stat = null;
+        try {
+            stat = pc.getStatements().prepareReturningKeys(sql);
+            setParameters(stat, parameters);
+            stat.executeUpdate();
+            try (ResultSet rs = stat.getGeneratedKeys()) {
+                return rs.next() ? rs.getObject(1) : null;
+            }
+        } catch (SQLException ex) {
+            discard(pc, stat);
+            throw ex;
+        } finally {
+            release(pc);
+        }
+    }
+
+    /**
+     * Execute a parameterised Insert, Update or Delete statement for a batch
+     * of rows, using a JDBC batch. The batch is atomic: if any row fails, all
+     * of the batch's changes are rolled back (to a savepoint if within a
+     * transaction) and the exception is thrown.
+     *
+     * @param sql the SQL statement, with ? markers for each parameter
+     * @param rows the parameter values for each row (in marker order)
+     * @param returnkeys true if the auto generated keys are to be returned
+     * @return the generated key for each row (if returnkeys), else the number
+     * of records changed by each row
+     * @throws SQLException if problems
+     */
+    public List<Object> executeBatch(String sql, List<List<Object>> rows, boolean returnkeys) throws SQLException {
+        PooledConnection pc = acquire();
+        Connection conn = pc.getConnection();
+        boolean intransaction = pc == transactionconnection.get();
+        Savepoint savepoint = null;
+        PreparedStatement stat = null;
+        try {
+            if (intransaction) {
+                savepoint = conn.setSavepoint();
+            } else {
+                conn.setAutoCommit(false);
+            }
+            stat = returnkeys ? pc.getStatements().prepareReturningKeys(sql) : pc.getStatements().prepare(sql);
+            stat.clearParameters();
+            for (List<Object> row : rows) {
+                // parameters are not cleared between rows, some drivers (eg SQLite) discard the batch's rows if they are
+                bindParameters(stat, row);
+                stat.addBatch();
+            }
+            int[] counts = stat.executeBatch();
+            List<Object> results = new ArrayList<>(rows.size());
+            if (returnkeys) {
+                results.addAll(getGeneratedKeys(stat, rows.size()));
+                if (results.size() != rows.size()) {
+                    throw new SQLException("executeBatch() - " + rows.size() + " generated keys expected, " + results.size() + " returned");
+                }
+            } else {
+                for (int count : counts) {
+                    results.add(count == Statement.SUCCESS_NO_INFO ? 1 : count);
+                }
+            }
+            if (intransaction) {
+                conn.releaseSavepoint(savepoint);
+            } else {
+                conn.commit();
+            }
+            return results;
+        } catch (SQLException ex) {
+            discard(pc, stat);
+            // a failure to roll back is reported with, not instead of, the batch failure
+            try {
+                if (intransaction) {
+                    if (savepoint != null) {
+                        conn.rollback(savepoint);
                     }
+                } else {
+                    conn.rollback();
+                }
+            } catch (SQLException rollbackex) {
+                ex.addSuppressed(rollbackex);
+            }
+            throw ex;
+        } finally {
+            if (!intransaction) {
+                try {
+                    conn.setAutoCommit(true);
+                } catch (SQLException ex) {
+                    LogBuilder.create("nbpcglib.localdatabaseaccess", Level.SEVERE).addMethodName(this, "executeBatch")
+                            .addExceptionMessage(ex).write();
+                }
+            }
+            release(pc);
+        }
+    }
+
+    /**
+     * Execute a parameterised query and return the columns returned as a set
+     * of EntityFields.
+     *
+     * The statement is prepared once per connection and reused for all later
+     * executions with the same SQL text.
+     *
+     * @param sql the SQL statement, with ? markers for each parameter
+     * @param parameters the parameter values (in marker order)
+     * @return a list of EntityFields
+     * @throws SQLException if problems
+     */
+    public List<EntityFields> query(String sql, List<Object> parameters) throws SQLException {
+        PooledConnection pc = acquire();
+        List<EntityFields> efs = new ArrayList<>();
+        PreparedStatement stat = null;
+        try {
+            stat = pc.getStatements().prepare(sql);
+            setParameters(stat, parameters);
+            try (ResultSet rs = stat.executeQuery()) {
+                RowDecoder decoder = RowDecoder.compile(rs.getMetaData());
+                while (rs.next()) {
+                    efs.add(decoder.decode(rs));
+                }
+            }
+        } catch (SQLException ex) {
+            discard(pc, stat);
+            throw ex;
+        } finally {
+            release(pc);
+        }
+        return efs;
+    }
+
+    /**
+     * Execute a parameterised query and pass each row returned to a row
+     * processor, as it is read. Rows are fetched from the database in blocks
+     * of the fetch size, so the whole result is never held in memory.
+     *
+     * The connection is held until all rows have been processed. Some drivers
+     * (eg MySQL) cannot run other statements on that connection until then, so
+     * the row processor should not access this database from within a
+     * transaction.
+     *
+     * @param sql the SQL statement, with ? markers for each parameter
+     * @param parameters the parameter values (in marker order)
+     * @param rowprocessor the processor called for each row
+     * @return the number of rows processed
+     * @throws SQLException if problems
+     */
+    public int query(String sql, List<Object> parameters, Consumer<EntityFields> rowprocessor) throws SQLException {
+        PooledConnection pc = acquire();
+        int count = 0;
+        try (PreparedStatement stat = pc.getConnection().prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            stat.setFetchSize(getStreamingFetchSize());
+            setParameters(stat, parameters);
+            try (ResultSet rs = stat.executeQuery()) {
+                RowDecoder decoder = RowDecoder.compile(rs.getMetaData());
+                while (rs.next()) {
+                    rowprocessor.accept(decoder.decode(rs));
+                    count++;
+                }
+            }
+        } finally {
+            release(pc);
+        }
+        return count;
+    }
+
+    // use the calling thread's transaction connection, if any, else borrow one from the pool
+    // (writing any deferred changes first, so that they are seen by this access)
+    private PooledConnection acquire() throws SQLException {
+        PooledConnection pc = transactionconnection.get();
+        if (pc == null) {
+            return pool.acquire();
+        }
+        UnitOfWork uow = unitofwork.get();
+        if (uow != null && !uow.isEmpty()) {
+            FlushSummary summary = uow.flush();
+            if (summary.hasErrors()) {
+                throw new SQLException("deferred changes could not be written: " + summary.getErrors());
             }
         }
-        return ef;
+        return pc;
+    }
+
+    // a failed statement is not reused
+    private void discard(PooledConnection pc, PreparedStatement stat) {
+        if (stat != null) {
+            pc.getStatements().discard(stat);
+        }
+    }
+
+    private void release(PooledConnection pc) {
+        if (pc != transactionconnection.get()) {
+            pool.release(pc);
+        }
+    }
+
+    private void setParameters(PreparedStatement stat, List<Object> parameters) throws SQLException {
+        stat.clearParameters();
+        bindParameters(stat, parameters);
+    }
+
+    private void bindParameters(PreparedStatement stat, List<Object> parameters) throws SQLException {
+        int i = 1;
+        for (Object parameter : parameters) {
+            setParameter(stat, i++, parameter);
+        }
+    }
+
+    /**
+     * Get the auto generated keys of the rows inserted by a JDBC batch.
+     * Databases whose drivers do not return a key for every row of a batch
+     * can override this.
+     *
+     * @param stat the executed prepared statement
+     * @param rows the number of rows in the batch
+     * @return the generated key for each row
+     * @throws SQLException if problems
+     */
+    protected List<Object> getGeneratedKeys(PreparedStatement stat, int rows) throws SQLException {
+        List<Object> keys = new ArrayList<>(rows);
+        try (ResultSet rs = stat.getGeneratedKeys()) {
+            while (rs.next()) {
+                keys.add(rs.getObject(1));
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Bind a single parameter value to a prepared statement. Databases
+     * requiring specific handling of data types can override this.
+     *
+     * @param stat the prepared statement
+     * @param index the parameter index (1 based)
+     * @param value the parameter value
+     * @throws SQLException if problems
+     */
+    protected void setParameter(PreparedStatement stat, int index, Object value) throws SQLException {
+        if (value == null) {
+            stat.setNull(index, Types.NULL);
+        } else if (value instanceof String) {
+            stat.setString(index, (String) value);
+        } else if (value instanceof Integer) {
+            stat.setInt(index, (Integer) value);
+        } else if (value instanceof Long) {
+            stat.setLong(index, (Long) value);
+        } else if (value instanceof Boolean) {
+            stat.setBoolean(index, (Boolean) value);
+        } else if (value instanceof BigDecimal) {
+            stat.setBigDecimal(index, (BigDecimal) value);
+        } else {
+            stat.setObject(index, value);
+        }
     }
 }
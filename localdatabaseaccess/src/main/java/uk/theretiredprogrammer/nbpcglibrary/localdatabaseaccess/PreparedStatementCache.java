@@ -0,0 +1,127 @@
+/*
+ * Copyright 2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.localdatabaseaccess;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import uk.theretiredprogrammer.nbpcglibrary.common.LogBuilder;
+
+/**
+ * A cache of the PreparedStatements for a single database connection, keyed
+ * by the SQL statement text. The least recently used statement is closed and
+ * removed when the cache is full.
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ */
+class PreparedStatementCache {
+
+    private final Connection conn;
+    private final int maxstatements;
+    private final Map<String, PreparedStatement> statements;
+
+    /**
+     * Constructor.
+     *
+     * @param conn the connection on which statements are prepared
+     * @param maxstatements the maximum number of statements to hold open
+     */
+    PreparedStatementCache(Connection conn, int maxstatements) {
+        this.conn = conn;
+        this.maxstatements = maxstatements;
+        statements = new LinkedHashMap<String, PreparedStatement>(maxstatements + 1, 1.0F, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() > PreparedStatementCache.this.maxstatements) {
+                    close(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Get the PreparedStatement for an SQL statement, preparing it if it is
+     * not already cached.
+     *
+     * @param sql the SQL statement (with ? parameter markers)
+     * @return the prepared statement
+     * @throws SQLException if problems
+     */
+    PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement stat = statements.get(sql);
+        if (stat == null) {
+            stat = conn.prepareStatement(sql);
+            statements.put(sql, stat);
+        }
+        return stat;
+    }
+
+    /**
+     * Get the PreparedStatement for an SQL insert statement which returns its
+     * auto generated keys, preparing it if it is not already cached.
+     *
+     * @param sql the SQL statement (with ? parameter markers)
+     * @return the prepared statement
+     * @throws SQLException if problems
+     */
+    PreparedStatement prepareReturningKeys(String sql) throws SQLException {
+        String key = "KEYS:" + sql;
+        PreparedStatement stat = statements.get(key);
+        if (stat == null) {
+            stat = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+            statements.put(key, stat);
+        }
+        return stat;
+    }
+
+    /**
+     * Close and remove a statement which has failed. Some drivers (eg SQLite)
+     * leave a statement unusable after a failure, so it is prepared again
+     * when next required.
+     *
+     * @param stat the failed statement
+     */
+    void discard(PreparedStatement stat) {
+        if (statements.values().remove(stat)) {
+            close(stat);
+        }
+    }
+
+    /**
+     * Close all cached statements and empty the cache.
+     */
+    void closeAll() {
+        statements.values().stream().forEach((stat) -> {
+            close(stat);
+        });
+        statements.clear();
+    }
+
+    private void close(PreparedStatement stat) {
+        try {
+            stat.close();
+        } catch (SQLException ex) {
+            LogBuilder.create("nbpcglib.localdatabaseaccess", Level.WARNING).addMethodName(this, "close")
+                    .addExceptionMessage(ex).write();
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.localdatabaseaccess;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import static java.sql.Types.*;
+import java.util.HashSet;
+import java.util.Set;
+import uk.theretiredprogrammer.nbpcglibrary.api.EntityFields;
+import uk.theretiredprogrammer.nbpcglibrary.api.RowSchema;
+import uk.theretiredprogrammer.nbpcglibrary.api.RowSchema.ColumnType;
+
+/**
+ * Converts the rows of a ResultSet into EntityFields. The ResultSet metadata
+ * is read once, when the decoder is compiled, into a row schema and a reader
+ * for each column; decoding a row then makes no metadata calls.
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ */
+class RowDecoder {
+
+    @FunctionalInterface
+    private interface ColumnReader {
+
+        void read(ResultSet rs, EntityFields ef) throws SQLException;
+    }
+
+    private final RowSchema schema;
+    private final ColumnReader[] readers;
+
+    private RowDecoder(RowSchema schema, ColumnReader[] readers) {
+        this.schema = schema;
+        this.readers = readers;
+    }
+
+    /**
+     * Compile the decoder for a ResultSet.
+     *
+     * @param meta the ResultSet metadata
+     * @return the decoder
+     * @throws SQLException if problems
+     */
+    static RowDecoder compile(ResultSetMetaData meta) throws SQLException {
+        int colcount = meta.getColumnCount();
+        String[] names = new String[colcount];
+        int[] sqltypes = new int[colcount];
+        ColumnType[] types = new ColumnType[colcount];
+        Set<String> unique = new HashSet<>();
+        for (int i = 0; i < colcount; i++) {
+            names[i] = meta.getColumnName(i + 1);
+            sqltypes[i] = meta.getColumnType(i + 1);
+            types[i] = columnType(sqltypes[i]);
+            unique.add(names[i]);
+        }
+        // duplicate column names cannot share a schema - use schema-less rows
+        RowSchema schema = unique.size() == colcount ? RowSchema.of(names, types) : null;
+        ColumnReader[] readers = new ColumnReader[colcount];
+        for (int i = 0; i < colcount; i++) {
+            readers[i] = schema == null ? namedReader(i + 1, names[i], sqltypes[i]) : columnReader(i + 1, i, sqltypes[i]);
+        }
+        return new RowDecoder(schema, readers);
+    }
+
+    /**
+     * Decode the current row of a ResultSet.
+     *
+     * @param rs the ResultSet
+     * @return the row
+     * @throws SQLException if problems
+     */
+    EntityFields decode(ResultSet rs) throws SQLException {
+        EntityFields ef = new EntityFields(schema);
+        for (ColumnReader reader : readers) {
+            reader.read(rs, ef);
+        }
+        return ef;
+    }
+
+    private static ColumnType columnType(int sqltype) {
+        switch (sqltype) {
+            case BOOLEAN:
+            case TINYINT:
+            case BIT:
+                return ColumnType.BOOLEAN;
+            case BIGINT:
+                return ColumnType.LONG;
+            case CHAR:
+            case VARCHAR:
+            case DECIMAL:
+                return ColumnType.OBJECT;
+            default:
+                return ColumnType.INT;
+        }
+    }
+
+    private static ColumnReader columnReader(int i, int column, int sqltype) {
+        switch (sqltype) {
+            case CHAR:
+            case VARCHAR:
+                return (rs, ef) -> ef.set(column, rs.getString(i));
+            case BOOLEAN:
+            case TINYINT:
+            case BIT:
+                return (rs, ef) -> ef.setBoolean(column, rs.getBoolean(i));
+            case BIGINT:
+                return (rs, ef) -> ef.setLong(column, rs.getLong(i));
+            case DECIMAL:
+                return (rs, ef) -> ef.set(column, rs.getBigDecimal(i));
+            default:
+                return (rs, ef) -> {
+                    int val = rs.getInt(i);
+                    if (rs.wasNull()) {
+                        ef.setNull(column);
+                    } else {
+                        ef.setInt(column, val);
+                    }
+                };
+        }
+    }
+
+    private static ColumnReader namedReader(int i, String name, int sqltype) {
+        switch (sqltype) {
+            case CHAR:
+            case VARCHAR:
+                return (rs, ef) -> ef.put(name, rs.getString(i));
+            case BOOLEAN:
+            case TINYINT:
+            case BIT:
+                return (rs, ef) -> ef.put(name, rs.getBoolean(i));
+            case BIGINT:
+                return (rs, ef) -> ef.put(name, rs.getLong(i));
+            case DECIMAL:
+                return (rs, ef) -> ef.put(name, rs.getBigDecimal(i));
+            default:
+                return (rs, ef) -> {
+                    int val = rs.getInt(i);
+                    ef.put(name, rs.wasNull() ? null : val);
+                };
+        }
+    }
+}
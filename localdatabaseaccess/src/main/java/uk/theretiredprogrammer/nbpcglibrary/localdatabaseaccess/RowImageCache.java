@@ -0,0 +1,86 @@
+/*
+ * Copyright 2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.localdatabaseaccess;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import uk.theretiredprogrammer.nbpcglibrary.api.EntityFields;
+
+/**
+ * A bounded LRU cache of the last known column values of rows, keyed by
+ * primary key. Used to rebuild the full row after an update without reading
+ * it back from the database.
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ * @param <K> the Primary Key Class
+ */
+class RowImageCache<K> {
+
+    private final LinkedHashMap<K, EntityFields> images;
+
+    /**
+     * Constructor.
+     *
+     * @param maxrows the maximum number of row images held
+     */
+    RowImageCache(int maxrows) {
+        images = new LinkedHashMap<K, EntityFields>(16, 0.75F, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, EntityFields> eldest) {
+                return size() > maxrows;
+            }
+        };
+    }
+
+    /**
+     * Record the current image of a row.
+     *
+     * @param pkey the row's primary key
+     * @param row the row's column values
+     */
+    synchronized void put(K pkey, EntityFields row) {
+        EntityFields image = new EntityFields(row.getSchema());
+        image.putAll(row);
+        images.put(pkey, image);
+    }
+
+    /**
+     * Apply changes to a cached row image, returning the updated row.
+     *
+     * @param pkey the row's primary key
+     * @param diff the changed column values
+     * @return a copy of the updated row, or null if the row is not cached
+     */
+    synchronized EntityFields update(K pkey, EntityFields diff) {
+        EntityFields image = images.get(pkey);
+        if (image == null) {
+            return null;
+        }
+        image.putAll(diff);
+        EntityFields row = new EntityFields(image.getSchema());
+        row.putAll(image);
+        return row;
+    }
+
+    /**
+     * Forget a row image.
+     *
+     * @param pkey the row's primary key
+     */
+    synchronized void remove(K pkey) {
+        images.remove(pkey);
+    }
+}
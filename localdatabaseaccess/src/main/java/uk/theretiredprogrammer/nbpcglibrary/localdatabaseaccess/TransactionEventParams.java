@@ -45,6 +45,7 @@ public class TransactionEventParams implements EventParams {
     }
     //
     private final TransactionRequest type;
+    private final FlushSummary flushsummary;
 
     /**
      * Constructor.
@@ -52,7 +53,19 @@ public class TransactionEventParams implements EventParams {
      * @param type the transaction type
      */
     public TransactionEventParams(TransactionRequest type) {
+        this(type, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param type the transaction type
+     * @param flushsummary the summary of the deferred changes written (or
+     * null if the transaction did not defer its changes)
+     */
+    public TransactionEventParams(TransactionRequest type, FlushSummary flushsummary) {
         this.type = type;
+        this.flushsummary = flushsummary;
     }
 
     /**
@@ -64,8 +77,19 @@ public class TransactionEventParams implements EventParams {
         return type;
     }
 
+    /**
+     * Get the summary of the deferred changes written by a write behind
+     * transaction.
+     *
+     * @return the flush summary (or null if the transaction did not defer its
+     * changes, or has not ended)
+     */
+    public FlushSummary getFlushSummary() {
+        return flushsummary;
+    }
+
     @Override
     public String instanceDescription() {
-        return LogBuilder.instanceDescription(this, type.toString());
+        return LogBuilder.instanceDescription(this, flushsummary == null ? type.toString() : type + " " + flushsummary);
     }
 }
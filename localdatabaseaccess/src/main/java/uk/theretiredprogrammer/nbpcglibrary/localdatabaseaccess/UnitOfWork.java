@@ -0,0 +1,179 @@
+/*
+ * Copyright 2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.localdatabaseaccess;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import uk.theretiredprogrammer.nbpcglibrary.api.BatchResult;
+import uk.theretiredprogrammer.nbpcglibrary.api.EntityFields;
+import uk.theretiredprogrammer.nbpcglibrary.api.LogicException;
+
+/**
+ * The deferred changes of a write behind transaction.
+ *
+ * Only the latest change to each row is held: repeated updates are merged
+ * into a single update, and a delete replaces any pending update. Changes
+ * are flushed in the order in which rows were first changed, with runs of
+ * similar changes to the same table passed to the provider as one batch.
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ */
+class UnitOfWork {
+
+    private static class PendingChange {
+
+        private final LocalSQLEntityPersistenceProvider<?> epp;
+        private final Object pkey;
+        private final EntityFields diff; // null if a delete
+
+        PendingChange(LocalSQLEntityPersistenceProvider<?> epp, Object pkey, EntityFields diff) {
+            this.epp = epp;
+            this.pkey = pkey;
+            this.diff = diff;
+        }
+
+        boolean isSimilar(PendingChange other) {
+            return epp == other.epp && (diff == null) == (other.diff == null);
+        }
+    }
+
+    private final Map<List<Object>, PendingChange> pending = new LinkedHashMap<>();
+    private int coalesced = 0;
+    private int totalupdates = 0;
+    private int totaldeletes = 0;
+    private int totalcoalesced = 0;
+    private int totalbatches = 0;
+    private final List<String> totalerrors = new ArrayList<>();
+
+    /**
+     * Record an update of a row.
+     *
+     * @param epp the row's table provider
+     * @param pkey the row's primary key
+     * @param diff the changed column values
+     */
+    void update(LocalSQLEntityPersistenceProvider<?> epp, Object pkey, EntityFields diff) {
+        List<Object> key = Arrays.asList(epp, pkey);
+        PendingChange change = pending.get(key);
+        if (change == null) {
+            EntityFields copy = new EntityFields();
+            copy.putAll(diff);
+            pending.put(key, new PendingChange(epp, pkey, copy));
+        } else if (change.diff == null) {
+            throw new LogicException("UnitOfWork - update of a deleted row (" + pkey + ")");
+        } else {
+            change.diff.putAll(diff);
+            coalesced++;
+        }
+    }
+
+    /**
+     * Record a delete of a row.
+     *
+     * @param epp the row's table provider
+     * @param pkey the row's primary key
+     */
+    void delete(LocalSQLEntityPersistenceProvider<?> epp, Object pkey) {
+        List<Object> key = Arrays.asList(epp, pkey);
+        if (pending.remove(key) != null) {
+            coalesced++;
+        }
+        pending.put(key, new PendingChange(epp, pkey, null));
+    }
+
+    /**
+     * Test if there are any deferred changes.
+     *
+     * @return true if no changes are waiting to be flushed
+     */
+    boolean isEmpty() {
+        return pending.isEmpty();
+    }
+
+    /**
+     * Discard all deferred changes. (The cached images of the changed rows are
+     * forgotten by the persistence unit provider when the transaction is
+     * rolled back.)
+     */
+    void discard() {
+        pending.clear();
+        coalesced = 0;
+    }
+
+    /**
+     * Write all deferred changes. The pending changes are taken before any
+     * are written, so database access made while flushing does not flush
+     * again.
+     *
+     * @return the flush summary
+     */
+    FlushSummary flush() {
+        List<PendingChange> changes = new ArrayList<>(pending.values());
+        pending.clear();
+        int merged = coalesced;
+        coalesced = 0;
+        int updates = 0;
+        int deletes = 0;
+        int batches = 0;
+        List<String> errors = new ArrayList<>();
+        int from = 0;
+        while (from < changes.size()) {
+            PendingChange first = changes.get(from);
+            int to = from + 1;
+            while (to < changes.size() && changes.get(to).isSimilar(first)) {
+                to++;
+            }
+            List<Object> pkeys = new ArrayList<>(to - from);
+            List<EntityFields> diffs = first.diff == null ? null : new ArrayList<>(to - from);
+            for (PendingChange change : changes.subList(from, to)) {
+                pkeys.add(change.pkey);
+                if (diffs != null) {
+                    diffs.add(change.diff);
+                }
+            }
+            BatchResult result = first.epp.flush(pkeys, diffs);
+            batches++;
+            for (int i = 0; i < result.size(); i++) {
+                if (!result.isSuccess(i)) {
+                    errors.add(pkeys.get(i) + ": " + result.getError(i));
+                } else if (diffs == null) {
+                    deletes++;
+                } else {
+                    updates++;
+                }
+            }
+            from = to;
+        }
+        totalupdates += updates;
+        totaldeletes += deletes;
+        totalcoalesced += merged;
+        totalbatches += batches;
+        totalerrors.addAll(errors);
+        return new FlushSummary(updates, deletes, merged, batches, errors);
+    }
+
+    /**
+     * Get the summary of all flushes made by this unit of work.
+     *
+     * @return the flush summary
+     */
+    FlushSummary getTotals() {
+        return new FlushSummary(totalupdates, totaldeletes, totalcoalesced, totalbatches, new ArrayList<>(totalerrors));
+    }
+}
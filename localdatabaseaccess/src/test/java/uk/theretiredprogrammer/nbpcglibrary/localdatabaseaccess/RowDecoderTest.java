@@ -0,0 +1,198 @@
+/*
+ * Copyright 2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.localdatabaseaccess;
+
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import static java.sql.Types.*;
+import java.util.ArrayList;
+import java.util.List;
+import javax.sql.rowset.CachedRowSet;
+import javax.sql.rowset.RowSetMetaDataImpl;
+import javax.sql.rowset.RowSetProvider;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import uk.theretiredprogrammer.nbpcglibrary.api.EntityFields;
+
+/**
+ * Test and benchmark of the RowDecoder, against the previous per cell
+ * metadata based decoding.
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ */
+public class RowDecoderTest {
+
+    private static final int COLUMNS = 40;
+    private static final int ROWS = 20000;
+    private static final int PASSES = 10;
+    private static CachedRowSet widetable;
+
+    /**
+     * Constructor
+     */
+    public RowDecoderTest() {
+    }
+
+    /**
+     * Setup class - build an in memory wide table
+     *
+     * @throws SQLException if problems
+     */
+    @BeforeClass
+    public static void setUpClass() throws SQLException {
+        int[] types = new int[]{INTEGER, VARCHAR, BIGINT, BIT, DECIMAL};
+        RowSetMetaDataImpl meta = new RowSetMetaDataImpl();
+        meta.setColumnCount(COLUMNS);
+        for (int c = 1; c <= COLUMNS; c++) {
+            meta.setColumnName(c, c == 1 ? "id" : "col" + c);
+            meta.setColumnType(c, types[(c - 1) % types.length]);
+            meta.setNullable(c, ResultSetMetaData.columnNullable);
+        }
+        widetable = RowSetProvider.newFactory().createCachedRowSet();
+        widetable.setMetaData(meta);
+        for (int r = 0; r < ROWS; r++) {
+            widetable.moveToInsertRow();
+            for (int c = 1; c <= COLUMNS; c++) {
+                switch (types[(c - 1) % types.length]) {
+                    case INTEGER:
+                        if (r % 10 == 0 && c > 1) {
+                            widetable.updateNull(c);
+                        } else {
+                            widetable.updateInt(c, r * COLUMNS + c);
+                        }
+                        break;
+                    case VARCHAR:
+                        widetable.updateString(c, "value " + r);
+                        break;
+                    case BIGINT:
+                        widetable.updateLong(c, r * 1000000000L);
+                        break;
+                    case BIT:
+                        widetable.updateBoolean(c, r % 2 == 0);
+                        break;
+                    default:
+                        widetable.updateBigDecimal(c, BigDecimal.valueOf(r, 2));
+                }
+            }
+            widetable.insertRow();
+            widetable.moveToCurrentRow();
+        }
+    }
+
+    /**
+     * Test that the RowDecoder produces the same rows as the previous per
+     * cell decoding.
+     *
+     * @throws SQLException if problems
+     */
+    @Test
+    public void testDecode() throws SQLException {
+        System.out.println("decode");
+        List<EntityFields> before = decodePerCell(widetable);
+        List<EntityFields> after = decode(widetable);
+        assertEquals(ROWS, after.size());
+        assertEquals(before, after);
+        for (EntityFields ef : after) {
+            assertNotNull(ef.getSchema());
+            int r = (ef.getInt("id") - 1) / COLUMNS;
+            assertEquals(r % 10 == 0, ef.get("col6") == null);
+            assertEquals(r * 1000000000L, ef.getLong("col3"));
+            assertEquals(r % 2 == 0, ef.getBoolean("col4"));
+        }
+    }
+
+    /**
+     * Benchmark decode throughput on a wide table, before and after.
+     *
+     * @throws SQLException if problems
+     */
+    @Test
+    public void benchmarkDecode() throws SQLException {
+        System.out.println("decode benchmark (" + ROWS + " rows x " + COLUMNS + " columns)");
+        for (int warmup = 0; warmup < 3; warmup++) {
+            decodePerCell(widetable);
+            decode(widetable);
+        }
+        long start = System.nanoTime();
+        for (int pass = 0; pass < PASSES; pass++) {
+            decodePerCell(widetable);
+        }
+        long percell = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int pass = 0; pass < PASSES; pass++) {
+            decode(widetable);
+        }
+        long compiled = System.nanoTime() - start;
+        System.out.println("  per cell metadata: " + rowsPerSecond(percell) + " rows/s");
+        System.out.println("  row decoder:       " + rowsPerSecond(compiled) + " rows/s");
+    }
+
+    private long rowsPerSecond(long nanos) {
+        return (long) ROWS * PASSES * 1000000000L / nanos;
+    }
+
+    private List<EntityFields> decode(ResultSet rs) throws SQLException {
+        List<EntityFields> efs = new ArrayList<>(ROWS);
+        rs.beforeFirst();
+        RowDecoder decoder = RowDecoder.compile(rs.getMetaData());
+        while (rs.next()) {
+            efs.add(decoder.decode(rs));
+        }
+        return efs;
+    }
+
+    // the decoding used before RowDecoder - metadata is read for every cell
+    private List<EntityFields> decodePerCell(ResultSet rs) throws SQLException {
+        List<EntityFields> efs = new ArrayList<>(ROWS);
+        rs.beforeFirst();
+        ResultSetMetaData meta = rs.getMetaData();
+        while (rs.next()) {
+            EntityFields ef = new EntityFields();
+            int colcount = meta.getColumnCount();
+            for (int i = 1; i <= colcount; i++) {
+                switch (meta.getColumnType(i)) {
+                    case CHAR:
+                    case VARCHAR:
+                        ef.put(meta.getColumnName(i), rs.getString(i));
+                        break;
+                    case BOOLEAN:
+                    case TINYINT:
+                    case BIT:
+                        ef.put(meta.getColumnName(i), rs.getBoolean(i));
+                        break;
+                    case BIGINT:
+                        ef.put(meta.getColumnName(i), rs.getLong(i));
+                        break;
+                    case DECIMAL:
+                        ef.put(meta.getColumnName(i), rs.getBigDecimal(i));
+                        break;
+                    default:
+                        int val = rs.getInt(i);
+                        if (rs.wasNull()) {
+                            ef.put(meta.getColumnName(i), null);
+                        } else {
+                            ef.put(meta.getColumnName(i), val);
+                        }
+                }
+            }
+            efs.add(ef);
+        }
+        return efs;
+    }
+}
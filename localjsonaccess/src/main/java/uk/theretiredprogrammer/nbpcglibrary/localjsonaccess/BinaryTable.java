@@ -0,0 +1,336 @@
+/*
+ * Copyright 2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.localjsonaccess;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import uk.theretiredprogrammer.nbpcglibrary.api.EntityFields;
+import uk.theretiredprogrammer.nbpcglibrary.api.RowSchema;
+import uk.theretiredprogrammer.nbpcglibrary.api.RowSchema.ColumnType;
+import uk.theretiredprogrammer.nbpcglibrary.json.JsonConversionException;
+
+/**
+ * The binary (columnar) format of a local table file.
+ *
+ * The file starts with a header: the format marker and version, the table
+ * name, nextid, nextidx, the number of rows and the directory of columns
+ * (name, type and block length). Each column block then holds a state byte
+ * for every row (field absent, null or present) followed by the row values
+ * which are present. Integers, longs and booleans are held as fixed length
+ * values, and strings as a length prefixed UTF-8 byte sequence; a column
+ * whose rows hold values of different types has a type byte before each
+ * value.
+ *
+ * The file is read into memory in one operation, with each column read by
+ * its own view of the buffer.
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ */
+class BinaryTable implements TableHeader {
+
+    private static final byte[] MARKER = "NBPCGTBL".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    // column (and value) types
+    private static final byte STRING = 0;
+    private static final byte INT = 1;
+    private static final byte LONG = 2;
+    private static final byte BOOLEAN = 3;
+    private static final byte MIXED = 4;
+    // row states
+    private static final byte ABSENT = 0;
+    private static final byte NULL = 1;
+    private static final byte PRESENT = 2;
+
+    private String name;
+    private Integer nextid;
+    private Integer nextidx;
+    private byte[] scratch = new byte[256];
+
+    /**
+     * Test if a file is a binary table.
+     *
+     * @param file the table file
+     * @return true if the file starts with the binary table marker
+     * @throws IOException if problems reading the file
+     */
+    static boolean isBinary(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer marker = ByteBuffer.allocate(MARKER.length);
+            while (marker.hasRemaining() && channel.read(marker) >= 0) {
+            }
+            return Arrays.equals(marker.array(), MARKER);
+        }
+    }
+
+    /**
+     * Read a table.
+     *
+     * @param file the table file
+     * @param rowprocessor the action for each row (entity) of the table
+     * @throws IOException if problems reading the data
+     */
+    void read(File file, Consumer<EntityFields> rowprocessor) throws IOException {
+        if (file.length() > Integer.MAX_VALUE) {
+            throw new IOException("Binary table too large - " + file.getName());
+        }
+        // a heap buffer rather than a mapping, which would hold the file open until the buffer is collected
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        try {
+            byte[] marker = new byte[MARKER.length];
+            buffer.get(marker);
+            if (!Arrays.equals(marker, MARKER) || buffer.getInt() != VERSION) {
+                throw new IOException("Not a binary table - " + file.getName());
+            }
+            name = readString(buffer);
+            nextid = buffer.getInt();
+            nextidx = buffer.getInt();
+            int rowcount = buffer.getInt();
+            int columncount = buffer.getInt();
+            String[] columns = new String[columncount];
+            byte[] types = new byte[columncount];
+            int[] lengths = new int[columncount];
+            for (int c = 0; c < columncount; c++) {
+                columns[c] = readString(buffer);
+                types[c] = buffer.get();
+                lengths[c] = buffer.getInt();
+            }
+            ByteBuffer[] states = new ByteBuffer[columncount];
+            ByteBuffer[] values = new ByteBuffer[columncount];
+            int offset = buffer.position();
+            for (int c = 0; c < columncount; c++) {
+                states[c] = view(buffer, offset, rowcount);
+                values[c] = view(buffer, offset + rowcount, lengths[c] - rowcount);
+                offset += lengths[c];
+            }
+            readRows(rowcount, columns, types, states, values, rowprocessor);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException ex) {
+            throw new IOException("Binary table corrupt - " + file.getName());
+        }
+    }
+
+    private void readRows(int rowcount, String[] columns, byte[] types, ByteBuffer[] states, ByteBuffer[] values,
+            Consumer<EntityFields> rowprocessor) throws IOException {
+        List<String> names = new ArrayList<>(columns.length);
+        List<ColumnType> rowtypes = new ArrayList<>(columns.length);
+        List<Object> rowvalues = new ArrayList<>(columns.length);
+        RowSchema schema = null;
+        for (int r = 0; r < rowcount; r++) {
+            names.clear();
+            rowtypes.clear();
+            rowvalues.clear();
+            for (int c = 0; c < columns.length; c++) {
+                byte state = states[c].get(r);
+                if (state != ABSENT) {
+                    names.add(columns[c]);
+                    Object value = state == NULL ? null : readValue(values[c], types[c] == MIXED ? values[c].get() : types[c]);
+                    rowtypes.add(value instanceof Integer ? ColumnType.INT
+                            : value instanceof Long ? ColumnType.LONG
+                                    : value instanceof Boolean ? ColumnType.BOOLEAN : ColumnType.OBJECT);
+                    rowvalues.add(value);
+                }
+            }
+            // the schema of the last row is reused while it matches
+            if (schema == null || !schema.matches(names)) {
+                schema = RowSchema.of(names.toArray(new String[names.size()]), rowtypes.toArray(new ColumnType[rowtypes.size()]));
+            }
+            EntityFields row = new EntityFields(schema);
+            for (int i = 0; i < names.size(); i++) {
+                row.put(names.get(i), rowvalues.get(i));
+            }
+            rowprocessor.accept(row);
+        }
+    }
+
+    private ByteBuffer view(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.limit(offset + length);
+        return view.slice();
+    }
+
+    private Object readValue(ByteBuffer values, byte type) throws IOException {
+        switch (type) {
+            case STRING:
+                return readString(values);
+            case INT:
+                return values.getInt();
+            case LONG:
+                return values.getLong();
+            case BOOLEAN:
+                return values.get() != 0;
+            default:
+                throw new IOException("Binary table corrupt - unknown value type " + type);
+        }
+    }
+
+    private String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length > scratch.length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        buffer.get(scratch, 0, length);
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Write a table.
+     *
+     * @param file the table file
+     * @param name the name recorded in the table
+     * @param nextid the next id to be allocated
+     * @param nextidx the next idx to be allocated
+     * @param rows the rows (entities) of the table
+     * @throws IOException if problems writing the data
+     */
+    static void write(File file, String name, int nextid, int nextidx, Collection<EntityFields> rows) throws IOException {
+        // first pass - the columns and their types (a column with only null values has no type)
+        Map<String, Byte> columns = new LinkedHashMap<>();
+        int rowcount = 0;
+        for (EntityFields row : rows) {
+            rowcount++;
+            for (Map.Entry<String, Object> field : row.entrySet()) {
+                Byte type = columns.get(field.getKey());
+                if (field.getValue() != null) {
+                    byte valuetype = typeOf(field.getValue());
+                    columns.put(field.getKey(), type == null || type == valuetype ? valuetype : MIXED);
+                } else if (!columns.containsKey(field.getKey())) {
+                    columns.put(field.getKey(), null);
+                }
+            }
+        }
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(header);
+        out.write(MARKER);
+        out.writeInt(VERSION);
+        writeString(out, name);
+        out.writeInt(nextid);
+        out.writeInt(nextidx);
+        out.writeInt(rowcount);
+        out.writeInt(columns.size());
+        List<Integer> lengthpositions = new ArrayList<>(columns.size());
+        for (Map.Entry<String, Byte> column : columns.entrySet()) {
+            writeString(out, column.getKey());
+            out.writeByte(column.getValue() == null ? STRING : column.getValue());
+            lengthpositions.add(out.size());
+            out.writeInt(0);
+        }
+        out.flush();
+        byte[] headerbytes = header.toByteArray();
+        // second pass - each column block, after the header
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            channel.position(headerbytes.length);
+            ByteArrayOutputStream block = new ByteArrayOutputStream();
+            int c = 0;
+            for (Map.Entry<String, Byte> column : columns.entrySet()) {
+                block.reset();
+                for (EntityFields row : rows) {
+                    block.write(!row.containsKey(column.getKey()) ? ABSENT : row.get(column.getKey()) == null ? NULL : PRESENT);
+                }
+                DataOutputStream values = new DataOutputStream(block);
+                for (EntityFields row : rows) {
+                    Object value = row.get(column.getKey());
+                    if (value != null) {
+                        byte type = typeOf(value);
+                        if (column.getValue() != null && column.getValue() == MIXED) {
+                            values.writeByte(type);
+                        }
+                        writeValue(values, type, value);
+                    }
+                }
+                values.flush();
+                ByteBuffer.wrap(headerbytes, lengthpositions.get(c++), 4).putInt(block.size());
+                write(channel, ByteBuffer.wrap(block.toByteArray()));
+            }
+            channel.position(0);
+            write(channel, ByteBuffer.wrap(headerbytes));
+        }
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static byte typeOf(Object value) throws JsonConversionException {
+        if (value instanceof String) {
+            return STRING;
+        }
+        if (value instanceof Integer) {
+            return INT;
+        }
+        if (value instanceof Long) {
+            return LONG;
+        }
+        if (value instanceof Boolean) {
+            return BOOLEAN;
+        }
+        // values are checked when they are stored, so this is a corrupt row
+        throw new JsonConversionException();
+    }
+
+    private static void writeValue(DataOutputStream out, byte type, Object value) throws IOException {
+        switch (type) {
+            case STRING:
+                writeString(out, (String) value);
+                break;
+            case INT:
+                out.writeInt((Integer) value);
+                break;
+            case LONG:
+                out.writeLong((Long) value);
+                break;
+            default:
+                out.writeByte(((Boolean) value) ? 1 : 0);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public Integer getNextId() {
+        return nextid;
+    }
+
+    @Override
+    public Integer getNextIdx() {
+        return nextidx;
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.localjsonaccess;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+import uk.theretiredprogrammer.nbpcglibrary.api.Criteria;
+import uk.theretiredprogrammer.nbpcglibrary.api.EntityFields;
+
+/**
+ * An index on a field of a local Json table: the primary keys of the rows
+ * holding each field value (rows without the field are indexed under null).
+ *
+ * Numbers are indexed by value, so a lookup returns the rows whose field is
+ * equal to a value of any number class; callers test the rows returned if an
+ * exact match is required.
+ *
+ * A hash index supports equality lookups; a sorted index also holds the
+ * primary keys in field value order (null first), and then primary key order,
+ * so the rows can be listed in order without sorting. The primary keys of a
+ * sorted index must be Comparable.
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ * @param <K> the Primary Key class
+ */
+class FieldIndex<K> {
+
+    private final String field;
+    private final Map<Object, Set<K>> entries;
+    private final boolean sorted;
+
+    /**
+     * Constructor.
+     *
+     * @param field the indexed field
+     * @param sorted true if a sorted index is required
+     */
+    FieldIndex(String field, boolean sorted) {
+        this.field = field;
+        this.sorted = sorted;
+        entries = sorted ? new TreeMap<>(FieldIndex::compareKeys) : new HashMap<>();
+    }
+
+    /**
+     * Get the indexed field.
+     *
+     * @return the field name
+     */
+    String getField() {
+        return field;
+    }
+
+    /**
+     * Add a row to the index.
+     *
+     * @param row the row
+     * @param pkey the row's primary key
+     */
+    void add(EntityFields row, K pkey) {
+        entries.computeIfAbsent(key(row.get(field)), (k) -> sorted ? new TreeSet<>() : new HashSet<>()).add(pkey);
+    }
+
+    /**
+     * Remove a row from the index.
+     *
+     * @param row the row (as indexed)
+     * @param pkey the row's primary key
+     */
+    void remove(EntityFields row, K pkey) {
+        Object key = key(row.get(field));
+        Set<K> pkeys = entries.get(key);
+        if (pkeys != null) {
+            pkeys.remove(pkey);
+            if (pkeys.isEmpty()) {
+                entries.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Get the primary keys of the rows with a field value.
+     *
+     * @param value the field value
+     * @return the primary keys
+     */
+    Set<K> get(Object value) {
+        Set<K> pkeys = entries.get(key(value));
+        return pkeys == null ? Collections.emptySet() : pkeys;
+    }
+
+    /**
+     * Get the primary keys of the rows with any of a set of field values.
+     *
+     * @param values the field values
+     * @return the primary keys
+     */
+    Set<K> get(Collection<?> values) {
+        Set<K> pkeys = new HashSet<>();
+        values.stream().forEach((value) -> {
+            pkeys.addAll(get(value));
+        });
+        return pkeys;
+    }
+
+    /**
+     * Get the primary keys of all rows, in index order (sorted indexes only).
+     *
+     * @return the primary keys
+     */
+    List<K> keys() {
+        List<K> pkeys = new ArrayList<>();
+        entries.values().stream().forEach((s) -> {
+            pkeys.addAll(s);
+        });
+        return pkeys;
+    }
+
+    /**
+     * Get the primary keys of the rows which follow a row, in index order
+     * (sorted indexes only).
+     *
+     * @param value the field value of the row to follow (ignored if pkey is
+     * null)
+     * @param pkey the primary key of the row to follow, or null to start at the
+     * first row
+     * @param limit the maximum number of primary keys returned
+     * @param include the test of the rows to be included
+     * @return the primary keys
+     */
+    List<K> keys(Object value, K pkey, int limit, Predicate<K> include) {
+        NavigableMap<Object, Set<K>> map = (NavigableMap<Object, Set<K>>) entries;
+        Object key = key(value);
+        List<K> pkeys = new ArrayList<>();
+        for (Map.Entry<Object, Set<K>> e : (pkey == null ? map : map.tailMap(key, true)).entrySet()) {
+            Set<K> s = pkey != null && compareKeys(e.getKey(), key) == 0 ? ((NavigableSet<K>) e.getValue()).tailSet(pkey, false) : e.getValue();
+            for (K k : s) {
+                if (include.test(k)) {
+                    pkeys.add(k);
+                    if (pkeys.size() == limit) {
+                        return pkeys;
+                    }
+                }
+            }
+        }
+        return pkeys;
+    }
+
+    // sorted index order - null first
+    private static int compareKeys(Object k1, Object k2) {
+        if (k1 == null) {
+            return k2 == null ? 0 : -1;
+        }
+        return k2 == null ? 1 : Criteria.compare(k1, k2);
+    }
+
+    // keys are normalised so that numbers of different classes but equal value match
+    private Object key(Object value) {
+        if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return ((Number) value).longValue();
+        }
+        if (value instanceof Double || value instanceof Float) {
+            double d = ((Number) value).doubleValue();
+            if (d == Math.rint(d) && d >= Long.MIN_VALUE && d <= Long.MAX_VALUE) {
+                return (long) d;
+            }
+            return d;
+        }
+        return value;
+    }
+
+    /**
+     * Build the index entries for a set of rows.
+     *
+     * @param rows the rows, by primary key
+     */
+    void build(Map<K, EntityFields> rows) {
+        rows.entrySet().stream().forEach((e) -> {
+            add(e.getValue(), e.getKey());
+        });
+    }
+
+    @Override
+    public String toString() {
+        return (sorted ? "SortedFieldIndex[" : "FieldIndex[") + field + "," + entries.size() + " values]";
+    }
+}
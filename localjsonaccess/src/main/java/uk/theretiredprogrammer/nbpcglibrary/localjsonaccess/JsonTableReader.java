@@ -0,0 +1,193 @@
+/*
+ * Copyright 2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.localjsonaccess;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParser.Event;
+import uk.theretiredprogrammer.nbpcglibrary.api.EntityFields;
+import uk.theretiredprogrammer.nbpcglibrary.api.RowSchema;
+import uk.theretiredprogrammer.nbpcglibrary.api.RowSchema.ColumnType;
+import uk.theretiredprogrammer.nbpcglibrary.json.JsonConversionException;
+
+/**
+ * Reader of a local Json table file, using the Json event stream.
+ *
+ * Each entity is decoded straight into its row as it is read, so the file
+ * is never held in memory as a Json object tree. Rows with the same fields
+ * share one schema. Numbers are read as Integer, or as Long if outside the
+ * Integer range.
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ */
+class JsonTableReader implements TableHeader {
+
+    private String name;
+    private Integer nextid;
+    private Integer nextidx;
+    private RowSchema schema;
+    private final List<String> names = new ArrayList<>();
+    private final List<ColumnType> types = new ArrayList<>();
+    private final List<Object> values = new ArrayList<>();
+
+    /**
+     * Read a table.
+     *
+     * @param in the table source
+     * @param rowprocessor the action for each row (entity) of the table
+     * @throws IOException if problems reading or parsing the data
+     */
+    void read(Reader in, Consumer<EntityFields> rowprocessor) throws IOException {
+        try (JsonParser parser = Json.createParser(in)) {
+            expect(parser.next(), Event.START_OBJECT);
+            Event event;
+            while ((event = parser.next()) == Event.KEY_NAME) {
+                switch (parser.getString()) {
+                    case "name":
+                        expect(parser.next(), Event.VALUE_STRING);
+                        name = parser.getString();
+                        break;
+                    case "nextid":
+                        nextid = readInt(parser);
+                        break;
+                    case "nextidx":
+                        nextidx = readInt(parser);
+                        break;
+                    case "entities":
+                        expect(parser.next(), Event.START_ARRAY);
+                        while ((event = parser.next()) == Event.START_OBJECT) {
+                            rowprocessor.accept(readRow(parser));
+                        }
+                        expect(event, Event.END_ARRAY);
+                        break;
+                    default:
+                        skip(parser, parser.next());
+                }
+            }
+            expect(event, Event.END_OBJECT);
+        } catch (JsonException ex) {
+            throw new IOException("Json Parsing Exception - " + ex.getMessage());
+        }
+    }
+
+    private EntityFields readRow(JsonParser parser) throws JsonConversionException {
+        names.clear();
+        types.clear();
+        values.clear();
+        Event event;
+        while ((event = parser.next()) == Event.KEY_NAME) {
+            names.add(parser.getString());
+            switch (parser.next()) {
+                case VALUE_STRING:
+                    types.add(ColumnType.OBJECT);
+                    values.add(parser.getString());
+                    break;
+                case VALUE_NUMBER:
+                    long number = parser.getLong();
+                    if ((int) number == number) {
+                        types.add(ColumnType.INT);
+                        values.add((int) number);
+                    } else {
+                        types.add(ColumnType.LONG);
+                        values.add(number);
+                    }
+                    break;
+                case VALUE_TRUE:
+                    types.add(ColumnType.BOOLEAN);
+                    values.add(true);
+                    break;
+                case VALUE_FALSE:
+                    types.add(ColumnType.BOOLEAN);
+                    values.add(false);
+                    break;
+                case VALUE_NULL:
+                    types.add(ColumnType.OBJECT);
+                    values.add(null);
+                    break;
+                default:
+                    throw new JsonConversionException();
+            }
+        }
+        expect(event, Event.END_OBJECT);
+        // the schema of the last row is reused while it matches
+        if (schema == null || !schema.matches(names)) {
+            schema = RowSchema.of(names.toArray(new String[names.size()]), types.toArray(new ColumnType[types.size()]));
+        }
+        EntityFields row = new EntityFields(schema);
+        for (int i = 0; i < names.size(); i++) {
+            row.put(names.get(i), values.get(i));
+        }
+        return row;
+    }
+
+    // a sequence value, which must be within the Integer range
+    private int readInt(JsonParser parser) throws JsonConversionException {
+        expect(parser.next(), Event.VALUE_NUMBER);
+        long number = parser.getLong();
+        if ((int) number != number) {
+            throw new JsonConversionException();
+        }
+        return (int) number;
+    }
+
+    private void skip(JsonParser parser, Event event) {
+        int depth = 0;
+        while (true) {
+            switch (event) {
+                case START_OBJECT:
+                case START_ARRAY:
+                    depth++;
+                    break;
+                case END_OBJECT:
+                case END_ARRAY:
+                    depth--;
+                    break;
+                default:
+            }
+            if (depth == 0) {
+                return;
+            }
+            event = parser.next();
+        }
+    }
+
+    private void expect(Event event, Event expected) throws JsonConversionException {
+        if (event != expected) {
+            throw new JsonConversionException();
+        }
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public Integer getNextId() {
+        return nextid;
+    }
+
+    @Override
+    public Integer getNextIdx() {
+        return nextidx;
+    }
+}
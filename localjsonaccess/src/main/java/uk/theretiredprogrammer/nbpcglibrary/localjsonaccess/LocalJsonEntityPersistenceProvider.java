@@ -17,21 +17,35 @@ package uk.theretiredprogrammer.nbpcglibrary.localjsonaccess;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
 import javax.json.Json;
-import javax.json.JsonArray;
-import javax.json.JsonArrayBuilder;
+import javax.json.JsonNumber;
 import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
 import javax.json.JsonValue;
+import uk.theretiredprogrammer.nbpcglibrary.api.AsyncExecutor;
+import uk.theretiredprogrammer.nbpcglibrary.api.BatchResult;
+import uk.theretiredprogrammer.nbpcglibrary.api.Criteria;
 import uk.theretiredprogrammer.nbpcglibrary.api.EntityFields;
 import uk.theretiredprogrammer.nbpcglibrary.common.LogBuilder;
 import uk.theretiredprogrammer.nbpcglibrary.api.EntityPersistenceProvider;
 import uk.theretiredprogrammer.nbpcglibrary.api.PersistenceUnitProvider;
+import uk.theretiredprogrammer.nbpcglibrary.api.RowSchema;
+import uk.theretiredprogrammer.nbpcglibrary.api.RowSchema.ColumnType;
 import uk.theretiredprogrammer.nbpcglibrary.api.LogicException;
+import uk.theretiredprogrammer.nbpcglibrary.api.Page;
+import uk.theretiredprogrammer.nbpcglibrary.api.PageKey;
 import uk.theretiredprogrammer.nbpcglibrary.json.JsonConversionException;
 import uk.theretiredprogrammer.nbpcglibrary.json.JsonUtil;
 
@@ -39,87 +53,254 @@ import uk.theretiredprogrammer.nbpcglibrary.json.JsonUtil;
  * EntityPersistenceProvider Class for access local Json File based persistent
  * storage
  *
+ * Rows selected by field value are found through a hash index on the field,
+ * built when the field is first used (or when the table is opened, if
+ * declared in the database's indexes property) and kept up to date as rows
+ * are changed. Criteria use the indexes which exist, but do not build them.
+ *
+ * The operations are synchronized, as a provider is shared by all its users
+ * and is called from other threads by its asynchronous operations.
+ *
  * @author Richard Linsdale (richard at theretiredprogrammer.uk)
  * @param <K> the Primary Key class
  */
 public abstract class LocalJsonEntityPersistenceProvider<K> implements EntityPersistenceProvider<K> {
 
     private LocalJsonPersistenceUnitProvider pup;
+    private String tablename;
     private String name;
     private String idx;
     private int nextid;
     private int nextidx;
     private final Map<K, EntityFields> tablerecords = new HashMap<>();
     private boolean dirty = false;
+    private RowSchema recordschema;
+    private TableJournal journal;
+    private CompletableFuture<Void> compaction;
+    private final Map<String, FieldIndex<K>> indexes = new HashMap<>();
+    private FieldIndex<K> idxorder;
 
     @Override
     public void init(String tablename, Properties properties, PersistenceUnitProvider pup) throws IOException {
-        this.idx = null;
+        init(tablename, null, properties, pup);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The rows of an ordered table are held in a sorted index on the idx
+     * field, so that they are read in idx order (then primary key order)
+     * without sorting. The primary key must be Comparable.
+     */
+    @Override
+    public void init(String tablename, String idx, Properties properties, PersistenceUnitProvider pup) throws IOException {
+        this.idx = idx;
         this.pup = (LocalJsonPersistenceUnitProvider) pup;
-        JsonObject tableJson = this.pup.load(tablename);
+        this.tablename = tablename;
+        TableHeader table;
         try {
-            this.nextid = JsonUtil.getObjectKeyIntegerValue(tableJson, "nextid");
-            this.nextidx = JsonUtil.getObjectKeyIntegerValue(tableJson, "nextidx");
-            this.name = JsonUtil.getObjectKeyStringValue(tableJson, "name");
-            //
-            JsonArray records = JsonUtil.getObjectKeyArrayValue(tableJson, "entities");
-            for (JsonValue record : records) {
-                JsonObject rec = (JsonObject) record;
-                EntityFields ef = makeEntityFields(rec);
-                K pk = getPK(ef);
-                tablerecords.put(pk, makeEntityFields(rec));
-            }
+            table = this.pup.load(tablename, (ef) -> tablerecords.put(getPK(ef), ef));
         } catch (JsonConversionException ex) {
             throw new LogicException("Illegal Json Format data  - should never happen");
         }
+        if (table.getName() == null || table.getNextId() == null || table.getNextIdx() == null) {
+            throw new LogicException("Illegal Json Format data  - should never happen");
+        }
+        this.nextid = table.getNextId();
+        this.nextidx = table.getNextIdx();
+        this.name = table.getName();
+        journal = this.pup.getJournal(tablename);
+        if (journal != null) {
+            journal.open(this::replay);
+        }
+        if (idx != null) {
+            idxorder = new FieldIndex<>(idx, true);
+            idxorder.build(tablerecords);
+            indexes.put(idx, idxorder);
+        }
+        this.pup.getIndexes(tablename).stream().forEach((field) -> index(field));
     }
     
     @Override
-    public void init(String tablename, String idx, Properties properties, PersistenceUnitProvider pup) throws IOException {
-        this.idx = idx;
-        this.init(tablename, properties, pup);
-    }
-    
-    @Override
-    public void close() {
+    public synchronized void close() {
         persist();
+        if (journal != null) {
+            if (compaction != null) {
+                compaction.join();
+            }
+            try {
+                journal.close();
+            } catch (IOException ex) {
+                throw new LogicException("IO failure when writing table journal");
+            }
+        }
     }
     
+    // a journalled row
     private EntityFields makeEntityFields(JsonObject record) throws JsonConversionException {
-        EntityFields entity = new EntityFields();
+        EntityFields entity = new EntityFields(schemaFor(record));
         for (Map.Entry<String, JsonValue> field : record.entrySet()) {
             entity.put(field.getKey(), JsonUtil.getValue(field.getValue()));
         }
         return entity;
     }
 
+    // rows with the same fields share one schema; the schema of the last row is reused while it matches
+    private RowSchema schemaFor(JsonObject record) {
+        RowSchema schema = recordschema;
+        if (schema == null || !schema.matches(record.keySet())) {
+            String[] names = record.keySet().toArray(new String[record.size()]);
+            ColumnType[] types = new ColumnType[names.length];
+            for (int i = 0; i < names.length; i++) {
+                switch (record.get(names[i]).getValueType()) {
+                    case NUMBER:
+                        long number = ((JsonNumber) record.get(names[i])).longValue();
+                        types[i] = (int) number == number ? ColumnType.INT : ColumnType.LONG;
+                        break;
+                    case TRUE:
+                    case FALSE:
+                        types[i] = ColumnType.BOOLEAN;
+                        break;
+                    default:
+                        types[i] = ColumnType.OBJECT;
+                }
+            }
+            schema = RowSchema.of(names, types);
+            recordschema = schema;
+        }
+        return schema;
+    }
+
     /**
-     * Persist the in-memory data (to json file)
+     * Persist the in-memory data (to json file).
+     *
+     * If changes are journalled, the journal is synchronised to the storage
+     * device, and if it has grown beyond its compaction size a new snapshot
+     * of the table is written in the background.
      */
-    public void persist() {
-        if (dirty) {
+    public synchronized void persist() {
+        if (journal != null) {
             try {
-                JsonObjectBuilder job = Json.createObjectBuilder();
-                job.add("name", name);
-                job.add("nextid", nextid);
-                job.add("nextidx", nextidx);
-                JsonArrayBuilder rab = Json.createArrayBuilder();
-                tablerecords.values().stream().forEach((ef) -> {
-                    try {
-                        rab.add(createJsonRecord(ef));
-                    } catch (JsonConversionException ex) {
-                        throw new LogicException("Illegal Java Object presented as field value");
-                    }
-                });
-                job.add("entities", rab.build());
-                pup.persist(job.build());
+                journal.sync();
+                if (journal.size() > pup.getJournalCompactSize() && (compaction == null || compaction.isDone())) {
+                    compact();
+                }
+            } catch (IOException ex) {
+                throw new LogicException("IO failure when writing table journal");
+            }
+        } else if (dirty) {
+            try {
+                pup.persist(tablename, name, nextid, nextidx, tablerecords.values());
                 dirty = false;
+            } catch (JsonConversionException ex) {
+                throw new LogicException("Illegal Java Object presented as field value");
             } catch (IOException ex) {
                 throw new LogicException("IO failure when persisting table");
             }
         }
     }
 
+    // the snapshot is taken now, and the journal rotated, so that changes can continue while it is written
+    // (stored rows are replaced rather than changed, so the snapshot only needs the current rows)
+    private void compact() throws IOException {
+        List<EntityFields> rows = new ArrayList<>(tablerecords.values());
+        int snapshotnextid = nextid;
+        int snapshotnextidx = nextidx;
+        int upto = journal.rotate();
+        LogBuilder.writeLog("nbpcglib.localJsonPersistenceUnitProvider", this, "compact", upto);
+        compaction = CompletableFuture.runAsync(() -> {
+            try {
+                pup.persist(tablename, name, snapshotnextid, snapshotnextidx, rows);
+                journal.discard(upto);
+            } catch (IOException ex) {
+                LogBuilder.writeExceptionLog("nbpcglib.localJsonPersistenceUnitProvider", ex, this, "compact", upto);
+            }
+        }, AsyncExecutor.getDefault());
+    }
+
+    // record a change - in the journal, or by marking the table for rewriting
+    private void changed(String op, K pkey, EntityFields fields) {
+        if (journal == null) {
+            dirty = true;
+            return;
+        }
+        try {
+            JsonObjectBuilder job = Json.createObjectBuilder();
+            job.add("op", op);
+            job.add("nextid", nextid);
+            job.add("nextidx", nextidx);
+            if (pkey != null) {
+                JsonUtil.insertValue(job, "pk", pkey);
+            }
+            if (fields != null) {
+                job.add("fields", createJsonRecord(fields));
+            }
+            journal.append(job.build());
+        } catch (JsonConversionException ex) {
+            throw new LogicException("Illegal Java Object presented as field value");
+        } catch (IOException ex) {
+            throw new LogicException("IO failure when writing table journal");
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void replay(JsonObject change) throws IOException {
+        nextid = JsonUtil.getObjectKeyIntegerValue(change, "nextid");
+        nextidx = JsonUtil.getObjectKeyIntegerValue(change, "nextidx");
+        String op = JsonUtil.getObjectKeyStringValue(change, "op");
+        switch (op) {
+            case "insert":
+                EntityFields ef = makeEntityFields(change.getJsonObject("fields"));
+                tablerecords.put(getPK(ef), ef);
+                break;
+            case "update":
+                EntityFields entity = tablerecords.get((K) JsonUtil.getValue(change.get("pk")));
+                if (entity != null) {
+                    for (Map.Entry<String, JsonValue> field : change.getJsonObject("fields").entrySet()) {
+                        entity.put(field.getKey(), JsonUtil.getValue(field.getValue()));
+                    }
+                }
+                break;
+            case "delete":
+                tablerecords.remove((K) JsonUtil.getValue(change.get("pk")));
+                break;
+            case "idx":
+                break;
+            default:
+                throw new IOException("Unknown journal change - " + op);
+        }
+    }
+
+    // the index of a field, built if the field has not been indexed before
+    private FieldIndex<K> index(String field) {
+        FieldIndex<K> index = indexes.get(field);
+        if (index == null) {
+            index = new FieldIndex<>(field, false);
+            index.build(tablerecords);
+            indexes.put(field, index);
+            LogBuilder.writeLog("nbpcglib.localJsonPersistenceUnitProvider", this, "index", field, tablerecords.size());
+        }
+        return index;
+    }
+
+    // the primary keys of the rows with a field equal to a value (numbers are
+    // equal by value, as for Criteria), in idx order if an ordered table
+    private List<K> matching(String field, Object value) {
+        List<K> pks = new ArrayList<>(index(field).get(value));
+        if (idxorder != null && idxorder != indexes.get(field)) {
+            pks.sort((k1, k2) -> {
+                int c = compareValues(tablerecords.get(k1).get(idx), tablerecords.get(k2).get(idx));
+                return c != 0 ? c : compareValues(k1, k2);
+            });
+        }
+        return pks;
+    }
+
+    // the primary keys of all rows, in idx order if an ordered table
+    private Collection<K> keys() {
+        return idxorder == null ? tablerecords.keySet() : idxorder.keys();
+    }
+
     private JsonObject createJsonRecord(EntityFields ef) throws JsonConversionException {
         JsonObjectBuilder job = Json.createObjectBuilder();
         for (Map.Entry<String, Object> field : ef.entrySet()) {
@@ -134,54 +315,186 @@ public abstract class LocalJsonEntityPersistenceProvider<K> implements EntityPer
     }
 
     @Override
-    public EntityFields get(K pkey) {
+    public synchronized EntityFields get(K pkey) {
         LogBuilder.writeLog("nbpcglib.localJsonPersistenceUnitProvider", this, "get", pkey);
-        return tablerecords.get(pkey);
+        EntityFields ef = tablerecords.get(pkey);
+        return ef == null ? null : copy(ef);
+    }
+
+    @Override
+    public synchronized List<EntityFields> get(Collection<K> pkeys) {
+        LogBuilder.writeLog("nbpcglib.localJsonPersistenceUnitProvider", this, "get", pkeys);
+        List<EntityFields> efs = new ArrayList<>(pkeys.size());
+        pkeys.stream().forEach((pkey) -> {
+            EntityFields ef = tablerecords.get(pkey);
+            efs.add(ef == null ? null : copy(ef));
+        });
+        return efs;
+    }
+
+    @Override
+    public final synchronized List<EntityFields> get() {
+        List<EntityFields> efs = new ArrayList<>(tablerecords.size());
+        keys().stream().forEach((pkey) -> {
+            efs.add(copy(tablerecords.get(pkey)));
+        });
+        return efs;
+    }
+
+    @Override
+    public final synchronized List<K> find() {
+        return new ArrayList<>(keys());
+    }
+
+    @Override
+    public final synchronized List<EntityFields> get(String parametername, Object parametervalue) {
+        List<EntityFields> efs = new ArrayList<>();
+        matching(parametername, parametervalue).stream().forEach((pkey) -> {
+            efs.add(copy(tablerecords.get(pkey)));
+        });
+        return efs;
+    }
+
+    @Override
+    public final synchronized List<K> find(String parametername, Object parametervalue) {
+        return matching(parametername, parametervalue);
+    }
+
+    @Override
+    public final synchronized EntityFields getOne(String parametername, Object parametervalue) {
+        List<EntityFields> get = get(parametername, parametervalue);
+        if (get.size() != 1) {
+            throw new LogicException("Single row expected");
+        }
+        return get.get(0);
     }
 
     @Override
-    public final List<EntityFields> get() {
+    public final synchronized List<EntityFields> get(Criteria criteria) {
         List<EntityFields> efs = new ArrayList<>();
-        tablerecords.values().stream().forEach((ef) -> {
+        select(criteria).stream().forEach((ef) -> {
             efs.add(copy(ef));
         });
         return efs;
     }
 
     @Override
-    public final List<K> find() {
+    public final synchronized List<K> find(Criteria criteria) {
         List<K> pks = new ArrayList<>();
-        tablerecords.keySet().stream().forEach((key) -> {
-            pks.add(key);
+        select(criteria).stream().forEach((ef) -> {
+            pks.add(getPK(ef));
         });
         return pks;
     }
 
     @Override
-    public final List<EntityFields> get(String parametername, Object parametervalue) {
-        List<EntityFields> efs = new ArrayList<>();
-        tablerecords.values().stream().forEach((ef) -> {
-            if (ef.get(parametername).equals(parametervalue)) {
-                efs.add(copy(ef));
-            }
+    public final synchronized int count(Criteria criteria) {
+        if (criteria.isAll()) {
+            return tablerecords.size();
+        }
+        return (int) rows(criteria).filter((ef) -> criteria.test(ef)).count();
+    }
+
+    @Override
+    public final synchronized boolean exists(Criteria criteria) {
+        if (criteria.isAll()) {
+            return !tablerecords.isEmpty();
+        }
+        return rows(criteria).anyMatch((ef) -> criteria.test(ef));
+    }
+
+    // the (uncopied) records selected by the criteria, in criteria order (or idx order if an ordered table)
+    private List<EntityFields> select(Criteria criteria) {
+        List<EntityFields> selected = new ArrayList<>();
+        Set<K> candidates = candidates(criteria);
+        boolean idxordered = criteria.getComparator() == null && idxorder != null;
+        if (candidates == null && idxordered) {
+            // a scan of an ordered table is made in idx order
+            idxorder.keys().stream().map((pkey) -> tablerecords.get(pkey)).filter((ef) -> criteria.test(ef)).forEach((ef) -> {
+                selected.add(ef);
+            });
+            return selected;
+        }
+        rows(candidates).filter((ef) -> criteria.test(ef)).forEach((ef) -> {
+            selected.add(ef);
+        });
+        if (criteria.getComparator() != null) {
+            selected.sort(criteria.getComparator());
+        } else if (idxordered) {
+            selected.sort((ef1, ef2) -> {
+                int c = compareValues(ef1.get(idx), ef2.get(idx));
+                return c != 0 ? c : compareValues(getPK(ef1), getPK(ef2));
+            });
+        }
+        return selected;
+    }
+
+    // the (uncopied) records which may be selected by the criteria - using an index if possible
+    private Stream<EntityFields> rows(Criteria criteria) {
+        return rows(candidates(criteria));
+    }
+
+    private Stream<EntityFields> rows(Set<K> candidates) {
+        if (candidates == null) {
+            return tablerecords.values().stream();
+        }
+        return candidates.stream().map((pkey) -> tablerecords.get(pkey));
+    }
+
+    // the primary keys of a superset of the rows selected by the criteria (or null if a scan is required)
+    // - only fields already indexed are used
+    private Set<K> candidates(Criteria criteria) {
+        FieldIndex<K> index = criteria.getField() == null ? null : indexes.get(criteria.getField());
+        switch (criteria.getOperator()) {
+            case EQ:
+                return index == null ? null : index.get(criteria.getValue());
+            case IN:
+                return index == null ? null : index.get(criteria.getValues());
+            case AND:
+                Set<K> smallest = null;
+                for (Criteria term : criteria.getTerms()) {
+                    Set<K> termcandidates = candidates(term);
+                    if (termcandidates != null && (smallest == null || termcandidates.size() < smallest.size())) {
+                        smallest = termcandidates;
+                    }
+                }
+                return smallest;
+            case OR:
+                Set<K> union = new HashSet<>();
+                for (Criteria term : criteria.getTerms()) {
+                    Set<K> termcandidates = candidates(term);
+                    if (termcandidates == null) {
+                        return null;
+                    }
+                    union.addAll(termcandidates);
+                }
+                return union;
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public final synchronized List<EntityFields> getProjection(List<String> columns) {
+        List<EntityFields> efs = new ArrayList<>(tablerecords.size());
+        keys().stream().forEach((pkey) -> {
+            efs.add(tablerecords.get(pkey).project(columns));
         });
         return efs;
     }
 
     @Override
-    public final List<K> find(String parametername, Object parametervalue) {
-        List<K> pks = new ArrayList<>();
-        tablerecords.entrySet().stream().forEach((e) -> {
-            if (e.getValue().get(parametername).equals(parametervalue)) {
-                pks.add(e.getKey());
-            }
+    public final synchronized List<EntityFields> getProjection(List<String> columns, String parametername, Object parametervalue) {
+        List<EntityFields> efs = new ArrayList<>();
+        matching(parametername, parametervalue).stream().forEach((pkey) -> {
+            efs.add(tablerecords.get(pkey).project(columns));
         });
-        return pks;
+        return efs;
     }
 
     @Override
-    public final EntityFields getOne(String parametername, Object parametervalue) {
-        List<EntityFields> get = get(parametername, parametervalue);
+    public final synchronized EntityFields getOneProjection(List<String> columns, String parametername, Object parametervalue) {
+        List<EntityFields> get = getProjection(columns, parametername, parametervalue);
         if (get.size() != 1) {
             throw new LogicException("Single row expected");
         }
@@ -189,7 +502,7 @@ public abstract class LocalJsonEntityPersistenceProvider<K> implements EntityPer
     }
 
     @Override
-    public final K findOne(String parametername, Object parametervalue) {
+    public final synchronized K findOne(String parametername, Object parametervalue) {
         List<K> find = find(parametername, parametervalue);
         if (find.size() != 1) {
             throw new LogicException("Single row expected");
@@ -197,20 +510,114 @@ public abstract class LocalJsonEntityPersistenceProvider<K> implements EntityPer
         return find.get(0);
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * The primary key (and index field values) must be Comparable.
+     */
+    @Override
+    public final synchronized Page<K> getPage(PageKey<K> after, int limit) {
+        return page(null, null, after, limit);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The primary key (and index field values) must be Comparable.
+     */
+    @Override
+    public final synchronized Page<K> getPage(String parametername, Object parametervalue, PageKey<K> after, int limit) {
+        return page(parametername, parametervalue, after, limit);
+    }
+
+    private Page<K> page(String parametername, Object parametervalue, PageKey<K> after, int limit) {
+        Page.checkLimit(limit);
+        Comparator<PageKey<K>> order = (k1, k2) -> {
+            int c = compareValues(k1.getIdxValue(), k2.getIdxValue());
+            return c != 0 ? c : compareValues(k1.getPK(), k2.getPK());
+        };
+        if (idxorder != null) {
+            // the keys of an ordered table are already in page order
+            List<K> pkeys;
+            if (parametername == null) {
+                pkeys = after == null ? idxorder.keys(null, null, limit + 1, (pkey) -> true)
+                        : idxorder.keys(after.getIdxValue(), after.getPK(), limit + 1, (pkey) -> true);
+            } else {
+                pkeys = new ArrayList<>(limit + 1);
+                for (K pkey : matching(parametername, parametervalue)) {
+                    if (after == null || order.compare(new PageKey<>(tablerecords.get(pkey).get(idx), pkey), after) > 0) {
+                        pkeys.add(pkey);
+                        if (pkeys.size() > limit) {
+                            break;
+                        }
+                    }
+                }
+            }
+            boolean more = pkeys.size() > limit;
+            List<EntityFields> rows = new ArrayList<>(limit);
+            pkeys.stream().limit(limit).forEach((pkey) -> {
+                rows.add(copy(tablerecords.get(pkey)));
+            });
+            return new Page<>(rows, more ? new PageKey<>(rows.get(limit - 1).get(idx), pkeys.get(limit - 1)) : null);
+        }
+        // keep the first limit+1 entities (in page order) following the continuation key
+        PriorityQueue<PageKey<K>> selected = new PriorityQueue<>(limit + 1, order.reversed());
+        Collection<K> pkeys = parametername == null ? tablerecords.keySet() : matching(parametername, parametervalue);
+        pkeys.stream().forEach((pkey) -> {
+            PageKey<K> key = new PageKey<>(idx == null ? null : tablerecords.get(pkey).get(idx), pkey);
+            if (after == null || order.compare(key, after) > 0) {
+                selected.add(key);
+                if (selected.size() > limit + 1) {
+                    selected.poll();
+                }
+            }
+        });
+        boolean more = selected.size() > limit;
+        if (more) {
+            selected.poll();
+        }
+        List<PageKey<K>> keys = new ArrayList<>(selected);
+        Collections.sort(keys, order);
+        List<EntityFields> rows = new ArrayList<>(keys.size());
+        keys.stream().forEach((key) -> {
+            rows.add(copy(tablerecords.get(key.getPK())));
+        });
+        return new Page<>(rows, more ? keys.get(keys.size() - 1) : null);
+    }
+
+    private int compareValues(Object v1, Object v2) {
+        if (v1 == null) {
+            return v2 == null ? 0 : -1;
+        }
+        return v2 == null ? 1 : Criteria.compare(v1, v2);
+    }
+
     @Override
-    public final int findNextIdx() {
-        dirty = true;
-        return nextidx++;
+    public final synchronized int findNextIdx() {
+        int next = nextidx++;
+        changed("idx", null, null);
+        return next;
     }
 
     @Override
-    public final EntityFields insert(EntityFields values) {
-        dirty = true;
+    public final synchronized int reserveIdx(int blocksize) {
+        int first = nextidx;
+        nextidx += blocksize;
+        changed("idx", null, null);
+        return first;
+    }
+
+    @Override
+    public final synchronized EntityFields insert(EntityFields values) {
+        checkValues(values);
         EntityFields entity = new EntityFields();
         entity.putAll(values);
         autoGenPrimaryKeyHook(entity);
         addTimestampInfo(entity);
-        tablerecords.put(getPK(entity), entity);
+        K pkey = getPK(entity);
+        tablerecords.put(pkey, entity);
+        indexes.values().stream().forEach((index) -> index.add(entity, pkey));
+        changed("insert", null, entity);
         return copy(entity);
     }
 
@@ -225,22 +632,106 @@ public abstract class LocalJsonEntityPersistenceProvider<K> implements EntityPer
     }
 
     @Override
-    public final EntityFields update(K pkey, EntityFields diffs) {
-        dirty = true;
-        EntityFields entity = tablerecords.get(pkey);
-        entity.putAll(diffs);
-        updateTimestampInfo(entity);
+    public final synchronized EntityFields update(K pkey, EntityFields diffs) {
+        checkValues(diffs);
+        EntityFields stored = tablerecords.get(pkey);
+        EntityFields entity = copy(stored);
+        EntityFields change = new EntityFields();
+        change.putAll(diffs);
+        updateTimestampInfo(change);
+        entity.putAll(change);
+        tablerecords.put(pkey, entity);
+        indexes.values().stream().filter((index) -> change.containsKey(index.getField())).forEach((index) -> {
+            index.remove(stored, pkey);
+            index.add(entity, pkey);
+        });
+        changed("update", pkey, change);
         return copy(entity);
     }
     
     @Override
-    public final void delete(K pkey) {
-        dirty = true;
-        tablerecords.remove(pkey);
+    public final synchronized void delete(K pkey) {
+        EntityFields removed = tablerecords.remove(pkey);
+        if (removed != null) {
+            indexes.values().stream().forEach((index) -> index.remove(removed, pkey));
+            changed("delete", pkey, null);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * All entities are inserted into the in-memory table, which is then
+     * persisted once.
+     */
+    @Override
+    public final synchronized BatchResult insert(List<EntityFields> values) {
+        LogBuilder.writeLog("nbpcglib.localJsonPersistenceUnitProvider", this, "insert(batch)", values.size());
+        BatchResult result = new BatchResult(values.size());
+        for (int i = 0; i < values.size(); i++) {
+            result.setSuccess(i, insert(values.get(i)));
+        }
+        persist();
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * All entities are updated in the in-memory table, which is then persisted
+     * once.
+     */
+    @Override
+    public final synchronized BatchResult update(List<K> pkeys, List<EntityFields> diffs) {
+        LogBuilder.writeLog("nbpcglib.localJsonPersistenceUnitProvider", this, "update(batch)", pkeys.size());
+        if (pkeys.size() != diffs.size()) {
+            throw new LogicException("update(pks, diffs) - lists must be the same size");
+        }
+        BatchResult result = new BatchResult(pkeys.size());
+        for (int i = 0; i < pkeys.size(); i++) {
+            if (tablerecords.containsKey(pkeys.get(i))) {
+                result.setSuccess(i, update(pkeys.get(i), diffs.get(i)));
+            } else {
+                result.setFailure(i, "Single row expected");
+            }
+        }
+        persist();
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * All entities are deleted from the in-memory table, which is then
+     * persisted once.
+     */
+    @Override
+    public final synchronized BatchResult delete(List<K> pkeys) {
+        LogBuilder.writeLog("nbpcglib.localJsonPersistenceUnitProvider", this, "delete(batch)", pkeys.size());
+        BatchResult result = new BatchResult(pkeys.size());
+        for (int i = 0; i < pkeys.size(); i++) {
+            delete(pkeys.get(i));
+            result.setSuccess(i, null);
+        }
+        persist();
+        return result;
+    }
+
+    // values are checked before the table is changed, as a value which cannot
+    // be written would otherwise fail every later journal compaction
+    private void checkValues(EntityFields values) {
+        values.entrySet().stream().forEach((field) -> {
+            Object value = field.getValue();
+            if (value != null && !(value instanceof String || value instanceof Integer
+                    || value instanceof Long || value instanceof Boolean)) {
+                throw new LogicException("Illegal Java Object presented as field value - "
+                        + field.getKey() + " (" + value.getClass().getSimpleName() + ")");
+            }
+        });
     }
 
     private EntityFields copy(EntityFields ef) {
-        EntityFields efc = new EntityFields();
+        EntityFields efc = new EntityFields(ef.getSchema());
         efc.putAll(ef);
         return efc;
     }
@@ -15,30 +15,72 @@
  */
 package uk.theretiredprogrammer.nbpcglibrary.localjsonaccess;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.function.Consumer;
 import javax.json.Json;
-import javax.json.JsonObject;
-import javax.json.JsonReader;
-import javax.json.JsonWriter;
-import javax.json.stream.JsonParsingException;
+import javax.json.stream.JsonGenerator;
+import uk.theretiredprogrammer.nbpcglibrary.api.EntityFields;
+import uk.theretiredprogrammer.nbpcglibrary.api.LogicException;
 import uk.theretiredprogrammer.nbpcglibrary.api.PersistenceUnitProvider;
 import uk.theretiredprogrammer.nbpcglibrary.common.LogBuilder;
+import uk.theretiredprogrammer.nbpcglibrary.json.JsonUtil;
 
 /**
  * Class implementing Local access to Json Data.
  *
+ * Each table is held in its own file (a snapshot) in the database folder.
+ * Unless journal is set to false, changes are appended to a journal for each
+ * table rather than rewriting the snapshot; the optional journalgroupsize is
+ * the number of changes written before the journal is synchronised to the
+ * storage device, and journalcompactsize is the journal size (bytes) above
+ * which a new snapshot is written and the journal discarded.
+ *
+ * Table files are written as Json, or if format is set to binary, in a
+ * compact binary columnar format which is read in a single operation. In
+ * either format a field value must be a String, Integer, Long or Boolean (or
+ * null).
+ * Tables are read in either format, so a table is converted to the format
+ * of its database the next time it is written (or by convert()).
+ *
+ * indexes is a comma separated list of fields (each as table.field) to be
+ * hash indexed when their table is opened; other fields are indexed when
+ * first used to select rows.
+ *
  * @author Richard Linsdale (richard at theretiredprogrammer.uk)
  */
 public class LocalJsonPersistenceUnitProvider implements PersistenceUnitProvider {
 
+    private static final int DEFAULTJOURNALGROUPSIZE = 100;
+    private static final long DEFAULTJOURNALCOMPACTSIZE = 4 * 1024 * 1024;
+
     private final String dbpath;
     private final File databasefolder;
-    private File dbfile;
     private final boolean operational;
+    private final boolean journalled;
+    private final int journalgroupsize;
+    private final long journalcompactsize;
+    private final boolean binary;
+    private final Map<String, List<String>> indexes = new HashMap<>();
 
     /**
      * Constructor.
@@ -49,41 +91,137 @@ public class LocalJsonPersistenceUnitProvider implements PersistenceUnitProvider
         dbpath = (String) p.get("connection");
         databasefolder = new File(dbpath);
         operational = databasefolder.isDirectory();
+        journalled = Boolean.parseBoolean(p.getProperty("journal", "true"));
+        journalgroupsize = Integer.parseInt(p.getProperty("journalgroupsize", Integer.toString(DEFAULTJOURNALGROUPSIZE)));
+        journalcompactsize = Long.parseLong(p.getProperty("journalcompactsize", Long.toString(DEFAULTJOURNALCOMPACTSIZE)));
+        binary = "binary".equals(p.getProperty("format", "json"));
+        for (String declaration : p.getProperty("indexes", "").split(",")) {
+            String d = declaration.trim();
+            if (!d.isEmpty()) {
+                int dot = d.indexOf('.');
+                if (dot < 1 || dot == d.length() - 1) {
+                    throw new LogicException("LocalJsonPersistenceUnitProvider - illegal index declaration (" + d + ")");
+                }
+                indexes.computeIfAbsent(d.substring(0, dot), (t) -> new ArrayList<>()).add(d.substring(dot + 1));
+            }
+        }
+    }
+
+    /**
+     * Get the fields of a table which are declared as indexed.
+     *
+     * @param tablename the table name
+     * @return the indexed fields
+     */
+    List<String> getIndexes(String tablename) {
+        return indexes.getOrDefault(tablename, Collections.emptyList());
     }
 
     /**
      * load a table into memory
      *
      * @param tablename the table name
-     * @return the table data
+     * @param rowprocessor the action for each row (entity) of the table
+     * @return the table's name and id allocation
      * @throws IOException if problems reading or parsing data
      */
-    public JsonObject load(String tablename) throws IOException {
-        dbfile = new File(databasefolder, tablename);
+    TableHeader load(String tablename, Consumer<EntityFields> rowprocessor) throws IOException {
+        File dbfile = new File(databasefolder, tablename);
         if (!dbfile.canWrite()) {
             throw new IOException("Table file missing - " + tablename);
         }
-        JsonObject jo;
-        try {
-            try (JsonReader jsonReader = Json.createReader(new FileReader(dbfile))) {
-                jo = jsonReader.readObject();
-            }
-        } catch (JsonParsingException ex) {
-            throw new IOException("Json Parsing Exception - " + ex.getMessage());
+        if (BinaryTable.isBinary(dbfile)) {
+            BinaryTable table = new BinaryTable();
+            table.read(dbfile, rowprocessor);
+            return table;
         }
-        return jo;
+        JsonTableReader reader = new JsonTableReader();
+        try (Reader in = new BufferedReader(new InputStreamReader(new FileInputStream(dbfile), StandardCharsets.UTF_8))) {
+            reader.read(in, rowprocessor);
+        }
+        return reader;
     }
 
     /**
-     * Persist in-memory table into file store (json)
+     * Persist in-memory table into file store (json or binary). The table is written to
+     * a temporary file which then replaces the previous file, so a failure
+     * never leaves a partial table.
      *
-     * @param tableobject the table object
+     * @param tablename the table name
+     * @param name the name recorded in the table
+     * @param nextid the next id to be allocated
+     * @param nextidx the next idx to be allocated
+     * @param rows the rows (entities) of the table
      * @throws IOException if problem writing the data
      */
-    public void persist(JsonObject tableobject) throws IOException {
-        try (JsonWriter jsonWriter = Json.createWriter(new FileWriter(dbfile))) {
-            jsonWriter.writeObject(tableobject);
+    void persist(String tablename, String name, int nextid, int nextidx, Collection<EntityFields> rows) throws IOException {
+        File tmp = new File(databasefolder, tablename + ".tmp");
+        if (binary) {
+            BinaryTable.write(tmp, name, nextid, nextidx, rows);
+        } else {
+            writeJson(tmp, name, nextid, nextidx, rows);
+        }
+        // the table must be on the storage device before it replaces the previous file
+        try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(tmp.toPath(), new File(databasefolder, tablename).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void writeJson(File file, String name, int nextid, int nextidx, Collection<EntityFields> rows) throws IOException {
+        try (JsonGenerator generator = Json.createGenerator(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)))) {
+            generator.writeStartObject();
+            generator.write("name", name);
+            generator.write("nextid", nextid);
+            generator.write("nextidx", nextidx);
+            generator.writeStartArray("entities");
+            for (EntityFields row : rows) {
+                generator.writeStartObject();
+                for (Map.Entry<String, Object> field : row.entrySet()) {
+                    JsonUtil.writeValue(generator, field.getKey(), field.getValue());
+                }
+                generator.writeEnd();
+            }
+            generator.writeEnd();
+            generator.writeEnd();
+        }
+    }
+
+    /**
+     * Convert a table file to the format of this database (json or binary).
+     * The table must not be in use. Its journal is not changed, as journalled
+     * changes are the same in either format.
+     *
+     * @param tablename the table name
+     * @throws IOException if problems reading or writing the table
+     */
+    public void convert(String tablename) throws IOException {
+        List<EntityFields> rows = new ArrayList<>();
+        TableHeader table = load(tablename, (row) -> rows.add(row));
+        if (table.getName() == null || table.getNextId() == null || table.getNextIdx() == null) {
+            throw new IOException("Table file incomplete - " + tablename);
         }
+        persist(tablename, table.getName(), table.getNextId(), table.getNextIdx(), rows);
+    }
+
+    /**
+     * Get the change journal for a table.
+     *
+     * @param tablename the table name
+     * @return the journal, or null if changes are not journalled
+     */
+    TableJournal getJournal(String tablename) {
+        return journalled ? new TableJournal(databasefolder, tablename, journalgroupsize) : null;
+    }
+
+    /**
+     * Get the journal size above which a table is compacted.
+     *
+     * @return the size (bytes)
+     */
+    long getJournalCompactSize() {
+        return journalcompactsize;
     }
 
     @Override
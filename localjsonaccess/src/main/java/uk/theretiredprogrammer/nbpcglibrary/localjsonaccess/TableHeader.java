@@ -0,0 +1,45 @@
+/*
+ * Copyright 2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.localjsonaccess;
+
+/**
+ * The table level values read from a local table file.
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ */
+interface TableHeader {
+
+    /**
+     * Get the table name.
+     *
+     * @return the name (or null if not defined)
+     */
+    String getName();
+
+    /**
+     * Get the next id to be allocated.
+     *
+     * @return the next id (or null if not defined)
+     */
+    Integer getNextId();
+
+    /**
+     * Get the next idx to be allocated.
+     *
+     * @return the next idx (or null if not defined)
+     */
+    Integer getNextIdx();
+}
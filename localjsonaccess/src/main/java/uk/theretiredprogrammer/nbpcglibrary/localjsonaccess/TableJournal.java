@@ -0,0 +1,241 @@
+/*
+ * Copyright 2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.localjsonaccess;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.JsonWriter;
+import uk.theretiredprogrammer.nbpcglibrary.common.LogBuilder;
+
+/**
+ * The append-only change journal of a local Json table.
+ *
+ * Each change is appended to the journal file as a single line Json object
+ * as it is made, and the file is synchronised to the storage device once
+ * groupsize changes are waiting (or when sync() is called). A table is
+ * loaded by reading its snapshot and then replaying its journals.
+ *
+ * Journal files are numbered (tablename.journal.n). Rotating the journal
+ * starts a new file, so that a snapshot can be written while changes
+ * continue to be journalled; the older journals are discarded once the
+ * snapshot has been written. Replaying a change which is already included
+ * in the snapshot leaves the table unchanged, so a failure at any point
+ * during compaction leaves a consistent table.
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ */
+class TableJournal {
+
+    /**
+     * The action to replay a journalled change.
+     */
+    interface Replayer {
+
+        /**
+         * Replay a change.
+         *
+         * @param change the journal record
+         * @throws IOException if the record is not a valid change
+         */
+        void replay(JsonObject change) throws IOException;
+    }
+
+    private static final String SUFFIX = ".journal.";
+
+    private final File folder;
+    private final String tablename;
+    private final int groupsize;
+    private int number;
+    private FileChannel channel;
+    private long size;
+    private int unsynced = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param folder the database folder
+     * @param tablename the table name
+     * @param groupsize the number of changes written before the journal is
+     * synchronised to the storage device
+     */
+    TableJournal(File folder, String tablename, int groupsize) {
+        this.folder = folder;
+        this.tablename = tablename;
+        this.groupsize = groupsize;
+    }
+
+    /**
+     * Replay all journals (oldest first) and open the latest journal for
+     * appending. An incomplete final change (from a failure while it was
+     * being written) is removed from the journal.
+     *
+     * @param replayer the action to replay each change
+     * @throws IOException if problems reading the journals
+     */
+    void open(Replayer replayer) throws IOException {
+        List<Integer> numbers = journalNumbers();
+        number = numbers.isEmpty() ? 1 : numbers.get(numbers.size() - 1);
+        long validlength = 0;
+        for (int n : numbers) {
+            validlength = replay(journalFile(n), replayer, n == number);
+        }
+        channel = FileChannel.open(journalFile(number).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.truncate(validlength);
+        channel.position(validlength);
+        size = validlength;
+    }
+
+    private long replay(File journal, Replayer replayer, boolean latest) throws IOException {
+        byte[] content = Files.readAllBytes(journal.toPath());
+        int start = 0;
+        for (int i = 0; i < content.length; i++) {
+            if (content[i] == '\n') {
+                String line = new String(content, start, i - start, StandardCharsets.UTF_8);
+                try (JsonReader reader = Json.createReader(new StringReader(line))) {
+                    replayer.replay(reader.readObject());
+                } catch (JsonException ex) {
+                    throw new IOException("Journal corrupt - " + journal.getName() + " at " + start);
+                }
+                start = i + 1;
+            }
+        }
+        if (start != content.length) {
+            if (!latest) {
+                throw new IOException("Journal corrupt - " + journal.getName() + " at " + start);
+            }
+            LogBuilder.create("nbpcglib.localJsonPersistenceUnitProvider", Level.WARNING).addMethodName(this, "open")
+                    .addMsg("Incomplete change removed from {0} at {1}", journal.getName(), start).write();
+        }
+        return start;
+    }
+
+    /**
+     * Append a change to the journal.
+     *
+     * @param change the journal record
+     * @throws IOException if problems writing the journal
+     */
+    void append(JsonObject change) throws IOException {
+        StringWriter line = new StringWriter();
+        try (JsonWriter writer = Json.createWriter(line)) {
+            writer.writeObject(change);
+        }
+        line.write('\n');
+        ByteBuffer buffer = ByteBuffer.wrap(line.toString().getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            size += channel.write(buffer);
+        }
+        if (++unsynced >= groupsize) {
+            sync();
+        }
+    }
+
+    /**
+     * Synchronise all appended changes to the storage device.
+     *
+     * @throws IOException if problems writing the journal
+     */
+    void sync() throws IOException {
+        if (unsynced > 0) {
+            channel.force(false);
+            unsynced = 0;
+        }
+    }
+
+    /**
+     * Get the size of the current journal.
+     *
+     * @return the size (bytes)
+     */
+    long size() {
+        return size;
+    }
+
+    /**
+     * Close the current journal and start a new one.
+     *
+     * @return the number of the closed journal
+     * @throws IOException if problems writing the journals
+     */
+    int rotate() throws IOException {
+        sync();
+        channel.close();
+        int closed = number++;
+        channel = FileChannel.open(journalFile(number).toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        size = 0;
+        return closed;
+    }
+
+    /**
+     * Delete the journals whose changes are included in a snapshot.
+     *
+     * @param upto the number of the latest journal to be deleted
+     * @throws IOException if problems deleting the journals
+     */
+    void discard(int upto) throws IOException {
+        for (int n : journalNumbers()) {
+            if (n <= upto) {
+                Files.deleteIfExists(journalFile(n).toPath());
+            }
+        }
+    }
+
+    /**
+     * Synchronise and close the current journal.
+     *
+     * @throws IOException if problems writing the journal
+     */
+    void close() throws IOException {
+        sync();
+        channel.close();
+    }
+
+    private File journalFile(int n) {
+        return new File(folder, tablename + SUFFIX + n);
+    }
+
+    private List<Integer> journalNumbers() {
+        List<Integer> numbers = new ArrayList<>();
+        String[] names = folder.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(tablename + SUFFIX)) {
+                    try {
+                        numbers.add(Integer.parseInt(name.substring(tablename.length() + SUFFIX.length())));
+                    } catch (NumberFormatException ex) {
+                        // not a journal
+                    }
+                }
+            }
+        }
+        numbers.sort(null);
+        return numbers;
+    }
+}
@@ -21,16 +21,40 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
 import org.junit.After;
 import org.junit.AfterClass;
+import static org.junit.Assume.assumeTrue;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.openide.filesystems.FileUtil;
+import uk.theretiredprogrammer.nbpcglibrary.api.AsyncEntityPersistenceProvider;
+import uk.theretiredprogrammer.nbpcglibrary.api.BatchResult;
+import uk.theretiredprogrammer.nbpcglibrary.api.Criteria;
 import uk.theretiredprogrammer.nbpcglibrary.api.EntityFields;
+import uk.theretiredprogrammer.nbpcglibrary.api.EntityPersistenceProvider;
 import uk.theretiredprogrammer.nbpcglibrary.api.EntityPersistenceProviderManager;
+import uk.theretiredprogrammer.nbpcglibrary.api.LogicException;
+import uk.theretiredprogrammer.nbpcglibrary.api.Page;
+import uk.theretiredprogrammer.nbpcglibrary.api.RoutingEntityPersistenceProvider;
 
 /**
  *
@@ -39,6 +63,7 @@ import uk.theretiredprogrammer.nbpcglibrary.api.EntityPersistenceProviderManager
 public class LibraryTest {
     
     private File dbdir;
+    private File replicadir;
 
     /**
      * Constructor
@@ -67,11 +92,20 @@ public class LibraryTest {
     public void setUp() {
             String tempDir = System.getProperty("java.io.tmpdir");
             dbdir = new File(tempDir, "JsonTestDatabase");
-            if (!dbdir.exists()){
-                dbdir.mkdir();
+            replicadir = new File(tempDir, "JsonTestReplica");
+            copyDatabase(dbdir);
+            copyDatabase(replicadir);
+    }
+
+    private void copyDatabase(File dir) {
+            if (!dir.exists()){
+                dir.mkdir();
+            }
+            for (File journal : dir.listFiles((d, name) -> name.startsWith("Data.journal."))) {
+                journal.delete();
             }
         try {
-                try (OutputStream out = new FileOutputStream(new File(dbdir,"Data"))) {
+                try (OutputStream out = new FileOutputStream(new File(dir,"Data"))) {
                     assert (out != null);
                     try (InputStream in = getClass().getResourceAsStream("/uk/theretiredprogrammer/nbpcglibrary/localjsonaccess/Data")) {
                         assert (in != null);
@@ -91,6 +125,7 @@ public class LibraryTest {
     //    new File(tmpdir, "Data").delete();
     //    tmpdir.delete();
         dbdir = null;
+        replicadir = null;
         
     }
 
@@ -110,35 +145,581 @@ public class LibraryTest {
             LocalJsonAutoIDEntityPersistenceProvider epp = (LocalJsonAutoIDEntityPersistenceProvider) EntityPersistenceProviderManager.getEntityPersistenceProvider("jsondata", "Data");
             //
             System.out.println("Instance Description: " + epp.instanceDescription());
+            assertSame(epp, EntityPersistenceProviderManager.getEntityPersistenceProvider("jsondata", "Data"));
             System.out.println("get(): " + epp.get().toString());
             System.out.println("get(1): " + epp.get(1).toString());
-            System.out.println("get(\"id\",1): " + epp.get("id", 1).toString());
-            System.out.println("getOne(\"id\",1): " + epp.getOne("id", 1).toString());
-            System.out.println("find(): " + epp.find().toString());
-            System.out.println("find(\"id\",1): " + epp.find("id", 1).toString());
-            System.out.println("findOne(\"id\",1): " + epp.findOne("id", 1).toString());
+            List<EntityFields> batch = epp.get(Arrays.asList(2, 999, 1));
+            System.out.println("get([2,999,1]): " + batch.toString());
+            assertEquals(3, batch.size());
+            assertEquals(2, batch.get(0).get("id"));
+            assertNull(batch.get(1));
+            assertEquals(1, batch.get(2).get("id"));
+            assertEquals("initial record", epp.getOne("id", 1).get("description"));
+            assertEquals(1, epp.get("id", 1).size());
+            assertEquals(new HashSet<>(Arrays.asList(1, 2, 27)), new HashSet<>(epp.find()));
+            assertEquals(Arrays.asList(1), epp.find("id", 1));
+            assertEquals(1, (int) epp.findOne("id", 1));
+            List<EntityFields> projection = epp.getProjection(Arrays.asList("id"));
+            assertEquals(3, projection.size());
+            projection.stream().forEach((pef) -> {
+                assertEquals(Collections.singleton("id"), pef.keySet());
+            });
+            EntityFields oneprojection = epp.getOneProjection(Arrays.asList("id"), "id", 1);
+            assertEquals(Collections.singleton("id"), oneprojection.keySet());
+            assertEquals(1, oneprojection.get("id"));
+            List<EntityFields> desc = epp.get(Criteria.in("id", Arrays.asList(1, 2)).orderBy("id", true));
+            assertEquals(2, desc.size());
+            assertEquals(2, desc.get(0).get("id"));
+            assertEquals(1, desc.get(1).get("id"));
+            assertEquals(new HashSet<>(Arrays.asList(2, 27)), new HashSet<>(epp.find(Criteria.or(Criteria.gt("id", 1), Criteria.isNull("id")))));
+            assertEquals(3, epp.count(Criteria.all()));
+            assertTrue(epp.exists(Criteria.eq("id", 2)));
+            assertFalse(epp.exists(Criteria.eq("id", 3)));
+            Page<Integer> page = epp.getPage(null, 2);
+            assertEquals(2, page.getRows().size());
+            assertEquals(1, page.getRows().get(0).get("id"));
+            assertEquals(2, page.getRows().get(1).get("id"));
+            assertNotNull(page.getNext());
+            page = epp.getPage(page.getNext(), 2);
+            assertEquals(1, page.getRows().size());
+            assertEquals(27, page.getRows().get(0).get("id"));
+            assertTrue(page.isLast());
             //
             EntityFields ef = new EntityFields();
             ef.put("description", "my first insert");
             EntityFields res = epp.insert(ef);
             int newid = (Integer) res.get("id");
-            System.out.println("insert(...) returns " + res);
-            System.out.println("get(): " + epp.get().toString());
-            System.out.println("get(newid): " + epp.get(newid).toString());
+            assertEquals(28, newid);
+            assertEquals(4, epp.get().size());
+            assertEquals("my first insert", epp.get(newid).get("description"));
             //
             EntityFields ef2 = new EntityFields();
             ef2.put("description", "my first insert - updated");
             res = epp.update(newid, ef2);
-            System.out.println("update(...) returns " + res);
+            assertEquals("my first insert - updated", res.get("description"));
+            assertEquals("my first insert - updated", epp.get(newid).get("description"));
             //
             epp.delete(newid - 1);
-            System.out.println("after delete: " + epp.get().toString());
+            assertNull(epp.get(newid - 1));
+            assertEquals(3, epp.get().size());
+            //
+            EntityFields bef1 = new EntityFields();
+            bef1.put("description", "batch insert 1");
+            EntityFields bef2 = new EntityFields();
+            bef2.put("description", "batch insert 2");
+            BatchResult br = epp.insert(Arrays.asList(bef1, bef2));
+            assertFalse(br.hasErrors());
+            assertEquals("batch insert 1", br.getRow(0).get("description"));
+            int batchid = (Integer) br.getRow(1).get("id");
+            assertEquals(batchid - 1, br.getRow(0).get("id"));
+            assertEquals(5, epp.get().size());
+            EntityFields bdiff = new EntityFields();
+            bdiff.put("description", "batch insert 2 - updated");
+            br = epp.update(Arrays.asList(batchid, 9999), Arrays.asList(bdiff, new EntityFields()));
+            assertTrue(br.isSuccess(0));
+            assertEquals("batch insert 2 - updated", br.getRow(0).get("description"));
+            assertEquals("batch insert 2 - updated", epp.get(batchid).get("description"));
+            assertFalse(br.isSuccess(1));
+            assertNotNull(br.getError(1));
+            assertEquals(1, br.getErrorCount());
+            br = epp.delete(Arrays.asList(batchid - 1, batchid));
+            assertEquals(0, br.getErrorCount());
+            assertEquals(new HashSet<>(Arrays.asList(1, 2, newid)), new HashSet<>(epp.find()));
             epp.persist();
-            assert (true);
             System.out.println("Test Json Access Library completed");
 
         } catch (IOException ex) {
             fail(ex.getMessage());
         }
     }
+
+    /**
+     * Test of read/write splitting between a primary and a replica (two local
+     * json databases, the replica is never updated).
+     *
+     * @throws Exception if problems
+     */
+    @Test
+    public void testReplicaRouting() throws Exception {
+        System.out.println("Test Replica Routing");
+        Properties rp = new Properties();
+        rp.setProperty("connection", replicadir.getAbsolutePath());
+        rp.setProperty("key", "jsonreplica");
+        rp.setProperty("entitypersistenceprovidertype", "local-json");
+        rp.setProperty("persistenceunitprovidertype", "local-json");
+        EntityPersistenceProviderManager.init(rp);
+        Properties p = new Properties();
+        p.setProperty("connection", dbdir.getAbsolutePath());
+        p.setProperty("key", "jsonprimary");
+        p.setProperty("entitypersistenceprovidertype", "local-json");
+        p.setProperty("persistenceunitprovidertype", "local-json");
+        p.setProperty("replicas", "jsonreplica");
+        p.setProperty("readyourwritesmillis", "200");
+        EntityPersistenceProviderManager.init(p);
+        EntityPersistenceProvider<Integer> epp = EntityPersistenceProviderManager.getEntityPersistenceProvider("jsonprimary", "Data");
+        assertTrue(epp instanceof RoutingEntityPersistenceProvider);
+        int before = epp.get().size();
+        EntityFields ef = new EntityFields();
+        ef.put("description", "routed insert");
+        epp.insert(ef);
+        // read your writes - this thread reads from the primary
+        assertEquals(before + 1, epp.get().size());
+        // and so do other threads of the session
+        int[] otherthread = new int[1];
+        Thread reader = new Thread(() -> {
+            otherthread[0] = epp.get().size();
+        });
+        reader.start();
+        reader.join();
+        assertEquals(before + 1, otherthread[0]);
+        // reads use the replica once the read your writes period has passed
+        Thread.sleep(300);
+        assertEquals(before, epp.get().size());
+        // a write made on another thread by an asynchronous operation is also read
+        AsyncEntityPersistenceProvider<Integer> async = AsyncEntityPersistenceProvider.of(epp);
+        assertSame(epp, async);
+        ef = new EntityFields();
+        ef.put("description", "routed async insert");
+        async.insertAsync(ef).get();
+        assertEquals(before + 2, epp.get().size());
+        assertEquals(before + 2, (int) async.getAsync().get().size());
+        Thread.sleep(300);
+        assertEquals(before, (int) async.getAsync().get().size());
+        EntityPersistenceProviderManager.close("jsonprimary");
+        EntityPersistenceProviderManager.close("jsonreplica");
+    }
+
+    /**
+     * Test of asynchronous reads overlapping inserts on the caller's thread -
+     * the shared provider is used from both threads at once.
+     *
+     * @throws Exception if problems
+     */
+    @Test
+    public void testAsyncOverlap() throws Exception {
+        System.out.println("Test Async Overlap");
+        EntityPersistenceProviderManager.init(jsonProperties("jsonasync"));
+        EntityPersistenceProvider<Integer> epp = EntityPersistenceProviderManager.getEntityPersistenceProvider("jsonasync", "Data");
+        AsyncEntityPersistenceProvider<Integer> async = AsyncEntityPersistenceProvider.of(epp);
+        int before = epp.get().size();
+        List<CompletableFuture<List<EntityFields>>> reads = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            reads.add(async.getAsync());
+            EntityFields ef = new EntityFields();
+            ef.put("description", "overlapped insert " + i);
+            ef.put("parent", i % 10);
+            epp.insert(ef);
+            epp.find("parent", i % 10);
+        }
+        for (CompletableFuture<List<EntityFields>> read : reads) {
+            int size = read.get().size();
+            assertTrue(size >= before && size <= before + 500);
+        }
+        assertEquals(before + 500, epp.get().size());
+        assertEquals(50, epp.find("parent", 3).size());
+        EntityPersistenceProviderManager.close("jsonasync");
+    }
+
+    /**
+     * Test of the change journal - changes are replayed when the table is
+     * reloaded, an incomplete final change is ignored, and the journal is
+     * compacted into the table file.
+     *
+     * @throws Exception if problems
+     */
+    @Test
+    public void testJournal() throws Exception {
+        System.out.println("Test Change Journal");
+        EntityPersistenceProviderManager.init(jsonProperties("jsonjournal"));
+        EntityPersistenceProvider<Integer> epp = EntityPersistenceProviderManager.getEntityPersistenceProvider("jsonjournal", "Data");
+        int before = epp.get().size();
+        long snapshotsize = new File(dbdir, "Data").length();
+        int firstid = 0;
+        for (int i = 0; i < 3; i++) {
+            EntityFields ef = new EntityFields();
+            ef.put("description", "journalled insert " + i);
+            int id = (Integer) epp.insert(ef).get("id");
+            firstid = i == 0 ? id : firstid;
+        }
+        EntityFields diff = new EntityFields();
+        diff.put("description", "journalled update");
+        epp.update(firstid, diff);
+        epp.delete(firstid + 1);
+        EntityPersistenceProviderManager.close("jsonjournal");
+        assertEquals(snapshotsize, new File(dbdir, "Data").length());
+        File journal = new File(dbdir, "Data.journal.1");
+        assertTrue(journal.length() > 0);
+        try (OutputStream out = new FileOutputStream(journal, true)) {
+            out.write("{\"op\":\"ins".getBytes(StandardCharsets.UTF_8));
+        }
+        //
+        Properties p = jsonProperties("jsonjournalreload");
+        p.setProperty("journalcompactsize", "1");
+        EntityPersistenceProviderManager.init(p);
+        epp = EntityPersistenceProviderManager.getEntityPersistenceProvider("jsonjournalreload", "Data");
+        assertEquals(before + 2, epp.get().size());
+        assertEquals("journalled update", epp.get(firstid).get("description"));
+        assertEquals(1, epp.find("description", "journalled insert 2").size());
+        EntityFields ef = new EntityFields();
+        ef.put("description", "compacted insert");
+        int compactedid = (Integer) epp.insert(ef).get("id");
+        EntityPersistenceProviderManager.close("jsonjournalreload");
+        assertFalse(journal.exists());
+        //
+        p = jsonProperties("jsonjournalsnapshot");
+        p.setProperty("journal", "false");
+        EntityPersistenceProviderManager.init(p);
+        epp = EntityPersistenceProviderManager.getEntityPersistenceProvider("jsonjournalsnapshot", "Data");
+        assertEquals(before + 3, epp.get().size());
+        assertEquals("compacted insert", epp.get(compactedid).get("description"));
+        EntityPersistenceProviderManager.close("jsonjournalsnapshot");
+    }
+
+    /**
+     * Test that a Long value outside the Integer range is not truncated when
+     * the change journal is replayed or the table file is read.
+     *
+     * @throws Exception if problems
+     */
+    @Test
+    public void testLongValue() throws Exception {
+        System.out.println("Test Long Value");
+        long big = Integer.MAX_VALUE + 10L;
+        EntityPersistenceProviderManager.init(jsonProperties("jsonlong"));
+        EntityPersistenceProvider<Integer> epp = EntityPersistenceProviderManager.getEntityPersistenceProvider("jsonlong", "Data");
+        EntityFields ef = new EntityFields();
+        ef.put("description", "long value");
+        ef.put("size", big);
+        int id = (Integer) epp.insert(ef).get("id");
+        EntityFields diff = new EntityFields();
+        diff.put("limit", -big);
+        epp.update(id, diff);
+        EntityPersistenceProviderManager.close("jsonlong");
+        //
+        Properties p = jsonProperties("jsonlongreplay");
+        p.setProperty("journalcompactsize", "1");
+        EntityPersistenceProviderManager.init(p);
+        epp = EntityPersistenceProviderManager.getEntityPersistenceProvider("jsonlongreplay", "Data");
+        assertEquals(big, epp.get(id).get("size"));
+        assertEquals(-big, epp.get(id).get("limit"));
+        ef = new EntityFields();
+        ef.put("description", "compacted long value");
+        ef.put("size", big);
+        int compactedid = (Integer) epp.insert(ef).get("id");
+        EntityPersistenceProviderManager.close("jsonlongreplay");
+        //
+        p = jsonProperties("jsonlongsnapshot");
+        p.setProperty("journal", "false");
+        EntityPersistenceProviderManager.init(p);
+        epp = EntityPersistenceProviderManager.getEntityPersistenceProvider("jsonlongsnapshot", "Data");
+        assertEquals(big, epp.get(id).get("size"));
+        assertEquals(-big, epp.get(id).get("limit"));
+        assertEquals(big, epp.get(compactedid).get("size"));
+        assertEquals(2, epp.find("size", big).size());
+        EntityPersistenceProviderManager.close("jsonlongsnapshot");
+    }
+
+    /**
+     * Test of writing and loading a larger table through the Json event
+     * stream.
+     *
+     * @throws Exception if problems
+     */
+    @Test
+    public void testStreamingLoad() throws Exception {
+        System.out.println("Test Streaming Load");
+        Properties p = jsonProperties("jsonstreamwrite");
+        p.setProperty("journal", "false");
+        EntityPersistenceProviderManager.init(p);
+        EntityPersistenceProvider<Integer> epp = EntityPersistenceProviderManager.getEntityPersistenceProvider("jsonstreamwrite", "Data");
+        int before = epp.get().size();
+        List<EntityFields> rows = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            EntityFields ef = new EntityFields();
+            ef.put("description", "streamed \"row\" " + i);
+            ef.put("enabled", i % 2 == 0);
+            ef.put("parent", i % 2 == 0 ? null : i);
+            rows.add(ef);
+        }
+        int firstid = (Integer) epp.insert(rows).getRow(0).get("id");
+        EntityPersistenceProviderManager.close("jsonstreamwrite");
+        //
+        long start = System.nanoTime();
+        EntityPersistenceProviderManager.init(jsonProperties("jsonstreamread"));
+        epp = EntityPersistenceProviderManager.getEntityPersistenceProvider("jsonstreamread", "Data");
+        System.out.println("  load: " + (System.nanoTime() - start) / 1000000 + " ms");
+        assertEquals(before + 20000, epp.get().size());
+        EntityFields first = epp.get(firstid);
+        assertEquals("streamed \"row\" 0", first.get("description"));
+        assertEquals(true, first.get("enabled"));
+        assertEquals(null, first.get("parent"));
+        EntityFields second = epp.get(firstid + 1);
+        assertEquals(false, second.get("enabled"));
+        assertEquals(1, second.get("parent"));
+        assertTrue(epp.get(firstid + 3).getSchema() == second.getSchema());
+        EntityPersistenceProviderManager.close("jsonstreamread");
+    }
+
+    /**
+     * Test of the binary table format - conversion from Json, use of a binary
+     * database and conversion back to Json.
+     *
+     * @throws Exception if problems
+     */
+    @Test
+    public void testBinaryFormat() throws Exception {
+        System.out.println("Test Binary Format");
+        Properties p = jsonProperties("jsonbinary");
+        p.setProperty("format", "binary");
+        p.setProperty("journal", "false");
+        LocalJsonPersistenceUnitProvider binarypup = new LocalJsonPersistenceUnitProvider(p);
+        binarypup.convert("Data");
+        EntityPersistenceProviderManager.init(p);
+        EntityPersistenceProvider<Integer> epp = EntityPersistenceProviderManager.getEntityPersistenceProvider("jsonbinary", "Data");
+        assertEquals(3, epp.get().size());
+        assertEquals("initial record", epp.get(1).get("description"));
+        EntityFields ef = new EntityFields();
+        ef.put("description", "binary \u00e9 insert");
+        ef.put("enabled", true);
+        ef.put("size", 12345678901L);
+        int id = (Integer) epp.insert(ef).get("id");
+        EntityFields diff = new EntityFields();
+        diff.put("enabled", null);
+        diff.put("description", 42);
+        epp.update(2, diff);
+        EntityPersistenceProviderManager.close("jsonbinary");
+        //
+        new LocalJsonPersistenceUnitProvider(jsonProperties("jsonconvert")).convert("Data");
+        EntityPersistenceProviderManager.init(jsonProperties("jsonfrombinary"));
+        epp = EntityPersistenceProviderManager.getEntityPersistenceProvider("jsonfrombinary", "Data");
+        assertEquals(4, epp.get().size());
+        assertEquals("binary \u00e9 insert", epp.get(id).get("description"));
+        assertEquals(true, epp.get(id).get("enabled"));
+        assertEquals(42, epp.get(2).get("description"));
+        assertEquals(null, epp.get(2).get("enabled"));
+        assertTrue(epp.get(2).containsKey("enabled"));
+        EntityPersistenceProviderManager.close("jsonfrombinary");
+    }
+
+    /**
+     * Test of field indexes - declared and built on first use, and kept up to
+     * date as rows are inserted, updated and deleted.
+     *
+     * @throws Exception if problems
+     */
+    @Test
+    public void testIndexes() throws Exception {
+        System.out.println("Test Field Indexes");
+        Properties p = jsonProperties("jsonindexes");
+        p.setProperty("indexes", "Data.parent");
+        EntityPersistenceProviderManager.init(p);
+        EntityPersistenceProvider<Integer> epp = EntityPersistenceProviderManager.getEntityPersistenceProvider("jsonindexes", "Data");
+        List<EntityFields> rows = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            EntityFields ef = new EntityFields();
+            ef.put("description", "indexed row " + i % 100);
+            ef.put("parent", i % 10);
+            rows.add(ef);
+        }
+        int firstid = (Integer) epp.insert(rows).getRow(0).get("id");
+        assertEquals(100, epp.find("parent", 3).size());
+        assertEquals(100, epp.find("parent", 3L).size());
+        assertEquals(10, epp.get("description", "indexed row 7").size());
+        assertEquals(100, epp.count(Criteria.eq("parent", 3L)));
+        assertEquals(200, epp.find(Criteria.in("parent", Arrays.asList(3, 4))).size());
+        assertEquals(10, epp.get(Criteria.and(Criteria.eq("parent", 7), Criteria.eq("description", "indexed row 7"))).size());
+        assertEquals(110, epp.get(Criteria.or(Criteria.eq("parent", 7), Criteria.eq("description", "indexed row 8"))).size());
+        //
+        EntityFields diff = new EntityFields();
+        diff.put("parent", 99);
+        diff.put("description", "moved row");
+        epp.update(firstid + 3, diff);
+        epp.delete(firstid + 13);
+        assertEquals(98, epp.find("parent", 3).size());
+        assertEquals(1, epp.find("parent", 99).size());
+        assertEquals(firstid + 3, (int) epp.findOne("description", "moved row"));
+        assertEquals(9, epp.get("description", "indexed row 3").size());
+        assertTrue(epp.exists(Criteria.eq("parent", 99)));
+        assertFalse(epp.exists(Criteria.and(Criteria.eq("parent", 3), Criteria.eq("description", "moved row"))));
+        assertEquals(98, epp.getPage("parent", 3, null, 200).getRows().size());
+        assertEquals(3, epp.find("parent", null).size());
+        EntityPersistenceProviderManager.close("jsonindexes");
+    }
+
+    /**
+     * Test of an ordered table - rows are read in idx order, which is kept as
+     * rows are inserted, reordered and deleted.
+     *
+     * @throws Exception if problems
+     */
+    @Test
+    public void testIdxOrder() throws Exception {
+        System.out.println("Test Idx Order");
+        EntityPersistenceProviderManager.init(jsonProperties("jsonidxorder"));
+        EntityPersistenceProvider<Integer> epp = EntityPersistenceProviderManager.getEntityPersistenceProvider("jsonidxorder", "Data", "idx");
+        List<EntityFields> rows = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            EntityFields ef = new EntityFields();
+            ef.put("description", "ordered row");
+            ef.put("idx", (i * 37) % 100);
+            ef.put("parent", i % 2);
+            rows.add(ef);
+        }
+        epp.insert(rows);
+        assertIdxOrder(epp.get(), 103);
+        assertIdxOrder(epp.get("parent", 1), 50);
+        assertIdxOrder(epp.get(Criteria.eq("description", "ordered row")), 100);
+        assertIdxOrder(epp.get(Criteria.gt("idx", 49)), 50);
+        List<Integer> pks = epp.find();
+        assertEquals(1, (int) pks.get(0));
+        assertEquals(epp.findOne("idx", 0), pks.get(3));
+        assertEquals(epp.findOne("idx", 99), pks.get(102));
+        //
+        int last = epp.findOne("idx", 99);
+        EntityFields diff = new EntityFields();
+        diff.put("idx", -1);
+        epp.update(last, diff);
+        epp.delete(epp.findOne("idx", 50));
+        pks = epp.find();
+        assertEquals(last, (int) pks.get(3));
+        assertIdxOrder(epp.get(), 102);
+        List<EntityFields> paged = new ArrayList<>();
+        Page<Integer> page = epp.getPage(null, 7);
+        paged.addAll(page.getRows());
+        while (!page.isLast()) {
+            page = epp.getPage(page.getNext(), 7);
+            paged.addAll(page.getRows());
+        }
+        assertIdxOrder(paged, 102);
+        page = epp.getPage("parent", 0, null, 10);
+        assertIdxOrder(page.getRows(), 10);
+        page = epp.getPage("parent", 0, page.getNext(), 100);
+        assertIdxOrder(page.getRows(), 39);
+        EntityPersistenceProviderManager.close("jsonidxorder");
+        //
+        EntityPersistenceProviderManager.init(jsonProperties("jsonidxreload"));
+        epp = EntityPersistenceProviderManager.getEntityPersistenceProvider("jsonidxreload", "Data", "idx");
+        assertEquals(pks, epp.find());
+        EntityPersistenceProviderManager.close("jsonidxreload");
+    }
+
+    private void assertIdxOrder(List<EntityFields> rows, int size) {
+        assertEquals(size, rows.size());
+        for (int i = 1; i < rows.size(); i++) {
+            Object idx1 = rows.get(i - 1).get("idx");
+            Object idx2 = rows.get(i).get("idx");
+            assertTrue(idx1 == null || (idx2 != null && (Integer) idx1 <= (Integer) idx2));
+        }
+    }
+
+    /**
+     * Test that a field value which cannot be written is rejected before the
+     * table is changed.
+     *
+     * @throws Exception if problems
+     */
+    @Test
+    public void testIllegalValue() throws Exception {
+        System.out.println("Test Illegal Field Value");
+        Properties p = jsonProperties("jsonillegal");
+        p.setProperty("format", "binary");
+        EntityPersistenceProviderManager.init(p);
+        EntityPersistenceProvider<Integer> epp = EntityPersistenceProviderManager.getEntityPersistenceProvider("jsonillegal", "Data");
+        int count = epp.count(Criteria.isNotNull("id"));
+        EntityFields ef = new EntityFields();
+        ef.put("description", "illegal row");
+        ef.put("weight", 1.5);
+        try {
+            epp.insert(ef);
+            fail("insert of a Double value should fail");
+        } catch (LogicException ex) {
+            assertTrue(ex.getMessage().contains("weight"));
+        }
+        assertEquals(count, epp.count(Criteria.isNotNull("id")));
+        EntityPersistenceProviderManager.close("jsonillegal");
+    }
+
+    /**
+     * Benchmark table load times, Json against binary, at 10k, 100k and 1M
+     * rows. The benchmark is only run if the benchmark system property is
+     * true.
+     *
+     * @throws Exception if problems
+     */
+    @Test
+    public void benchmarkLoad() throws Exception {
+        assumeTrue(Boolean.getBoolean("benchmark"));
+        System.out.println("load benchmark (Json / binary)");
+        Properties p = jsonProperties("jsonbenchmark");
+        LocalJsonPersistenceUnitProvider jsonpup = new LocalJsonPersistenceUnitProvider(p);
+        p.setProperty("format", "binary");
+        LocalJsonPersistenceUnitProvider binarypup = new LocalJsonPersistenceUnitProvider(p);
+        for (int size : new int[]{10000, 100000, 1000000}) {
+            Collection<EntityFields> rows = benchmarkRows(size);
+            jsonpup.persist("BenchmarkJson", "Benchmark", size + 1, size, rows);
+            binarypup.persist("BenchmarkBinary", "Benchmark", size + 1, size, rows);
+            int[] count = new int[1];
+            for (int warmup = 0; warmup < 2; warmup++) {
+                jsonpup.load("BenchmarkJson", (row) -> count[0]++);
+                binarypup.load("BenchmarkBinary", (row) -> count[0]++);
+            }
+            count[0] = 0;
+            long start = System.nanoTime();
+            jsonpup.load("BenchmarkJson", (row) -> count[0]++);
+            long json = System.nanoTime() - start;
+            start = System.nanoTime();
+            binarypup.load("BenchmarkBinary", (row) -> count[0]++);
+            long binary = System.nanoTime() - start;
+            assertEquals(2 * size, count[0]);
+            System.out.println("  " + size + " rows: json " + json / 1000000 + " ms ("
+                    + new File(dbdir, "BenchmarkJson").length() / 1024 + " KB), binary " + binary / 1000000 + " ms ("
+                    + new File(dbdir, "BenchmarkBinary").length() / 1024 + " KB)");
+        }
+        new File(dbdir, "BenchmarkJson").delete();
+        new File(dbdir, "BenchmarkBinary").delete();
+    }
+
+    // rows are created as they are iterated, so large tables are not held in memory
+    private Collection<EntityFields> benchmarkRows(int size) {
+        return new AbstractCollection<EntityFields>() {
+            @Override
+            public Iterator<EntityFields> iterator() {
+                return new Iterator<EntityFields>() {
+                    private int i = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return i < size;
+                    }
+
+                    @Override
+                    public EntityFields next() {
+                        EntityFields ef = new EntityFields();
+                        ef.put("id", i + 1);
+                        ef.put("idx", size - i);
+                        ef.put("description", "benchmark row " + i);
+                        ef.put("enabled", i % 3 == 0);
+                        ef.put("parent", i % 10 == 0 ? null : i / 10);
+                        ef.put("updatedon", "20170101000000");
+                        i++;
+                        return ef;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    private Properties jsonProperties(String key) {
+        Properties p = new Properties();
+        p.setProperty("connection", dbdir.getAbsolutePath());
+        p.setProperty("key", key);
+        p.setProperty("entitypersistenceprovidertype", "local-json");
+        p.setProperty("persistenceunitprovidertype", "local-json");
+        return p;
+    }
 }
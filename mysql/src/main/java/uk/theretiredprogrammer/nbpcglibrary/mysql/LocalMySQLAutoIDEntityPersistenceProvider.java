@@ -31,6 +31,11 @@ public class LocalMySQLAutoIDEntityPersistenceProvider extends LocalMySQLEntityP
         return (Integer) ef.get("id");
     }
 
+    @Override
+    protected Integer convertGeneratedKey(Object key) {
+        return ((Number) key).intValue();
+    }
+
     @Override
     public void autoGenPrimaryKeyHook(EntityFields ef) {
     }
@@ -30,25 +30,65 @@ import uk.theretiredprogrammer.nbpcglibrary.localdatabaseaccess.LocalSQLPersiste
  */
 @RegisterLog("nbpcglibrary.mysql")
 public class LocalMySQLPersistenceUnitProvider extends LocalSQLPersistenceUnitProvider {
+
+    private static final int DEFAULTPOOLSIZE = 8;
+    private final boolean cursorfetch;
     
     /**
      * Constructor
+     *
+     * Connection parameters are: connection, user and password. The optional
+     * pool parameters are: poolsize (maximum number of connections),
+     * pooltimeout (milliseconds to wait for a free connection) and
+     * statementcachesize (prepared statements cached per connection). Streamed
+     * queries fetch rows one at a time unless usecursorfetch is true, when
+     * they are fetched in blocks of fetchsize rows using a server side cursor.
+     * An illegal numeric parameter is reported as a configuration error, and
+     * the provider is not operational.
      * 
      * @param p the db connection parameters
      */
     @SuppressWarnings("LeakingThisInConstructor")
     public LocalMySQLPersistenceUnitProvider(Properties p) {
         super("local-mysql-"+p.getProperty("key"));
+        cursorfetch = Boolean.parseBoolean(p.getProperty("usecursorfetch"));
         try {
             Class.forName("com.mysql.jdbc.Driver");
-            setConnection(DriverManager.getConnection(p.getProperty("connection"), p.getProperty("user"), p.getProperty("password")));
+            setStatementCacheSize(getIntProperty(p, "statementcachesize", DEFAULTSTATEMENTCACHESIZE, 1));
+            Properties connectionproperties = new Properties();
+            if (p.getProperty("user") != null) {
+                connectionproperties.setProperty("user", p.getProperty("user"));
+            }
+            if (p.getProperty("password") != null) {
+                connectionproperties.setProperty("password", p.getProperty("password"));
+            }
+            // use real server side prepared statements (the driver emulates them by default)
+            connectionproperties.setProperty("useServerPrepStmts", "true");
+            // send JDBC batches as multi-row statements (eg INSERT ... VALUES (...),(...))
+            connectionproperties.setProperty("rewriteBatchedStatements", "true");
+            if (cursorfetch) {
+                connectionproperties.setProperty("useCursorFetch", "true");
+            }
+            setFetchSize(getIntProperty(p, "fetchsize", DEFAULTFETCHSIZE, 0));
+            String connection = p.getProperty("connection");
+            setConnectionPool(() -> DriverManager.getConnection(connection, connectionproperties),
+                    getIntProperty(p, "poolsize", DEFAULTPOOLSIZE, 1),
+                    getLongProperty(p, "pooltimeout", DEFAULTPOOLTIMEOUT, 0));
+            // open the first connection now, so that connection problems are reported at startup
+            query("SELECT 1");
             setOperational();
-        } catch (ClassNotFoundException | SQLException ex) {
+        } catch (ClassNotFoundException | SQLException | IllegalArgumentException ex) {
              LogBuilder.create("nbpcglibrary.mysql", Level.SEVERE).addConstructorName(this, p)
                 .addExceptionMessage(ex).write();
         }
     }
     
+    @Override
+    protected int getStreamingFetchSize() {
+        // without cursor fetch, Connector/J only streams rows when asked for Integer.MIN_VALUE
+        return cursorfetch ? super.getStreamingFetchSize() : Integer.MIN_VALUE;
+    }
+
     @Override
     public String instanceDescription() {
         return LogBuilder.instanceDescription(this, getName());
@@ -16,18 +16,28 @@
 package uk.theretiredprogrammer.nbpcglibrary.mysql;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import static org.junit.Assert.*;
+import uk.theretiredprogrammer.nbpcglibrary.api.AsyncEntityPersistenceProvider;
+import uk.theretiredprogrammer.nbpcglibrary.api.Criteria;
 import uk.theretiredprogrammer.nbpcglibrary.api.EntityFields;
 import uk.theretiredprogrammer.nbpcglibrary.api.EntityPersistenceProvider;
 import uk.theretiredprogrammer.nbpcglibrary.api.EntityPersistenceProviderManager;
 import uk.theretiredprogrammer.nbpcglibrary.api.LogicException;
+import uk.theretiredprogrammer.nbpcglibrary.api.Page;
+import uk.theretiredprogrammer.nbpcglibrary.localdatabaseaccess.ConnectionPool;
+import uk.theretiredprogrammer.nbpcglibrary.localdatabaseaccess.FlushSummary;
+import uk.theretiredprogrammer.nbpcglibrary.localdatabaseaccess.LocalSQLEntityPersistenceProvider;
 
 /**
  * The test package for the LocalMySqlEntityPersistenceProvider
@@ -112,6 +122,22 @@ public class LocalMySQLEntityPersistenceProviderTest {
         assertEquals("app2", result.get("application"));
     }
 
+    /**
+     * Test of get method (set of primary keys), of class
+     * LocalSQLEntityPersistenceProvider.
+     *
+     * @throws Exception if problems
+     */
+    @Test
+    public void testGet_Collection() throws Exception {
+        System.out.println("get(pkeys)");
+        List<EntityFields> result = instance.get(Arrays.asList(3, 1, 99));
+        assertEquals(3, result.size());
+        assertEquals(3, result.get(0).get("id"));
+        assertEquals(1, result.get(1).get("id"));
+        assertNull(result.get(2));
+    }
+
     /**
      * Test of find method, of class LocalSQLEntityPersistenceProvider.
      *
@@ -137,6 +163,82 @@ public class LocalMySQLEntityPersistenceProviderTest {
         assertEquals(1, result.get(0).get("id"));
     }
 
+    /**
+     * Test of get and find methods (criteria), of class
+     * LocalSQLEntityPersistenceProvider.
+     *
+     * @throws Exception if problems
+     */
+    @Test
+    public void testGet_Criteria() throws Exception {
+        System.out.println("get(criteria)");
+        List<EntityFields> result = instance.get(Criteria.or(Criteria.eq("application", "app1"), Criteria.in("id", Arrays.asList(3, 99)))
+                .orderBy("id", true));
+        assertEquals(2, result.size());
+        assertEquals(3, result.get(0).get("id"));
+        assertEquals(1, result.get(1).get("id"));
+        List<Integer> pks = instance.find(Criteria.and(Criteria.gt("id", 1), Criteria.isNotNull("application")).orderBy("id"));
+        assertEquals(Arrays.asList(2, 3), pks);
+        assertEquals(0, instance.find(Criteria.in("id", new ArrayList<>())).size());
+    }
+
+    /**
+     * Test of count and exists methods, of class
+     * LocalSQLEntityPersistenceProvider.
+     *
+     * @throws Exception if problems
+     */
+    @Test
+    public void testCountExists() throws Exception {
+        System.out.println("count/exists");
+        assertEquals(3, instance.count(Criteria.all()));
+        assertEquals(2, instance.count(Criteria.ne("application", "app1")));
+        assertTrue(instance.exists(Criteria.eq("application", "app2")));
+        assertFalse(instance.exists(Criteria.eq("application", "none")));
+    }
+
+    /**
+     * Test of getChangedSince method, of class
+     * LocalSQLEntityPersistenceProvider.
+     *
+     * @throws Exception if problems
+     */
+    @Test
+    public void testGetChangedSince() throws Exception {
+        System.out.println("getChangedSince");
+        List<EntityFields> changed = instance.getChangedSince(Criteria.all(), "20000101000000");
+        assertEquals(instance.count(Criteria.all()), changed.size());
+        Object watermark = EntityPersistenceProvider.getWatermark(changed, null);
+        assertNotNull(watermark);
+        assertTrue(instance.getChangedSince(Criteria.eq("application", "app3"), watermark).size() <= 1);
+    }
+
+    /**
+     * Test of the asynchronous operations, of class
+     * LocalSQLEntityPersistenceProvider.
+     *
+     * @throws Exception if problems
+     */
+    @Test
+    public void testGetAsync() throws Exception {
+        System.out.println("getAsync");
+        AsyncEntityPersistenceProvider<Integer> async = AsyncEntityPersistenceProvider.of(instance);
+        assertSame(instance, async);
+        CompletableFuture<EntityFields> get = async.getAsync(2);
+        CompletableFuture<Integer> count = async.countAsync(Criteria.all());
+        CompletableFuture<List<Integer>> find = async.findAsync(Criteria.eq("application", "app3"));
+        CompletableFuture.allOf(get, count, find).join();
+        assertEquals("app2", get.join().get("application"));
+        assertEquals(3, (int) count.join());
+        assertEquals(Arrays.asList(3), find.join());
+        try {
+            async.getAsync(-1).join();
+            fail("get of a missing entity should fail");
+        } catch (CompletionException ex) {
+            assertTrue(ex.getCause() instanceof LogicException);
+        }
+    }
+
     /**
      * Test of getOne method, of class LocalSQLEntityPersistenceProvider.
      *
@@ -149,6 +251,52 @@ public class LocalMySQLEntityPersistenceProviderTest {
         assertEquals(3, result.get("id"));
     }
 
+    /**
+     * Test of getProjection methods, of class
+     * LocalSQLEntityPersistenceProvider.
+     *
+     * @throws Exception if problems
+     */
+    @Test
+    public void testGetProjection() throws Exception {
+        System.out.println("getProjection");
+        List<EntityFields> result = instance.getProjection(Arrays.asList("id", "application"));
+        assertEquals(3, result.size());
+        assertEquals(2, result.get(0).size());
+        result = instance.getProjection(Arrays.asList("application"), "id", 2);
+        assertEquals(1, result.size());
+        assertEquals("app2", result.get(0).get("application"));
+        assertFalse(result.get(0).containsKey("id"));
+        EntityFields one = instance.getOneProjection(Arrays.asList("id"), "application", "app3");
+        assertEquals(3, one.get("id"));
+        assertEquals(1, one.size());
+    }
+
+    /**
+     * Test of getPage and getRange methods, of class
+     * LocalSQLEntityPersistenceProvider.
+     *
+     * @throws Exception if problems
+     */
+    @Test
+    public void testGetPage() throws Exception {
+        System.out.println("getPage");
+        Page<Integer> page = instance.getPage(null, 2);
+        assertEquals(2, page.getRows().size());
+        assertEquals(1, page.getRows().get(0).get("id"));
+        assertFalse(page.isLast());
+        page = instance.getPage(page.getNext(), 2);
+        assertEquals(1, page.getRows().size());
+        assertEquals(3, page.getRows().get(0).get("id"));
+        assertTrue(page.isLast());
+        page = instance.getPage("application", "app2", null, 2);
+        assertEquals(1, page.getRows().size());
+        assertTrue(page.isLast());
+        List<EntityFields> range = instance.getRange(1, 5);
+        assertEquals(2, range.size());
+        assertEquals(2, range.get(0).get("id"));
+    }
+
     /**
      * Test of findNextIdx method, of class LocalSQLEntityPersistenceProvider.
      *
@@ -160,4 +308,108 @@ public class LocalMySQLEntityPersistenceProviderTest {
         int result = instance.findNextIdx();
         fail("Exception should have been thrown in this case.");
     }
+
+    /**
+     * Test of reserveIdx method, of class LocalSQLEntityPersistenceProvider.
+     *
+     * @throws Exception if problems
+     */
+    @Test(expected = LogicException.class)
+    public void testReserveIdx() throws Exception {
+        System.out.println("reserveIdx");
+        int result = instance.reserveIdx(20);
+        fail("Exception should have been thrown in this case.");
+    }
+
+    /**
+     * Test of scan method, of class LocalSQLEntityPersistenceProvider.
+     *
+     * @throws Exception if problems
+     */
+    @Test
+    public void testScan() throws Exception {
+        System.out.println("scan");
+        List<Object> ids = new ArrayList<>();
+        int result = ((LocalSQLEntityPersistenceProvider<Integer>) instance).scan((ef) -> ids.add(ef.get("id")));
+        assertEquals(3, result);
+        assertEquals(3, ids.size());
+        result = ((LocalSQLEntityPersistenceProvider<Integer>) instance).scan("application", "app1", (ef) -> ids.add(ef.get("id")));
+        assertEquals(1, result);
+        assertEquals(1, ids.get(3));
+    }
+
+    /**
+     * Test that an illegal pool property is reported as a configuration error.
+     */
+    @Test
+    public void testIllegalPoolProperty() {
+        System.out.println("illegal pool property");
+        Properties p = new Properties();
+        p.setProperty("key", "testingillegalproperty");
+        p.setProperty("connection", "jdbc:mysql://localhost:3306/testingmysqllibrary");
+        p.setProperty("poolsize", "eight");
+        assertFalse(new LocalMySQLPersistenceUnitProvider(p).isOperational());
+        p.setProperty("poolsize", "0");
+        assertFalse(new LocalMySQLPersistenceUnitProvider(p).isOperational());
+    }
+
+    /**
+     * Test of concurrent reads through the connection pool.
+     *
+     * @throws Exception if problems
+     */
+    @Test
+    public void testPoolStatistics() throws Exception {
+        System.out.println("pool statistics");
+        Thread[] readers = new Thread[4];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new Thread(() -> {
+                for (int j = 0; j < 10; j++) {
+                    instance.get(1);
+                }
+            });
+            readers[i].start();
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        LocalMySQLPersistenceUnitProvider pup = (LocalMySQLPersistenceUnitProvider) EntityPersistenceProviderManager.getAllPersistenceUnitProviders().iterator().next();
+        ConnectionPool.Statistics stats = pup.getPoolStatistics();
+        assertEquals(0, stats.getActive());
+        assertEquals(0, stats.getTimeouts());
+        assertTrue(stats.getAcquires() >= 40);
+        assertTrue(stats.getConnections() <= stats.getPoolSize());
+    }
+
+    /**
+     * Test of write behind transactions - changes are deferred, coalesced and
+     * flushed as batches.
+     *
+     * @throws Exception if problems
+     */
+    @Test
+    public void testWriteBehind() throws Exception {
+        System.out.println("write behind");
+        LocalMySQLPersistenceUnitProvider pup = (LocalMySQLPersistenceUnitProvider) EntityPersistenceProviderManager.getAllPersistenceUnitProviders().iterator().next();
+        pup.beginWriteBehind();
+        try {
+            assertTrue(pup.isWriteBehind());
+            EntityFields diff = new EntityFields();
+            diff.put("application", "changed");
+            assertEquals("changed", instance.update(2, diff).get("application"));
+            diff.put("application", "changed again");
+            instance.update(2, diff);
+            instance.update(3, diff);
+            FlushSummary summary = pup.flush();
+            assertEquals(2, summary.getUpdates());
+            assertEquals(1, summary.getCoalesced());
+            assertEquals(1, summary.getBatches());
+            assertFalse(summary.hasErrors());
+            assertEquals("changed again", instance.get(2).get("application"));
+        } finally {
+            pup.rollback();
+        }
+        assertFalse(pup.isWriteBehind());
+        assertEquals("app2", instance.get(2).get("application"));
+    }
 }
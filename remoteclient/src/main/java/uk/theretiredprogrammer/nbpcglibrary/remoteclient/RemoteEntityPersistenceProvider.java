@@ -17,20 +17,33 @@ package uk.theretiredprogrammer.nbpcglibrary.remoteclient;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import javax.json.Json;
 import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
 import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
 import javax.json.JsonValue;
+import uk.theretiredprogrammer.nbpcglibrary.api.AsyncEntityPersistenceProvider;
+import uk.theretiredprogrammer.nbpcglibrary.api.BatchResult;
+import uk.theretiredprogrammer.nbpcglibrary.api.Criteria;
 import uk.theretiredprogrammer.nbpcglibrary.api.EntityFields;
 import uk.theretiredprogrammer.nbpcglibrary.common.LogBuilder;
 import uk.theretiredprogrammer.nbpcglibrary.api.EntityPersistenceProvider;
+import uk.theretiredprogrammer.nbpcglibrary.api.IdxSequence;
 import uk.theretiredprogrammer.nbpcglibrary.api.PersistenceUnitProvider;
+import uk.theretiredprogrammer.nbpcglibrary.api.RowSchema;
+import uk.theretiredprogrammer.nbpcglibrary.api.RowSchema.ColumnType;
 import uk.theretiredprogrammer.nbpcglibrary.api.LogicException;
+import uk.theretiredprogrammer.nbpcglibrary.api.Page;
+import uk.theretiredprogrammer.nbpcglibrary.api.PageKey;
 import uk.theretiredprogrammer.nbpcglibrary.common.Settings;
 import uk.theretiredprogrammer.nbpcglibrary.json.JsonConversionException;
 import uk.theretiredprogrammer.nbpcglibrary.json.JsonUtil;
@@ -38,14 +51,23 @@ import uk.theretiredprogrammer.nbpcglibrary.json.JsonUtil;
 /**
  * EntityPersistenceProvider Class for accessing remote entities.
  *
+ * The asynchronous operations do not hold the provider's lock: each command
+ * is built on the requesting thread, sent on its own pooled connection, and
+ * its reply decoded when it arrives.
+ *
  * @author Richard Linsdale (richard at theretiredprogrammer.uk)
  * @param <K> the Primary Key Class
  */
-public abstract class RemoteEntityPersistenceProvider<K> implements EntityPersistenceProvider<K> {
+public abstract class RemoteEntityPersistenceProvider<K> implements EntityPersistenceProvider<K>, AsyncEntityPersistenceProvider<K> {
 
+    private static final int MAXCOMMANDSPERREQUEST = 100;
     private String entityname;
     private RemotePersistenceUnitProvider persistenceUnitProvider;
     private String idx;
+    private RowSchema recordschema;
+    private IdxSequence idxsequence;
+    // false once the server has rejected a reserveidx command (servers before block reservation)
+    private volatile boolean reserveidx = true;
 
     @Override
     public void init(String entityname, Properties properties, PersistenceUnitProvider pup) {
@@ -59,6 +81,8 @@ public abstract class RemoteEntityPersistenceProvider<K> implements EntityPersis
         this.entityname = entityname;
         this.persistenceUnitProvider = (RemotePersistenceUnitProvider) pup;
         this.idx = idx;
+        idxsequence = new IdxSequence(this, Integer.parseInt(properties.getProperty("idxblocksize",
+                Integer.toString(IdxSequence.DEFAULTBLOCKSIZE))));
     }
 
     @Override
@@ -108,6 +132,30 @@ public abstract class RemoteEntityPersistenceProvider<K> implements EntityPersis
         }
     }
 
+    @Override
+    public final synchronized List<EntityFields> get(Collection<K> pkeys) {
+        LogBuilder.writeLog("nbpcglib.RemoteEntityPersistenceProvider", this, "get", pkeys);
+        List<EntityFields> list = new ArrayList<>(pkeys.size());
+        Iterator<K> pkeyiterator = pkeys.iterator();
+        try {
+            while (pkeyiterator.hasNext()) {
+                JsonArrayBuilder commands = Json.createArrayBuilder();
+                for (int i = 0; i < MAXCOMMANDSPERREQUEST && pkeyiterator.hasNext(); i++) {
+                    JsonObjectBuilder job = Json.createObjectBuilder();
+                    addPK(job, pkeyiterator.next());
+                    commands.add(persistenceUnitProvider.createCommand(entityname, "get", job.build()));
+                }
+                for (JsonValue j : persistenceUnitProvider.executeMultipleCommands(commands.build())) {
+                    JsonObject reply = (JsonObject) j;
+                    list.add(reply.getBoolean("success") ? makeEntityFields(reply.getJsonObject("entity")) : null);
+                }
+            }
+            return list;
+        } catch (IOException ex) {
+            throw new LogicException("Remote get(pkeys) failed: " + ex.getMessage());
+        }
+    }
+
     /**
      * Add the primary key to the JsonObject
      *
@@ -218,6 +266,228 @@ public abstract class RemoteEntityPersistenceProvider<K> implements EntityPersis
         }
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * Sent as a getbycriteria command, with the criteria as a structured
+     * filter object.
+     */
+    @Override
+    public final synchronized List<EntityFields> get(Criteria criteria) {
+        LogBuilder.writeLog("nbpcglib.RemoteEntityPersistenceProvider", this, "get", criteria);
+        try {
+            JsonObject reply = executeCriteriaCommand("getbycriteria", criteria);
+            if (!reply.getBoolean("success")) {
+                throw new LogicException("Remote get(criteria) failed: " + reply.getString("message") + "; " + reply.getString("exceptionmessage", ""));
+            }
+            List<EntityFields> list = new ArrayList<>();
+            for (JsonValue j : reply.getJsonArray("entities")) {
+                list.add(makeEntityFields((JsonObject) j));
+            }
+            return list;
+        } catch (IOException ex) {
+            throw new LogicException("Remote get(criteria) failed: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Sent as a findbycriteria command, with the criteria as a structured
+     * filter object.
+     */
+    @Override
+    public final synchronized List<K> find(Criteria criteria) {
+        LogBuilder.writeLog("nbpcglib.RemoteEntityPersistenceProvider", this, "find", criteria);
+        try {
+            JsonObject reply = executeCriteriaCommand("findbycriteria", criteria);
+            if (!reply.getBoolean("success")) {
+                throw new LogicException("Remote find(criteria) failed: " + reply.getString("message") + "; " + reply.getString("exceptionmessage", ""));
+            }
+            List<K> list = new ArrayList<>();
+            reply.getJsonArray("pkeys").stream().forEach((j) -> {
+                list.add(getPK(j));
+            });
+            return list;
+        } catch (IOException ex) {
+            throw new LogicException("Remote find(criteria) failed: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Sent as a count command, with the criteria as a structured filter
+     * object.
+     */
+    @Override
+    public final synchronized int count(Criteria criteria) {
+        LogBuilder.writeLog("nbpcglib.RemoteEntityPersistenceProvider", this, "count", criteria);
+        return count(criteria, "count", Json.createObjectBuilder());
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Sent as a count command with a limit of 1, so the server can stop at
+     * the first match.
+     */
+    @Override
+    public final synchronized boolean exists(Criteria criteria) {
+        LogBuilder.writeLog("nbpcglib.RemoteEntityPersistenceProvider", this, "exists", criteria);
+        return count(criteria, "exists", Json.createObjectBuilder().add("limit", 1)) > 0;
+    }
+
+    private int count(Criteria criteria, String method, JsonObjectBuilder job) {
+        try {
+            job.add("criteria", filter(criteria));
+            JsonObject reply = persistenceUnitProvider.executeSingleCommand(entityname, "count", job.build());
+            if (!reply.getBoolean("success")) {
+                throw new LogicException("Remote " + method + "(criteria) failed: " + reply.getString("message") + "; " + reply.getString("exceptionmessage", ""));
+            }
+            return reply.getInt("count");
+        } catch (IOException ex) {
+            throw new LogicException("Remote " + method + "(criteria) failed: " + ex.getMessage());
+        }
+    }
+
+    private JsonObject executeCriteriaCommand(String action, Criteria criteria) throws IOException {
+        return persistenceUnitProvider.executeSingleCommand(entityname, action, criteriaRequest(criteria));
+    }
+
+    private JsonObject criteriaRequest(Criteria criteria) throws JsonConversionException {
+        JsonObjectBuilder job = Json.createObjectBuilder()
+                .add("criteria", filter(criteria));
+        if (!criteria.getOrder().isEmpty()) {
+            JsonArrayBuilder order = Json.createArrayBuilder();
+            criteria.getOrder().stream().forEach((o) -> {
+                order.add(Json.createObjectBuilder()
+                        .add("field", o.getField())
+                        .add("descending", o.isDescending()));
+            });
+            job.add("order", order.build());
+        } else if (idx != null) {
+            job.add("orderby", idx);
+        }
+        return job.build();
+    }
+
+    // the structured filter object: {"op":"and"|"or", "terms":[...]},
+    // {"op":"in", "field":f, "values":[...]}, {"op":"isnull"|"isnotnull", "field":f}
+    // or {"op":"eq"|"ne"|"lt"|"le"|"gt"|"ge", "field":f, "value":v}
+    private JsonObject filter(Criteria criteria) throws JsonConversionException {
+        JsonObjectBuilder job = Json.createObjectBuilder()
+                .add("op", criteria.getOperator().name().toLowerCase());
+        switch (criteria.getOperator()) {
+            case AND:
+            case OR:
+                JsonArrayBuilder terms = Json.createArrayBuilder();
+                for (Criteria term : criteria.getTerms()) {
+                    terms.add(filter(term));
+                }
+                job.add("terms", terms.build());
+                break;
+            case IN:
+                JsonArrayBuilder values = Json.createArrayBuilder();
+                for (Object value : criteria.getValues()) {
+                    JsonObjectBuilder holder = Json.createObjectBuilder();
+                    JsonUtil.insertValue(holder, "value", value);
+                    values.add(holder.build().get("value"));
+                }
+                job.add("field", criteria.getField());
+                job.add("values", values.build());
+                break;
+            case ISNULL:
+            case ISNOTNULL:
+                job.add("field", criteria.getField());
+                break;
+            default:
+                job.add("field", criteria.getField());
+                JsonUtil.insertValue(job, "value", criteria.getValue());
+        }
+        return job.build();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The requested columns are sent as the "columns" array of the getall
+     * command.
+     */
+    @Override
+    public final synchronized List<EntityFields> getProjection(List<String> columns) {
+        LogBuilder.writeLog("nbpcglib.RemoteEntityPersistenceProvider", this, "getProjection", columns);
+        try {
+            JsonObjectBuilder job = Json.createObjectBuilder();
+            addColumns(job, columns);
+            if (idx != null) {
+                job.add("orderby", idx);
+            }
+            JsonObject reply = persistenceUnitProvider.executeSingleCommand(entityname, "getall", job.build());
+            if (!reply.getBoolean("success")) {
+                throw new LogicException("Remote getProjection() failed: " + reply.getString("message") + "; " + reply.getString("exceptionmessage", ""));
+            }
+            return makeProjections(reply.getJsonArray("entities"), columns);
+        } catch (IOException ex) {
+            throw new LogicException("Remote getProjection() failed: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The requested columns are sent as the "columns" array of the getbyfield
+     * command.
+     */
+    @Override
+    public final synchronized List<EntityFields> getProjection(List<String> columns, String parametername, Object parametervalue) {
+        LogBuilder.writeLog("nbpcglib.RemoteEntityPersistenceProvider", this, "getProjection", columns, parametername, parametervalue.toString());
+        try {
+            JsonObjectBuilder job = Json.createObjectBuilder()
+                    .add("field", parametername);
+            JsonUtil.insertValue(job, "value", parametervalue);
+            addColumns(job, columns);
+            if (idx != null) {
+                job.add("orderby", idx);
+            }
+            JsonObject reply = persistenceUnitProvider.executeSingleCommand(entityname, "getbyfield", job.build());
+            if (!reply.getBoolean("success")) {
+                throw new LogicException("Remote getProjection(field,value) failed: " + reply.getString("message") + "; " + reply.getString("exceptionmessage", ""));
+            }
+            return makeProjections(reply.getJsonArray("entities"), columns);
+        } catch (IOException ex) {
+            throw new LogicException("Remote getProjection(field,value) failed: " + ex.getMessage());
+        }
+    }
+
+    @Override
+    public final synchronized EntityFields getOneProjection(List<String> columns, String parametername, Object parametervalue) {
+        List<EntityFields> get = getProjection(columns, parametername, parametervalue);
+        if (get.size() != 1) {
+            throw new LogicException("Remote getOneProjection(field,value) failed: Single row expected");
+        }
+        return get.get(0);
+    }
+
+    private void addColumns(JsonObjectBuilder job, List<String> columns) {
+        JsonArrayBuilder jab = Json.createArrayBuilder();
+        columns.stream().forEach((column) -> {
+            jab.add(column);
+        });
+        job.add("columns", jab.build());
+    }
+
+    // a server which does not support column selection returns full entities, so project the replies here
+    private List<EntityFields> makeProjections(JsonArray entities, List<String> columns) throws JsonConversionException {
+        List<EntityFields> list = new ArrayList<>(entities.size());
+        for (JsonValue j : entities) {
+            JsonObject record = (JsonObject) j;
+            EntityFields ef = makeEntityFields(record);
+            list.add(record.size() == columns.size() ? ef : ef.project(columns));
+        }
+        return list;
+    }
+
     @Override
     public final synchronized K findOne(String parametername, Object parametervalue) {
         LogBuilder.writeLog("nbpcglib.RemoteEntityPersistenceProvider", this, "findOne", parametername, parametervalue.toString());
@@ -239,15 +509,154 @@ public abstract class RemoteEntityPersistenceProvider<K> implements EntityPersis
         }
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * Sent as a getpage command; the continuation key is sent as the "after"
+     * object (holding the primary key and the index field value).
+     */
+    @Override
+    public final synchronized Page<K> getPage(PageKey<K> after, int limit) {
+        LogBuilder.writeLog("nbpcglib.RemoteEntityPersistenceProvider", this, "getPage", after, limit);
+        return page(Json.createObjectBuilder(), after, limit);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Sent as a getpage command, with the filter field and value.
+     */
+    @Override
+    public final synchronized Page<K> getPage(String parametername, Object parametervalue, PageKey<K> after, int limit) {
+        LogBuilder.writeLog("nbpcglib.RemoteEntityPersistenceProvider", this, "getPage", parametername, parametervalue.toString(), after, limit);
+        try {
+            JsonObjectBuilder job = Json.createObjectBuilder()
+                    .add("field", parametername);
+            JsonUtil.insertValue(job, "value", parametervalue);
+            return page(job, after, limit);
+        } catch (JsonConversionException ex) {
+            throw new LogicException("Remote getPage(field,value) failed: " + ex.getMessage());
+        }
+    }
+
+    private Page<K> page(JsonObjectBuilder job, PageKey<K> after, int limit) {
+        Page.checkLimit(limit);
+        try {
+            // request one extra entity to find if there is a following page
+            job.add("limit", limit + 1);
+            if (idx != null) {
+                job.add("orderby", idx);
+            }
+            if (after != null) {
+                JsonObjectBuilder afterjob = Json.createObjectBuilder();
+                addPK(afterjob, after.getPK());
+                if (idx != null) {
+                    JsonUtil.insertValue(afterjob, idx, after.getIdxValue());
+                }
+                job.add("after", afterjob.build());
+            }
+            JsonObject reply = persistenceUnitProvider.executeSingleCommand(entityname, "getpage", job.build());
+            if (!reply.getBoolean("success")) {
+                throw new LogicException("Remote getPage() failed: " + reply.getString("message") + "; " + reply.getString("exceptionmessage", ""));
+            }
+            List<EntityFields> rows = new ArrayList<>();
+            for (JsonValue j : reply.getJsonArray("entities")) {
+                rows.add(makeEntityFields((JsonObject) j));
+            }
+            if (rows.size() <= limit) {
+                return new Page<>(rows, null);
+            }
+            rows.remove(limit);
+            EntityFields last = rows.get(limit - 1);
+            return new Page<>(rows, new PageKey<>(idx == null ? null : last.get(idx), getPK(last)));
+        } catch (IOException ex) {
+            throw new LogicException("Remote getPage() failed: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Sent as a getrange command.
+     */
+    @Override
+    public final synchronized List<EntityFields> getRange(int offset, int limit) {
+        LogBuilder.writeLog("nbpcglib.RemoteEntityPersistenceProvider", this, "getRange", offset, limit);
+        Page.checkLimit(limit);
+        try {
+            JsonObjectBuilder job = Json.createObjectBuilder()
+                    .add("offset", offset)
+                    .add("limit", limit);
+            if (idx != null) {
+                job.add("orderby", idx);
+            }
+            JsonObject reply = persistenceUnitProvider.executeSingleCommand(entityname, "getrange", job.build());
+            if (!reply.getBoolean("success")) {
+                throw new LogicException("Remote getRange() failed: " + reply.getString("message") + "; " + reply.getString("exceptionmessage", ""));
+            }
+            List<EntityFields> list = new ArrayList<>();
+            for (JsonValue j : reply.getJsonArray("entities")) {
+                list.add(makeEntityFields((JsonObject) j));
+            }
+            return list;
+        } catch (IOException ex) {
+            throw new LogicException("Remote getRange() failed: " + ex.getMessage());
+        }
+    }
+
     @Override
-    public final synchronized int findNextIdx() {
-        LogBuilder.writeLog("nbpcglib.RemoteEntityPersistenceProvider", this, "findNextIdx");
+    public final int findNextIdx() {
         if (idx == null) {
             throw new LogicException("findNextIdx() should not be called if the entity is not ordered");
         }
+        if (reserveidx) {
+            try {
+                return idxsequence.next();
+            } catch (LogicException ex) {
+                if (reserveidx) {
+                    throw ex;
+                }
+            }
+        }
+        return nextIdx();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * A single value is reserved using the findnextidx command, and a block
+     * using the reserveidx command. If the server rejects the reserveidx
+     * command, later index values are found one at a time using findnextidx.
+     */
+    @Override
+    public final synchronized int reserveIdx(int blocksize) {
+        LogBuilder.writeLog("nbpcglib.RemoteEntityPersistenceProvider", this, "reserveIdx", blocksize);
+        if (idx == null) {
+            throw new LogicException("reserveIdx() should not be called if the entity is not ordered");
+        }
+        if (blocksize == 1) {
+            return nextIdx();
+        }
+        if (!reserveidx) {
+            throw new LogicException("Remote reserveIdx() failed: the server cannot reserve a block of index values");
+        }
         try {
             JsonObjectBuilder job = Json.createObjectBuilder();
-            JsonObject reply = persistenceUnitProvider.executeSingleCommand(entityname, "findnextidx", job.build());
+            job.add("blocksize", blocksize);
+            JsonObject reply = persistenceUnitProvider.executeSingleCommand(entityname, "reserveidx", job.build());
+            if (!reply.getBoolean("success")) {
+                reserveidx = false;
+                throw new LogicException("Remote reserveIdx() failed: " + reply.getString("message") + "; " + reply.getString("exceptionmessage", ""));
+            }
+            return reply.getInt("firstidx");
+        } catch (IOException ex) {
+            throw new LogicException("Remote reserveIdx() failed: " + ex.getMessage());
+        }
+    }
+
+    private synchronized int nextIdx() {
+        try {
+            JsonObject reply = persistenceUnitProvider.executeSingleCommand(entityname, "findnextidx", Json.createObjectBuilder().build());
             if (!reply.getBoolean("success")) {
                 throw new LogicException("Remote findNextIdx() failed: " + reply.getString("message") + "; " + reply.getString("exceptionmessage", ""));
             }
@@ -285,13 +694,38 @@ public abstract class RemoteEntityPersistenceProvider<K> implements EntityPersis
     }
 
     private EntityFields makeEntityFields(JsonObject record) throws JsonConversionException {
-        EntityFields entity = new EntityFields();
+        EntityFields entity = new EntityFields(schemaFor(record));
         for (Map.Entry<String, JsonValue> field : record.entrySet()) {
             entity.put(field.getKey(), JsonUtil.getValue(field.getValue()));
         }
         return entity;
     }
 
+    // rows with the same fields share one schema; the schema of the last row is reused while it matches
+    private RowSchema schemaFor(JsonObject record) {
+        RowSchema schema = recordschema;
+        if (schema == null || !schema.matches(record.keySet())) {
+            String[] names = record.keySet().toArray(new String[record.size()]);
+            ColumnType[] types = new ColumnType[names.length];
+            for (int i = 0; i < names.length; i++) {
+                switch (record.get(names[i]).getValueType()) {
+                    case NUMBER:
+                        types[i] = ColumnType.INT;
+                        break;
+                    case TRUE:
+                    case FALSE:
+                        types[i] = ColumnType.BOOLEAN;
+                        break;
+                    default:
+                        types[i] = ColumnType.OBJECT;
+                }
+            }
+            schema = RowSchema.of(names, types);
+            recordschema = schema;
+        }
+        return schema;
+    }
+
     @Override
     public final synchronized EntityFields update(K pkey, EntityFields diff) {
         LogBuilder.writeLog("nbpcglib.RemoteEntityPersistenceProvider", this, "update", pkey, diff.toString());
@@ -326,4 +760,260 @@ public abstract class RemoteEntityPersistenceProvider<K> implements EntityPersis
             throw new LogicException("Remote delete(pkey) failed: " + ex.getMessage());
         }
     }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The entities are sent as multiple command requests.
+     */
+    @Override
+    public final synchronized BatchResult insert(List<EntityFields> values) {
+        LogBuilder.writeLog("nbpcglib.RemoteEntityPersistenceProvider", this, "insert(batch)", values.size());
+        List<JsonObject> commands = new ArrayList<>(values.size());
+        String user = Settings.get("Usercode", "????");
+        try {
+            for (EntityFields ef : values) {
+                JsonObjectBuilder job = Json.createObjectBuilder()
+                        .add("user", user);
+                addEntity(job, ef);
+                commands.add(persistenceUnitProvider.createCommand(entityname, "create", job.build()));
+            }
+        } catch (JsonConversionException ex) {
+            throw new LogicException("Remote insert(batch) failed: " + ex.getMessage());
+        }
+        return executeBatch(commands, true);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The entities are sent as multiple command requests.
+     */
+    @Override
+    public final synchronized BatchResult update(List<K> pkeys, List<EntityFields> diffs) {
+        LogBuilder.writeLog("nbpcglib.RemoteEntityPersistenceProvider", this, "update(batch)", pkeys.size());
+        if (pkeys.size() != diffs.size()) {
+            throw new LogicException("update(pks, diffs) - lists must be the same size");
+        }
+        List<JsonObject> commands = new ArrayList<>(pkeys.size());
+        String user = Settings.get("Usercode", "????");
+        try {
+            for (int i = 0; i < pkeys.size(); i++) {
+                JsonObjectBuilder job = Json.createObjectBuilder()
+                        .add("user", user);
+                addPK(job, pkeys.get(i));
+                addEntity(job, diffs.get(i));
+                commands.add(persistenceUnitProvider.createCommand(entityname, "update", job.build()));
+            }
+        } catch (JsonConversionException ex) {
+            throw new LogicException("Remote update(batch) failed: " + ex.getMessage());
+        }
+        return executeBatch(commands, true);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The deletes are sent as multiple command requests.
+     */
+    @Override
+    public final synchronized BatchResult delete(List<K> pkeys) {
+        LogBuilder.writeLog("nbpcglib.RemoteEntityPersistenceProvider", this, "delete(batch)", pkeys.size());
+        List<JsonObject> commands = new ArrayList<>(pkeys.size());
+        pkeys.stream().forEach((pkey) -> {
+            JsonObjectBuilder job = Json.createObjectBuilder();
+            addPK(job, pkey);
+            commands.add(persistenceUnitProvider.createCommand(entityname, "delete", job.build()));
+        });
+        return executeBatch(commands, false);
+    }
+
+    private BatchResult executeBatch(List<JsonObject> commands, boolean returnsentity) {
+        BatchResult result = new BatchResult(commands.size());
+        try {
+            for (int from = 0; from < commands.size(); from += MAXCOMMANDSPERREQUEST) {
+                JsonArrayBuilder request = Json.createArrayBuilder();
+                int to = Math.min(from + MAXCOMMANDSPERREQUEST, commands.size());
+                commands.subList(from, to).stream().forEach((command) -> {
+                    request.add(command);
+                });
+                int i = from;
+                for (JsonValue j : persistenceUnitProvider.executeMultipleCommands(request.build())) {
+                    JsonObject reply = (JsonObject) j;
+                    if (reply.getBoolean("success")) {
+                        result.setSuccess(i, returnsentity ? makeEntityFields(reply.getJsonObject("entity")) : null);
+                    } else {
+                        result.setFailure(i, reply.getString("message", "") + "; " + reply.getString("exceptionmessage", ""));
+                    }
+                    i++;
+                }
+            }
+            return result;
+        } catch (IOException ex) {
+            throw new LogicException("Remote batch failed: " + ex.getMessage());
+        }
+    }
+
+    @Override
+    public final CompletableFuture<EntityFields> getAsync(K pkey) {
+        LogBuilder.writeLog("nbpcglib.RemoteEntityPersistenceProvider", this, "getAsync", pkey);
+        JsonObjectBuilder job = Json.createObjectBuilder();
+        addPK(job, pkey);
+        return executeAsync("getAsync(pkey)", "get", job.build(), (reply) -> makeEntityFields(reply.getJsonObject("entity")));
+    }
+
+    @Override
+    public final CompletableFuture<List<EntityFields>> getAsync(Collection<K> pkeys) {
+        LogBuilder.writeLog("nbpcglib.RemoteEntityPersistenceProvider", this, "getAsync", pkeys);
+        List<CompletableFuture<JsonArray>> replies = new ArrayList<>();
+        Iterator<K> pkeyiterator = pkeys.iterator();
+        while (pkeyiterator.hasNext()) {
+            JsonArrayBuilder commands = Json.createArrayBuilder();
+            for (int i = 0; i < MAXCOMMANDSPERREQUEST && pkeyiterator.hasNext(); i++) {
+                JsonObjectBuilder job = Json.createObjectBuilder();
+                addPK(job, pkeyiterator.next());
+                commands.add(persistenceUnitProvider.createCommand(entityname, "get", job.build()));
+            }
+            replies.add(persistenceUnitProvider.executeMultipleCommandsAsync(commands.build()));
+        }
+        return CompletableFuture.allOf(replies.toArray(new CompletableFuture<?>[replies.size()])).handle((v, ex) -> {
+            if (ex != null) {
+                throw new LogicException("Remote getAsync(pkeys) failed: " + cause(ex).getMessage());
+            }
+            List<EntityFields> list = new ArrayList<>(pkeys.size());
+            try {
+                for (CompletableFuture<JsonArray> chunk : replies) {
+                    for (JsonValue j : chunk.join()) {
+                        JsonObject reply = (JsonObject) j;
+                        list.add(reply.getBoolean("success") ? makeEntityFields(reply.getJsonObject("entity")) : null);
+                    }
+                }
+            } catch (JsonConversionException jex) {
+                throw new LogicException("Remote getAsync(pkeys) failed: " + jex.getMessage());
+            }
+            return list;
+        });
+    }
+
+    @Override
+    public final CompletableFuture<List<EntityFields>> getAsync() {
+        LogBuilder.writeLog("nbpcglib.RemoteEntityPersistenceProvider", this, "getAsync");
+        JsonObjectBuilder job = Json.createObjectBuilder();
+        if (idx != null) {
+            job.add("orderby", idx);
+        }
+        return executeAsync("getAsync()", "getall", job.build(), (reply) -> makeEntityFieldsList(reply.getJsonArray("entities")));
+    }
+
+    @Override
+    public final CompletableFuture<List<EntityFields>> getAsync(Criteria criteria) {
+        LogBuilder.writeLog("nbpcglib.RemoteEntityPersistenceProvider", this, "getAsync", criteria);
+        try {
+            return executeAsync("getAsync(criteria)", "getbycriteria", criteriaRequest(criteria),
+                    (reply) -> makeEntityFieldsList(reply.getJsonArray("entities")));
+        } catch (JsonConversionException ex) {
+            return failed("getAsync(criteria)", ex);
+        }
+    }
+
+    @Override
+    public final CompletableFuture<List<K>> findAsync(Criteria criteria) {
+        LogBuilder.writeLog("nbpcglib.RemoteEntityPersistenceProvider", this, "findAsync", criteria);
+        try {
+            return executeAsync("findAsync(criteria)", "findbycriteria", criteriaRequest(criteria), (reply) -> {
+                List<K> list = new ArrayList<>();
+                reply.getJsonArray("pkeys").stream().forEach((j) -> {
+                    list.add(getPK(j));
+                });
+                return list;
+            });
+        } catch (JsonConversionException ex) {
+            return failed("findAsync(criteria)", ex);
+        }
+    }
+
+    @Override
+    public final CompletableFuture<Integer> countAsync(Criteria criteria) {
+        LogBuilder.writeLog("nbpcglib.RemoteEntityPersistenceProvider", this, "countAsync", criteria);
+        try {
+            JsonObject request = Json.createObjectBuilder().add("criteria", filter(criteria)).build();
+            return executeAsync("countAsync(criteria)", "count", request, (reply) -> reply.getInt("count"));
+        } catch (JsonConversionException ex) {
+            return failed("countAsync(criteria)", ex);
+        }
+    }
+
+    @Override
+    public final CompletableFuture<EntityFields> insertAsync(EntityFields values) {
+        LogBuilder.writeLog("nbpcglib.RemoteEntityPersistenceProvider", this, "insertAsync", values.toString());
+        try {
+            JsonObjectBuilder job = Json.createObjectBuilder()
+                    .add("user", Settings.get("Usercode", "????"));
+            addEntity(job, values);
+            return executeAsync("insertAsync(values)", "create", job.build(), (reply) -> makeEntityFields(reply.getJsonObject("entity")));
+        } catch (JsonConversionException ex) {
+            return failed("insertAsync(values)", ex);
+        }
+    }
+
+    @Override
+    public final CompletableFuture<EntityFields> updateAsync(K pkey, EntityFields diff) {
+        LogBuilder.writeLog("nbpcglib.RemoteEntityPersistenceProvider", this, "updateAsync", pkey, diff.toString());
+        try {
+            JsonObjectBuilder job = Json.createObjectBuilder()
+                    .add("user", Settings.get("Usercode", "????"));
+            addPK(job, pkey);
+            addEntity(job, diff);
+            return executeAsync("updateAsync(pkey,values)", "update", job.build(), (reply) -> makeEntityFields(reply.getJsonObject("entity")));
+        } catch (JsonConversionException ex) {
+            return failed("updateAsync(pkey,values)", ex);
+        }
+    }
+
+    @Override
+    public final CompletableFuture<Void> deleteAsync(K pkey) {
+        LogBuilder.writeLog("nbpcglib.RemoteEntityPersistenceProvider", this, "deleteAsync", pkey);
+        JsonObjectBuilder job = Json.createObjectBuilder();
+        addPK(job, pkey);
+        return executeAsync("deleteAsync(pkey)", "delete", job.build(), (reply) -> null);
+    }
+
+    private interface ReplyDecoder<T> {
+
+        T decode(JsonObject reply) throws JsonConversionException;
+    }
+
+    private <T> CompletableFuture<T> executeAsync(String method, String action, JsonObject request, ReplyDecoder<T> decoder) {
+        return persistenceUnitProvider.executeSingleCommandAsync(entityname, action, request).handle((reply, ex) -> {
+            if (ex != null) {
+                throw new LogicException("Remote " + method + " failed: " + cause(ex).getMessage());
+            }
+            if (!reply.getBoolean("success")) {
+                throw new LogicException("Remote " + method + " failed: " + reply.getString("message") + "; " + reply.getString("exceptionmessage", ""));
+            }
+            try {
+                return decoder.decode(reply);
+            } catch (JsonConversionException jex) {
+                throw new LogicException("Remote " + method + " failed: " + jex.getMessage());
+            }
+        });
+    }
+
+    private <T> CompletableFuture<T> failed(String method, Exception ex) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        result.completeExceptionally(new LogicException("Remote " + method + " failed: " + ex.getMessage()));
+        return result;
+    }
+
+    private Throwable cause(Throwable ex) {
+        return ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+    }
+
+    private List<EntityFields> makeEntityFieldsList(JsonArray entities) throws JsonConversionException {
+        List<EntityFields> list = new ArrayList<>(entities.size());
+        for (JsonValue j : entities) {
+            list.add(makeEntityFields((JsonObject) j));
+        }
+        return list;
+    }
 }
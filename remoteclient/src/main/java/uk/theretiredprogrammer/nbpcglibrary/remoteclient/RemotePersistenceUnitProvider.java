@@ -17,6 +17,8 @@ package uk.theretiredprogrammer.nbpcglibrary.remoteclient;
 
 import java.io.IOException;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import javax.json.Json;
 import javax.json.JsonArray;
 import javax.json.JsonObject;
@@ -31,6 +33,7 @@ import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.util.EntityUtils;
+import uk.theretiredprogrammer.nbpcglibrary.api.AsyncExecutor;
 import uk.theretiredprogrammer.nbpcglibrary.api.PersistenceUnitProvider;
 import uk.theretiredprogrammer.nbpcglibrary.common.LogBuilder;
 import uk.theretiredprogrammer.nbpcglibrary.json.JsonConversionException;
@@ -40,11 +43,16 @@ import uk.theretiredprogrammer.nbpcglibrary.json.JsonUtil;
  * Abstract Class implementing ersistenceUnitProvide over an Http based
  * protocol.
  *
+ * Requests use a pool of connections (of maxconnections connections, default
+ * 10), so that asynchronous commands can overlap.
+ *
  * @author Richard Linsdale (richard at theretiredprogrammer.uk)
  */
 public class RemotePersistenceUnitProvider implements PersistenceUnitProvider {
 
+    private static final int DEFAULTMAXCONNECTIONS = 10;
     private final CloseableHttpClient httpclient;
+    private final Executor executor;
     private final String url;
     private final boolean operational;
 
@@ -55,7 +63,12 @@ public class RemotePersistenceUnitProvider implements PersistenceUnitProvider {
      */
     public RemotePersistenceUnitProvider(Properties p) {
         url = p.getProperty("connection", "");
-        httpclient = HttpClients.createDefault();
+        int maxconnections = Integer.parseInt(p.getProperty("maxconnections", Integer.toString(DEFAULTMAXCONNECTIONS)));
+        httpclient = HttpClients.custom()
+                .setMaxConnPerRoute(maxconnections)
+                .setMaxConnTotal(maxconnections)
+                .build();
+        executor = AsyncExecutor.getDefault();
         operational = pingUrl();
     }
 
@@ -71,18 +84,7 @@ public class RemotePersistenceUnitProvider implements PersistenceUnitProvider {
      * executing the command
      */
     public synchronized JsonObject executeSingleCommand(String tablename, String action, JsonObject request) throws IOException {
-        JsonStructure res = null;
-        HttpPost httpPost = new HttpPost(url+tablename+"/"+action);
-        httpPost.setEntity(new StringEntity(request.toString(), APPLICATION_JSON));
-        try (CloseableHttpResponse response = httpclient.execute(httpPost)) {
-            if (response.getStatusLine().getStatusCode() == 200) {
-                HttpEntity responsebody = response.getEntity();
-                try (JsonReader jsonReader = Json.createReader(responsebody.getContent())) {
-                    res = jsonReader.read();
-                }
-                EntityUtils.consume(responsebody);
-            }
-        }
+        JsonStructure res = post(url + tablename + "/" + action, request);
         if (res instanceof JsonObject) {
             return (JsonObject) res;
         } else {
@@ -91,17 +93,62 @@ public class RemotePersistenceUnitProvider implements PersistenceUnitProvider {
     }
 
     /**
-     * Execute Multiple Commands - send multiple commands in a single message to
-     * be executed by remote data source.
+     * Execute Single Command asynchronously - the command is sent using the
+     * async executor, on its own pooled connection, so independent commands
+     * overlap.
      *
-     * @param request the set of command objects
-     * @return the set of response objects
-     * @throws IOException if problems with parsing command data or problems
-     * executing the command
+     * @param tablename the name of the table to be accessed
+     * @param action the action request on that table
+     * @param request the command object
+     * @return the future response object (completed exceptionally with an
+     * IOException if problems with parsing command data or problems executing
+     * the command)
      */
-    public synchronized JsonArray executeMultipleCommands(JsonArray request) throws IOException {
+    public CompletableFuture<JsonObject> executeSingleCommandAsync(String tablename, String action, JsonObject request) {
+        CompletableFuture<JsonObject> result = new CompletableFuture<>();
+        executor.execute(() -> {
+            try {
+                JsonStructure res = post(url + tablename + "/" + action, request);
+                if (res instanceof JsonObject) {
+                    result.complete((JsonObject) res);
+                } else {
+                    result.completeExceptionally(new JsonConversionException());
+                }
+            } catch (IOException | RuntimeException ex) {
+                result.completeExceptionally(ex);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Execute Multiple Commands asynchronously (see executeMultipleCommands()
+     * and executeSingleCommandAsync()).
+     *
+     * @param request the set of command objects (see createCommand())
+     * @return the future set of response objects
+     */
+    public CompletableFuture<JsonArray> executeMultipleCommandsAsync(JsonArray request) {
+        CompletableFuture<JsonArray> result = new CompletableFuture<>();
+        executor.execute(() -> {
+            try {
+                JsonStructure res = post(url, request);
+                if (res instanceof JsonArray) {
+                    result.complete((JsonArray) res);
+                } else {
+                    result.completeExceptionally(new JsonConversionException());
+                }
+            } catch (IOException | RuntimeException ex) {
+                result.completeExceptionally(ex);
+            }
+        });
+        return result;
+    }
+
+    // the http client is thread safe - each request uses its own pooled connection
+    private JsonStructure post(String target, JsonStructure request) throws IOException {
         JsonStructure res = null;
-        HttpPost httpPost = new HttpPost(url);
+        HttpPost httpPost = new HttpPost(target);
         httpPost.setEntity(new StringEntity(request.toString(), APPLICATION_JSON));
         try (CloseableHttpResponse response = httpclient.execute(httpPost)) {
             if (response.getStatusLine().getStatusCode() == 200) {
@@ -112,6 +159,38 @@ public class RemotePersistenceUnitProvider implements PersistenceUnitProvider {
                 EntityUtils.consume(responsebody);
             }
         }
+        return res;
+    }
+
+    /**
+     * Create a command object for inclusion in the set of commands sent using
+     * executeMultipleCommands().
+     *
+     * @param tablename the name of the table to be accessed
+     * @param action the action request on that table
+     * @param request the command object (as used in executeSingleCommand())
+     * @return the command object
+     */
+    public JsonObject createCommand(String tablename, String action, JsonObject request) {
+        return Json.createObjectBuilder()
+                .add("entity", tablename)
+                .add("action", action)
+                .add("request", request)
+                .build();
+    }
+
+    /**
+     * Execute Multiple Commands - send multiple commands in a single message to
+     * be executed by remote data source. The response objects are returned in
+     * the same order as the command objects.
+     *
+     * @param request the set of command objects (see createCommand())
+     * @return the set of response objects
+     * @throws IOException if problems with parsing command data or problems
+     * executing the command
+     */
+    public synchronized JsonArray executeMultipleCommands(JsonArray request) throws IOException {
+        JsonStructure res = post(url, request);
         if (res instanceof JsonArray) {
             return (JsonArray) res;
         } else {
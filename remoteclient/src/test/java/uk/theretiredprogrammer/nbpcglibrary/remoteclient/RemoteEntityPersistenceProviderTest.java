@@ -19,15 +19,20 @@
 package uk.theretiredprogrammer.nbpcglibrary.remoteclient;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import static org.junit.Assert.*;
+import uk.theretiredprogrammer.nbpcglibrary.api.AsyncEntityPersistenceProvider;
+import uk.theretiredprogrammer.nbpcglibrary.api.Criteria;
 import uk.theretiredprogrammer.nbpcglibrary.api.EntityFields;
+import uk.theretiredprogrammer.nbpcglibrary.api.Page;
 import uk.theretiredprogrammer.nbpcglibrary.api.EntityPersistenceProvider;
 import uk.theretiredprogrammer.nbpcglibrary.api.EntityPersistenceProviderManager;
 import uk.theretiredprogrammer.nbpcglibrary.api.LogicException;
@@ -127,6 +132,57 @@ public class RemoteEntityPersistenceProviderTest {
         System.out.println(result.toString());
         assertEquals(29, result.size());
     }
+    /**
+     * Test of get method (set of primary keys), of class
+     * RemoteEntityPersistenceProvider.
+     *
+     * @throws Exception if problems
+     */
+    @Test
+    public void testGet_Collection() throws Exception {
+        System.out.println("get(pkeys)");
+        List<EntityFields> result = instance.get(Arrays.asList(48, 46));
+        System.out.println(result.toString());
+        assertEquals(2, result.size());
+        assertEquals(48, result.get(0).get("id"));
+        assertEquals(46, result.get(1).get("id"));
+    }
+
+    /**
+     * Test of getProjection methods, of class RemoteEntityPersistenceProvider.
+     *
+     * @throws Exception if problems
+     */
+    @Test
+    public void testGetProjection() throws Exception {
+        System.out.println("getProjection");
+        List<EntityFields> result = instance.getProjection(Arrays.asList("id", "application"));
+        assertEquals(29, result.size());
+        assertEquals(2, result.get(0).size());
+        result = instance.getProjection(Arrays.asList("id"), "application", "JsonApp83");
+        assertEquals(1, result.size());
+        assertEquals(46, result.get(0).get("id"));
+        assertEquals(1, result.get(0).size());
+    }
+
+    /**
+     * Test of getPage method, of class RemoteEntityPersistenceProvider.
+     *
+     * @throws Exception if problems
+     */
+    @Test
+    public void testGetPage() throws Exception {
+        System.out.println("getPage");
+        int count = 0;
+        Page<Integer> page = instance.getPage(null, 10);
+        count += page.getRows().size();
+        while (!page.isLast()) {
+            page = instance.getPage(page.getNext(), 10);
+            count += page.getRows().size();
+        }
+        assertEquals(29, count);
+    }
+
     /**
      * Test of find method, of class RemoteEntityPersistenceProvider.
      *
@@ -170,6 +226,57 @@ public class RemoteEntityPersistenceProviderTest {
         assertEquals(46, id);
     }
 
+    /**
+     * Test of get and find methods (criteria), of class
+     * RemoteEntityPersistenceProvider.
+     *
+     * @throws Exception if problems
+     */
+    @Test
+    public void testGet_Criteria() throws Exception {
+        System.out.println("get(criteria)");
+        List<EntityFields> result = instance.get(Criteria.and(Criteria.eq("application", "JsonApp83"), Criteria.in("id", Arrays.asList(46, 48))));
+        assertEquals(1, result.size());
+        assertEquals(46, result.get(0).get("id"));
+        List<Integer> pks = instance.find(Criteria.in("id", Arrays.asList(48, 46)).orderBy("id"));
+        assertEquals(Arrays.asList(46, 48), pks);
+    }
+
+    /**
+     * Test of count and exists methods, of class
+     * RemoteEntityPersistenceProvider.
+     *
+     * @throws Exception if problems
+     */
+    @Test
+    public void testCountExists() throws Exception {
+        System.out.println("count/exists");
+        assertEquals(29, instance.count(Criteria.all()));
+        assertTrue(instance.exists(Criteria.eq("application", "JsonApp83")));
+        assertFalse(instance.exists(Criteria.eq("application", "none")));
+    }
+
+    /**
+     * Test of the asynchronous operations, of class
+     * RemoteEntityPersistenceProvider.
+     *
+     * @throws Exception if problems
+     */
+    @Test
+    public void testGetAsync() throws Exception {
+        System.out.println("getAsync");
+        AsyncEntityPersistenceProvider<Integer> async = AsyncEntityPersistenceProvider.of(instance);
+        assertSame(instance, async);
+        CompletableFuture<EntityFields> get = async.getAsync(46);
+        CompletableFuture<Integer> count = async.countAsync(Criteria.all());
+        CompletableFuture<List<EntityFields>> all = async.getAsync();
+        CompletableFuture.allOf(get, count, all).join();
+        assertEquals("JsonApp83", get.join().get("application"));
+        assertEquals(29, (int) count.join());
+        assertEquals(29, all.join().size());
+        assertEquals(2, async.getAsync(Arrays.asList(46, 46)).join().size());
+    }
+
     /**
      * Test of getOne method, of class RemoteEntityPersistenceProvider.
      *
@@ -238,4 +345,16 @@ public class RemoteEntityPersistenceProviderTest {
         fail("Exception should have been thrown in this case.");
     }
 
+    /**
+     * Test of reserveIdx method, of class RemoteEntityPersistenceProvider.
+     *
+     * @throws Exception if problems
+     */
+    @Test(expected = LogicException.class)
+    public void testReserveIdx() throws Exception {
+        System.out.println("reserveIdx");
+        int result = instance.reserveIdx(20);
+        fail("Exception should have been thrown in this case.");
+    }
+
 }
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.sqlite;
+
+import java.math.BigDecimal;
+import uk.theretiredprogrammer.nbpcglibrary.api.LogicException;
+import uk.theretiredprogrammer.nbpcglibrary.localdatabaseaccess.LocalSQLEntityPersistenceProvider;
+
+/**
+ * The EntityPersistenceProvider for a SQLite database table.
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ * @param <K> the primary key class
+ */
+public abstract class LocalSQLiteEntityPersistenceProvider<K> extends LocalSQLEntityPersistenceProvider<K> {
+
+    @Override
+    protected String format(Object value) {
+        if (value == null) {
+            return "NULL";
+        }
+        if (value instanceof String) {
+            // SQLite string literals only escape quotes (by doubling), backslash is not special
+            return "'" + ((String) value).replace("'", "''") + "'";
+        }
+        if (value instanceof Boolean) {
+            return ((Boolean) value) ? "1" : "0";
+        }
+        if (value instanceof Integer) {
+            return ((Integer) value).toString();
+        }
+        if (value instanceof Long) {
+            return ((Long) value).toString();
+        }
+        if (value instanceof BigDecimal) {
+            return ((BigDecimal) value).toPlainString();
+        }
+        throw new LogicException("Unknown Object type in LocalSQLiteEntityPersistenceProvider:format()");
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.sqlite;
+
+import java.io.IOException;
+import java.util.Properties;
+import org.openide.util.lookup.ServiceProvider;
+import uk.theretiredprogrammer.nbpcglibrary.api.EntityPersistenceProvider;
+import uk.theretiredprogrammer.nbpcglibrary.api.EntityPersistenceProviderFactory;
+
+/**
+ * A Factory to create EntityPersistenceProviders for local SQLite datasources.
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ */
+@ServiceProvider(service = EntityPersistenceProviderFactory.class)
+public class LocalSQLiteEntityPersistenceProviderFactory implements EntityPersistenceProviderFactory<Integer, LocalSQLitePersistenceUnitProvider, LocalSQLitePersistenceUnitProviderFactory> {
+
+    @Override
+    public String getType() {
+        return "local-sqlite";
+    }
+
+    @Override
+    public EntityPersistenceProvider<Integer> createEntityPersistenceProvider(String entityname, Properties p, LocalSQLitePersistenceUnitProvider pup) throws IOException {
+        LocalSQLiteAutoIDEntityPersistenceProvider epp = new LocalSQLiteAutoIDEntityPersistenceProvider();
+        epp.init(entityname, p, pup);
+        return epp;
+    }
+
+    @Override
+    public EntityPersistenceProvider<Integer> createEntityPersistenceProvider(String entityname, Properties p, LocalSQLitePersistenceUnitProvider pup, String idx) throws IOException {
+        LocalSQLiteAutoIDEntityPersistenceProvider epp = new LocalSQLiteAutoIDEntityPersistenceProvider();
+        epp.init(entityname, idx, p, pup);
+        return epp;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.sqlite;
+
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Level;
+import uk.theretiredprogrammer.nbpcglibrary.annotations.RegisterLog;
+import uk.theretiredprogrammer.nbpcglibrary.common.LogBuilder;
+import uk.theretiredprogrammer.nbpcglibrary.localdatabaseaccess.LocalSQLPersistenceUnitProvider;
+
+/**
+ * The implementation of the DB class for SQLite Database connections.
+ *
+ * The database is a single local file, opened in WAL (write ahead log) mode
+ * so that readers are not blocked by a writer. Writers are serialised by
+ * SQLite, and transactions take the write lock when they begin, so a
+ * transaction is never failed when it upgrades from reading to writing.
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ */
+@RegisterLog("nbpcglibrary.sqlite")
+public class LocalSQLitePersistenceUnitProvider extends LocalSQLPersistenceUnitProvider {
+
+    private static final int DEFAULTPOOLSIZE = 4;
+    private static final int DEFAULTBUSYTIMEOUT = 30000;
+
+    /**
+     * Constructor
+     *
+     * Connection parameters are: connection (the database file, or a
+     * jdbc:sqlite: url). The optional pool parameters are: poolsize (maximum
+     * number of connections), pooltimeout (milliseconds to wait for a free
+     * connection) and statementcachesize (prepared statements cached per
+     * connection). The optional busytimeout is the time (milliseconds) to wait
+     * for another connection's write lock to be released, and synchronous is
+     * the SQLite synchronous mode (default NORMAL, which is durable across
+     * application crashes in WAL mode). An illegal numeric parameter is
+     * reported as a configuration error, and the provider is not operational.
+     *
+     * @param p the db connection parameters
+     */
+    @SuppressWarnings("LeakingThisInConstructor")
+    public LocalSQLitePersistenceUnitProvider(Properties p) {
+        super("local-sqlite-" + p.getProperty("key"));
+        try {
+            Class.forName("org.sqlite.JDBC");
+            setStatementCacheSize(getIntProperty(p, "statementcachesize", DEFAULTSTATEMENTCACHESIZE, 1));
+            Properties connectionproperties = new Properties();
+            connectionproperties.setProperty("journal_mode", "WAL");
+            connectionproperties.setProperty("synchronous", p.getProperty("synchronous", "NORMAL"));
+            connectionproperties.setProperty("foreign_keys", "true");
+            connectionproperties.setProperty("busy_timeout", Integer.toString(getIntProperty(p, "busytimeout", DEFAULTBUSYTIMEOUT, 0)));
+            // take the write lock at the start of a transaction (the default is at its first write)
+            connectionproperties.setProperty("transaction_mode", "IMMEDIATE");
+            String connection = p.getProperty("connection");
+            String url = connection.startsWith("jdbc:") ? connection : "jdbc:sqlite:" + connection;
+            setConnectionPool(() -> DriverManager.getConnection(url, connectionproperties),
+                    getIntProperty(p, "poolsize", DEFAULTPOOLSIZE, 1),
+                    getLongProperty(p, "pooltimeout", DEFAULTPOOLTIMEOUT, 0));
+            // open the first connection now, so that connection problems are reported at startup
+            query("SELECT 1");
+            setOperational();
+        } catch (ClassNotFoundException | SQLException | IllegalArgumentException ex) {
+            LogBuilder.create("nbpcglibrary.sqlite", Level.SEVERE).addConstructorName(this, p)
+                    .addExceptionMessage(ex).write();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The SQLite driver only returns the key of the last row of a batch (it
+     * is read using last_insert_rowid()). The batch is executed while holding
+     * the database's write lock, and its rows do not supply their keys, so
+     * they are allocated consecutive keys ending at the last key.
+     */
+    @Override
+    protected List<Object> getGeneratedKeys(PreparedStatement stat, int rows) throws SQLException {
+        long last;
+        try (ResultSet rs = stat.getGeneratedKeys()) {
+            if (!rs.next()) {
+                return new ArrayList<>();
+            }
+            last = rs.getLong(1);
+        }
+        List<Object> keys = new ArrayList<>(rows);
+        for (long key = last - rows + 1; key <= last; key++) {
+            keys.add(key);
+        }
+        return keys;
+    }
+
+    @Override
+    public String instanceDescription() {
+        return LogBuilder.instanceDescription(this, getName());
+    }
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright 2017 Richard Linsdale.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.theretiredprogrammer.nbpcglibrary.sqlite;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import uk.theretiredprogrammer.nbpcglibrary.api.BatchResult;
+import uk.theretiredprogrammer.nbpcglibrary.api.Criteria;
+import uk.theretiredprogrammer.nbpcglibrary.api.EntityFields;
+import uk.theretiredprogrammer.nbpcglibrary.api.EntityPersistenceProvider;
+import uk.theretiredprogrammer.nbpcglibrary.api.EntityPersistenceProviderManager;
+import uk.theretiredprogrammer.nbpcglibrary.api.LogicException;
+import uk.theretiredprogrammer.nbpcglibrary.api.Page;
+import uk.theretiredprogrammer.nbpcglibrary.api.PageKey;
+
+/**
+ * The test package for the LocalSQLiteEntityPersistenceProvider
+ *
+ * @author Richard Linsdale (richard at theretiredprogrammer.uk)
+ */
+public class LocalSQLiteEntityPersistenceProviderTest {
+
+    private static File dbfile;
+    private static EntityPersistenceProvider<Integer> instance;
+    private static LocalSQLitePersistenceUnitProvider pup;
+
+    /**
+     * Constructor
+     */
+    public LocalSQLiteEntityPersistenceProviderTest() {
+    }
+
+    /**
+     * Setup class - create the database file and its test table
+     *
+     * @throws IOException if problems
+     * @throws SQLException if problems
+     */
+    @BeforeClass
+    public static void setUpClass() throws IOException, SQLException {
+        dbfile = File.createTempFile("testingsqlitelibrary", ".db");
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + dbfile.getPath());
+                Statement stat = conn.createStatement()) {
+            stat.execute("CREATE TABLE TestTable("
+                    + "id INTEGER PRIMARY KEY AUTOINCREMENT"
+                    + ",application VARCHAR(100) UNIQUE NOT NULL"
+                    + ",enabled BOOLEAN NOT NULL DEFAULT 1"
+                    + ",createdby CHAR(4) NOT NULL"
+                    + ",createdon CHAR(14) NOT NULL"
+                    + ",updatedby CHAR(4) NOT NULL"
+                    + ",updatedon CHAR(14) NOT NULL)");
+            for (int i = 1; i <= 3; i++) {
+                stat.execute("INSERT INTO TestTable (application, createdby, createdon, updatedby, updatedon)"
+                        + " VALUES ('app" + i + "', 'test', '20000101000000', 'test', '20000101000000')");
+            }
+            stat.execute("CREATE TABLE IdxTable("
+                    + "id INTEGER PRIMARY KEY AUTOINCREMENT"
+                    + ",idx INTEGER)");
+            stat.execute("INSERT INTO IdxTable (idx) VALUES (2), (NULL), (1), (NULL), (1)");
+            stat.execute("CREATE TABLE ChildTable("
+                    + "id INTEGER PRIMARY KEY AUTOINCREMENT"
+                    + ",parent INTEGER REFERENCES TestTable(id) DEFERRABLE INITIALLY DEFERRED"
+                    + ",updatedby CHAR(4)"
+                    + ",updatedon CHAR(14))");
+            stat.execute("INSERT INTO ChildTable (parent) VALUES (1)");
+        }
+        Properties p = new Properties();
+        p.setProperty("key", "testingsqlitelibrary");
+        p.setProperty("connection", dbfile.getPath());
+        p.setProperty("entitypersistenceprovidertype", "local-sqlite");
+        p.setProperty("persistenceunitprovidertype", "sqlite");
+        EntityPersistenceProviderManager.init(p);
+        instance = EntityPersistenceProviderManager.getEntityPersistenceProvider("testingsqlitelibrary", "TestTable");
+        pup = (LocalSQLitePersistenceUnitProvider) EntityPersistenceProviderManager.getAllPersistenceUnitProviders().iterator().next();
+    }
+
+    /**
+     * tear down class
+     *
+     * @throws IOException if problems
+     */
+    @AfterClass
+    public static void tearDownClass() throws IOException {
+        EntityPersistenceProviderManager.close();
+        Files.deleteIfExists(dbfile.toPath());
+        Files.deleteIfExists(new File(dbfile.getPath() + "-wal").toPath());
+        Files.deleteIfExists(new File(dbfile.getPath() + "-shm").toPath());
+    }
+
+    /**
+     * Test that the database is opened in WAL mode.
+     *
+     * @throws Exception if problems
+     */
+    @Test
+    public void testJournalMode() throws Exception {
+        System.out.println("journal mode");
+        assertTrue(pup.isOperational());
+        assertEquals("wal", pup.query("PRAGMA journal_mode").get(0).get("journal_mode"));
+    }
+
+    /**
+     * Test that an illegal pool property leaves the provider not operational.
+     */
+    @Test
+    public void testIllegalPoolProperty() {
+        System.out.println("illegal pool property");
+        Properties p = new Properties();
+        p.setProperty("key", "testingillegalproperty");
+        p.setProperty("connection", dbfile.getPath());
+        p.setProperty("poolsize", "eight");
+        assertFalse(new LocalSQLitePersistenceUnitProvider(p).isOperational());
+        p.setProperty("poolsize", "0");
+        assertFalse(new LocalSQLitePersistenceUnitProvider(p).isOperational());
+        p.setProperty("poolsize", "1");
+        p.setProperty("busytimeout", "-1");
+        assertFalse(new LocalSQLitePersistenceUnitProvider(p).isOperational());
+    }
+
+    /**
+     * Test of get method, of class LocalSQLEntityPersistenceProvider.
+     *
+     * @throws Exception if problems
+     */
+    @Test
+    public void testGet_int() throws Exception {
+        System.out.println("get");
+        EntityFields result = instance.get(2);
+        assertEquals(2, result.get("id"));
+        assertEquals("app2", result.get("application"));
+        assertEquals(true, result.get("enabled"));
+        assertEquals("20000101000000", result.get("updatedon"));
+        assertFalse(instance.exists(Criteria.eq("id", 99)));
+    }
+
+    /**
+     * Test of insert, update and delete of a single row.
+     *
+     * @throws Exception if problems
+     */
+    @Test
+    public void testInsertUpdateDelete() throws Exception {
+        System.out.println("insert/update/delete");
+        EntityFields ef = new EntityFields();
+        ef.put("application", "it's single");
+        ef.put("enabled", false);
+        EntityFields inserted = instance.insert(ef);
+        int id = (Integer) inserted.get("id");
+        assertEquals("it's single", instance.get(id).get("application"));
+        assertEquals(false, instance.get(id).get("enabled"));
+        EntityFields diff = new EntityFields();
+        diff.put("application", "single changed");
+        instance.update(id, diff);
+        assertEquals(id, (int) instance.findOne("application", "single changed"));
+        instance.delete(id);
+        assertFalse(instance.exists(Criteria.eq("id", id)));
+    }
+
+    /**
+     * Test of batch insert - the generated keys of every row are returned.
+     *
+     * @throws Exception if problems
+     */
+    @Test
+    public void testInsertBatch() throws Exception {
+        System.out.println("insert(batch)");
+        List<EntityFields> rows = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            EntityFields ef = new EntityFields();
+            ef.put("application", "batch" + i);
+            rows.add(ef);
+        }
+        BatchResult result = instance.insert(rows);
+        assertFalse(result.hasErrors());
+        List<Integer> keys = new ArrayList<>();
+        for (int i = 0; i < result.size(); i++) {
+            int id = (Integer) result.getRow(i).get("id");
+            assertEquals("batch" + i, instance.get(id).get("application"));
+            keys.add(id);
+        }
+        assertEquals(5, instance.count(Criteria.in("application", Arrays.asList("batch0", "batch1", "batch2", "batch3", "batch4"))));
+        assertFalse(instance.delete(keys).hasErrors());
+    }
+
+    /**
+     * Test of transaction rollback.
+     *
+     * @throws Exception if problems
+     */
+    @Test
+    public void testRollback() throws Exception {
+        System.out.println("rollback");
+        pup.begin();
+        try {
+            EntityFields diff = new EntityFields();
+            diff.put("application", "changed");
+            instance.update(3, diff);
+            assertEquals("changed", instance.get(3).get("application"));
+        } finally {
+            pup.rollback();
+        }
+        assertEquals("app3", instance.get(3).get("application"));
+    }
+
+    /**
+     * Test that the cached image of a row updated in a rolled back
+     * transaction is not used to build the result of a later update.
+     *
+     * @throws Exception if problems
+     */
+    @Test
+    public void testUpdateAfterRollback() throws Exception {
+        System.out.println("update after rollback");
+        instance.get(3);
+        pup.begin();
+        try {
+            EntityFields diff = new EntityFields();
+            diff.put("application", "rolled back");
+            instance.update(3, diff);
+        } finally {
+            pup.rollback();
+        }
+        EntityFields diff = new EntityFields();
+        diff.put("enabled", false);
+        assertEquals("app3", instance.update(3, diff).get("application"));
+        diff.put("enabled", true);
+        assertEquals("app3", instance.update(3, diff).get("application"));
+    }
+
+    /**
+     * Test that a write behind commit whose deferred changes fail is rolled
+     * back, and that a later update is built from the stored values.
+     *
+     * @throws Exception if problems
+     */
+    @Test
+    public void testFailedCommit() throws Exception {
+        System.out.println("failed commit");
+        instance.get(1);
+        pup.beginWriteBehind();
+        EntityFields diff = new EntityFields();
+        diff.put("application", "app2"); // not unique - fails when flushed
+        assertEquals("app2", instance.update(1, diff).get("application"));
+        try {
+            pup.commit();
+            fail("commit of a failing deferred change expected to fail");
+        } catch (LogicException ex) {
+            assertFalse(pup.isInTransaction());
+        }
+        diff = new EntityFields();
+        diff.put("enabled", true);
+        assertEquals("app1", instance.update(1, diff).get("application"));
+    }
+
+    /**
+     * Test that a transaction whose commit fails (a deferred foreign key is
+     * only checked when committing) is rolled back, and that the images of
+     * its changed rows are forgotten.
+     *
+     * @throws Exception if problems
+     */
+    @Test
+    public void testCommitFailure() throws Exception {
+        System.out.println("commit failure");
+        @SuppressWarnings("unchecked")
+        EntityPersistenceProvider<Integer> child = EntityPersistenceProviderManager.getEntityPersistenceProvider("testingsqlitelibrary", "ChildTable");
+        pup.begin();
+        EntityFields diff = new EntityFields();
+        diff.put("parent", 99);
+        assertEquals(99, child.update(1, diff).get("parent"));
+        try {
+            pup.commit();
+            fail("commit with a missing parent expected to fail");
+        } catch (LogicException ex) {
+            assertFalse(pup.isInTransaction());
+        }
+        assertEquals(1, child.get(Criteria.eq("parent", 1)).size());
+        diff = new EntityFields();
+        diff.put("updatedby", "test");
+        assertEquals(1, child.update(1, diff).get("parent"));
+    }
+
+    /**
+     * Test of paging in idx order, where some idx values are null.
+     */
+    @Test
+    public void testPageNullIdx() {
+        System.out.println("page with null idx");
+        @SuppressWarnings("unchecked")
+        EntityPersistenceProvider<Integer> idxinstance = EntityPersistenceProviderManager.getEntityPersistenceProvider("testingsqlitelibrary", "IdxTable", "idx");
+        List<Object> ids = new ArrayList<>();
+        PageKey<Integer> after = null;
+        do {
+            Page<Integer> page = idxinstance.getPage(after, 1);
+            page.getRows().forEach((ef) -> ids.add(ef.get("id")));
+            after = page.getNext();
+        } while (after != null);
+        assertEquals(Arrays.asList(2, 4, 3, 5, 1), ids);
+    }
+
+    /**
+     * Test that blocks of index values reserved by separate clients of the
+     * same database do not overlap.
+     *
+     * @throws Exception if problems
+     */
+    @Test
+    public void testReserveIdx() throws Exception {
+        System.out.println("reserve idx");
+        List<LocalSQLiteEntityPersistenceProvider<Integer>> clients = new ArrayList<>();
+        List<LocalSQLitePersistenceUnitProvider> pups = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            Properties p = new Properties();
+            p.setProperty("key", "testingreserveidx" + i);
+            p.setProperty("connection", dbfile.getPath());
+            LocalSQLitePersistenceUnitProvider clientpup = new LocalSQLitePersistenceUnitProvider(p);
+            assertTrue(clientpup.isOperational());
+            LocalSQLiteEntityPersistenceProvider<Integer> client = new LocalSQLiteAutoIDEntityPersistenceProvider();
+            client.init("IdxTable", "idx", p, clientpup);
+            pups.add(clientpup);
+            clients.add(client);
+        }
+        List<Integer> reserved = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            int first = clients.get(i % 2).reserveIdx(20);
+            for (int idx = first; idx < first + 20; idx++) {
+                assertFalse(reserved.contains(idx));
+                reserved.add(idx);
+            }
+        }
+        // the first block follows the largest stored index value
+        assertEquals(3, (int) reserved.get(0));
+        for (LocalSQLitePersistenceUnitProvider clientpup : pups) {
+            clientpup.disconnect();
+        }
+    }
+
+    /**
+     * Test of the SQL literal formatting used when logging failed statements.
+     */
+    @Test
+    public void testFormat() {
+        System.out.println("format");
+        LocalSQLiteEntityPersistenceProvider<Integer> epp = new LocalSQLiteAutoIDEntityPersistenceProvider();
+        assertEquals("'it''s a \\path'", epp.format("it's a \\path"));
+        assertEquals("1", epp.format(true));
+        assertEquals("NULL", epp.format(null));
+    }
+}